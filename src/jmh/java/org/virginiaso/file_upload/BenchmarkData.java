@@ -0,0 +1,71 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.csv.CSVRecord;
+
+/** Realistic submissions and tournaments for the benchmarks to work on. */
+final class BenchmarkData {
+	private BenchmarkData() {}	// prevent instantiation
+
+	static {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	public static Submission createSubmission(int id, int teamNumber, Instant timeStamp) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber(Integer.toString(teamNumber));
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setTeamName("Red");
+		userSub.setStudentNames("Kim Lee, Joe Smith, Ana Ruiz");
+		userSub.setNotes("Our design uses a \"double-wall\" frame, see the attached log.");
+		var submission = new Submission(userSub, Event.WICI, id, timeStamp);
+		submission.addFileName(String.format("B%1$02d-log-%2$03da.pdf", teamNumber, id));
+		submission.addFileName(String.format("B%1$02d-design-%2$03db.stl", teamNumber, id));
+		return submission;
+	}
+
+	public static CSVRecord toRecord(Submission submission) throws IOException {
+		var buffer = new StringBuilder();
+		try (var printer = EventUploader.CSV_FORMAT_OUT.print(buffer)) {
+			submission.print(printer);
+		}
+		try (var parser = EventUploader.CSV_FORMAT_IN.parse(
+			new StringReader(buffer.toString()))) {
+			return parser.getRecords().get(0);
+		}
+	}
+
+	/**
+	 * Creates a day of back-to-back tournaments, each open for WICI-B for one
+	 * hour to its own block of 50 teams, as at a multi-site regional.
+	 */
+	public static List<Tournament> createTournaments(int numTournaments) {
+		return IntStream.range(0, numTournaments)
+			.mapToObj(i -> {
+				var from = String.format("2021-02-06T%1$02d:%2$02d", 8 + i / 6, (i % 6) * 10);
+				var to = String.format("2021-02-06T%1$02d:%2$02d", 9 + i / 6, (i % 6) * 10);
+				EnumMap<Division, TimeInterval> intervals = new EnumMap<>(Division.class);
+				intervals.put(Division.B, new TimeInterval(from, to));
+				EnumMap<Event, EnumMap<Division, TimeInterval>> events = new EnumMap<>(
+					Event.class);
+				events.put(Event.WICI, intervals);
+				EnumMap<Division, Set<Integer>> teams = new EnumMap<>(Division.class);
+				teams.put(Division.B, IntStream.rangeClosed(50 * i + 1, 50 * i + 50)
+					.boxed()
+					.collect(Collectors.toUnmodifiableSet()));
+				return new Tournament("Regional " + i, LocalDate.parse("2021-02-06"), teams,
+					events);
+			})
+			.collect(Collectors.toUnmodifiableList());
+	}
+}
@@ -0,0 +1,71 @@
+package org.virginiaso.file_upload;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.virginiaso.file_upload.util.StringUtil;
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * The lookups made for every request. The failure paths matter too, because
+ * a mistyped URL or field builds an error message listing every valid value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmarks {
+	// Fields rather than constants, so that the JIT cannot fold the lookups away:
+	private String knownEventUri = "wici";
+	private String unknownEventUri = "no-such-event";
+	private String knownDivision = " B ";
+	private String unknownDivision = "D";
+	private String missingDivision = null;
+
+	@Benchmark
+	public Event eventForKnownUri() {
+		return Event.forUri(knownEventUri);
+	}
+
+	@Benchmark
+	public Object eventForUnknownUri() {
+		try {
+			return Event.forUri(unknownEventUri);
+		} catch (ValidationException ex) {
+			return ex;
+		}
+	}
+
+	@Benchmark
+	public Division convertKnownEnumerator() {
+		return StringUtil.convertEnumerator(Division.class, knownDivision);
+	}
+
+	@Benchmark
+	public Object convertUnknownEnumerator() {
+		try {
+			return StringUtil.convertEnumerator(Division.class, unknownDivision);
+		} catch (ValidationException ex) {
+			return ex;
+		}
+	}
+
+	@Benchmark
+	public Object convertMissingEnumerator() {
+		try {
+			return StringUtil.convertEnumerator(Division.class, missingDivision);
+		} catch (ValidationException ex) {
+			return ex;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Converting one submission between its CSV row and its in-memory form. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubmissionBenchmarks {
+	private Submission submission;
+	private CSVRecord record;
+	private StringBuilder buffer;
+
+	@Setup
+	public void setup() throws IOException {
+		submission = BenchmarkData.createSubmission(139, 12, Instant.now());
+		record = BenchmarkData.toRecord(submission);
+		buffer = new StringBuilder(512);
+	}
+
+	@Benchmark
+	public Submission parse() {
+		return new Submission(record);
+	}
+
+	@Benchmark
+	public int print() throws IOException {
+		buffer.setLength(0);
+		var printer = EventUploader.CSV_FORMAT_OUT.withSkipHeaderRecord().print(buffer);
+		submission.print(printer);
+		return buffer.length();
+	}
+}
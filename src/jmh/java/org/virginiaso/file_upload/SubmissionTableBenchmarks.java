@@ -0,0 +1,88 @@
+package org.virginiaso.file_upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+import org.virginiaso.file_upload.util.FileUtil;
+
+/**
+ * Rewriting and reloading a submission table of numRows rows, on the local
+ * file system so that storage latency does not drown out the CSV work.
+ * Without journaling, each submission rewrites the whole table, as in
+ * production when journaling is off.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SubmissionTableBenchmarks {
+	@Param({ "1000", "10000", "100000" })
+	public int numRows;
+
+	private File rootDir;
+	private StorageService storageService;
+	private EventUploader uploader;
+	private int nextId;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException {
+		rootDir = Files.createTempDirectory("table-benchmark").toFile();
+		storageService = new FileSystemStorageServiceImpl(rootDir.getPath());
+	}
+
+	/*
+	 * The table is rebuilt before each iteration, so that the rows added by the
+	 * rewrite benchmark do not accumulate.
+	 */
+	@Setup(Level.Iteration)
+	public void setupIteration() throws IOException {
+		var tableFileName = "wici-B/wici-B-submissions.csv";
+		var tempFile = storageService.getTempSubmissionTableFile(tableFileName);
+		var now = Instant.now();
+		try (var printer = EventUploader.CSV_FORMAT_OUT.print(tempFile, FileUtil.CHARSET)) {
+			for (var id = 0; id < numRows; ++id) {
+				BenchmarkData.createSubmission(id, 1 + id % 99, now).print(printer);
+			}
+		}
+		storageService.transferTempSubmissionTableFile(tempFile, tableFileName);
+		uploader = new EventUploader(Event.WICI, Division.B, storageService,
+			new EventUploaderOptions(0, null, 0, null));
+		nextId = numRows;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws IOException {
+		FileSystemUtils.deleteRecursively(rootDir.toPath());
+	}
+
+	@Benchmark
+	public Submission rewrite() throws IOException {
+		return uploader.receiveStreamedSubmission(
+			BenchmarkData.createSubmission(nextId++, 12, Instant.now()));
+	}
+
+	@Benchmark
+	public int reload() {
+		return new EventUploader(Event.WICI, Division.B, storageService,
+			new EventUploaderOptions(0, null, 0, null)).getMaxSubmissionId();
+	}
+}
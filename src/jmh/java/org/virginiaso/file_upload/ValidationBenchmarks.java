@@ -0,0 +1,76 @@
+package org.virginiaso.file_upload;
+
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * Validating a submission's team and time against a configuration of
+ * numTournaments tournaments, both through the precompiled ValidationIndex
+ * used by the service and by compiling the index on each call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmarks {
+	@Param({ "1", "10", "50" })
+	public int numTournaments;
+
+	private List<Tournament> tournaments;
+	private ValidationIndex index;
+	private Submission accepted;
+	private Submission rejected;
+
+	@Setup
+	public void setup() {
+		tournaments = BenchmarkData.createTournaments(numTournaments);
+		index = new ValidationIndex(tournaments);
+
+		// The last tournament's window, for a team in it and a team in none:
+		var last = numTournaments - 1;
+		var timeStamp = ZonedDateTime.of(LocalDateTime.parse(String.format(
+			"2021-02-06T%1$02d:%2$02d", 8 + last / 6, (last % 6) * 10 + 5)),
+			Configuration.getTimeZone()).toInstant();
+		accepted = BenchmarkData.createSubmission(139, 50 * last + 1, timeStamp);
+		rejected = BenchmarkData.createSubmission(139, 50 * numTournaments + 1, timeStamp);
+	}
+
+	@Benchmark
+	public Submission validateAccepted() {
+		accepted.validateTeamAndTime(index);
+		return accepted;
+	}
+
+	@Benchmark
+	public Object validateRejected() {
+		try {
+			rejected.validateTeamAndTime(index);
+			return rejected;
+		} catch (ValidationException ex) {
+			return ex;
+		}
+	}
+
+	@Benchmark
+	public Submission validateAcceptedUncompiled() {
+		accepted.validateTeamAndTime(tournaments);
+		return accepted;
+	}
+}
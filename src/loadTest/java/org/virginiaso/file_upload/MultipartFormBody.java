@@ -0,0 +1,106 @@
+package org.virginiaso.file_upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * A multipart/form-data request body whose files are synthesized as they are
+ * sent, so that a simulated client can upload a gigabyte without holding it
+ * in memory. File content is random, and so incompressible, like video.
+ */
+final class MultipartFormBody {
+	private static final int BLOCK_SIZE = 1024 * 1024;
+	private static final byte[] BLOCK = new byte[BLOCK_SIZE];
+
+	static {
+		new Random(0).nextBytes(BLOCK);
+	}
+
+	private final String boundary;
+	private final List<Supplier<InputStream>> parts;
+	private long length;
+
+	public MultipartFormBody() {
+		boundary = "----LoadTestBoundary" + UUID.randomUUID().toString().replace("-", "");
+		parts = new ArrayList<>();
+		length = 0;
+	}
+
+	public String getContentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	public MultipartFormBody addField(String name, String value) {
+		addBytes(String.format("--%1$s\r\nContent-Disposition: form-data; name=\"%2$s\"\r\n\r\n"
+			+ "%3$s\r\n", boundary, name, value));
+		return this;
+	}
+
+	public MultipartFormBody addFile(String name, String fileName, long size) {
+		addBytes(String.format("--%1$s\r\nContent-Disposition: form-data; name=\"%2$s\"; "
+			+ "filename=\"%3$s\"\r\nContent-Type: application/octet-stream\r\n\r\n",
+			boundary, name, fileName));
+		parts.add(() -> new SyntheticContent(size));
+		length += size;
+		addBytes("\r\n");
+		return this;
+	}
+
+	public HttpRequest.BodyPublisher toBodyPublisher() {
+		var allParts = new ArrayList<>(parts);
+		var closing = String.format("--%1$s--\r\n", boundary).getBytes(StandardCharsets.UTF_8);
+		allParts.add(() -> new ByteArrayInputStream(closing));
+		return HttpRequest.BodyPublishers.fromPublisher(
+			HttpRequest.BodyPublishers.ofInputStream(() -> new SequenceInputStream(
+				Collections.enumeration(allParts.stream()
+					.map(Supplier::get)
+					.toList()))),
+			length + closing.length);
+	}
+
+	private void addBytes(String text) {
+		var bytes = text.getBytes(StandardCharsets.UTF_8);
+		parts.add(() -> new ByteArrayInputStream(bytes));
+		length += bytes.length;
+	}
+
+	private static final class SyntheticContent extends InputStream {
+		private final long size;
+		private long position;
+
+		public SyntheticContent(long size) {
+			this.size = size;
+			position = 0;
+		}
+
+		@Override
+		public int read() {
+			if (position >= size) {
+				return -1;
+			}
+			return BLOCK[(int) (position++ % BLOCK_SIZE)] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= size) {
+				return -1;
+			}
+			var offsetInBlock = (int) (position % BLOCK_SIZE);
+			var numBytes = (int) Math.min(Math.min(len, size - position),
+				BLOCK_SIZE - offsetInBlock);
+			System.arraycopy(BLOCK, offsetInBlock, b, off, numBytes);
+			position += numBytes;
+			return numBytes;
+		}
+	}
+}
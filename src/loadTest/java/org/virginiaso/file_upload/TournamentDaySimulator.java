@@ -0,0 +1,546 @@
+package org.virginiaso.file_upload;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.springframework.util.FileSystemUtils;
+import org.virginiaso.file_upload.TrafficModel.PlannedUpload;
+import org.virginiaso.file_upload.util.VirtualThreads;
+
+/**
+ * Simulates the upload traffic of one tournament day against the full
+ * application, to size the instance before the tournament. The traffic is
+ * planned by TrafficModel from a real tournament configuration, with the day
+ * compressed into the run time.
+ *
+ * The application runs in a child JVM, with the given heap, so that its peak
+ * heap and disk use are its own. Its S3 storage service is pointed at a
+ * FakeS3Server running in this process, which counts what it receives but
+ * discards the content of large objects.
+ *
+ * Run it with, e.g.,
+ *
+ * ./gradlew loadTest -PloadTest.args="--tournament=Regional --duration=20m --heap=1g"
+ *
+ * The options are --config (a tournament configuration file, by default the
+ * bundled one), --tournament (by default the first), --duration, --sizeScale
+ * (a factor applied to every file size), --heap, --seed, and --workDir. Any
+ * other --name=value option is passed on to the application, such as
+ * --fileUpload.aws-s3.asyncClient=true. The report is printed and also
+ * written to report.txt in the work directory.
+ */
+public class TournamentDaySimulator {
+	private static final String TIME_ZONE = "America/New_York";
+	private static final String BUCKET = "load-test";
+	private static final long FAKE_S3_MAX_RETAINED_SIZE = 4 * 1024 * 1024;
+	private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(3);
+	private static final Duration SHUTDOWN_TIMEOUT = Duration.ofMinutes(1);
+	private static final double MB = 1024.0 * 1024.0;
+	private static final Pattern PASS_CODE = Pattern.compile(
+		"Your Unique Word: <span[^>]*>([^<]+)</span>");
+
+	private enum Outcome { SUCCEEDED, REJECTED, FAILED }
+
+	private record Result(PlannedUpload upload, Outcome outcome, long latencyNanos,
+		long numBytes, Instant finish) {}
+
+	private final Map<String, String> options;
+	private final Map<String, String> appOptions;
+	private final File workDir;
+	private final File appDir;
+	private final HttpClient httpClient;
+	private final ConcurrentLinkedQueue<Result> results;
+	private final AtomicLong peakHeapBytes;
+	private final AtomicLong peakDiskBytes;
+
+	public static void main(String[] args) throws Exception {
+		new TournamentDaySimulator(args).run();
+	}
+
+	private TournamentDaySimulator(String[] args) {
+		options = new LinkedHashMap<>(Map.of(
+			"duration", "10m",
+			"sizeScale", "1.0",
+			"heap", "2g",
+			"seed", "1",
+			"workDir", "build/load-test"));
+		appOptions = new LinkedHashMap<>();
+		for (var arg : args) {
+			var equalsIndex = arg.indexOf('=');
+			if (!arg.startsWith("--") || equalsIndex < 0) {
+				throw new IllegalArgumentException(String.format(
+					"Argument '%1$s' is not of the form --name=value", arg));
+			}
+			var name = arg.substring(2, equalsIndex);
+			var value = arg.substring(equalsIndex + 1);
+			if (name.equals("config") || name.equals("tournament") || options.containsKey(name)) {
+				options.put(name, value);
+			} else {
+				appOptions.put(name, value);
+			}
+		}
+		workDir = new File(options.get("workDir"));
+		appDir = new File(workDir, "app");
+		httpClient = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(10))
+			.build();
+		results = new ConcurrentLinkedQueue<>();
+		peakHeapBytes = new AtomicLong(0);
+		peakDiskBytes = new AtomicLong(0);
+	}
+
+	private void run() throws Exception {
+		Configuration.setTimeZone(TIME_ZONE);
+		var tournament = selectTournament(loadTournaments());
+		var runDuration = parseDuration(options.get("duration"));
+		var model = new TrafficModel(tournament, runDuration);
+		var plan = model.plan(new Random(Long.parseLong(options.get("seed"))),
+			Double.parseDouble(options.get("sizeScale")));
+		var plannedBytes = plan.stream()
+			.flatMap(upload -> upload.fileSizes().stream())
+			.mapToLong(Long::longValue)
+			.sum();
+		System.out.format("Planned %1$d uploads (%2$.1f MB) for %3$s over %4$s (%5$.1fx speed-up)%n",
+			plan.size(), plannedBytes / MB, tournament.name(), runDuration, model.getSpeedUp());
+
+		FileSystemUtils.deleteRecursively(workDir);
+		Files.createDirectories(new File(appDir, "tmp").toPath());
+		var configFile = new File(workDir, "tournamentConfig.yaml");
+		writeConfig(model, configFile, Instant.now());
+
+		try (var fakeS3 = new FakeS3Server(FAKE_S3_MAX_RETAINED_SIZE)) {
+			var serverPort = findFreePort();
+			var managementPort = findFreePort();
+			var adminToken = UUID.randomUUID().toString();
+			var app = startApplication(fakeS3, configFile, serverPort, managementPort, adminToken);
+			var sampler = Executors.newSingleThreadScheduledExecutor();
+			try {
+				waitUntilHealthy(app, managementPort);
+
+				// The windows are now shifted to start when the uploads do:
+				var runStart = Instant.now().plusSeconds(2);
+				writeConfig(model, configFile, runStart);
+				reloadConfig(serverPort, adminToken);
+
+				sampler.scheduleAtFixedRate(() -> sample(managementPort), 0, 1, TimeUnit.SECONDS);
+				var elapsed = runUploads(plan, runStart, serverPort);
+				sample(managementPort);
+
+				var report = formatReport(tournament, model, runDuration, plan.size(), elapsed,
+					fakeS3);
+				System.out.print(report);
+				Files.writeString(new File(workDir, "report.txt").toPath(), report);
+			} finally {
+				sampler.shutdownNow();
+				stopApplication(app);
+			}
+		}
+	}
+
+	private List<Tournament> loadTournaments() throws IOException {
+		var configPath = options.get("config");
+		if (configPath == null) {
+			return Configuration.parse("tournamentConfig.yaml");
+		}
+		try (var rdr = new FileReader(configPath, StandardCharsets.UTF_8)) {
+			return Configuration.parse(rdr);
+		}
+	}
+
+	private Tournament selectTournament(List<Tournament> tournaments) {
+		var name = options.get("tournament");
+		if (name == null) {
+			return tournaments.get(0);
+		}
+		return tournaments.stream()
+			.filter(tournament -> tournament.name().equalsIgnoreCase(name))
+			.findFirst()
+			.orElseThrow(() -> new IllegalArgumentException(String.format(
+				"No tournament named '%1$s' in the configuration", name)));
+	}
+
+	private static Duration parseDuration(String durationStr) {
+		var str = durationStr.trim().toLowerCase();
+		if (str.endsWith("h")) {
+			return Duration.ofHours(Long.parseLong(str.substring(0, str.length() - 1)));
+		} else if (str.endsWith("m")) {
+			return Duration.ofMinutes(Long.parseLong(str.substring(0, str.length() - 1)));
+		} else if (str.endsWith("s")) {
+			return Duration.ofSeconds(Long.parseLong(str.substring(0, str.length() - 1)));
+		} else {
+			return Duration.parse(durationStr);
+		}
+	}
+
+	private static void writeConfig(TrafficModel model, File configFile, Instant runStart)
+			throws IOException {
+		var tempFile = new File(configFile.getPath() + ".tmp");
+		try (var wtr = new PrintWriter(tempFile, StandardCharsets.UTF_8)) {
+			model.writeSimulatedConfig(wtr, runStart);
+		}
+		Files.move(tempFile.toPath(), configFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static int findFreePort() throws IOException {
+		try (var socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private Process startApplication(FakeS3Server fakeS3, File configFile, int serverPort,
+			int managementPort, String adminToken) throws IOException {
+		var javaCmd = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+		var classpath = System.getProperty("loadTest.appClasspath",
+			System.getProperty("java.class.path"));
+		List<String> cmd = new ArrayList<>(List.of(
+			javaCmd,
+			"-Xmx" + options.get("heap"),
+			"-Djava.io.tmpdir=" + new File(appDir, "tmp").getAbsolutePath(),
+			"-cp", classpath,
+			FileUploadApplication.class.getName()));
+		Map<String, String> appArgs = new LinkedHashMap<>();
+		appArgs.put("server.port", Integer.toString(serverPort));
+		appArgs.put("management.server.port", Integer.toString(managementPort));
+		appArgs.put("fileUpload.timeZone", TIME_ZONE);
+		appArgs.put("fileUpload.tournamentConfigFile", configFile.getAbsolutePath());
+		appArgs.put("fileUpload.adminToken", adminToken);
+		appArgs.put("fileUpload.aws-s3.endpoint", fakeS3.getEndpoint());
+		appArgs.put("fileUpload.aws-s3.submissionRoot", "s3://" + BUCKET + "/vaso-file-upload");
+		appArgs.put("fileUpload.aws-s3.journalRoot", "./submission-journals");
+		appArgs.put("fileUpload.spool.dir", "./upload-spool");
+		appArgs.putAll(appOptions);
+		appArgs.forEach((name, value) -> cmd.add(String.format("--%1$s=%2$s", name, value)));
+
+		var logFile = new File(workDir, "app.log");
+		var builder = new ProcessBuilder(cmd)
+			.directory(appDir)
+			.redirectErrorStream(true)
+			.redirectOutput(logFile);
+		builder.environment().put("AWS_ACCESS_KEY_ID", "load-test");
+		builder.environment().put("AWS_SECRET_ACCESS_KEY", "load-test");
+		builder.environment().put("AWS_REGION", "us-east-1");
+		System.out.format("Starting the application (log in %1$s)%n", logFile);
+		return builder.start();
+	}
+
+	private void waitUntilHealthy(Process app, int managementPort) throws Exception {
+		var request = HttpRequest.newBuilder(URI.create(String.format(
+			"http://127.0.0.1:%1$d/actuator/health", managementPort))).build();
+		var deadline = Instant.now().plus(STARTUP_TIMEOUT);
+		while (Instant.now().isBefore(deadline)) {
+			if (!app.isAlive()) {
+				throw new IllegalStateException(String.format(
+					"The application exited with status %1$d at start-up", app.exitValue()));
+			}
+			try {
+				var response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+				if (response.statusCode() == 200) {
+					return;
+				}
+			} catch (IOException ex) {
+				// Not listening yet
+			}
+			Thread.sleep(1000);
+		}
+		throw new IllegalStateException(String.format(
+			"The application was not healthy within %1$s", STARTUP_TIMEOUT));
+	}
+
+	private void reloadConfig(int serverPort, String adminToken) throws Exception {
+		var request = HttpRequest.newBuilder(URI.create(String.format(
+				"http://127.0.0.1:%1$d/admin/reloadTournamentConfig", serverPort)))
+			.header(AdminController.TOKEN_HEADER, adminToken)
+			.POST(HttpRequest.BodyPublishers.noBody())
+			.build();
+		var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() != 200) {
+			throw new IllegalStateException(String.format(
+				"Reloading the simulated configuration failed with status %1$d: %2$s",
+				response.statusCode(), response.body()));
+		}
+	}
+
+	private static void stopApplication(Process app) throws InterruptedException {
+		app.destroy();
+		if (!app.waitFor(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+			app.destroyForcibly().waitFor();
+		}
+	}
+
+	/** @return The time from the start of the run to the last response */
+	private Duration runUploads(List<PlannedUpload> plan, Instant runStart, int serverPort)
+			throws InterruptedException {
+		var clients = VirtualThreads.newThreadPerTaskExecutor("load-client-")
+			.orElseGet(Executors::newCachedThreadPool);
+		var scheduler = Executors.newSingleThreadScheduledExecutor();
+		var remaining = new CountDownLatch(plan.size());
+		try {
+			var delayBase = Duration.between(Instant.now(), runStart);
+			for (var upload : plan) {
+				scheduler.schedule(() -> clients.execute(() -> {
+					try {
+						results.add(upload(upload, serverPort));
+					} finally {
+						remaining.countDown();
+					}
+				}), delayBase.plus(upload.offset()).toMillis(), TimeUnit.MILLISECONDS);
+			}
+			var total = plan.size();
+			while (!remaining.await(30, TimeUnit.SECONDS)) {
+				System.out.format("%1$d of %2$d uploads done, %3$d MB peak heap%n",
+					total - remaining.getCount(), total, Math.round(peakHeapBytes.get() / MB));
+			}
+		} finally {
+			scheduler.shutdownNow();
+			shutdown(clients);
+		}
+		var lastFinish = results.stream()
+			.map(Result::finish)
+			.max(Comparator.naturalOrder())
+			.orElse(runStart);
+		return Duration.between(runStart, lastFinish);
+	}
+
+	private static void shutdown(ExecutorService executor) throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private Result upload(PlannedUpload upload, int serverPort) {
+		var event = upload.event();
+		var body = new MultipartFormBody()
+			.addField("division", upload.division().name())
+			.addField("teamNumber", Integer.toString(upload.teamNumber()))
+			.addField("schoolName", String.format("School of Team %1$s%2$d",
+				upload.division(), upload.teamNumber()))
+			.addField("teamName", "")
+			.addField("studentNames", "Load Test Student, Load Test Partner")
+			.addField("notes", "");
+		if (event.isNotesUpload()) {
+			body.addField("notesUploadMode", NotesUploadMode.TWO_STUDENTS_SAME_NOTES.name());
+		}
+		if (event == Event.HELICOPTER_FINISH) {
+			body.addField("helicopterMode",
+				HelicopterMode.TWO_HELICOPTERS_TWO_STUDENTS_TWO_VIDEOS.name());
+			body.addField("flightDuration", "42.5");
+		}
+		if (event == Event.HELICOPTER_FINISH) {
+			body.addField("passCode", startHelicopterFlight(upload, serverPort));
+		}
+		if (event == Event.DIGITAL_STRUCTURES) {
+			body.addField("loadEstimate", "1500");
+		}
+		var numBytes = 0L;
+		for (var i = 0; i < upload.fileSizes().size(); ++i) {
+			var size = upload.fileSizes().get(i);
+			body.addFile("file" + (char) ('A' + i),
+				String.format("upload%1$d.%2$s", i + 1, upload.fileExtension()), size);
+			numBytes += size;
+		}
+
+		var request = HttpRequest.newBuilder(URI.create(String.format(
+				"http://127.0.0.1:%1$d/fileUpload/%2$s", serverPort, event.getUri())))
+			.header("Content-Type", body.getContentType())
+			.POST(body.toBodyPublisher())
+			.build();
+		var start = System.nanoTime();
+		Outcome outcome;
+		try {
+			var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+			if (response.statusCode() != 200) {
+				outcome = Outcome.FAILED;
+			} else if (response.body().contains("class=\"error-message\"")) {
+				outcome = Outcome.REJECTED;
+			} else {
+				outcome = Outcome.SUCCEEDED;
+			}
+		} catch (IOException ex) {
+			outcome = Outcome.FAILED;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			outcome = Outcome.FAILED;
+		}
+		return new Result(upload, outcome, System.nanoTime() - start, numBytes, Instant.now());
+	}
+
+	/*
+	 * A final Helicopter submission must carry the unique word issued by a
+	 * start, so the simulated team starts a flight first, untimed:
+	 */
+	private String startHelicopterFlight(PlannedUpload upload, int serverPort) {
+		var body = new MultipartFormBody()
+			.addField("division", upload.division().name())
+			.addField("teamNumber", Integer.toString(upload.teamNumber()))
+			.addField("schoolName", String.format("School of Team %1$s%2$d",
+				upload.division(), upload.teamNumber()))
+			.addField("teamName", "")
+			.addField("studentNames", "Load Test Student, Load Test Partner")
+			.addField("notes", "");
+		var request = HttpRequest.newBuilder(URI.create(String.format(
+				"http://127.0.0.1:%1$d/fileUpload/%2$s", serverPort,
+				Event.HELICOPTER_START.getUri())))
+			.header("Content-Type", body.getContentType())
+			.POST(body.toBodyPublisher())
+			.build();
+		try {
+			var matcher = PASS_CODE.matcher(
+				httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body());
+			if (matcher.find()) {
+				return matcher.group(1);
+			}
+		} catch (IOException ex) {
+			// The finish will be rejected and counted
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return "";
+	}
+
+	private void sample(int managementPort) {
+		try {
+			var request = HttpRequest.newBuilder(URI.create(String.format(
+				"http://127.0.0.1:%1$d/actuator/prometheus", managementPort))).build();
+			var response = httpClient.send(request, HttpResponse.BodyHandlers.ofLines());
+			if (response.statusCode() == 200) {
+				var heapBytes = response.body()
+					.filter(line -> line.startsWith("jvm_memory_used_bytes{"))
+					.filter(line -> line.contains("area=\"heap\""))
+					.mapToDouble(line -> Double.parseDouble(
+						line.substring(line.lastIndexOf(' ') + 1)))
+					.sum();
+				peakHeapBytes.accumulateAndGet(Math.round(heapBytes), Math::max);
+			}
+		} catch (IOException ex) {
+			// The application is busy or gone; the next sample will tell
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		peakDiskBytes.accumulateAndGet(directorySize(appDir.toPath()), Math::max);
+	}
+
+	// Files come and go while this walks the tree, so failures are skipped:
+	private static long directorySize(Path dir) {
+		var size = new AtomicLong(0);
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					size.addAndGet(attrs.size());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException ex) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException ex) {
+			// Report what was counted
+		}
+		return size.get();
+	}
+
+	private String formatReport(Tournament tournament, TrafficModel model, Duration runDuration,
+			int numPlanned, Duration elapsed, FakeS3Server fakeS3) {
+		var all = new ArrayList<>(results);
+		var seconds = Math.max(elapsed.toMillis(), 1) / 1000.0;
+		var succeeded = all.stream()
+			.filter(result -> result.outcome() == Outcome.SUCCEEDED)
+			.collect(Collectors.toList());
+		var succeededBytes = succeeded.stream().mapToLong(Result::numBytes).sum();
+
+		var str = new StringWriter();
+		var out = new PrintWriter(str);
+		out.format("%n%1$s, %2$.1fx speed-up into %3$s, %4$s heap, size scale %5$s%n",
+			tournament.name(), model.getSpeedUp(), runDuration, options.get("heap"),
+			options.get("sizeScale"));
+		out.format("Uploads:     %1$d planned, %2$d succeeded, %3$d rejected, %4$d failed%n",
+			numPlanned, succeeded.size(), count(all, Outcome.REJECTED),
+			count(all, Outcome.FAILED));
+		out.format("Error rate:  %1$.2f%% failed, %2$.2f%% rejected%n",
+			percent(count(all, Outcome.FAILED), all.size()),
+			percent(count(all, Outcome.REJECTED), all.size()));
+		out.format("Throughput:  %1$.2f uploads/s, %2$.2f MB/s over %3$.0f s%n",
+			succeeded.size() / seconds, succeededBytes / MB / seconds, seconds);
+		out.format("Latency:     p50 %1$.2f s, p99 %2$.2f s, max %3$.2f s%n",
+			percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0));
+		out.format("Peak heap:   %1$.1f MB%n", peakHeapBytes.get() / MB);
+		out.format("Peak disk:   %1$.1f MB%n", peakDiskBytes.get() / MB);
+		out.format("Fake S3:     %1$d objects, %2$.1f MB received%n", fakeS3.getNumObjects(),
+			fakeS3.getNumBytesReceived() / MB);
+
+		Map<Event, List<Result>> byEvent = new EnumMap<>(Event.class);
+		all.forEach(result -> byEvent.computeIfAbsent(result.upload().event(),
+			key -> new ArrayList<>()).add(result));
+		out.format("%n%1$-20s %8s %8s %10s %10s %10s%n", "event", "uploads", "errors",
+			"p50 (s)", "p99 (s)", "MB");
+		byEvent.forEach((event, eventResults) -> out.format(
+			"%1$-20s %2$8d %3$8d %4$10.2f %5$10.2f %6$10.1f%n",
+			event.getUri(), eventResults.size(),
+			eventResults.size() - count(eventResults, Outcome.SUCCEEDED),
+			percentile(eventResults, 0.50), percentile(eventResults, 0.99),
+			eventResults.stream().mapToLong(Result::numBytes).sum() / MB));
+		out.flush();
+		return str.toString();
+	}
+
+	private static int count(List<Result> results, Outcome outcome) {
+		return (int) results.stream()
+			.filter(result -> result.outcome() == outcome)
+			.count();
+	}
+
+	private static double percent(int numerator, int denominator) {
+		return (denominator == 0) ? 0.0 : 100.0 * numerator / denominator;
+	}
+
+	/** @return The given percentile of the latencies, in seconds */
+	private static double percentile(List<Result> results, double fraction) {
+		if (results.isEmpty()) {
+			return 0.0;
+		}
+		var latencies = results.stream()
+			.mapToLong(Result::latencyNanos)
+			.toArray();
+		Arrays.sort(latencies);
+		var index = Math.max((int) Math.ceil(fraction * latencies.length) - 1, 0);
+		return latencies[index] / 1e9;
+	}
+}
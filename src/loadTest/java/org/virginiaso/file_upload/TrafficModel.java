@@ -0,0 +1,220 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Plans the uploads of one tournament from its configuration. Every team in
+ * the configured team ranges enters most of the events its division is offered
+ * at the tournament, and uploads at a time within the configured window,
+ * skewed toward the deadline, as real teams do. Some teams upload again.
+ *
+ * The tournament day is compressed into the run time of the simulation, and
+ * writeSimulatedConfig writes a configuration whose windows are the compressed
+ * ones, starting now, for the application under test to enforce.
+ */
+final class TrafficModel {
+	private static final double PARTICIPATION_RATE = 0.9;
+	private static final double RESUBMISSION_RATE = 0.15;
+	// Uploads start in the first part of their window, so that even a long
+	// transfer of the compressed day finishes before the window closes:
+	private static final double MAX_WINDOW_FRACTION = 0.9;
+	private static final long KB = 1024;
+	private static final long MB = 1024 * KB;
+
+	/** A log-normal file size distribution, clipped to [min, max] */
+	record FileProfile(int numFiles, String extension, long medianSize, double sigma,
+		long minSize, long maxSize) {
+
+		long sample(Random random, double sizeScale) {
+			var size = medianSize * Math.exp(sigma * random.nextGaussian());
+			return Math.round(sizeScale * Math.max(minSize, Math.min(maxSize, size)));
+		}
+	}
+
+	record PlannedUpload(Duration offset, Event event, Division division, int teamNumber,
+		List<Long> fileSizes, String fileExtension) {}
+
+	private static final FileProfile NO_FILES = new FileProfile(0, "", 0, 0, 0, 0);
+	private static final Map<Event, FileProfile> FILE_PROFILES = new EnumMap<>(Map.of(
+		Event.HELICOPTER_FINISH, new FileProfile(2, "mp4", 250 * MB, 0.5, 30 * MB, 1536 * MB),
+		Event.BUILD_A_BARGE, new FileProfile(1, "mp4", 120 * MB, 0.6, 10 * MB, 1024 * MB),
+		Event.CHOPPER_CHALLENGE, new FileProfile(2, "mp4", 120 * MB, 0.6, 10 * MB, 1024 * MB),
+		Event.MISSION_POSSIBLE, new FileProfile(2, "mp4", 120 * MB, 0.6, 10 * MB, 1024 * MB),
+		Event.WIND_POWER, new FileProfile(2, "mp4", 120 * MB, 0.6, 10 * MB, 1024 * MB),
+		Event.WRIGHT_STUFF, new FileProfile(2, "mp4", 120 * MB, 0.6, 10 * MB, 1024 * MB),
+		Event.DETECTOR_DESIGN, new FileProfile(2, "pdf", 3 * MB, 1.0, 100 * KB, 100 * MB),
+		Event.VEHICLE_DESIGN, new FileProfile(1, "pdf", 3 * MB, 1.0, 100 * KB, 100 * MB),
+		Event.WICI, new FileProfile(1, "pdf", 3 * MB, 1.0, 100 * KB, 100 * MB),
+		Event.MISCELLANEOUS, new FileProfile(1, "pdf", 3 * MB, 1.0, 100 * KB, 100 * MB)));
+	private static final FileProfile NOTES_PROFILE = new FileProfile(1, "pdf", 3 * MB / 2,
+		0.8, 50 * KB, 25 * MB);
+
+	private final Tournament tournament;
+	private final Instant dayStart;
+	private final Instant dayEnd;
+	private final double speedUp;
+
+	public TrafficModel(Tournament tournament, Duration runDuration) {
+		this.tournament = tournament;
+
+		// The busy part of the day, with windows clipped to the tournament date:
+		var date = new TimeInterval(tournament.date());
+		dayStart = getClippedWindows().stream()
+			.map(TimeInterval::getFrom)
+			.min(Comparator.naturalOrder())
+			.orElse(date.getFrom());
+		dayEnd = getClippedWindows().stream()
+			.map(TimeInterval::getTo)
+			.max(Comparator.naturalOrder())
+			.orElse(date.getTo());
+		speedUp = (double) Duration.between(dayStart, dayEnd).toMillis()
+			/ Math.max(runDuration.toMillis(), 1);
+	}
+
+	public double getSpeedUp() {
+		return speedUp;
+	}
+
+	static FileProfile getFileProfile(Event event) {
+		return event.isNotesUpload()
+			? NOTES_PROFILE
+			: FILE_PROFILES.getOrDefault(event, NO_FILES);
+	}
+
+	/**
+	 * @param random    The source of randomness, seeded for reproducible runs
+	 * @param sizeScale A factor applied to every file size, to shrink a run
+	 * @return The uploads, ordered by their offset from the start of the run
+	 */
+	public List<PlannedUpload> plan(Random random, double sizeScale) {
+		List<PlannedUpload> uploads = new ArrayList<>();
+		for (var eventEntry : tournament.events().entrySet()) {
+			var event = eventEntry.getKey();
+			var profile = getFileProfile(event);
+			for (var divisionEntry : eventEntry.getValue().entrySet()) {
+				var division = divisionEntry.getKey();
+				var window = clip(divisionEntry.getValue());
+				if (window == null) {
+					continue;
+				}
+				for (var teamNumber : tournament.teams().getOrDefault(division, Set.of())) {
+					if (random.nextDouble() >= PARTICIPATION_RATE) {
+						continue;
+					}
+					var numUploads = (random.nextDouble() < RESUBMISSION_RATE) ? 2 : 1;
+					for (var i = 0; i < numUploads; ++i) {
+						List<Long> fileSizes = new ArrayList<>();
+						for (var j = 0; j < profile.numFiles(); ++j) {
+							fileSizes.add(profile.sample(random, sizeScale));
+						}
+						uploads.add(new PlannedUpload(toRunOffset(sampleTime(random, window)),
+							event, division, teamNumber, fileSizes, profile.extension()));
+					}
+				}
+			}
+		}
+		uploads.sort(Comparator.comparing(PlannedUpload::offset));
+		return uploads;
+	}
+
+	// Most uploads come in the second half of the window:
+	private static Instant sampleTime(Random random, TimeInterval window) {
+		var span = Duration.between(window.getFrom(), window.getTo()).toMillis();
+		var fraction = MAX_WINDOW_FRACTION * Math.sqrt(random.nextDouble());
+		return window.getFrom().plusMillis(Math.round(fraction * span));
+	}
+
+	private Duration toRunOffset(Instant tournamentTime) {
+		return Duration.ofMillis(Math.round(
+			Duration.between(dayStart, tournamentTime).toMillis() / speedUp));
+	}
+
+	/**
+	 * Writes a configuration holding only the simulated tournament, dated today,
+	 * with each window compressed and shifted so that the day starts at runStart.
+	 */
+	public void writeSimulatedConfig(Writer wtr, Instant runStart) throws IOException {
+		var tz = Configuration.getTimeZone();
+		wtr.write(String.format("tournaments:%n"));
+		wtr.write(String.format("  - name: \"%1$s (simulated)\"%n", tournament.name()));
+		wtr.write(String.format("    date: \"%1$s\"%n", LocalDate.ofInstant(runStart, tz)));
+		wtr.write(String.format("    teams:%n"));
+		for (var entry : tournament.teams().entrySet()) {
+			wtr.write(String.format("      %1$s: \"%2$s\"%n", entry.getKey(),
+				toTeamList(entry.getValue())));
+		}
+		wtr.write(String.format("    events:%n"));
+		for (var eventEntry : tournament.events().entrySet()) {
+			wtr.write(String.format("      - name: \"%1$s\"%n", eventEntry.getKey().name()));
+			for (var divisionEntry : eventEntry.getValue().entrySet()) {
+				var window = clip(divisionEntry.getValue());
+				if (window == null) {
+					window = new TimeInterval(tournament.date());
+				}
+				var from = runStart.plus(toRunOffset(window.getFrom()));
+				// Round the end up, so that the window is never shorter than planned:
+				var to = runStart.plus(toRunOffset(window.getTo())).plusSeconds(1);
+				wtr.write(String.format("        %1$s: { from: \"%2$s\", to: \"%3$s\" }%n",
+					divisionEntry.getKey(),
+					LocalDateTime.ofInstant(from, tz).truncatedTo(ChronoUnit.SECONDS),
+					LocalDateTime.ofInstant(to, tz).truncatedTo(ChronoUnit.SECONDS)));
+			}
+		}
+	}
+
+	private List<TimeInterval> getClippedWindows() {
+		return tournament.events().values().stream()
+			.flatMap(windows -> windows.values().stream())
+			.map(this::clip)
+			.filter(window -> window != null)
+			.collect(Collectors.toList());
+	}
+
+	// Restricts a window (some span weeks) to the tournament date, or returns null:
+	private TimeInterval clip(TimeInterval window) {
+		var date = new TimeInterval(tournament.date());
+		var from = window.getFrom().isAfter(date.getFrom()) ? window.getFrom() : date.getFrom();
+		var to = window.getTo().isBefore(date.getTo()) ? window.getTo() : date.getTo();
+		if (!from.isBefore(to)) {
+			return null;
+		}
+		var tz = Configuration.getTimeZone();
+		return new TimeInterval(LocalDateTime.ofInstant(from, tz).toString(),
+			LocalDateTime.ofInstant(to, tz).toString());
+	}
+
+	// Writes a set of team numbers compactly, as in "1-23,31-48":
+	private static String toTeamList(Set<Integer> teams) {
+		var sorted = teams.stream().sorted().collect(Collectors.toList());
+		var result = new StringBuilder();
+		for (var i = 0; i < sorted.size(); ) {
+			var j = i;
+			while (j + 1 < sorted.size() && sorted.get(j + 1) == sorted.get(j) + 1) {
+				++j;
+			}
+			if (result.length() > 0) {
+				result.append(',');
+			}
+			result.append(sorted.get(i));
+			if (j > i) {
+				result.append('-').append(sorted.get(j));
+			}
+			i = j + 1;
+		}
+		return result.toString();
+	}
+}
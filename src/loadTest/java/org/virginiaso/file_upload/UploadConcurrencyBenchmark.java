@@ -0,0 +1,184 @@
+package org.virginiaso.file_upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.util.FileSystemUtils;
+import org.virginiaso.file_upload.util.VirtualThreads;
+
+/**
+ * Measures how many uploads complete per second as the number of concurrent
+ * clients grows, once with requests on Tomcat's pool of 200 platform threads
+ * and once with a virtual thread per request (fileUpload.virtualThreads.enabled).
+ * Each mode starts the whole application on an ephemeral port, and the clients
+ * POST multipart forms to it over HTTP, so every upload goes through Tomcat,
+ * the multipart resolver, validation, the ID allocator, the journal, and the
+ * S3 storage service. S3 is a FakeS3Server that delays every request by
+ * STORAGE_LATENCY_MILLIS, and the tournament configuration keeps WICI open
+ * for the whole run.
+ *
+ * The asynchronous S3 client is used, with its connection limit raised above
+ * the highest concurrency, so that the request threads rather than the S3
+ * connection pool bound the uploads in progress.
+ *
+ * Run it with "./gradlew concurrencyBenchmark", which runs it on a Java 21
+ * toolchain. On a JVM without virtual threads, only the platform-thread rows
+ * are printed.
+ */
+public class UploadConcurrencyBenchmark {
+	private static final String TIME_ZONE = "America/New_York";
+	private static final long STORAGE_LATENCY_MILLIS = 50;
+	private static final int[] CONCURRENCY_LEVELS = { 50, 200, 1000 };
+	private static final int UPLOADS_PER_CLIENT = 3;
+	private static final String BOUNDARY = "benchmark-" + UUID.randomUUID();
+
+	public static void main(String[] args) throws Exception {
+		// Picked up by the SDK's default credential and region provider chains:
+		System.setProperty("aws.accessKeyId", "benchmark-access-key");
+		System.setProperty("aws.secretAccessKey", "benchmark-secret-key");
+		System.setProperty("aws.region", "us-east-1");
+
+		System.out.format("%-10s %12s %12s %14s %10s%n", "mode", "concurrency", "uploads",
+			"uploads/sec", "failures");
+		run("platform", false);
+		if (VirtualThreads.isSupported()) {
+			run("virtual", true);
+		}
+	}
+
+	private static void run(String mode, boolean useVirtualThreads) throws Exception {
+		var workDir = Files.createTempDirectory("upload-benchmark").toFile();
+		var configFile = new File(workDir, "tournamentConfig.yaml");
+		writeConfig(configFile);
+		try (var fakeS3 = new FakeS3Server()) {
+			fakeS3.setLatencyMillis(STORAGE_LATENCY_MILLIS);
+			var maxConnections = Integer.toString(
+				2 * CONCURRENCY_LEVELS[CONCURRENCY_LEVELS.length - 1]);
+			var app = new SpringApplicationBuilder(FileUploadApplication.class)
+				.properties(Map.ofEntries(
+					Map.entry("server.port", "0"),
+					Map.entry("server.tomcat.threads.max", "200"),
+					Map.entry("server.tomcat.max-connections", maxConnections),
+					Map.entry("logging.level.root", "WARN"),
+					Map.entry("fileUpload.virtualThreads.enabled",
+						Boolean.toString(useVirtualThreads)),
+					Map.entry("fileUpload.timeZone", TIME_ZONE),
+					Map.entry("fileUpload.tournamentConfigFile", configFile.getPath()),
+					Map.entry("fileUpload.submissionJournal.enabled", "true"),
+					Map.entry("fileUpload.aws-s3.asyncClient", "true"),
+					Map.entry("fileUpload.aws-s3.maxConcurrency", maxConnections),
+					Map.entry("fileUpload.aws-s3.endpoint", fakeS3.getEndpoint()),
+					Map.entry("fileUpload.aws-s3.submissionRoot", "s3://benchmark/root"),
+					Map.entry("fileUpload.aws-s3.journalRoot",
+						new File(workDir, "submission-journals").getPath())))
+				.run();
+			try {
+				var port = ((ServletWebServerApplicationContext) app).getWebServer().getPort();
+				var uri = URI.create(String.format("http://localhost:%1$d/fileUpload/%2$s",
+					port, Event.WICI.getUri()));
+				for (var concurrency : CONCURRENCY_LEVELS) {
+					runClients(mode, concurrency, uri);
+				}
+			} finally {
+				app.close();
+			}
+		} finally {
+			FileSystemUtils.deleteRecursively(workDir);
+		}
+	}
+
+	// WICI-B is open to team 31 from an hour ago until a day from now:
+	private static void writeConfig(File configFile) throws IOException {
+		var now = LocalDateTime.now(ZoneId.of(TIME_ZONE)).truncatedTo(ChronoUnit.SECONDS);
+		Files.writeString(configFile.toPath(), String.format("tournaments:%n"
+			+ "  - name: \"Benchmark\"%n"
+			+ "    date: \"%1$s\"%n"
+			+ "    teams:%n"
+			+ "      B: \"31\"%n"
+			+ "    events:%n"
+			+ "      - name: \"WICI\"%n"
+			+ "        B: { from: \"%2$s\", to: \"%3$s\" }%n",
+			now.toLocalDate(), now.minusHours(1), now.plusDays(1)), StandardCharsets.UTF_8);
+	}
+
+	private static void runClients(String mode, int concurrency, URI uri) {
+		var clientExecutor = Executors.newCachedThreadPool();
+		try {
+			var client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.executor(clientExecutor)
+				.build();
+			var numFailures = new AtomicInteger(0);
+
+			var start = System.nanoTime();
+			List<CompletableFuture<Void>> clients = new ArrayList<>();
+			for (var i = 0; i < concurrency; ++i) {
+				clients.add(upload(client, uri, UPLOADS_PER_CLIENT, numFailures));
+			}
+			CompletableFuture.allOf(clients.toArray(CompletableFuture[]::new)).join();
+			var elapsedNanos = System.nanoTime() - start;
+
+			var numUploads = concurrency * UPLOADS_PER_CLIENT;
+			System.out.format("%-10s %12d %12d %14.1f %10d%n", mode, concurrency, numUploads,
+				numUploads * 1e9 / elapsedNanos, numFailures.get());
+		} finally {
+			clientExecutor.shutdownNow();
+		}
+	}
+
+	// Sends one client's uploads one after another:
+	private static CompletableFuture<Void> upload(HttpClient client, URI uri,
+		int numRemaining, AtomicInteger numFailures) {
+		if (numRemaining <= 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		var request = HttpRequest.newBuilder(uri)
+			.header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+			.POST(HttpRequest.BodyPublishers.ofByteArray(createForm()))
+			.build();
+		return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+			.handle((response, ex) -> {
+				// A rejected form is shown again with status 200, so check the page:
+				if (ex != null || response.statusCode() != 200
+						|| !response.body().contains("has been Recorded")) {
+					numFailures.incrementAndGet();
+				}
+				return null;
+			})
+			.thenCompose(result -> upload(client, uri, numRemaining - 1, numFailures));
+	}
+
+	private static byte[] createForm() {
+		var form = new StringBuilder();
+		Map.of(
+			"division", "B",
+			"teamNumber", "31",
+			"schoolName", "Wandering Minds Academy",
+			"studentNames", "Kim & Joe"
+		).forEach((name, value) -> form.append(String.format(
+			"--%1$s\r\nContent-Disposition: form-data; name=\"%2$s\"\r\n\r\n%3$s\r\n",
+			BOUNDARY, name, value)));
+		form.append(String.format("--%1$s\r\nContent-Disposition: form-data; name=\"fileA\"; "
+			+ "filename=\"log.txt\"\r\nContent-Type: text/plain\r\n\r\nbenchmark\r\n"
+			+ "--%1$s--\r\n", BOUNDARY));
+		return form.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,273 @@
+package org.virginiaso.file_upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.util.UriUtils;
+import org.virginiaso.file_upload.util.ContentDigest;
+import org.virginiaso.file_upload.util.FileUtil;
+import org.virginiaso.file_upload.util.S3Uri;
+import org.virginiaso.file_upload.util.StringUtil;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
+import software.amazon.awssdk.services.s3.S3BaseClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+
+/**
+ * What the S3 storage services share regardless of the client they use: the
+ * layout of keys in the bucket, the journals on the local disk, the content
+ * index, presigned URLs, and the multipart uploader. Subclasses make the S3
+ * requests themselves, with either the blocking or the asynchronous client.
+ */
+abstract class AbstractS3StorageService implements StorageService, DirectUploadStorage {
+	private static final Logger LOG = LoggerFactory.getLogger(AbstractS3StorageService.class);
+	// The largest object that S3 copies in a single request:
+	static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+	protected final S3Uri submissionRoot;
+	private final File journalRootDir;
+	private final String endpoint;
+	private final int multipartConcurrency;
+	private final int multipartPartAttempts;
+	private final long multipartBufferLimit;
+	private final MeterRegistry meterRegistry;
+	private ExecutorService multipartExecutor;
+	private S3MultipartUploader multipartUploader;
+	private S3UrlPresigner presigner;
+
+	protected AbstractS3StorageService(String submissionRootUri, String journalRoot,
+		String endpoint, int multipartConcurrency, int multipartPartAttempts,
+		long multipartBufferLimit, MeterRegistry meterRegistry) {
+		submissionRoot = new S3Uri(submissionRootUri);
+		journalRootDir = new File(journalRoot);
+		this.endpoint = StringUtil.safeTrim(endpoint);
+		this.multipartConcurrency = Math.max(multipartConcurrency, 1);
+		this.multipartPartAttempts = multipartPartAttempts;
+		this.multipartBufferLimit = multipartBufferLimit;
+		this.meterRegistry = meterRegistry;
+	}
+
+	/**
+	 * Starts the multipart uploader and the presigner. Subclasses build their
+	 * client and make sure the bucket exists first.
+	 */
+	public void initialize() {
+		// Parts of concurrent multipart uploads share this pool, while each
+		// upload limits itself to multipartConcurrency parts in flight:
+		multipartExecutor = Executors.newFixedThreadPool(2 * multipartConcurrency);
+		multipartUploader = new S3MultipartUploader(newMultipartRequests(), multipartExecutor,
+			multipartConcurrency, multipartPartAttempts, multipartBufferLimit);
+		presigner = new S3UrlPresigner(submissionRoot.getBucket(), endpoint);
+	}
+
+	public void cleanup() {
+		multipartExecutor.shutdownNow();
+		presigner.close();
+	}
+
+	/** Applies the settings common to both clients to a client builder. */
+	protected <B extends S3BaseClientBuilder<B, ?>> B configureClient(B builder) {
+		builder
+			.credentialsProvider(DefaultCredentialsProvider.create())
+			.region(DefaultAwsRegionProviderChain.builder().build().getRegion())
+			.overrideConfiguration(ClientOverrideConfiguration.builder()
+				.addExecutionInterceptor(new S3MetricsInterceptor(meterRegistry))
+				.build());
+		if (endpoint != null) {
+			// An S3-compatible server other than AWS, e.g., for testing:
+			builder
+				.endpointOverride(URI.create(endpoint))
+				.serviceConfiguration(S3Configuration.builder()
+					.pathStyleAccessEnabled(true)
+					.build());
+		}
+		return builder;
+	}
+
+	/** @return The requests through which the multipart uploader reaches S3 */
+	protected abstract S3MultipartUploader.S3Requests newMultipartRequests();
+
+	protected S3MultipartUploader getMultipartUploader() {
+		return multipartUploader;
+	}
+
+	/** @return The content of the given object, or empty if there is none */
+	protected abstract Optional<String> getObjectAsString(String key) throws IOException;
+
+	/** @return The size of the given object, or empty if there is none */
+	protected abstract OptionalLong getObjectSize(String key) throws IOException;
+
+	protected abstract void putObject(String key, String content) throws IOException;
+
+	/** Copies an object within the bucket, on the S3 side. */
+	protected abstract void copyObject(String sourceKey, String destinationKey)
+		throws IOException;
+
+	@Override
+	public File getTempSubmissionTableFile(String submissionTableFileName)
+			throws IOException {
+		var submissionTableFile = new File(submissionTableFileName);
+		Pair<String, String> stemExt = FileUtil.getStemExtPair(
+			submissionTableFile.getName());
+		var tempFile = File.createTempFile(stemExt.getLeft(), "." + stemExt.getRight());
+		LOG.debug("Temporary submission table file: '{}'", tempFile.getPath());
+		return tempFile;
+	}
+
+	/*
+	 * S3 objects cannot be appended to, so the journals live on the local disk and
+	 * only the checkpointed submission tables are stored in the bucket.
+	 */
+	@Override
+	public InputStream getSubmissionJournalAsInputStream(String submissionJournalFileName)
+			throws FileNotFoundException {
+		return new FileInputStream(getSubmissionJournalFile(submissionJournalFileName));
+	}
+
+	@Override
+	public void appendToSubmissionJournal(String submissionJournalFileName, String records)
+			throws IOException {
+		FileUtil.appendDurably(getSubmissionJournalFile(submissionJournalFileName), records);
+	}
+
+	@Override
+	public void deleteSubmissionJournal(String submissionJournalFileName) throws IOException {
+		Files.deleteIfExists(getSubmissionJournalFile(submissionJournalFileName).toPath());
+	}
+
+	@Override
+	public URI getUploadedFileDownloadUri(String eventDirName, String fileName,
+		Duration lifetime) {
+		return presigner.presignGet(getUploadedFileKey(eventDirName, fileName), fileName,
+			lifetime);
+	}
+
+	/*
+	 * S3 has no links, so the index is a small object per digest that names the
+	 * latest file stored with that content, and a later file with the same
+	 * content is a server-side copy of it. The copy is not sent through this
+	 * server, though S3 stores and bills it in full.
+	 */
+	@Override
+	public void indexUploadedFile(String sha256, String eventDirName, String fileName)
+			throws IOException {
+		putObject(getContentIndexKey(sha256), getUploadedFileKey(eventDirName, fileName));
+	}
+
+	@Override
+	public boolean hasContent(String sha256, long size) throws IOException {
+		return size <= MAX_COPY_SIZE && findContent(sha256, size).isPresent();
+	}
+
+	@Override
+	public boolean linkUploadedFile(String sha256, long size, String eventDirName,
+		String newFileName) throws IOException {
+		if (size > MAX_COPY_SIZE) {
+			return false;
+		}
+		var sourceKey = findContent(sha256, size);
+		if (sourceKey.isEmpty()) {
+			return false;
+		}
+		copyObject(sourceKey.get(), getUploadedFileKey(eventDirName, newFileName));
+		return true;
+	}
+
+	// The key of a stored object with the given content, if there is one:
+	private Optional<String> findContent(String sha256, long size) throws IOException {
+		var sourceKey = getObjectAsString(getContentIndexKey(sha256));
+		if (sourceKey.isEmpty()) {
+			return Optional.empty();
+		}
+		var sourceSize = getObjectSize(sourceKey.get());
+		return (sourceSize.isPresent() && sourceSize.getAsLong() == size)
+			? sourceKey
+			: Optional.empty();
+	}
+
+	@Override
+	public Optional<DirectUploadStorage> getDirectUploadStorage() {
+		return Optional.of(this);
+	}
+
+	@Override
+	public URI getPartUploadUri(String eventDirName, String fileName, String uploadId,
+		int partNumber, Duration lifetime) {
+		return presigner.presignUploadPart(getUploadedFileKey(eventDirName, fileName),
+			uploadId, partNumber, lifetime);
+	}
+
+	/*
+	 * S3 joins the chunks itself, copying each as one part of a multipart
+	 * upload, as long as the chunks are valid parts. Otherwise they are read back
+	 * and uploaded again. A copied file has no digest computed by this server,
+	 * so it is not indexed.
+	 */
+	@Override
+	public Optional<String> assembleUploadChunks(String sessionId, List<String> chunkNames,
+		long chunkSize, String eventDirName, String newFileName) throws IOException {
+		var key = getUploadedFileKey(eventDirName, newFileName);
+		if (chunkNames.size() == 1 && chunkSize <= MAX_COPY_SIZE) {
+			copyObject(getUploadChunkKey(sessionId, chunkNames.get(0)), key);
+			return Optional.empty();
+		} else if (chunkNames.size() > S3MultipartUploader.MAX_NUM_PARTS
+				|| chunkSize < DirectUploadStorage.MIN_PART_SIZE || chunkSize > MAX_COPY_SIZE) {
+			return StorageService.super.assembleUploadChunks(sessionId, chunkNames, chunkSize,
+				eventDirName, newFileName);
+		}
+		multipartUploader.copy(submissionRoot.getBucket(), key, chunkNames.stream()
+			.map(chunkName -> getCopySource(getUploadChunkKey(sessionId, chunkName)))
+			.collect(Collectors.toList()));
+		return Optional.empty();
+	}
+
+	/** @return The value of a CopySource, which names the bucket and the encoded key */
+	protected String getCopySource(String sourceKey) {
+		return UriUtils.encodePath(submissionRoot.getBucket() + "/" + sourceKey,
+			FileUtil.CHARSET);
+	}
+
+	protected String getUploadChunkKey(String sessionId, String chunkName) {
+		return String.format("%1$s/upload-chunks/%2$s/%3$s", submissionRoot.getKey(),
+			sessionId, chunkName);
+	}
+
+	protected String getContentIndexKey(String sha256) {
+		if (!ContentDigest.isSha256(sha256)) {
+			throw new IllegalArgumentException(String.format(
+				"'%1$s' is not a SHA-256 digest", sha256));
+		}
+		return String.format("%1$s/content-sha256/%2$s", submissionRoot.getKey(), sha256);
+	}
+
+	protected String getUploadedFileKey(String eventDirName, String fileName) {
+		return String.format("%1$s/%2$s/%3$s", submissionRoot.getKey(), eventDirName,
+			fileName);
+	}
+
+	protected String getSubmissionTableKey(String submissionTableFileName) {
+		return String.format("%1$s/%2$s", submissionRoot.getKey(), submissionTableFileName);
+	}
+
+	private File getSubmissionJournalFile(String submissionJournalFileName) {
+		return new File(journalRootDir, submissionJournalFileName);
+	}
+}
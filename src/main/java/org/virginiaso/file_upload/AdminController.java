@@ -0,0 +1,295 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.virginiaso.file_upload.util.FileUtil;
+import org.virginiaso.file_upload.util.StringUtil;
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * Operations for the tournament director:
+ *
+ * <pre>
+ * POST /admin/reloadTournamentConfig   re-read the tournament configuration
+ * POST /admin/exportSubmissionTables   write the loaded submission tables now
+ * GET  /admin/submissions?division=B&amp;teamNumber=12
+ *                                      a team's submissions in every event
+ * GET  /admin/submissions?from=...&amp;to=...
+ *                                      the submissions received in a time span
+ * GET  /admin/archive/{eventUri}/{division}?fromId=...&amp;toId=...&amp;since=...
+ *                                      a ZIP of an event's files, streamed from storage
+ * GET  /admin/downloadLinks/{eventUri}/{division}?fromId=...&amp;toId=...&amp;since=...
+ *                                      a manifest of short-lived links to an event's
+ *                                      files, served by storage rather than this server
+ * </pre>
+ *
+ * The submissions queries need the submission database to be enabled. The
+ * archive and manifest filters are optional and combine: fromId and toId are
+ * inclusive, and since (an ISO-8601 instant) selects submissions received at or
+ * after it, so a supervisor can fetch only the files that arrived after the
+ * last download. The manifest's links last fileUpload.downloadLinks.lifetimeMinutes,
+ * or lifetimeMinutes if given.
+ *
+ * Each request must carry the header X-Admin-Token with the value of
+ * fileUpload.adminToken. When that property is blank, as it is by default,
+ * these operations are disabled.
+ */
+@Controller
+public class AdminController {
+	static final String TOKEN_HEADER = "X-Admin-Token";
+	private static final Logger LOG = LoggerFactory.getLogger(AdminController.class);
+
+	private final TournamentConfigurationService tournamentConfigService;
+	private final FileUploadService fileUploadService;
+	private final SubmissionDatabase submissionDatabase;
+	private final byte[] adminToken;
+	private final Duration downloadLinkLifetime;
+
+	@Autowired
+	public AdminController(TournamentConfigurationService tournamentConfigService,
+		FileUploadService fileUploadService, SubmissionDatabase submissionDatabase,
+		@Value("${fileUpload.adminToken:}") String adminToken,
+		@Value("${fileUpload.downloadLinks.lifetimeMinutes:15}") long downloadLinkLifetimeMinutes) {
+		this.tournamentConfigService = tournamentConfigService;
+		this.fileUploadService = fileUploadService;
+		this.submissionDatabase = submissionDatabase;
+		downloadLinkLifetime = Duration.ofMinutes(downloadLinkLifetimeMinutes);
+		this.adminToken = StringUtil.isBlank(adminToken)
+			? null
+			: adminToken.trim().getBytes(FileUtil.CHARSET);
+	}
+
+	@PostMapping("/admin/reloadTournamentConfig")
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> reloadTournamentConfig(
+		@RequestHeader(name = TOKEN_HEADER, required = false) String token) {
+
+		if (!isAuthorized(token)) {
+			return ResponseEntity.status(HttpStatus.FORBIDDEN)
+				.body(Map.of("errorMessage", "Not authorized"));
+		}
+		try {
+			var newConfiguration = tournamentConfigService.reload();
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("source", tournamentConfigService.getSourceName());
+			result.put("numTournaments", newConfiguration.getTournaments().size());
+			return ResponseEntity.ok(result);
+		} catch (IOException | RuntimeException ex) {
+			LOG.error("Unable to reload the tournament configuration:", ex);
+			return ResponseEntity.badRequest()
+				.body(Map.of("errorMessage", Objects.toString(ex.getMessage(),
+					ex.getClass().getSimpleName())));
+		}
+	}
+
+	@PostMapping("/admin/exportSubmissionTables")
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> exportSubmissionTables(
+		@RequestHeader(name = TOKEN_HEADER, required = false) String token) {
+
+		if (!isAuthorized(token)) {
+			return ResponseEntity.status(HttpStatus.FORBIDDEN)
+				.body(Map.of("errorMessage", "Not authorized"));
+		}
+		try {
+			return ResponseEntity.ok(Map.of("numTables",
+				fileUploadService.exportSubmissionTables()));
+		} catch (IOException | RuntimeException ex) {
+			LOG.error("Unable to export the submission tables:", ex);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+				.body(Map.of("errorMessage", Objects.toString(ex.getMessage(),
+					ex.getClass().getSimpleName())));
+		}
+	}
+
+	@GetMapping("/admin/submissions")
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> getSubmissions(
+		@RequestHeader(name = TOKEN_HEADER, required = false) String token,
+		@RequestParam(name = "division", required = false) String division,
+		@RequestParam(name = "teamNumber", required = false) String teamNumber,
+		@RequestParam(name = "from", required = false) String from,
+		@RequestParam(name = "to", required = false) String to) {
+
+		if (!isAuthorized(token)) {
+			return ResponseEntity.status(HttpStatus.FORBIDDEN)
+				.body(Map.of("errorMessage", "Not authorized"));
+		}
+		if (!submissionDatabase.isEnabled()) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND)
+				.body(Map.of("errorMessage", "The submission database is not enabled"));
+		}
+		try {
+			List<Submission> submissions;
+			if (!StringUtil.isBlank(teamNumber)) {
+				submissions = submissionDatabase.getTeamSubmissions(
+					StringUtil.convertEnumerator(Division.class, division),
+					StringUtil.convertInteger(teamNumber));
+			} else if (!StringUtil.isBlank(from)) {
+				submissions = submissionDatabase.getSubmissionsBetween(Instant.parse(from.trim()),
+					StringUtil.isBlank(to) ? Instant.now() : Instant.parse(to.trim()));
+			} else {
+				return ResponseEntity.badRequest()
+					.body(Map.of("errorMessage", "Give either division and teamNumber, or from"));
+			}
+			return ResponseEntity.ok(Map.of("submissions", submissions.stream()
+				.map(AdminController::toMap)
+				.collect(Collectors.toList())));
+		} catch (RuntimeException ex) {
+			return ResponseEntity.badRequest()
+				.body(Map.of("errorMessage", Objects.toString(ex.getMessage(),
+					ex.getClass().getSimpleName())));
+		}
+	}
+
+	@GetMapping("/admin/archive/{eventUri}/{division}")
+	public ResponseEntity<StreamingResponseBody> downloadArchive(
+		@RequestHeader(name = TOKEN_HEADER, required = false) String token,
+		@PathVariable("eventUri") String eventUri,
+		@PathVariable("division") String divisionName,
+		@RequestParam(name = "fromId", required = false) Integer fromId,
+		@RequestParam(name = "toId", required = false) Integer toId,
+		@RequestParam(name = "since", required = false) String since) {
+
+		if (!isAuthorized(token)) {
+			throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Not authorized");
+		}
+		Event event;
+		Division division;
+		Predicate<Submission> filter;
+		try {
+			event = Event.forUri(eventUri);
+			division = parseDivision(event, divisionName);
+			filter = parseFilter(fromId, toId, since);
+		} catch (RuntimeException ex) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+		}
+
+		// The archive is written as the client reads it, on an MVC async thread:
+		StreamingResponseBody body = os -> {
+			var numFiles = fileUploadService.writeSubmissionArchive(event, division, filter, os);
+			LOG.info("Streamed archive of {} files of {}-{}", numFiles, event.getUri(), division);
+		};
+		return ResponseEntity.ok()
+			.contentType(MediaType.parseMediaType("application/zip"))
+			.header(HttpHeaders.CONTENT_DISPOSITION, String.format(
+				"attachment; filename=\"%1$s-%2$s.zip\"", event.getUri(), division))
+			.body(body);
+	}
+
+	@GetMapping("/admin/downloadLinks/{eventUri}/{division}")
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> getDownloadLinks(
+		@RequestHeader(name = TOKEN_HEADER, required = false) String token,
+		@PathVariable("eventUri") String eventUri,
+		@PathVariable("division") String divisionName,
+		@RequestParam(name = "fromId", required = false) Integer fromId,
+		@RequestParam(name = "toId", required = false) Integer toId,
+		@RequestParam(name = "since", required = false) String since,
+		@RequestParam(name = "lifetimeMinutes", required = false) Long lifetimeMinutes) {
+
+		if (!isAuthorized(token)) {
+			return ResponseEntity.status(HttpStatus.FORBIDDEN)
+				.body(Map.of("errorMessage", "Not authorized"));
+		}
+		try {
+			var event = Event.forUri(eventUri);
+			var division = parseDivision(event, divisionName);
+			var lifetime = (lifetimeMinutes == null || lifetimeMinutes <= 0)
+				? downloadLinkLifetime
+				: Duration.ofMinutes(lifetimeMinutes);
+			var expiresAt = Instant.now().plus(lifetime);
+			var links = fileUploadService.getDownloadLinks(event, division,
+				parseFilter(fromId, toId, since), lifetime);
+
+			// Links to this server are relative; make them usable outside the browser:
+			var root = ServletUriComponentsBuilder.fromCurrentContextPath().path("/").build().toUri();
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("event", event.getUri());
+			result.put("division", division.name());
+			result.put("expiresAt", expiresAt.toString());
+			result.put("files", links.stream()
+				.map(link -> {
+					Map<String, Object> file = new LinkedHashMap<>();
+					file.put("submissionId", link.submission().getId());
+					file.put("teamNumber", link.submission().getTeamNumber());
+					file.put("fileName", link.fileName());
+					file.put("url", root.resolve(link.uri()).toString());
+					return file;
+				})
+				.collect(Collectors.toList()));
+			return ResponseEntity.ok(result);
+		} catch (IOException ex) {
+			LOG.error("Unable to create download links:", ex);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+				.body(Map.of("errorMessage", Objects.toString(ex.getMessage(),
+					ex.getClass().getSimpleName())));
+		} catch (RuntimeException ex) {
+			return ResponseEntity.badRequest()
+				.body(Map.of("errorMessage", Objects.toString(ex.getMessage(),
+					ex.getClass().getSimpleName())));
+		}
+	}
+
+	private static Division parseDivision(Event event, String divisionName) {
+		var division = StringUtil.convertEnumerator(Division.class, divisionName);
+		if (!event.isOfferedIn(division)) {
+			throw new ValidationException("%1$s is not offered in division %2$s",
+				event.getLabel(), division);
+		}
+		return division;
+	}
+
+	// The bounds on the ID are inclusive, and since selects submissions at or after it:
+	private static Predicate<Submission> parseFilter(Integer fromId, Integer toId,
+		String since) {
+		var sinceTime = StringUtil.isBlank(since) ? null : Instant.parse(since.trim());
+		return submission -> (fromId == null || submission.getId() >= fromId)
+			&& (toId == null || submission.getId() <= toId)
+			&& (sinceTime == null || !submission.getUtcTimeStamp().isBefore(sinceTime));
+	}
+
+	private static Map<String, Object> toMap(Submission submission) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("id", submission.getId());
+		result.put("event", submission.getEvent().getUri());
+		result.put("division", submission.getDivision().name());
+		result.put("teamNumber", submission.getTeamNumber());
+		result.put("schoolName", submission.getSchoolName());
+		result.put("timeStamp", submission.getUtcTimeStamp().toString());
+		result.put("fileNames", submission.getFileNames());
+		return result;
+	}
+
+	private boolean isAuthorized(String token) {
+		return adminToken != null && token != null
+			&& MessageDigest.isEqual(adminToken, token.trim().getBytes(FileUtil.CHARSET));
+	}
+}
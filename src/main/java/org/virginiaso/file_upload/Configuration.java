@@ -1,6 +1,7 @@
 package org.virginiaso.file_upload;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.EnumMap;
@@ -42,14 +43,21 @@ final class Configuration {
 	public static List<Tournament> parse(String tournamentConfigRsrc)
 			throws IOException {
 		try (var rdr = FileUtil.getResourceAsReader(tournamentConfigRsrc)) {
-			var yaml = new Yaml(new Constructor(ConfigurationDto.class));
-			ConfigurationDto configurationDto = yaml.load(rdr);
-			return configurationDto.tournaments.stream()
-				.map(Configuration::convertTournament)
-				.collect(Collectors.toUnmodifiableList());
+			return parse(rdr);
 		}
 	}
 
+	public static List<Tournament> parse(Reader rdr) {
+		var yaml = new Yaml(new Constructor(ConfigurationDto.class));
+		ConfigurationDto configurationDto = yaml.load(rdr);
+		if (configurationDto == null || configurationDto.tournaments == null) {
+			throw new IllegalArgumentException("The configuration has no tournaments");
+		}
+		return configurationDto.tournaments.stream()
+			.map(Configuration::convertTournament)
+			.collect(Collectors.toUnmodifiableList());
+	}
+
 	private static Tournament convertTournament(TournamentDto tournamentDto) {
 		var tournamentDate = LocalDate.parse(tournamentDto.date.trim());
 		EnumMap<Division, Set<Integer>> teams = convertTeams(tournamentDto.teams);
@@ -0,0 +1,59 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Storage to which browsers can send uploaded files themselves, so that the
+ * bytes never pass through this server. Each file is a multipart upload that
+ * the server starts; the browser PUTs the parts to presigned URLs, and the
+ * server completes the upload only after checking, with its own credentials,
+ * which parts arrived and how large they are.
+ */
+public interface DirectUploadStorage {
+	// S3's limits: every part but the last must be at least 5 MiB, and there
+	// may be no more than 10,000 parts:
+	long MIN_PART_SIZE = 5L * 1024 * 1024;
+	int MAX_NUM_PARTS = 10_000;
+
+	/** One part of an incomplete multipart upload, as reported by the storage. */
+	record UploadedPart(int partNumber, long size, String eTag) {
+	}
+
+	/**
+	 * @return The ID of the new multipart upload
+	 * @throws IOException if the upload cannot be started
+	 */
+	String createMultipartUpload(String eventDirName, String fileName) throws IOException;
+
+	/**
+	 * @param partNumber The one-based number of the part
+	 * @param lifetime   How long the URL is valid
+	 * @return A URL to which the part can be PUT without credentials
+	 */
+	URI getPartUploadUri(String eventDirName, String fileName, String uploadId,
+		int partNumber, Duration lifetime);
+
+	/**
+	 * @return The parts received so far, in part number order
+	 * @throws IOException if there is no such upload or the storage fails
+	 */
+	List<UploadedPart> listParts(String eventDirName, String fileName, String uploadId)
+		throws IOException;
+
+	/**
+	 * Assembles the given parts into the uploaded file.
+	 *
+	 * @param parts The parts, in part number order, as returned by listParts
+	 * @return The size of the stored file, as reported by the storage afterwards
+	 * @throws IOException if the upload cannot be completed
+	 */
+	long completeMultipartUpload(String eventDirName, String fileName, String uploadId,
+		List<UploadedPart> parts) throws IOException;
+
+	/** Discards an incomplete upload and any parts it has received. */
+	void abortMultipartUpload(String eventDirName, String fileName, String uploadId)
+		throws IOException;
+}
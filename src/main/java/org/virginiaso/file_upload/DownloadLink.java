@@ -0,0 +1,14 @@
+package org.virginiaso.file_upload;
+
+import java.net.URI;
+
+/**
+ * A short-lived link from which one uploaded file can be downloaded.
+ *
+ * @param submission The submission to which the file belongs
+ * @param fileName   The name of the file in storage
+ * @param uri        The link, either absolute or relative to the application's
+ *                   root
+ */
+public record DownloadLink(Submission submission, String fileName, URI uri) {
+}
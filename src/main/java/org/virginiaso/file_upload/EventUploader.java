@@ -3,20 +3,34 @@ package org.virginiaso.file_upload;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.multipart.MultipartFile;
+import org.virginiaso.file_upload.util.ContentDigest;
+import org.virginiaso.file_upload.util.CountingInputStream;
 import org.virginiaso.file_upload.util.FileUtil;
 import org.virginiaso.file_upload.util.StreamUtil;
 
@@ -31,22 +45,143 @@ final class EventUploader {
 		.withAllowDuplicateHeaderNames(false);
 	private static final Logger LOG = LoggerFactory.getLogger(EventUploader.class);
 
+	/**
+	 * A file stored for a submission, with the SHA-256 digest of its content, or
+	 * null if the content never passed through this server.
+	 */
+	public record StoredFile(String fileName, String sha256) {
+	}
+
+	// The intact records of a journal, and whether a torn record followed them:
+	private record JournalContents(List<Submission> submissions, boolean isTorn) {
+		public int size() {
+			return submissions.size() + (isTorn ? 1 : 0);
+		}
+	}
+
+	// A version of the table to write, the sealed journal segment (if any) that
+	// it covers, and the write before it, after which it is stored:
+	private record TableSnapshot(SubmissionStore table, long version, long sealedJournalId,
+		CompletableFuture<Void> previousWrite, CompletableFuture<Void> write) {
+	}
+
 	private final Event event;
 	private final Division division;
 	private final String eventDirName;
 	private final String submissionTableFileName;
+	// The journal alternates between two segments, so that a write of the table
+	// can delete the segment holding only submissions that the write includes:
+	private final String[] submissionJournalFileNames;
 	private final StorageService storageService;
-	private final List<Submission> submissions;
+	private final EventUploaderOptions options;
+	private final SubmissionStore submissions;
+	private final SubmissionTableFlusher flusher;
+	// Guards the submission list and table state. A ReentrantLock rather than
+	// the monitor, because the table is written while it is held, and a virtual
+	// thread blocked on a monitor would pin its carrier thread:
+	private final ReentrantLock tableLock;
+	private int activeJournalSegment;
+	private int numJournaledSubmissions;
+	// Each sealing of a segment gets a new ID, so that a write deletes only the
+	// segment its snapshot covered. Zero when no segment is sealed:
+	private long numJournalSeals;
+	private long sealedJournalId;
+	private long tableVersion;
+	// Each write of the table is chained after the one before it, so that an
+	// older version never replaces a newer one:
+	private CompletableFuture<Void> lastTableWrite;
 
-	public EventUploader(Event event, Division division, StorageService storageService) {
+	/**
+	 * Creates an uploader for one event and division, loading its submission
+	 * table from storage.
+	 *
+	 * @param event          The event
+	 * @param division       The division
+	 * @param storageService The storage service holding the submission table
+	 * @param options        How the submission table is persisted
+	 */
+	public EventUploader(Event event, Division division, StorageService storageService,
+		EventUploaderOptions options) {
 		this.event = Objects.requireNonNull(event, "event");
 		this.division = Objects.requireNonNull(division, "division");
 		eventDirName = String.format("%1$s-%2$s",
 			this.event.getUri(), this.division);
 		submissionTableFileName = String.format("%1$s/%2$s-%3$s-submissions.csv",
 			eventDirName, this.event.getUri(), this.division);
+		submissionJournalFileNames = new String[] {
+			String.format("%1$s/%2$s-%3$s-journal.csv",
+				eventDirName, this.event.getUri(), this.division),
+			String.format("%1$s/%2$s-%3$s-journal-1.csv",
+				eventDirName, this.event.getUri(), this.division)
+		};
 		this.storageService = Objects.requireNonNull(storageService, "storageService");
-		submissions = loadSubmissionsTable(submissionTableFileName, this.storageService);
+		this.options = Objects.requireNonNull(options, "options");
+
+		List<Submission> stored = this.options.isDatabaseEnabled()
+			? this.options.database().getTable(this.event, this.division)
+			: List.of();
+		var emptyJournal = new JournalContents(List.of(), false);
+		JournalContents[] journals = { emptyJournal, emptyJournal };
+		if (stored.isEmpty()) {
+			List<Submission> checkpoint = loadSubmissionsTable(submissionTableFileName,
+				this.storageService);
+			for (var i = 0; i < journals.length; ++i) {
+				journals[i] = loadSubmissionJournal(submissionJournalFileNames[i],
+					this.storageService);
+			}
+			stored = mergeSubmissions(checkpoint, journals[0].submissions());
+			stored = mergeSubmissions(stored, journals[1].submissions());
+			importIntoDatabase(stored);
+		}
+		submissions = SubmissionStore.of(stored);
+		tableLock = new ReentrantLock();
+		lastTableWrite = CompletableFuture.completedFuture(null);
+		// Appends continue in whichever segment is in use. A torn record is still
+		// in the journal, so it counts until a checkpoint deletes the journal:
+		activeJournalSegment = (journals[0].size() == 0 && journals[1].size() > 0) ? 1 : 0;
+		numJournaledSubmissions = journals[activeJournalSegment].size();
+		numJournalSeals = 0;
+		sealedJournalId = (journals[1 - activeJournalSegment].size() > 0) ? ++numJournalSeals : 0;
+		var isJournalTorn = journals[0].isTorn() || journals[1].isTorn();
+		tableVersion = 0;
+		flusher = this.options.isWriteBehindEnabled()
+			? new SubmissionTableFlusher(submissionTableFileName, tableVersion,
+				this::writeNewestTableVersion, this.options.flushExecutor(),
+				this.options.maxStalenessMillis())
+			: null;
+
+		// A crash may have left submissions in the database that are not yet in
+		// the exported table:
+		if (this.options.isDatabaseEnabled() && numJournaledSubmissions == 0
+				&& sealedJournalId == 0
+				&& getMaxSubmissionId() > this.options.database().getExportedMaxId(
+					this.event, this.division)) {
+			++tableVersion;
+			if (flusher != null) {
+				flusher.markDirty(tableVersion);
+			} else {
+				try {
+					writeCheckpoint();
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}
+		}
+
+		// If journaling has been turned off since the journal was written, fold
+		// the journal into the table now so that its entries are not lost. Do the
+		// same if the journal ends in a torn record, since the next append would
+		// otherwise run on from the partial line and corrupt a second record. A
+		// crash between sealing a segment and deleting it leaves both segments in
+		// use, and they are folded too, so that the next snapshot can seal one:
+		if ((!this.options.isJournalEnabled() && numJournaledSubmissions > 0)
+				|| isJournalTorn || sealedJournalId != 0) {
+			try {
+				writeCheckpoint();
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
 	}
 
 	private static List<Submission> loadSubmissionsTable(String submissionTableFileName,
@@ -72,67 +207,650 @@ final class EventUploader {
 		}
 	}
 
+	/*
+	 * The journal has the same format as the submission table, so it is read with
+	 * the same CSV format. Because a crash may interrupt an append, a malformed
+	 * final record is discarded rather than treated as a fatal error, and a
+	 * repeated header (left by an interrupted first append) is skipped. The
+	 * journal is read into memory first (it holds at most one checkpoint
+	 * interval of records), so that an error from the parser can only mean a
+	 * malformed record, such as one whose closing quote was never written.
+	 */
+	private static JournalContents loadSubmissionJournal(String submissionJournalFileName,
+		StorageService storageService) {
+		String journalText;
+		try (var is = storageService.getSubmissionJournalAsInputStream(
+				submissionJournalFileName)) {
+			journalText = new String(is.readAllBytes(), FileUtil.CHARSET);
+		} catch (FileNotFoundException ex) {
+			LOG.trace("Journal file {} does not exist", submissionJournalFileName);
+			return new JournalContents(new ArrayList<>(), false);
+		} catch (IOException ex) {
+			LOG.warn("Unable to load journal file " + submissionJournalFileName + ":", ex);
+			throw new UncheckedIOException(ex);
+		}
+
+		// Every complete append ends with a line break:
+		var isTorn = !journalText.isEmpty() && !journalText.endsWith("\n");
+		List<Submission> submissions = new ArrayList<>();
+		try (var parser = CSV_FORMAT_IN.parse(new StringReader(journalText))) {
+			var iter = parser.iterator();
+			for (;;) {
+				CSVRecord record;
+				try {
+					if (!iter.hasNext()) {
+						break;
+					}
+					record = iter.next();
+				} catch (UncheckedIOException | IllegalStateException ex) {
+					// Commons CSV reports a malformed record this way:
+					LOG.warn("Discarding malformed final record of journal {}: {}",
+						submissionJournalFileName, ex.getMessage());
+					isTorn = true;
+					break;
+				}
+				if (Column.EVENT.name().equals(record.get(Column.EVENT))) {
+					continue;
+				}
+				try {
+					submissions.add(new Submission(record));
+				} catch (RuntimeException ex) {
+					if (!isLastRecord(iter)) {
+						throw ex;
+					}
+					LOG.warn("Discarding incomplete final record of journal {}: {}",
+						submissionJournalFileName, ex.getMessage());
+					isTorn = true;
+					break;
+				}
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		LOG.info("Loaded {} journaled submissions from {}", submissions.size(),
+			submissionJournalFileName);
+		return new JournalContents(submissions, isTorn);
+	}
+
+	// A record followed only by a malformed one is the last intact record:
+	private static boolean isLastRecord(Iterator<CSVRecord> iter) {
+		try {
+			return !iter.hasNext();
+		} catch (UncheckedIOException | IllegalStateException ex) {
+			return true;
+		}
+	}
+
+	/*
+	 * The first time a table is loaded with the database enabled, its existing
+	 * submissions are copied into the database, which holds them from then on.
+	 */
+	private void importIntoDatabase(List<Submission> existing) {
+		if (!options.isDatabaseEnabled() || existing.isEmpty()) {
+			return;
+		}
+		try {
+			options.database().insertAll(existing);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		LOG.info("Imported {} submissions of {} into the submission database",
+			existing.size(), submissionTableFileName);
+	}
+
+	/*
+	 * A crash between writing a checkpoint and deleting the journal leaves
+	 * submissions in both places, so the two are merged by submission ID.
+	 */
+	private static List<Submission> mergeSubmissions(List<Submission> checkpoint,
+		List<Submission> journal) {
+		if (journal.isEmpty()) {
+			return checkpoint;
+		}
+		var merged = new TreeMap<Integer, Submission>();
+		checkpoint.forEach(submission -> merged.put(submission.getId(), submission));
+		journal.forEach(submission -> merged.put(submission.getId(), submission));
+		return new ArrayList<>(merged.values());
+	}
+
+	public Event getEvent() {
+		return event;
+	}
+
+	public Division getDivision() {
+		return division;
+	}
+
+	public String getEventDirName() {
+		return eventDirName;
+	}
+
 	public int getMaxSubmissionId() {
 		return (submissions == null || submissions.isEmpty())
 			? -1
-			: submissions.get(submissions.size() - 1).getId();
+			: submissions.getId(submissions.size() - 1);
+	}
+
+	/**
+	 * Writes the submission table to storage now, rather than waiting for the
+	 * write-behind flusher, e.g., so that a supervisor sees the latest version.
+	 *
+	 * @throws IOException if the write fails
+	 */
+	public void exportSubmissionTable() throws IOException {
+		join(writeNewestTableVersion(), "Unable to write submission table:");
+	}
+
+	/** @return A copy of the submissions in the table, in order of ID */
+	public List<Submission> getSubmissions() {
+		SubmissionStore snapshot;
+		lockTable();
+		try {
+			snapshot = submissions.snapshot();
+		} finally {
+			tableLock.unlock();
+		}
+		List<Submission> result = new ArrayList<>(snapshot.size());
+		for (var i = 0; i < snapshot.size(); ++i) {
+			result.add(snapshot.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a ZIP archive of the submission table and uploaded files to the
+	 * given stream, as they are read from storage.
+	 *
+	 * @param filter Selects the submissions to include
+	 * @param os     The destination, which is not closed
+	 * @return The number of files written
+	 * @throws IOException if storage or the destination fails
+	 */
+	public int writeArchive(Predicate<Submission> filter, OutputStream os) throws IOException {
+		var selected = getSubmissions().stream()
+			.filter(filter)
+			.collect(Collectors.toList());
+		return new SubmissionArchiveWriter(storageService).write(eventDirName, selected, os);
+	}
+
+	/**
+	 * Creates a download link for each file of the selected submissions. No
+	 * file is read: the links are signed for the files' locations in storage.
+	 *
+	 * @param filter   Selects the submissions whose files are linked
+	 * @param lifetime How long the links are valid
+	 * @return The links, in order of submission ID
+	 * @throws IOException if a link cannot be created
+	 */
+	public List<DownloadLink> getDownloadLinks(Predicate<Submission> filter, Duration lifetime)
+			throws IOException {
+		List<DownloadLink> result = new ArrayList<>();
+		for (var submission : getSubmissions()) {
+			if (filter.test(submission)) {
+				for (var fileName : submission.getFileNames()) {
+					result.add(new DownloadLink(submission, fileName,
+						storageService.getUploadedFileDownloadUri(eventDirName, fileName, lifetime)));
+				}
+			}
+		}
+		return result;
+	}
+
+	public long getNumCoalescedTableVersions() {
+		return (flusher == null) ? 0 : flusher.getNumCoalescedVersions();
+	}
+
+	/**
+	 * Writes any submissions not yet stored by the write-behind flusher and
+	 * stops the flusher. Does nothing if write-behind is not enabled.
+	 *
+	 * @throws IOException if the final write fails
+	 * @throws InterruptedException if interrupted while waiting for a write
+	 */
+	public void close() throws IOException, InterruptedException {
+		if (flusher != null) {
+			flusher.close();
+		}
 	}
 
 	public Submission receiveFileUpload(Submission submission, MultipartFile[] files)
 			throws IOException {
+		var transferStart = System.nanoTime();
+		var numBytes = 0L;
+		List<String> newFileNames = new ArrayList<>();
+		List<CompletableFuture<StoredFile>> transfers = new ArrayList<>();
 		var label = 'a';
 		for (MultipartFile file : files) {
-			if (file != null) {
-				var fileName = saveUploadedFile(file, submission.getId(),
-					Character.toString(label), submission.getEvent(),
+			if (file != null && !file.isEmpty()) {
+				var newFileName = getNewFileName(getOriginalFilePath(file),
+					submission.getId(), Character.toString(label),
 					submission.getDivision(), submission.getTeamNumber());
-				fileName.ifPresent(submission::addFileName);
+				newFileNames.add(newFileName);
+				transfers.add(startTransfer(file, newFileName));
+				numBytes += file.getSize();
 			}
 			++label;
 		}
 
-		addSubmission(submission);
+		// allOf settles only once every transfer has, so that on failure no
+		// sibling is still writing a file that is about to be deleted:
+		try {
+			CompletableFuture.allOf(transfers.toArray(CompletableFuture<?>[]::new)).join();
+		} catch (CompletionException ex) {
+			deleteUploadedFiles(newFileNames);
+			throw toIOException(ex, "Unable to store uploaded file:");
+		}
+		options.metrics().recordPhase(event, division, UploadMetrics.Phase.TRANSFER,
+			System.nanoTime() - transferStart);
+		options.metrics().recordUploadedBytes(event, division, numBytes);
+
+		newFileNames.forEach(submission::addFileName);
+		join(addSubmission(submission), "Unable to record submission:");
+		// A form carries no digests, so files are matched to stored content only
+		// now. Where files can share content, indexing makes a duplicate share it:
+		indexUploadedFiles(transfers.stream()
+			.map(CompletableFuture::join)
+			.collect(Collectors.toList()));
 
 		return submission;
 	}
 
-	private Optional<String> saveUploadedFile(MultipartFile file, int id, String label, Event event,
-			Division division, int teamNumber) throws IOException {
-		if (file.isEmpty()) {
-			return Optional.empty();
+	/**
+	 * Stores one file of a submission whose content is read straight from the
+	 * request stream. The submission itself is recorded afterwards, by
+	 * receiveStreamedSubmission, once the whole request has been read.
+	 *
+	 * @param is               The file content
+	 * @param originalFilePath The file name supplied by the browser
+	 * @param submission       A submission carrying the ID, division, and team
+	 *                         number with which to name the file
+	 * @param label            The label that distinguishes this file from the
+	 *                         others in the same submission
+	 * @return The name under which the file was stored, and the digest of its
+	 *         content, computed as it streamed in, for indexUploadedFiles
+	 * @throws IOException if the file cannot be stored
+	 */
+	public StoredFile saveUploadedStream(InputStream is, String originalFilePath,
+			Submission submission, String label) throws IOException {
+		var newFileName = getNewFileName(originalFilePath, submission.getId(), label,
+			submission.getDivision(), submission.getTeamNumber());
+		var transferStart = System.nanoTime();
+		var countingStream = new CountingInputStream(is);
+		var digestStream = new DigestInputStream(countingStream, ContentDigest.newSha256());
+		storageService.transferUploadedFile(digestStream, -1, eventDirName, newFileName);
+		options.metrics().recordPhase(event, division, UploadMetrics.Phase.TRANSFER,
+			System.nanoTime() - transferStart);
+		options.metrics().recordUploadedBytes(event, division, countingStream.getCount());
+		return new StoredFile(newFileName, ContentDigest.toHex(digestStream));
+	}
+
+	/**
+	 * Stores one file of a submission by joining the staged chunks of a
+	 * resumable upload within the storage.
+	 *
+	 * @param sessionId        The resumable upload session
+	 * @param chunkNames       The names of the chunks, in order
+	 * @param chunkSize        The size of every chunk but the last
+	 * @param size             The size of the file
+	 * @param originalFilePath The file name supplied by the browser
+	 * @param submission       A submission carrying the ID, division, and team
+	 *                         number with which to name the file
+	 * @param label            The label that distinguishes this file from the
+	 *                         others in the same submission
+	 * @return The name under which the file was stored, and its digest if the
+	 *         storage computed one
+	 * @throws IOException if the file cannot be stored
+	 */
+	public StoredFile saveStagedFile(String sessionId, List<String> chunkNames,
+			long chunkSize, long size, String originalFilePath, Submission submission,
+			String label) throws IOException {
+		var newFileName = getNewFileName(originalFilePath, submission.getId(), label,
+			submission.getDivision(), submission.getTeamNumber());
+		var transferStart = System.nanoTime();
+		var sha256 = storageService.assembleUploadChunks(sessionId, chunkNames, chunkSize,
+			eventDirName, newFileName);
+		options.metrics().recordPhase(event, division, UploadMetrics.Phase.TRANSFER,
+			System.nanoTime() - transferStart);
+		options.metrics().recordUploadedBytes(event, division, size);
+		return new StoredFile(newFileName, sha256.orElse(null));
+	}
+
+	/**
+	 * Names one file of a submission without storing it, for a file that the
+	 * browser sends straight to storage.
+	 *
+	 * @return The name under which the file must be stored in getEventDirName()
+	 */
+	public String getUploadedFileName(String originalFilePath, Submission submission,
+			String label) {
+		return getNewFileName(originalFilePath, submission.getId(), label,
+			submission.getDivision(), submission.getTeamNumber());
+	}
+
+	/**
+	 * Stores a file by reference to identical content already in storage, if
+	 * there is any, without the content being sent again.
+	 *
+	 * @param sha256      The digest of the content, checked with
+	 *                    ContentDigest.isSha256
+	 * @param size        The size of the content
+	 * @param newFileName The name under which to store the file
+	 * @return Whether the file was stored. If not, the caller must transfer it.
+	 */
+	public boolean linkUploadedFile(String sha256, long size, String newFileName) {
+		try {
+			if (storageService.linkUploadedFile(sha256, size, eventDirName, newFileName)) {
+				LOG.info("Stored {}/{} by reference to identical content", eventDirName,
+					newFileName);
+				options.metrics().recordDeduplicatedBytes(event, division, size);
+				return true;
+			}
+		} catch (IOException | RuntimeException ex) {
+			// The file can still be transferred, so this is no reason to fail:
+			LOG.warn(String.format("Unable to store %1$s/%2$s by reference:", eventDirName,
+				newFileName), ex);
 		}
+		return false;
+	}
 
-		var originalFilePath = file.getOriginalFilename();
-		if (originalFilePath == null || originalFilePath.isBlank()) {
-			originalFilePath = file.getName();
+	/**
+	 * Indexes the content of the files of an accepted submission, so that later
+	 * uploads of the same content can be stored by reference. This is best
+	 * effort: failures are logged rather than thrown, since the submission has
+	 * already been recorded.
+	 */
+	public void indexUploadedFiles(List<StoredFile> files) {
+		for (var file : files) {
+			if (file.sha256() == null) {
+				continue;
+			}
+			try {
+				storageService.indexUploadedFile(file.sha256(), eventDirName, file.fileName());
+			} catch (IOException | RuntimeException ex) {
+				LOG.warn(String.format("Unable to index content of %1$s/%2$s:", eventDirName,
+					file.fileName()), ex);
+			}
 		}
+	}
+
+	public Submission receiveStreamedSubmission(Submission submission) throws IOException {
+		join(addSubmission(submission), "Unable to record submission:");
+		return submission;
+	}
+
+	/**
+	 * Deletes files stored for a submission that was subsequently rejected. This
+	 * is best effort: failures are logged rather than thrown, so as not to mask
+	 * the reason for the rejection.
+	 *
+	 * @param fileNames The names of the stored files
+	 */
+	public void deleteUploadedFiles(List<String> fileNames) {
+		for (var fileName : fileNames) {
+			try {
+				storageService.deleteUploadedFile(eventDirName, fileName);
+			} catch (IOException | RuntimeException ex) {
+				LOG.warn(String.format("Unable to delete file %1$s/%2$s of rejected submission:",
+					eventDirName, fileName), ex);
+			}
+		}
+	}
+
+	/*
+	 * The spooled file is hashed on the transfer thread, so that the request
+	 * thread does not read it, and is then handed to the storage service whole,
+	 * so that it can move the file or send it from disk.
+	 */
+	private CompletableFuture<StoredFile> startTransfer(MultipartFile file,
+		String newFileName) {
+		Executor executor = (options.transferExecutor() == null)
+			? Runnable::run
+			: options.transferExecutor();
+		var digest = CompletableFuture.supplyAsync(() -> {
+			try {
+				return computeDigest(file);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}, executor);
+		// The transfer is started on the executor too, even if the digest is
+		// already done, since a storage service without a non-blocking client
+		// transfers on the thread that starts it:
+		return digest.thenComposeAsync(sha256 -> storageService
+			.transferUploadedFileAsync(file, eventDirName, newFileName)
+			.thenApply(result -> new StoredFile(newFileName, sha256)), executor);
+	}
+
+	private static String computeDigest(MultipartFile file) throws IOException {
+		try (var is = file.getInputStream()) {
+			return ContentDigest.of(is);
+		}
+	}
+
+	private static String getOriginalFilePath(MultipartFile file) {
+		var originalFilePath = file.getOriginalFilename();
+		return (originalFilePath == null || originalFilePath.isBlank())
+			? file.getName()
+			: originalFilePath;
+	}
+
+	private static String getNewFileName(String originalFilePath, int id, String label,
+			Division division, int teamNumber) {
 		var originalFileName = new File(originalFilePath).getName();
 		Pair<String, String> originalStemExt = FileUtil.getStemExtPair(originalFileName);
 
-		var newFileName = String.format("%1$s%2$d-%3$s-%4$03d%5$s.%6$s",
+		return String.format("%1$s%2$d-%3$s-%4$03d%5$s.%6$s",
 			division, teamNumber, originalStemExt.getLeft(), id, label,
 			originalStemExt.getRight());
+	}
+
+	/*
+	 * Returns once the submission is in the table and, if enabled, in the
+	 * database or journal. The future completes when any checkpoint that the
+	 * submission triggered is stored.
+	 */
+	private CompletableFuture<Void> addSubmission(Submission newSubmission) {
+		var tableStart = System.nanoTime();
+		TableSnapshot checkpoint = null;
+		lockTable();
+		try {
+			// The database is the durable copy, so store it there first:
+			if (options.isDatabaseEnabled()) {
+				options.database().insert(newSubmission);
+			}
+
+			// Add the submission to the list:
+			submissions.add(newSubmission);
+			++tableVersion;
 
-		storageService.transferUploadedFile(file, eventDirName, newFileName);
+			if (flusher != null) {
+				// The flusher writes the checkpoints, so the journal (if any) only
+				// needs to cover the window until the next one:
+				if (options.isJournalEnabled()) {
+					appendToJournal(newSubmission);
+				}
+				flusher.markDirty(tableVersion);
+			} else if (options.isJournalEnabled()
+					&& numJournaledSubmissions + 1 < options.checkpointInterval()) {
+				appendToJournal(newSubmission);
+			} else {
+				checkpoint = takeSnapshot();
+			}
+		} catch (IOException | RuntimeException ex) {
+			return CompletableFuture.failedFuture(ex);
+		} finally {
+			tableLock.unlock();
+		}
 
-		return Optional.of(newFileName);
+		// The checkpoint is written without the lock, so other uploads proceed:
+		var written = (checkpoint == null)
+			? CompletableFuture.<Long>completedFuture(null)
+			: writeSnapshot(checkpoint);
+		return written.whenComplete((version, ex) -> options.metrics().recordPhase(
+				event, division, UploadMetrics.Phase.TABLE, System.nanoTime() - tableStart))
+			.thenAccept(version -> {});
 	}
 
-	private synchronized void addSubmission(Submission newSubmission) throws IOException {
-		// Add the submission to the list:
-		submissions.add(newSubmission);
+	private void lockTable() {
+		var waitStart = System.nanoTime();
+		tableLock.lock();
+		options.metrics().recordTableLockWait(event, division, System.nanoTime() - waitStart);
+	}
+
+	private void appendToJournal(Submission newSubmission) throws IOException {
+		// The header goes only at the top of a new journal:
+		var format = (numJournaledSubmissions == 0)
+			? CSV_FORMAT_OUT
+			: CSV_FORMAT_OUT.withSkipHeaderRecord();
+		var buffer = new StringBuilder();
+		try (var printer = format.print(buffer)) {
+			newSubmission.print(printer);
+		}
+		storageService.appendToSubmissionJournal(
+			submissionJournalFileNames[activeJournalSegment], buffer.toString());
+		++numJournaledSubmissions;
+	}
+
+	/*
+	 * Called only while loading, before any upload can arrive. Everything in the
+	 * journal is then in the table, so once it is written, the journal is
+	 * deleted.
+	 */
+	private void writeCheckpoint() throws IOException {
+		join(writeSnapshot(takeSnapshot()), "Unable to write submission table:");
+		if (numJournaledSubmissions > 0) {
+			storageService.deleteSubmissionJournal(
+				submissionJournalFileNames[activeJournalSegment]);
+			numJournaledSubmissions = 0;
+		}
+	}
+
+	/*
+	 * Called by the flusher on its own thread. The table is snapshotted under
+	 * the lock, but written without holding it so that uploads are not blocked.
+	 */
+	private CompletableFuture<Long> writeNewestTableVersion() {
+		TableSnapshot snapshot;
+		lockTable();
+		try {
+			snapshot = takeSnapshot();
+		} finally {
+			tableLock.unlock();
+		}
+		return writeSnapshot(snapshot);
+	}
+
+	/*
+	 * Called with the table locked. Taking the snapshot seals the journal
+	 * segment in use, and appends move to the other one, so once the snapshot
+	 * is written the sealed segment holds nothing that the table lacks. Under
+	 * steady traffic, each write therefore truncates the journal up to its
+	 * snapshot. A segment left by a failed write stays sealed, and is deleted by
+	 * the next write, whose snapshot covers it.
+	 */
+	private TableSnapshot takeSnapshot() {
+		if (sealedJournalId == 0 && numJournaledSubmissions > 0) {
+			activeJournalSegment = 1 - activeJournalSegment;
+			numJournaledSubmissions = 0;
+			sealedJournalId = ++numJournalSeals;
+		}
+		var previousWrite = lastTableWrite;
+		lastTableWrite = new CompletableFuture<>();
+		return new TableSnapshot(submissions.snapshot(), tableVersion, sealedJournalId,
+			previousWrite, lastTableWrite);
+	}
+
+	/*
+	 * The snapshot goes to a temporary file on the calling thread, and is handed
+	 * to the storage service once the previous write has settled, whether or
+	 * not it succeeded. Nothing blocks while storage completes the write.
+	 */
+	private CompletableFuture<Long> writeSnapshot(TableSnapshot snapshot) {
+		var tempFile = writeTempSubmissionTable(snapshot.table());
+		snapshot.previousWrite()
+			.handle((result, ex) -> null)
+			.thenCompose(ignored -> tempFile)
+			.thenCompose(file -> storageService.transferTempSubmissionTableFileAsync(file,
+				submissionTableFileName))
+			.thenRunAsync(() -> finishTableWrite(snapshot), getCompletionExecutor())
+			.whenComplete((result, ex) -> {
+				if (ex == null) {
+					snapshot.write().complete(null);
+				} else {
+					snapshot.write().completeExceptionally(ex);
+				}
+			});
+		return snapshot.write().thenApply(result -> snapshot.version());
+	}
 
-		// Save the list to a temporary file:
-		var tempSubmissionTableFile = storageService.getTempSubmissionTableFile(
-			submissionTableFileName);
-		try (var printer = CSV_FORMAT_OUT.print(tempSubmissionTableFile, FileUtil.CHARSET)) {
-			for (var submission : submissions) {
-				submission.print(printer);
+	private void finishTableWrite(TableSnapshot snapshot) {
+		var table = snapshot.table();
+		try {
+			if (options.isDatabaseEnabled() && !table.isEmpty()) {
+				options.database().recordExport(event, division, table.getId(table.size() - 1));
 			}
+
+			if (snapshot.sealedJournalId() != 0) {
+				lockTable();
+				try {
+					// Unless the write of an earlier snapshot that covered the same
+					// segment has already deleted it:
+					if (snapshot.sealedJournalId() == sealedJournalId) {
+						storageService.deleteSubmissionJournal(
+							submissionJournalFileNames[1 - activeJournalSegment]);
+						sealedJournalId = 0;
+					}
+				} finally {
+					tableLock.unlock();
+				}
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	// The work after a write takes the lock and may touch the database, so it
+	// runs on one of the uploader's executors rather than a storage client's:
+	private Executor getCompletionExecutor() {
+		if (options.flushExecutor() != null) {
+			return options.flushExecutor();
+		} else if (options.transferExecutor() != null) {
+			return options.transferExecutor();
+		} else {
+			return Runnable::run;
+		}
+	}
+
+	private CompletableFuture<File> writeTempSubmissionTable(SubmissionStore table) {
+		try {
+			var tempSubmissionTableFile = storageService.getTempSubmissionTableFile(
+				submissionTableFileName);
+			try (var printer = CSV_FORMAT_OUT.print(tempSubmissionTableFile,
+					FileUtil.CHARSET)) {
+				for (var i = 0; i < table.size(); ++i) {
+					table.get(i).print(printer);
+				}
+			}
+			return CompletableFuture.completedFuture(tempSubmissionTableFile);
+		} catch (IOException | RuntimeException ex) {
+			return CompletableFuture.failedFuture(ex);
 		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future, String errMsg) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException ex) {
+			throw toIOException(ex, errMsg);
+		}
+	}
 
-		// Replace the existing file with the new one:
-		storageService.transferTempSubmissionTableFile(tempSubmissionTableFile,
-			submissionTableFileName);
+	private static IOException toIOException(CompletionException ex, String errMsg) {
+		var cause = (ex.getCause() instanceof UncheckedIOException uncheckedEx)
+			? uncheckedEx.getCause()
+			: ex.getCause();
+		return (cause instanceof IOException ioEx)
+			? ioEx
+			: new IOException(errMsg, cause);
 	}
 }
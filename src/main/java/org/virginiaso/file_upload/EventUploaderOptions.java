@@ -0,0 +1,50 @@
+package org.virginiaso.file_upload;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Settings that control how an EventUploader persists its submission table.
+ *
+ * @param checkpointInterval If positive, new submissions are appended to a
+ *                           journal and the full table is rewritten (a
+ *                           checkpoint) only once this many submissions have
+ *                           been journaled. If zero or negative, there is no
+ *                           journal.
+ * @param flushExecutor      If non-null, the table is written behind by a
+ *                           SubmissionTableFlusher running on this executor
+ *                           instead of inside each upload request.
+ * @param maxStalenessMillis The longest a write-behind flush is deferred
+ * @param transferExecutor   If non-null, the files of a submission are handed
+ *                           to the storage service concurrently on this
+ *                           executor instead of one after another on the
+ *                           request thread.
+ * @param metrics            The meters on which to record the uploads
+ * @param database           If non-null, each submission is stored in this
+ *                           database, and the submission table in storage is
+ *                           an export of it, written by the flusher. There is
+ *                           then no journal.
+ */
+record EventUploaderOptions(int checkpointInterval,
+	ScheduledExecutorService flushExecutor, long maxStalenessMillis,
+	ExecutorService transferExecutor, UploadMetrics metrics, SubmissionDatabase database) {
+
+	public EventUploaderOptions(int checkpointInterval,
+		ScheduledExecutorService flushExecutor, long maxStalenessMillis,
+		ExecutorService transferExecutor) {
+		this(checkpointInterval, flushExecutor, maxStalenessMillis, transferExecutor,
+			UploadMetrics.NONE, null);
+	}
+
+	public boolean isJournalEnabled() {
+		return checkpointInterval > 0 && database == null;
+	}
+
+	public boolean isDatabaseEnabled() {
+		return database != null;
+	}
+
+	public boolean isWriteBehindEnabled() {
+		return flushExecutor != null;
+	}
+}
@@ -0,0 +1,71 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
+import org.virginiaso.file_upload.util.FileUtil;
+
+/**
+ * Serves the signed download links made by FileSystemStorageServiceImpl, for
+ * deployments that store files on the local file system rather than in S3.
+ *
+ * Where the servlet container supports it (Tomcat's NIO connector does), the
+ * file is handed to the container to send with sendfile, so its bytes go from
+ * the page cache to the socket without being copied through the JVM heap.
+ */
+@Controller
+public class FileDownloadController {
+	private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+	private final FileSystemStorageServiceImpl storageService;
+
+	@Autowired
+	public FileDownloadController(FileSystemStorageServiceImpl storageService) {
+		this.storageService = storageService;
+	}
+
+	@GetMapping("/" + FileSystemStorageServiceImpl.DOWNLOAD_PATH + "/{eventDirName}/{fileName}")
+	public void download(
+		@PathVariable("eventDirName") String eventDirName,
+		@PathVariable("fileName") String fileName,
+		@RequestParam("expires") long expires,
+		@RequestParam("signature") String signature,
+		HttpServletRequest request,
+		HttpServletResponse response) throws IOException {
+
+		var file = storageService.getSignedDownloadFile(eventDirName, fileName, expires,
+				signature)
+			.orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+				"This download link is invalid or has expired"));
+		var length = file.length();
+		response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+		response.setContentLengthLong(length);
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+			.filename(fileName, FileUtil.CHARSET)
+			.build()
+			.toString());
+		if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+			request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START_ATTR, 0L);
+			request.setAttribute(SENDFILE_END_ATTR, length);
+		} else {
+			Files.copy(file.toPath(), response.getOutputStream());
+		}
+	}
+}
@@ -1,29 +1,71 @@
 package org.virginiaso.file_upload;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.UriUtils;
+import org.virginiaso.file_upload.util.ContentDigest;
 import org.virginiaso.file_upload.util.FileUtil;
+import org.virginiaso.file_upload.util.StringUtil;
 
 @Service("fileSystemStorageService")
 public class FileSystemStorageServiceImpl implements StorageService {
 	private static final Logger LOG = LoggerFactory.getLogger(
 		FileSystemStorageServiceImpl.class);
 
+	private static final String UPLOAD_CHUNK_DIR_NAME = "upload-chunks";
+	private static final String CONTENT_DIR_NAME = "content-sha256";
+	private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+	static final String DOWNLOAD_PATH = "download";
+
 	private final File submissionRootDir;
+	private final byte[] downloadKey;
+
+	public FileSystemStorageServiceImpl(String submissionRoot) {
+		this(submissionRoot, null);
+	}
 
+	@Autowired
 	public FileSystemStorageServiceImpl(
-		@Value("${fileUpload.localFileSystem.submissionRoot}") String submissionRoot) {
+		@Value("${fileUpload.localFileSystem.submissionRoot}") String submissionRoot,
+		@Value("${fileUpload.localFileSystem.downloadKey:}") String downloadKey) {
 		submissionRootDir = new File(submissionRoot);
+		if (StringUtil.isBlank(downloadKey)) {
+			// Links signed with a random key stop working when the server restarts:
+			this.downloadKey = new byte[32];
+			new SecureRandom().nextBytes(this.downloadKey);
+		} else {
+			this.downloadKey = downloadKey.trim().getBytes(FileUtil.CHARSET);
+		}
 	}
 
 	@Override
@@ -67,6 +109,23 @@ public class FileSystemStorageServiceImpl implements StorageService {
 		}
 	}
 
+	@Override
+	public InputStream getSubmissionJournalAsInputStream(String submissionJournalFileName)
+			throws FileNotFoundException {
+		return new FileInputStream(getSubmissionTableFile(submissionJournalFileName));
+	}
+
+	@Override
+	public void appendToSubmissionJournal(String submissionJournalFileName, String records)
+			throws IOException {
+		FileUtil.appendDurably(getSubmissionTableFile(submissionJournalFileName), records);
+	}
+
+	@Override
+	public void deleteSubmissionJournal(String submissionJournalFileName) throws IOException {
+		Files.deleteIfExists(getSubmissionTableFile(submissionJournalFileName).toPath());
+	}
+
 	@Override
 	public void transferUploadedFile(MultipartFile file, String eventDirName,
 		String newFileName) throws IOException {
@@ -79,6 +138,215 @@ public class FileSystemStorageServiceImpl implements StorageService {
 		file.transferTo(newPath);
 	}
 
+	@Override
+	public void transferUploadedFile(InputStream is, long size, String eventDirName,
+		String newFileName) throws IOException {
+
+		var eventDir = new File(submissionRootDir, eventDirName);
+		if (!eventDir.isDirectory()) {
+			eventDir.mkdirs();
+		}
+		var newPath = new File(eventDir, newFileName);
+		Files.copy(is, newPath.toPath());
+	}
+
+	@Override
+	public InputStream getUploadedFileAsInputStream(String eventDirName, String fileName)
+			throws IOException {
+		var eventDir = new File(submissionRootDir, eventDirName);
+		return new FileInputStream(new File(eventDir, fileName));
+	}
+
+	/*
+	 * There is no storage server to hand the download to, so the link points
+	 * back at this server (FileDownloadController), carrying an expiry time and
+	 * an HMAC of the file name and expiry time that only this server can make.
+	 */
+	@Override
+	public URI getUploadedFileDownloadUri(String eventDirName, String fileName,
+		Duration lifetime) {
+		var expires = Instant.now().plus(lifetime).getEpochSecond();
+		return URI.create(String.format("%1$s/%2$s/%3$s?expires=%4$d&signature=%5$s",
+			DOWNLOAD_PATH, UriUtils.encodePathSegment(eventDirName, FileUtil.CHARSET),
+			UriUtils.encodePathSegment(fileName, FileUtil.CHARSET), expires,
+			sign(eventDirName, fileName, expires)));
+	}
+
+	/**
+	 * Checks the parameters of a link made by getUploadedFileDownloadUri.
+	 *
+	 * @return The file, or empty if the link has been altered or has expired,
+	 *         or the file no longer exists
+	 */
+	public Optional<File> getSignedDownloadFile(String eventDirName, String fileName,
+		long expires, String signature) {
+		if (signature == null || Instant.now().getEpochSecond() > expires) {
+			return Optional.empty();
+		}
+		var expected = sign(eventDirName, fileName, expires);
+		if (!MessageDigest.isEqual(expected.getBytes(FileUtil.CHARSET),
+			signature.getBytes(FileUtil.CHARSET))) {
+			return Optional.empty();
+		}
+		var file = new File(new File(submissionRootDir, eventDirName), fileName);
+		return file.isFile() ? Optional.of(file) : Optional.empty();
+	}
+
+	@Override
+	public void deleteUploadedFile(String eventDirName, String fileName) throws IOException {
+		var eventDir = new File(submissionRootDir, eventDirName);
+		Files.deleteIfExists(new File(eventDir, fileName).toPath());
+	}
+
+	/*
+	 * Content is indexed by hard-linking the file into the content directory
+	 * under its digest, so the index takes no space, and every later file with
+	 * the same content is one more link to the same data. Where the file system
+	 * cannot make hard links, files are simply stored whole.
+	 */
+	@Override
+	public void indexUploadedFile(String sha256, String eventDirName, String fileName)
+			throws IOException {
+		var file = new File(new File(submissionRootDir, eventDirName), fileName).toPath();
+		var contentFile = getContentFile(sha256).toPath();
+		Files.createDirectories(contentFile.getParent());
+		try {
+			Files.createLink(contentFile, file);
+			return;
+		} catch (FileAlreadyExistsException ex) {
+			// The content is already stored, so share it below
+		} catch (UnsupportedOperationException ex) {
+			LOG.debug("The file system cannot make hard links, so content is not shared");
+			return;
+		}
+		if (!Files.isSameFile(contentFile, file) && Files.size(contentFile) == Files.size(file)) {
+			// Replace the file with a link in one step, so that it never goes missing:
+			var tempLink = file.resolveSibling(String.format(".%1$s.%2$s.tmp", fileName,
+				UUID.randomUUID()));
+			Files.createLink(tempLink, contentFile);
+			try {
+				Files.move(tempLink, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tempLink);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasContent(String sha256, long size) {
+		var contentFile = getContentFile(sha256);
+		return contentFile.isFile() && contentFile.length() == size;
+	}
+
+	@Override
+	public boolean linkUploadedFile(String sha256, long size, String eventDirName,
+		String newFileName) throws IOException {
+		if (!hasContent(sha256, size)) {
+			return false;
+		}
+		var eventDir = new File(submissionRootDir, eventDirName);
+		if (!eventDir.isDirectory()) {
+			eventDir.mkdirs();
+		}
+		var contentPath = getContentFile(sha256).toPath();
+		var newPath = new File(eventDir, newFileName).toPath();
+		try {
+			Files.createLink(newPath, contentPath);
+		} catch (UnsupportedOperationException ex) {
+			Files.copy(contentPath, newPath);
+		}
+		return true;
+	}
+
+	// Chunks are written under a temporary name and then renamed, so that an
+	// interrupted request never leaves a partial chunk behind:
+	@Override
+	public void storeUploadChunk(String sessionId, String chunkName, InputStream is,
+		long size) throws IOException {
+
+		var chunkFile = getUploadChunkFile(sessionId, chunkName);
+		var sessionDir = chunkFile.getParentFile();
+		if (!sessionDir.isDirectory()) {
+			sessionDir.mkdirs();
+		}
+		var tempFile = File.createTempFile(chunkName, ".tmp", sessionDir);
+		try {
+			var numBytes = Files.copy(is, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if (numBytes != size) {
+				throw new EOFException(String.format(
+					"Upload chunk %1$s ended after %2$d of %3$d bytes", chunkName, numBytes, size));
+			}
+			Files.move(tempFile.toPath(), chunkFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+
+	@Override
+	public InputStream getUploadChunkAsInputStream(String sessionId, String chunkName)
+			throws IOException {
+		return new FileInputStream(getUploadChunkFile(sessionId, chunkName));
+	}
+
+	@Override
+	public void deleteUploadChunk(String sessionId, String chunkName) throws IOException {
+		var chunkFile = getUploadChunkFile(sessionId, chunkName);
+		Files.deleteIfExists(chunkFile.toPath());
+		// Fails harmlessly until the session's last chunk is gone:
+		chunkFile.getParentFile().delete();
+	}
+
+	// The chunks are on the same disk as the file, so they are copied straight into
+	// it, and the digest is taken on the way:
+	@Override
+	public Optional<String> assembleUploadChunks(String sessionId, List<String> chunkNames,
+		long chunkSize, String eventDirName, String newFileName) throws IOException {
+
+		var eventDir = new File(submissionRootDir, eventDirName);
+		if (!eventDir.isDirectory()) {
+			eventDir.mkdirs();
+		}
+		var digest = ContentDigest.newSha256();
+		try (var os = new DigestOutputStream(Files.newOutputStream(
+				new File(eventDir, newFileName).toPath(), StandardOpenOption.CREATE_NEW),
+				digest)) {
+			for (var chunkName : chunkNames) {
+				Files.copy(getUploadChunkFile(sessionId, chunkName).toPath(), os);
+			}
+		}
+		return Optional.of(ContentDigest.toHex(digest));
+	}
+
+	private File getUploadChunkFile(String sessionId, String chunkName) {
+		var sessionDir = new File(new File(submissionRootDir, UPLOAD_CHUNK_DIR_NAME), sessionId);
+		return new File(sessionDir, chunkName);
+	}
+
+	// The first two digits name a subdirectory, to keep directories small:
+	private File getContentFile(String sha256) {
+		if (!ContentDigest.isSha256(sha256)) {
+			throw new IllegalArgumentException(String.format(
+				"'%1$s' is not a SHA-256 digest", sha256));
+		}
+		var contentDir = new File(new File(submissionRootDir, CONTENT_DIR_NAME),
+			sha256.substring(0, 2));
+		return new File(contentDir, sha256);
+	}
+
+	private String sign(String eventDirName, String fileName, long expires) {
+		try {
+			var mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+			mac.init(new SecretKeySpec(downloadKey, SIGNATURE_ALGORITHM));
+			var message = String.format("%1$s\n%2$s\n%3$d", eventDirName, fileName, expires);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(
+				mac.doFinal(message.getBytes(FileUtil.CHARSET)));
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to sign download link:", ex);
+		}
+	}
+
 	private File getSubmissionTableFile(String submissionTableFileName) {
 		return new File(submissionRootDir, submissionTableFileName);
 	}
@@ -1,21 +1,37 @@
 package org.virginiaso.file_upload;
 
 import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanWrapperImpl;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.bind.ServletRequestDataBinder;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.util.WebUtils;
+import org.virginiaso.file_upload.util.FileUtil;
 import org.virginiaso.file_upload.util.HostNameUtil;
 import org.virginiaso.file_upload.util.ProjectInfo;
 import org.virginiaso.file_upload.util.StringUtil;
@@ -24,24 +40,37 @@ import org.virginiaso.file_upload.util.ValidationException;
 @Controller
 public class FileUploadController {
 	private static final Logger LOG = LoggerFactory.getLogger(FileUploadController.class);
+	private static final String FILE_PARAM_PREFIX = "file";
+	static final List<String> FILE_PARAM_NAMES = List.of(
+		"fileA", "fileB", "fileC", "fileD", "fileE",
+		"fileF", "fileG", "fileH", "fileI", "fileJ");
 
 	private final FileUploadService fileUploadService;
+	private final SpoolingStorageServiceImpl spoolingStorageService;
 	private final String baseEventUrl;
 	private final String teamNumbersUrl;
 	private final String notesUploadFaqUrl;
 	private final boolean isStateTournament;
+	private final long maxFileSize;
+	private final long maxRequestSize;
 
 	@Autowired
 	public FileUploadController(FileUploadService fileUploadService,
+		SpoolingStorageServiceImpl spoolingStorageService,
 		@Value("${fileUpload.baseEventUrl}") String baseEventUrl,
 		@Value("${fileUpload.teamNumbersUrl}") String teamNumbersUrl,
 		@Value("${fileUpload.notesUploadFaqUrl}") String notesUploadFaqUrl,
-		@Value("${fileUpload.isStateTournament:false}") boolean isStateTournament) {
+		@Value("${fileUpload.isStateTournament:false}") boolean isStateTournament,
+		@Value("${spring.servlet.multipart.max-file-size:5GB}") DataSize maxFileSize,
+		@Value("${spring.servlet.multipart.max-request-size:5GB}") DataSize maxRequestSize) {
 		this.fileUploadService = fileUploadService;
+		this.spoolingStorageService = spoolingStorageService;
 		this.baseEventUrl = baseEventUrl;
 		this.teamNumbersUrl = teamNumbersUrl;
 		this.notesUploadFaqUrl = notesUploadFaqUrl;
 		this.isStateTournament = isStateTournament;
+		this.maxFileSize = maxFileSize.toBytes();
+		this.maxRequestSize = maxRequestSize.toBytes();
 	}
 
 	@GetMapping({"/", "/fileUpload"})
@@ -66,6 +95,26 @@ public class FileUploadController {
 		return "index";
 	}
 
+	/*
+	 * The home page is cached by PageCacheFilter, so anything that changes while
+	 * the server runs is reported here instead.
+	 */
+	@GetMapping("/status")
+	@ResponseBody
+	public Map<String, Object> status() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("host", HostNameUtil.getHostName());
+		result.put("cores", Runtime.getRuntime().availableProcessors());
+		result.put("projName", ProjectInfo.getProjName());
+		result.put("projVer", ProjectInfo.getProjVersion());
+		if (spoolingStorageService.isEnabled()) {
+			result.put("spoolBacklog", spoolingStorageService.getNumPendingReplications());
+			result.put("spoolLagSeconds", spoolingStorageService.getReplicationLagMillis() / 1000);
+			result.put("spooledBytes", spoolingStorageService.getSpooledBytes());
+		}
+		return result;
+	}
+
 	@GetMapping("/fileUpload/{eventUri}")
 	public String fileUploadForm(
 		@PathVariable String eventUri,
@@ -83,17 +132,7 @@ public class FileUploadController {
 	@PostMapping("/fileUpload/{eventUri}")
 	public String fileUploadSubmit(
 		@PathVariable("eventUri") String eventUri,
-		@ModelAttribute UserSubmission userSub,
-		@RequestParam(required = false) MultipartFile fileA,
-		@RequestParam(required = false) MultipartFile fileB,
-		@RequestParam(required = false) MultipartFile fileC,
-		@RequestParam(required = false) MultipartFile fileD,
-		@RequestParam(required = false) MultipartFile fileE,
-		@RequestParam(required = false) MultipartFile fileF,
-		@RequestParam(required = false) MultipartFile fileG,
-		@RequestParam(required = false) MultipartFile fileH,
-		@RequestParam(required = false) MultipartFile fileI,
-		@RequestParam(required = false) MultipartFile fileJ,
+		HttpServletRequest request,
 		Model model) throws IOException {
 
 		// If this throws, it's because eventUri is unrecognized.  In this
@@ -101,9 +140,9 @@ public class FileUploadController {
 		// no template name to return from this method.
 		var event = Event.forUri(eventUri);
 
+		var userSub = new UserSubmission();
 		try {
-			var submission = fileUploadService.receiveFileUpload(event, userSub,
-				fileA, fileB, fileC, fileD, fileE, fileF, fileG, fileH, fileI, fileJ);
+			var submission = receiveFileUpload(event, userSub, request);
 
 			model.addAttribute("event", event);
 			model.addAttribute("submission", submission);
@@ -127,6 +166,77 @@ public class FileUploadController {
 		}
 	}
 
+	/*
+	 * When Spring's multipart resolver is enabled, it has already spooled the
+	 * files to temporary files by the time this is called.  When it is disabled
+	 * (spring.servlet.multipart.enabled is false), the request body is still
+	 * unread, and each file is piped to storage as it arrives.
+	 */
+	private Submission receiveFileUpload(Event event, UserSubmission userSub,
+			HttpServletRequest request) throws IOException {
+		var multipartRequest = WebUtils.getNativeRequest(request,
+			MultipartHttpServletRequest.class);
+		if (multipartRequest != null) {
+			new ServletRequestDataBinder(userSub).bind(multipartRequest);
+			var files = FILE_PARAM_NAMES.stream()
+				.map(multipartRequest::getFile)
+				.toArray(MultipartFile[]::new);
+			return fileUploadService.receiveFileUpload(event, userSub, files);
+		} else if (ServletFileUpload.isMultipartContent(request)) {
+			return receiveStreamingUpload(event, userSub, request);
+		} else {
+			throw new ValidationException("The submission is not a multipart form");
+		}
+	}
+
+	private Submission receiveStreamingUpload(Event event, UserSubmission userSub,
+			HttpServletRequest request) throws IOException {
+		var upload = new ServletFileUpload();
+		upload.setHeaderEncoding(FileUtil.CHARSET.name());
+		upload.setFileSizeMax(maxFileSize);
+		upload.setSizeMax(maxRequestSize);
+
+		var userSubWrapper = new BeanWrapperImpl(userSub);
+		var streamingUpload = fileUploadService.beginStreamingUpload(event, userSub);
+		try {
+			var iter = upload.getItemIterator(request);
+			while (iter.hasNext()) {
+				var item = iter.next();
+				var fieldName = item.getFieldName();
+				try (var is = item.openStream()) {
+					if (item.isFormField()) {
+						if (userSubWrapper.isWritableProperty(fieldName)) {
+							userSubWrapper.setPropertyValue(fieldName,
+								Streams.asString(is, FileUtil.CHARSET.name()));
+						}
+					} else if (FILE_PARAM_NAMES.contains(fieldName)
+							&& !StringUtil.isBlank(item.getName())) {
+						// Skip an empty file, as the multipart path does:
+						var content = new PushbackInputStream(is);
+						var firstByte = content.read();
+						if (firstByte >= 0) {
+							content.unread(firstByte);
+							var label = getFileLabel(fieldName);
+							streamingUpload.addFile(label, item.getName(), content);
+						}
+					}
+				}
+			}
+			return streamingUpload.finish();
+		} catch (FileUploadException ex) {
+			streamingUpload.abort();
+			throw new IOException("Unable to read the uploaded files:", ex);
+		} catch (IOException | RuntimeException ex) {
+			streamingUpload.abort();
+			throw ex;
+		}
+	}
+
+	/** Maps a file parameter name, e.g., "fileA", to its label within the submission, "a". */
+	static String getFileLabel(String fileParamName) {
+		return fileParamName.substring(FILE_PARAM_PREFIX.length()).toLowerCase(Locale.ROOT);
+	}
+
 	@ExceptionHandler
 	public String handleIoEx(Model model, IOException ex) {
 		return handleException(model, ex);
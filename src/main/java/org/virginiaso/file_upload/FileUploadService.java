@@ -1,10 +1,57 @@
 package org.virginiaso.file_upload;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Predicate;
 
 import org.springframework.web.multipart.MultipartFile;
 
 public interface FileUploadService {
 	Submission receiveFileUpload(Event event, UserSubmission userSub,
 		MultipartFile... files) throws IOException;
+
+	StreamingUpload beginStreamingUpload(Event event, UserSubmission userSub);
+
+	/**
+	 * Checks the form fields of a submission as if it were received now, without
+	 * recording it, so that a long upload can be refused before it starts.
+	 *
+	 * @throws ValidationException if the submission would be rejected
+	 */
+	void validateSubmission(Event event, UserSubmission userSub);
+
+	/**
+	 * Writes the submission tables of the loaded event uploaders to storage now,
+	 * instead of when their write-behind flushers next run.
+	 *
+	 * @return The number of tables written
+	 * @throws IOException if a table cannot be written
+	 */
+	int exportSubmissionTables() throws IOException;
+
+	/**
+	 * Writes a ZIP archive of the uploaded files of one event and division, with
+	 * a submission table listing them, to the given stream as the files are read
+	 * from storage.
+	 *
+	 * @param filter Selects the submissions whose files are included
+	 * @param os     The destination, which is not closed
+	 * @return The number of files written
+	 * @throws IOException if storage or the destination fails
+	 */
+	int writeSubmissionArchive(Event event, Division division, Predicate<Submission> filter,
+		OutputStream os) throws IOException;
+
+	/**
+	 * Creates short-lived links from which the uploaded files of one event and
+	 * division can be downloaded directly from storage.
+	 *
+	 * @param filter   Selects the submissions whose files are linked
+	 * @param lifetime How long the links are valid
+	 * @throws IOException if a link cannot be created
+	 */
+	List<DownloadLink> getDownloadLinks(Event event, Division division,
+		Predicate<Submission> filter, Duration lifetime) throws IOException;
 }
@@ -1,78 +1,527 @@
 package org.virginiaso.file_upload;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.virginiaso.file_upload.EventUploader.StoredFile;
+import org.virginiaso.file_upload.util.ValidationException;
+import org.virginiaso.file_upload.util.VirtualThreads;
 
 @Service
 public class FileUploadServiceImpl implements FileUploadService {
-	private final List<Tournament> tournamentConfiguration;
-	private final EnumMap<Event, EnumMap<Division, EventUploader>> eventUploaders;
-	private final AtomicInteger previousSequenceNumber;
+	private static final Logger LOG = LoggerFactory.getLogger(FileUploadServiceImpl.class);
+
+	private final TournamentConfigurationService tournamentConfigService;
+	private final UploadMetrics uploadMetrics;
+	private final EnumMap<Event, EnumMap<Division, LazyEventUploader>> eventUploaders;
+	private final ScheduledExecutorService flushExecutor;
+	private final ScheduledExecutorService activationExecutor;
+	private final ExecutorService transferExecutor;
+	private final EventUploaderOptions eventUploaderOptions;
+	private final int numLoadThreads;
+	private final Duration activationLead;
+	private final int submissionIdBlockSize;
+	private Clock clock;
+	private SubmissionIdAllocator submissionIdAllocator;
+	private HelicopterFlightIndex helicopterFlights;
 
 	@Autowired
-	//@Qualifier("fileSystemStorageService")
-	@Qualifier("s3StorageService")
+	@Qualifier("spoolingStorageService")
 	private StorageService storageService;
 
 	public FileUploadServiceImpl(
-		@Value("${fileUpload.timeZone}") String timeZoneStr,
-		@Value("${fileUpload.tournamentConfigRsrc}") String tournamentConfigRsrc
+		TournamentConfigurationService tournamentConfigService,
+		UploadMetrics uploadMetrics,
+		SubmissionDatabase submissionDatabase,
+		@Value("${fileUpload.submissionJournal.enabled:false}") boolean isJournalEnabled,
+		@Value("${fileUpload.submissionJournal.checkpointInterval:100}") int checkpointInterval,
+		@Value("${fileUpload.writeBehind.enabled:false}") boolean isWriteBehindEnabled,
+		@Value("${fileUpload.writeBehind.maxStalenessMillis:1000}") long maxStalenessMillis,
+		@Value("${fileUpload.writeBehind.threads:2}") int numFlushThreads,
+		@Value("${fileUpload.submissionDatabase.exportIntervalSeconds:60}") long exportIntervalSeconds,
+		@Value("${fileUpload.startupLoadThreads:8}") int numLoadThreads,
+		@Value("${fileUpload.activationLeadMinutes:15}") long activationLeadMinutes,
+		@Value("${fileUpload.submissionIdBlockSize:100}") int submissionIdBlockSize,
+		@Value("${fileUpload.fileTransferThreads:8}") int numTransferThreads,
+		@Value("${fileUpload.virtualThreads.enabled:false}") boolean useVirtualThreads
 	) throws IOException {
-		Configuration.setTimeZone(timeZoneStr);
-		tournamentConfiguration = Configuration.parse(tournamentConfigRsrc);
+		this.tournamentConfigService = tournamentConfigService;
+		this.uploadMetrics = uploadMetrics;
 		eventUploaders = new EnumMap<>(Event.class);
-		previousSequenceNumber = new AtomicInteger(-1);
+		// With the database, the submission tables are exports written behind:
+		flushExecutor = (isWriteBehindEnabled || submissionDatabase.isEnabled())
+			? Executors.newScheduledThreadPool(Math.max(numFlushThreads, 1), runnable -> {
+				var thread = new Thread(runnable, "submission-table-flusher");
+				thread.setDaemon(true);
+				return thread;
+			})
+			: null;
+		activationExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "event-uploader-activator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		transferExecutor = newTransferExecutor(numTransferThreads, useVirtualThreads);
+		eventUploaderOptions = new EventUploaderOptions(
+			isJournalEnabled ? Math.max(checkpointInterval, 1) : 0,
+			flushExecutor,
+			submissionDatabase.isEnabled()
+				? TimeUnit.SECONDS.toMillis(exportIntervalSeconds)
+				: maxStalenessMillis,
+			transferExecutor, uploadMetrics,
+			submissionDatabase.isEnabled() ? submissionDatabase : null);
+		this.numLoadThreads = Math.max(numLoadThreads, 1);
+		activationLead = Duration.ofMinutes(Math.max(activationLeadMinutes, 0));
+		this.submissionIdBlockSize = submissionIdBlockSize;
+		clock = Clock.systemUTC();
+	}
+
+	/** Sets the clock that time-stamps submissions, so that tests can fix the time. */
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	// With virtual threads, each transfer gets its own thread and the thread count is moot:
+	private static ExecutorService newTransferExecutor(int numTransferThreads,
+		boolean useVirtualThreads) {
+		if (numTransferThreads <= 0) {
+			return null;
+		}
+		var virtualThreadExecutor = useVirtualThreads
+			? VirtualThreads.newThreadPerTaskExecutor("uploaded-file-transfer-")
+			: Optional.<ExecutorService>empty();
+		return virtualThreadExecutor.orElseGet(() -> Executors.newFixedThreadPool(
+			numTransferThreads, runnable -> {
+				var thread = new Thread(runnable, "uploaded-file-transfer");
+				thread.setDaemon(true);
+				return thread;
+			}));
 	}
 
 	/*
 	 * This method does not need to be synchronized because it executes
 	 * at process start-up, before any client requests are received.
+	 *
+	 * Only the event/division combinations offered by the Event enum get an
+	 * uploader, and each one loads its submission table lazily: on its first
+	 * request, or shortly before its first configured time window opens.  The
+	 * tables of windows that are already open are loaded now, in parallel,
+	 * because on a restart during a tournament their load time is the outage
+	 * window.
 	 */
 	@PostConstruct
 	public void initialize() {
+		var start = System.currentTimeMillis();
+		helicopterFlights = new HelicopterFlightIndex(storageService, flushExecutor,
+			eventUploaderOptions.maxStalenessMillis());
 		for (var event : Event.values()) {
-			EnumMap<Division, EventUploader> subMap = eventUploaders.computeIfAbsent(
-				event, key -> new EnumMap<>(Division.class));
-			for (var division : Division.values()) {
-				subMap.put(division, new EventUploader(event, division, storageService));
+			for (var division : event.getDivisions()) {
+				eventUploaders
+					.computeIfAbsent(event, key -> new EnumMap<>(Division.class))
+					.put(division, new LazyEventUploader(event, division,
+						() -> loadEventUploader(event, division)));
+			}
+		}
+
+		// Without a persisted high-water mark, the maximum ID can only be
+		// found by loading every table.  This happens once, after which the
+		// allocator persists its own high-water mark:
+		submissionIdAllocator = new SubmissionIdAllocator(storageService,
+			submissionIdBlockSize);
+		var highWaterMark = submissionIdAllocator.readHighWaterMark();
+
+		var now = Instant.now(clock);
+		List<LazyEventUploader> activateNow = new ArrayList<>();
+		var tournaments = tournamentConfigService.getCurrent().getTournaments();
+		for (var lazyUploader : getLazyEventUploaders()) {
+			var activationTime = getActivationTime(tournaments, lazyUploader, now);
+			if (highWaterMark.isEmpty()
+					|| activationTime.filter(time -> !time.isAfter(now)).isPresent()) {
+				activateNow.add(lazyUploader);
+			} else if (activationTime.isPresent()) {
+				scheduleActivation(lazyUploader, now, activationTime.get());
+			}
+		}
+		activateInParallel(activateNow);
+		tournamentConfigService.addListener(this::onConfigurationChange);
+
+		submissionIdAllocator.initialize(highWaterMark.orElseGet(
+			() -> getActiveEventUploaders().stream()
+				.mapToInt(EventUploader::getMaxSubmissionId)
+				.max()
+				.orElse(-1)));
+		LOG.info("Activated {} of {} event uploaders with {} threads in {} ms",
+			activateNow.size(), getLazyEventUploaders().size(), numLoadThreads,
+			System.currentTimeMillis() - start);
+	}
+
+	/*
+	 * The time at which to load the table for an event and division: the lead
+	 * time before the earliest configured window that has not yet closed.
+	 */
+	private Optional<Instant> getActivationTime(List<Tournament> tournaments,
+			LazyEventUploader lazyUploader, Instant now) {
+		return tournaments.stream()
+			.map(t -> t.events().getOrDefault(lazyUploader.getEvent(), new EnumMap<>(
+				Division.class)).get(lazyUploader.getDivision()))
+			.filter(interval -> interval != null)
+			.filter(interval -> !interval.getTo().isBefore(now))
+			.map(interval -> interval.getFrom().minus(activationLead))
+			.min(Instant::compareTo);
+	}
+
+	private void scheduleActivation(LazyEventUploader lazyUploader, Instant now,
+			Instant activationTime) {
+		var delay = Duration.between(now, activationTime);
+		activationExecutor.schedule(() -> activate(lazyUploader),
+			Math.max(delay.toMillis(), 0), TimeUnit.MILLISECONDS);
+		LOG.debug("Will activate {}-{} at {}", lazyUploader.getEvent().getUri(),
+			lazyUploader.getDivision(), activationTime);
+	}
+
+	/*
+	 * A reloaded configuration may open a window earlier than before, so the
+	 * uploaders that are not yet loaded are scheduled again. Activating an
+	 * uploader twice is harmless, so the old schedule is left in place.
+	 */
+	private void onConfigurationChange(ValidationIndex newConfiguration) {
+		var now = Instant.now(clock);
+		for (var lazyUploader : getLazyEventUploaders()) {
+			if (lazyUploader.getIfActive().isEmpty()) {
+				getActivationTime(newConfiguration.getTournaments(), lazyUploader, now)
+					.ifPresent(time -> scheduleActivation(lazyUploader, now, time));
 			}
 		}
-		previousSequenceNumber.set(eventUploaders.values().stream()
-			.map(EnumMap::values)
+	}
+
+	private void activateInParallel(List<LazyEventUploader> lazyUploaders) {
+		var loadExecutor = Executors.newFixedThreadPool(numLoadThreads);
+		try {
+			CompletableFuture.allOf(lazyUploaders.stream()
+				.map(lazyUploader -> CompletableFuture.runAsync(lazyUploader::get,
+					loadExecutor))
+				.toArray(CompletableFuture<?>[]::new))
+				.join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			throw ex;
+		} finally {
+			loadExecutor.shutdown();
+		}
+	}
+
+	private static void activate(LazyEventUploader lazyUploader) {
+		try {
+			lazyUploader.get();
+		} catch (RuntimeException ex) {
+			// The first request for this uploader will try again:
+			LOG.error(String.format("Unable to activate %1$s-%2$s:",
+				lazyUploader.getEvent().getUri(), lazyUploader.getDivision()), ex);
+		}
+	}
+
+	private EventUploader loadEventUploader(Event event, Division division) {
+		var start = System.currentTimeMillis();
+		var eventUploader = new EventUploader(event, division, storageService,
+			eventUploaderOptions);
+		if (event == Event.HELICOPTER_START) {
+			helicopterFlights.addStarts(eventUploader.getSubmissions());
+		} else if (event == Event.HELICOPTER_FINISH) {
+			// Finishes are joined to their starts, so the starts go first:
+			getEventUploader(Event.HELICOPTER_START, division);
+			helicopterFlights.addFinishes(eventUploader.getSubmissions());
+		}
+		LOG.info("Loaded submission table for {}-{} in {} ms", event.getUri(), division,
+			System.currentTimeMillis() - start);
+		return eventUploader;
+	}
+
+	private List<LazyEventUploader> getLazyEventUploaders() {
+		return eventUploaders.values().stream()
+			.map(Map::values)
 			.flatMap(Collection::stream)
-			.mapToInt(EventUploader::getMaxSubmissionId)
-			.max()
-			.orElse(-1));
+			.collect(Collectors.toUnmodifiableList());
+	}
+
+	private List<EventUploader> getActiveEventUploaders() {
+		return getLazyEventUploaders().stream()
+			.map(LazyEventUploader::getIfActive)
+			.flatMap(Optional::stream)
+			.collect(Collectors.toUnmodifiableList());
+	}
+
+	/*
+	 * Writes out any submission tables that the write-behind flusher has not yet
+	 * stored. This runs before the storage service shuts down, because this bean
+	 * depends on it.
+	 */
+	@PreDestroy
+	public void cleanup() {
+		activationExecutor.shutdownNow();
+		if (transferExecutor != null) {
+			transferExecutor.shutdown();
+		}
+		var numCoalescedVersions = 0L;
+		for (var eventUploader : getActiveEventUploaders()) {
+			try {
+				eventUploader.close();
+			} catch (IOException ex) {
+				LOG.error("Unable to flush submission table at shutdown:", ex);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				LOG.error("Interrupted while flushing submission tables at shutdown");
+				return;
+			}
+			numCoalescedVersions += eventUploader.getNumCoalescedTableVersions();
+		}
+		try {
+			helicopterFlights.close();
+		} catch (IOException ex) {
+			LOG.error("Unable to export Helicopter flights at shutdown:", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			LOG.error("Interrupted while exporting Helicopter flights at shutdown");
+			return;
+		}
+		if (flushExecutor != null) {
+			flushExecutor.shutdown();
+			LOG.info("Write-behind flushing coalesced {} submission table versions",
+				numCoalescedVersions);
+		}
 	}
 
 	@Override
 	public Submission receiveFileUpload(Event event, UserSubmission userSub,
 		MultipartFile... files) throws IOException {
 
-		var submission = new Submission(userSub, event, getNextSequenceNumber(), Instant.now());
-		submission.validateTeamAndTime(tournamentConfiguration);
-		return getEventUploader(submission).receiveFileUpload(submission, files);
+		var submission = newSubmission(event, userSub, getNextSequenceNumber());
+		validate(submission, tournamentConfigService.getCurrent());
+		return recordHelicopterFlight(
+			getEventUploader(submission).receiveFileUpload(submission, files));
+	}
+
+	@Override
+	public StreamingUpload beginStreamingUpload(Event event, UserSubmission userSub) {
+		return new StreamingUploadImpl(event, userSub);
+	}
+
+	@Override
+	public void validateSubmission(Event event, UserSubmission userSub) {
+		// The ID is a placeholder, because none is allocated until the upload is done:
+		var submission = new Submission(userSub, event, 0, Instant.now(clock));
+		submission.validateTeamAndTime(tournamentConfigService.getCurrent());
+		validateHelicopterFlight(submission);
+	}
+
+	@Override
+	public int exportSubmissionTables() throws IOException {
+		var eventUploaders = getActiveEventUploaders();
+		for (var eventUploader : eventUploaders) {
+			eventUploader.exportSubmissionTable();
+		}
+		return eventUploaders.size();
+	}
+
+	@Override
+	public int writeSubmissionArchive(Event event, Division division,
+		Predicate<Submission> filter, OutputStream os) throws IOException {
+		return getEventUploader(event, division).writeArchive(filter, os);
+	}
+
+	@Override
+	public List<DownloadLink> getDownloadLinks(Event event, Division division,
+		Predicate<Submission> filter, Duration lifetime) throws IOException {
+		return getEventUploader(event, division).getDownloadLinks(filter, lifetime);
+	}
+
+	private void validate(Submission submission, ValidationIndex configuration) {
+		var start = System.nanoTime();
+		submission.validateTeamAndTime(configuration);
+		validateHelicopterFlight(submission);
+		uploadMetrics.recordPhase(submission.getEvent(), submission.getDivision(),
+			UploadMetrics.Phase.VALIDATION, System.nanoTime() - start);
+	}
+
+	/*
+	 * Pass codes are drawn at random, so in the rare case that the team
+	 * already holds the one drawn for a new start, another is drawn.
+	 */
+	private Submission newSubmission(Event event, UserSubmission userSub, int id) {
+		var submission = new Submission(userSub, event, id, Instant.now(clock));
+		if (event == Event.HELICOPTER_START) {
+			getEventUploader(event, submission.getDivision());
+			while (helicopterFlights.isPassCodeTaken(submission)) {
+				submission = new Submission(userSub, event, id, submission.getUtcTimeStamp());
+			}
+		}
+		return submission;
+	}
+
+	// A final Helicopter submission must carry the pass code of one of its team's starts:
+	private void validateHelicopterFlight(Submission submission) {
+		if (submission.getEvent() == Event.HELICOPTER_FINISH) {
+			getEventUploader(Event.HELICOPTER_START, submission.getDivision());
+			helicopterFlights.requireStart(submission);
+		}
+	}
+
+	private Submission recordHelicopterFlight(Submission submission) {
+		if (submission.getEvent() == Event.HELICOPTER_START) {
+			helicopterFlights.recordStart(submission);
+		} else if (submission.getEvent() == Event.HELICOPTER_FINISH) {
+			helicopterFlights.recordFinish(submission);
+		}
+		return submission;
+	}
+
+	private final class StreamingUploadImpl implements StreamingUpload {
+		private final Event event;
+		private final UserSubmission userSub;
+		private final List<String> fileNames;
+		private final List<StoredFile> transferredFiles;
+		private final ValidationIndex configuration;
+		private Submission provisionalSubmission;
+		private EventUploader eventUploader;
+
+		public StreamingUploadImpl(Event event, UserSubmission userSub) {
+			this.event = event;
+			this.userSub = userSub;
+			fileNames = new ArrayList<>();
+			transferredFiles = new ArrayList<>();
+			// Both validations use the configuration in force when the upload began:
+			configuration = tournamentConfigService.getCurrent();
+			provisionalSubmission = null;
+			eventUploader = null;
+		}
+
+		@Override
+		public void addFile(String label, String originalFileName, InputStream is)
+				throws IOException {
+			beginSubmission();
+			var storedFile = eventUploader.saveUploadedStream(is, originalFileName,
+				provisionalSubmission, label);
+			fileNames.add(storedFile.fileName());
+			transferredFiles.add(storedFile);
+		}
+
+		@Override
+		public void addStagedFile(String label, String originalFileName, String sessionId,
+			List<String> chunkNames, long chunkSize, long size) throws IOException {
+			beginSubmission();
+			var storedFile = eventUploader.saveStagedFile(sessionId, chunkNames, chunkSize,
+				size, originalFileName, provisionalSubmission, label);
+			fileNames.add(storedFile.fileName());
+			transferredFiles.add(storedFile);
+		}
+
+		@Override
+		public boolean addExistingFile(String label, String originalFileName, String sha256,
+			long size) throws IOException {
+			beginSubmission();
+			var fileName = eventUploader.getUploadedFileName(originalFileName,
+				provisionalSubmission, label);
+			if (!eventUploader.linkUploadedFile(sha256, size, fileName)) {
+				return false;
+			}
+			fileNames.add(fileName);
+			return true;
+		}
+
+		@Override
+		public FileLocation reserveFile(String label, String originalFileName)
+				throws IOException {
+			beginSubmission();
+			var fileName = eventUploader.getUploadedFileName(originalFileName,
+				provisionalSubmission, label);
+			fileNames.add(fileName);
+			return new FileLocation(eventUploader.getEventDirName(), fileName);
+		}
+
+		private void beginSubmission() throws IOException {
+			if (provisionalSubmission == null) {
+				// The fields that name the file (division and team) precede the
+				// files in every form, so validate them before the transfer:
+				provisionalSubmission = new Submission(userSub, event,
+					getNextSequenceNumber(), Instant.now(clock));
+				validate(provisionalSubmission, configuration);
+				eventUploader = getEventUploader(provisionalSubmission);
+			}
+		}
+
+		@Override
+		public Submission finish() throws IOException {
+			if (provisionalSubmission == null) {
+				var submission = newSubmission(event, userSub, getNextSequenceNumber());
+				validate(submission, configuration);
+				return recordHelicopterFlight(getEventUploader(submission).receiveFileUpload(
+					submission, new MultipartFile[0]));
+			}
+
+			// Rebuild the submission now that the fields after the files (the
+			// notes) have arrived, and validate it as of the end of the upload:
+			var submission = new Submission(userSub, event, provisionalSubmission.getId(),
+				Instant.now(clock));
+			validate(submission, configuration);
+			fileNames.forEach(submission::addFileName);
+			eventUploader.receiveStreamedSubmission(submission);
+			eventUploader.indexUploadedFiles(transferredFiles);
+			return recordHelicopterFlight(submission);
+		}
+
+		@Override
+		public void abort() {
+			if (eventUploader != null) {
+				eventUploader.deleteUploadedFiles(fileNames);
+			}
+		}
 	}
 
 	private EventUploader getEventUploader(Submission submission) {
-		return eventUploaders
-			.get(submission.getEvent())
-			.get(submission.getDivision());
+		return getEventUploader(submission.getEvent(), submission.getDivision());
+	}
+
+	private EventUploader getEventUploader(Event event, Division division) {
+		var lazyUploader = eventUploaders
+			.getOrDefault(event, new EnumMap<>(Division.class))
+			.get(division);
+		if (lazyUploader == null) {
+			throw new ValidationException("%1$s is not offered in division %2$s",
+				event.getLabel(), division);
+		}
+		return lazyUploader.get();
 	}
 
-	private int getNextSequenceNumber() {
-		return previousSequenceNumber.incrementAndGet();
+	private int getNextSequenceNumber() throws IOException {
+		return submissionIdAllocator.next();
 	}
 }
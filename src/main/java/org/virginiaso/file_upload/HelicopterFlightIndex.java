@@ -0,0 +1,302 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.csv.CSVFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.virginiaso.file_upload.util.FileUtil;
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * Joins each Helicopter (Final Submission) to the Helicopter (Start) that
+ * issued its unique word. The starts are indexed by division, team number, and
+ * pass code, so a finish is matched in constant time when it arrives, and one
+ * whose pass code matches no start of its team is refused.
+ *
+ * The join is kept in memory and exported, one row per flight, as
+ * helicopterFinish-&lt;div&gt;/helicopterFinish-&lt;div&gt;-flights.csv, with
+ * the elapsed time of each flight and whether it exceeded the time limit.
+ * Starts without a finish (yet) get a row of their own. The export is written
+ * behind by a SubmissionTableFlusher when a flush executor is given, and
+ * otherwise on every change.
+ */
+final class HelicopterFlightIndex {
+	private enum FlightColumn {
+		DIVISION,
+		TEAM_NUMBER,
+		PASS_CODE,
+		START_ID,
+		START_TIME,
+		FINISH_ID,
+		FINISH_TIME,
+		ELAPSED_MINUTES,
+		LATE,
+		HELICOPTER_MODE,
+		FLIGHT_DURATION,
+		FILE_NAME_0,
+		FILE_NAME_1
+	}
+
+	private record FlightKey(Division division, int teamNumber, String passCode) {
+		static FlightKey of(Submission submission) {
+			return new FlightKey(submission.getDivision(), submission.getTeamNumber(),
+				normalizePassCode(submission.getPassCode()));
+		}
+	}
+
+	private static final Logger LOG = LoggerFactory.getLogger(HelicopterFlightIndex.class);
+	private static final CSVFormat CSV_FORMAT = CSVFormat.DEFAULT
+		.withHeader(FlightColumn.class);
+
+	private final StorageService storageService;
+	private final Map<FlightKey, Submission> starts;
+	private final EnumMap<Division, DivisionFlights> divisionFlights;
+
+	/**
+	 * @param storageService     The storage service to which the flights are
+	 *                           exported
+	 * @param flushExecutor      If non-null, the executor on which the exports
+	 *                           are written behind
+	 * @param maxStalenessMillis The longest a write-behind export is deferred
+	 */
+	public HelicopterFlightIndex(StorageService storageService,
+		ScheduledExecutorService flushExecutor, long maxStalenessMillis) {
+		this.storageService = storageService;
+		starts = new ConcurrentHashMap<>();
+		divisionFlights = new EnumMap<>(Division.class);
+		for (var division : Event.HELICOPTER_FINISH.getDivisions()) {
+			divisionFlights.put(division, new DivisionFlights(division, flushExecutor,
+				maxStalenessMillis));
+		}
+	}
+
+	/** Adds the starts of a loaded helicopterStart table, without exporting. */
+	public void addStarts(Collection<Submission> startSubmissions) {
+		startSubmissions.forEach(start -> starts.put(FlightKey.of(start), start));
+	}
+
+	/** Adds the finishes of a loaded helicopterFinish table, without exporting. */
+	public void addFinishes(Collection<Submission> finishSubmissions) {
+		for (var finish : finishSubmissions) {
+			getDivisionFlights(finish).add(finish, false);
+		}
+	}
+
+	/** Indexes a newly recorded start and exports it. */
+	public void recordStart(Submission start) {
+		starts.put(FlightKey.of(start), start);
+		getDivisionFlights(start).changed();
+	}
+
+	/** Joins a newly recorded finish to its start and exports it. */
+	public void recordFinish(Submission finish) {
+		getDivisionFlights(finish).add(finish, true);
+	}
+
+	/** @return true if the team of a new start already holds its pass code */
+	public boolean isPassCodeTaken(Submission start) {
+		return starts.containsKey(FlightKey.of(start));
+	}
+
+	/**
+	 * @return The start whose pass code the given finish submission carries
+	 * @throws ValidationException if there is no such start
+	 */
+	public Submission requireStart(Submission finish) {
+		var start = starts.get(FlightKey.of(finish));
+		if (start == null) {
+			throw new ValidationException("The unique word '%1$s' does not match any "
+				+ "Helicopter start by team %2$s%3$d. Please check it against the page "
+				+ "you printed when your competition period started.",
+				finish.getPassCode(), finish.getDivision(), finish.getTeamNumber());
+		}
+		return start;
+	}
+
+	/**
+	 * Writes any exports not yet stored by the write-behind flushers and stops
+	 * the flushers.
+	 */
+	public void close() throws IOException, InterruptedException {
+		for (var flights : divisionFlights.values()) {
+			flights.close();
+		}
+	}
+
+	private DivisionFlights getDivisionFlights(Submission submission) {
+		return divisionFlights.get(submission.getDivision());
+	}
+
+	// Pass codes are issued in upper case, but students may type them in any case:
+	private static String normalizePassCode(String passCode) {
+		return (passCode == null) ? "" : passCode.trim().toUpperCase(Locale.US);
+	}
+
+	private final class DivisionFlights {
+		private final Division division;
+		private final String exportFileName;
+		private final SubmissionTableFlusher flusher;
+		// Guards finishesByStart, unmatchedFinishes, and version:
+		private final ReentrantLock lock;
+		private final Map<Integer, List<Submission>> finishesByStart;
+		private final List<Submission> unmatchedFinishes;
+		private long version;
+
+		public DivisionFlights(Division division, ScheduledExecutorService flushExecutor,
+			long maxStalenessMillis) {
+			this.division = division;
+			exportFileName = String.format("%1$s-%2$s/%1$s-%2$s-flights.csv",
+				Event.HELICOPTER_FINISH.getUri(), division);
+			lock = new ReentrantLock();
+			finishesByStart = new LinkedHashMap<>();
+			unmatchedFinishes = new ArrayList<>();
+			version = 0;
+			flusher = (flushExecutor == null)
+				? null
+				: new SubmissionTableFlusher(exportFileName, version, this::export,
+					flushExecutor, maxStalenessMillis);
+		}
+
+		/*
+		 * Finishes loaded from a table written before pass codes were checked
+		 * may match no start. They are exported on rows of their own.
+		 */
+		public void add(Submission finish, boolean isNew) {
+			var start = starts.get(FlightKey.of(finish));
+			lock.lock();
+			try {
+				if (start == null) {
+					unmatchedFinishes.add(finish);
+				} else {
+					finishesByStart.computeIfAbsent(start.getId(), key -> new ArrayList<>())
+						.add(finish);
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (isNew) {
+				if (start != null) {
+					LOG.info("Helicopter team {}{} finished {} minutes after starting",
+						division, finish.getTeamNumber(), formatMinutes(start, finish));
+				}
+				changed();
+			}
+		}
+
+		public void changed() {
+			long newVersion;
+			lock.lock();
+			try {
+				newVersion = ++version;
+			} finally {
+				lock.unlock();
+			}
+			if (flusher != null) {
+				flusher.markDirty(newVersion);
+			} else {
+				try {
+					export().join();
+				} catch (CompletionException ex) {
+					// The submission is already recorded, so this is not its failure:
+					LOG.warn(String.format("Unable to export %1$s:", exportFileName),
+						ex.getCause());
+				}
+			}
+		}
+
+		public void close() throws IOException, InterruptedException {
+			if (flusher != null) {
+				flusher.close();
+			}
+		}
+
+		private CompletableFuture<Long> export() {
+			List<List<Object>> rows = new ArrayList<>();
+			long exportedVersion;
+			lock.lock();
+			try {
+				exportedVersion = version;
+				starts.values().stream()
+					.filter(start -> start.getDivision() == division)
+					.sorted(Comparator.comparing(Submission::getUtcTimeStamp))
+					.forEach(start -> {
+						var finishes = finishesByStart.getOrDefault(start.getId(), List.of());
+						if (finishes.isEmpty()) {
+							rows.add(toRow(start, null));
+						} else {
+							finishes.forEach(finish -> rows.add(toRow(start, finish)));
+						}
+					});
+				unmatchedFinishes.forEach(finish -> rows.add(toRow(null, finish)));
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				var tempFile = storageService.getTempSubmissionTableFile(exportFileName);
+				try (var printer = CSV_FORMAT.print(tempFile, FileUtil.CHARSET)) {
+					for (var row : rows) {
+						printer.printRecord(row);
+					}
+				}
+				return storageService
+					.transferTempSubmissionTableFileAsync(tempFile, exportFileName)
+					.thenApply(result -> exportedVersion);
+			} catch (IOException ex) {
+				return CompletableFuture.failedFuture(ex);
+			}
+		}
+	}
+
+	private static List<Object> toRow(Submission start, Submission finish) {
+		var either = (start != null) ? start : finish;
+		List<Object> row = new ArrayList<>();
+		row.add(either.getDivision().name());
+		row.add(either.getTeamNumber());
+		row.add(either.getPassCode());
+		row.add((start == null) ? null : start.getId());
+		row.add((start == null) ? null : start.getSubmissionTime());
+		row.add((finish == null) ? null : finish.getId());
+		row.add((finish == null) ? null : finish.getSubmissionTime());
+		if (start == null || finish == null) {
+			row.add(null);
+			row.add(null);
+		} else {
+			row.add(formatMinutes(start, finish));
+			row.add(getElapsedTime(start, finish).compareTo(Submission.HELICOPTER_TIME_LIMIT) > 0
+				? "yes"
+				: "no");
+		}
+		row.add((finish == null || finish.getHelicopterMode() == null)
+			? null : finish.getHelicopterMode().name());
+		row.add((finish == null) ? null : finish.getFlightDuration());
+		var fileNames = (finish == null) ? List.<String>of() : finish.getFileNames();
+		for (var i = 0; i < 2; ++i) {
+			row.add((i < fileNames.size()) ? fileNames.get(i) : null);
+		}
+		return row;
+	}
+
+	private static Duration getElapsedTime(Submission start, Submission finish) {
+		return Duration.between(start.getUtcTimeStamp(), finish.getUtcTimeStamp());
+	}
+
+	private static String formatMinutes(Submission start, Submission finish) {
+		return String.format("%1$.1f", getElapsedTime(start, finish).toMillis() / 60_000.0);
+	}
+}
@@ -0,0 +1,197 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+
+/**
+ * Presents the body of an asynchronous S3 response as a blocking InputStream
+ * that is read while the body is still arriving. (AsyncResponseTransformer
+ * .toBytes() instead holds the whole body in memory.)
+ *
+ * The stream requests one buffer ahead of the reader, so at most two of the
+ * client's buffers are held at a time, and a slow reader slows the download
+ * rather than growing the heap.
+ */
+final class InputStreamResponseTransformer<ResponseT>
+		implements AsyncResponseTransformer<ResponseT, InputStream> {
+	private CompletableFuture<InputStream> future;
+	private SubscriberInputStream stream;
+
+	@Override
+	public CompletableFuture<InputStream> prepare() {
+		future = new CompletableFuture<>();
+		stream = new SubscriberInputStream();
+		return future;
+	}
+
+	@Override
+	public void onResponse(ResponseT response) {
+	}
+
+	@Override
+	public void onStream(SdkPublisher<ByteBuffer> publisher) {
+		publisher.subscribe(stream);
+		future.complete(stream);
+	}
+
+	@Override
+	public void exceptionOccurred(Throwable error) {
+		// Before the body has started, the caller sees the failure on the future:
+		if (!future.completeExceptionally(error)) {
+			stream.onError(error);
+		}
+	}
+
+	private static final class SubscriberInputStream extends InputStream
+			implements Subscriber<ByteBuffer> {
+		// Guards all of the fields below:
+		private final ReentrantLock lock;
+		private final Condition changed;
+		private final ArrayDeque<ByteBuffer> buffers;
+		private Subscription subscription;
+		private ByteBuffer current;
+		private boolean isComplete;
+		private Throwable error;
+		private boolean isClosed;
+
+		public SubscriberInputStream() {
+			lock = new ReentrantLock();
+			changed = lock.newCondition();
+			buffers = new ArrayDeque<>();
+			subscription = null;
+			current = null;
+			isComplete = false;
+			error = null;
+			isClosed = false;
+		}
+
+		@Override
+		public void onSubscribe(Subscription newSubscription) {
+			lock.lock();
+			try {
+				subscription = newSubscription;
+				if (isClosed) {
+					subscription.cancel();
+				} else {
+					subscription.request(1);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void onNext(ByteBuffer buffer) {
+			lock.lock();
+			try {
+				if (!isClosed) {
+					buffers.add(buffer);
+					changed.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void onError(Throwable newError) {
+			lock.lock();
+			try {
+				error = newError;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			lock.lock();
+			try {
+				isComplete = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			var oneByte = new byte[1];
+			return (read(oneByte, 0, 1) < 0) ? -1 : (oneByte[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				while (current == null || !current.hasRemaining()) {
+					if (isClosed) {
+						throw new IOException("Stream closed");
+					} else if (!buffers.isEmpty()) {
+						current = buffers.poll();
+						// Fetch the next buffer while this one is read:
+						subscription.request(1);
+					} else if (error != null) {
+						throw new IOException("Unable to read response body:", error);
+					} else if (isComplete) {
+						return -1;
+					} else {
+						changed.await();
+					}
+				}
+				var numBytes = Math.min(length, current.remaining());
+				current.get(bytes, offset, numBytes);
+				return numBytes;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading response body");
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int available() {
+			lock.lock();
+			try {
+				return (current == null) ? 0 : current.remaining();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				if (!isClosed) {
+					isClosed = true;
+					buffers.clear();
+					current = null;
+					if (subscription != null && !isComplete && error == null) {
+						subscription.cancel();
+					}
+					changed.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
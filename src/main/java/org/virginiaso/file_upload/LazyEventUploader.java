@@ -0,0 +1,60 @@
+package org.virginiaso.file_upload;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Holds the EventUploader for one event and division, creating it (and
+ * loading its submission table) the first time it is needed. Creation happens
+ * at most once, even when several threads ask for the uploader at the same
+ * time. If creation fails, the next request tries again. Creation reads from
+ * storage, so it is guarded by a lock rather than a monitor, which would pin
+ * a waiting virtual thread to its carrier.
+ */
+final class LazyEventUploader {
+	private final Event event;
+	private final Division division;
+	private final Supplier<EventUploader> factory;
+	private final ReentrantLock creationLock;
+	private volatile EventUploader eventUploader;
+
+	public LazyEventUploader(Event event, Division division,
+		Supplier<EventUploader> factory) {
+		this.event = Objects.requireNonNull(event, "event");
+		this.division = Objects.requireNonNull(division, "division");
+		this.factory = Objects.requireNonNull(factory, "factory");
+		creationLock = new ReentrantLock();
+		eventUploader = null;
+	}
+
+	public Event getEvent() {
+		return event;
+	}
+
+	public Division getDivision() {
+		return division;
+	}
+
+	public EventUploader get() {
+		var result = eventUploader;
+		if (result == null) {
+			creationLock.lock();
+			try {
+				result = eventUploader;
+				if (result == null) {
+					result = factory.get();
+					eventUploader = result;
+				}
+			} finally {
+				creationLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	public Optional<EventUploader> getIfActive() {
+		return Optional.ofNullable(eventUploader);
+	}
+}
@@ -0,0 +1,51 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Tracks the multipart (form upload) requests in flight, as the long task
+ * timer fileupload.multipart.requests, whose active count is the number being
+ * received right now. The timer starts before the request body is parsed, so
+ * it includes the time spent receiving the files.
+ */
+@Component
+public class MultipartRequestMetricsFilter extends OncePerRequestFilter {
+	private final LongTaskTimer activeRequests;
+
+	public MultipartRequestMetricsFilter(MeterRegistry registry) {
+		activeRequests = LongTaskTimer.builder("fileupload.multipart.requests")
+			.description("Multipart upload requests in flight")
+			.register(registry);
+	}
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		var contentType = request.getContentType();
+		return !"POST".equals(request.getMethod()) || contentType == null
+			|| !contentType.toLowerCase().startsWith(MediaType.MULTIPART_FORM_DATA_VALUE);
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+		FilterChain filterChain) throws ServletException, IOException {
+
+		var sample = activeRequests.start();
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			sample.stop();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.virginiaso.file_upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+import org.springframework.web.util.UrlPathHelper;
+import org.virginiaso.file_upload.util.StringUtil;
+
+/**
+ * Serves the home page (in both of its variants) and the blank upload form of
+ * each event from memory. The pages are the same for every visitor, so each
+ * is rendered by FileUploadController once, on its first GET, and its bytes
+ * are kept, along with a gzipped copy and an ETag. Later requests get the
+ * gzipped copy if they accept it, and a 304 if their If-None-Match matches.
+ *
+ * Everything else, including a form re-rendered with the errors of a
+ * rejected submission, passes through untouched. Only successful responses
+ * are cached. The cache lasts until invalidate() is called when the
+ * configuration changes, and is off when Thymeleaf template caching is off
+ * (as under devtools), so that template edits show up straight away.
+ */
+@Component
+public class PageCacheFilter extends OncePerRequestFilter {
+	private static final Logger LOG = LoggerFactory.getLogger(PageCacheFilter.class);
+	private static final Pattern FORM_PATH = Pattern.compile("/fileUpload/([^/]+)");
+	private static final UrlPathHelper URL_PATH_HELPER = new UrlPathHelper();
+
+	private static final class CachedPage {
+		private final String contentType;
+		private final byte[] body;
+		private final byte[] gzippedBody;
+		private final String eTag;
+
+		public CachedPage(String contentType, byte[] body) throws IOException {
+			this.contentType = contentType;
+			this.body = body;
+			var buffer = new ByteArrayOutputStream(body.length / 3);
+			try (var gzip = new GZIPOutputStream(buffer)) {
+				gzip.write(body);
+			}
+			gzippedBody = buffer.toByteArray();
+			eTag = String.format("\"%1$s\"", DigestUtils.md5DigestAsHex(body));
+		}
+	}
+
+	private final boolean isEnabled;
+	private final Map<String, CachedPage> pages;
+
+	public PageCacheFilter(
+		@Value("${fileUpload.pageCache.enabled:${spring.thymeleaf.cache:true}}") boolean isEnabled) {
+		this.isEnabled = isEnabled;
+		pages = new ConcurrentHashMap<>();
+	}
+
+	/** Discards every cached page, so that each is rendered afresh on its next request. */
+	public void invalidate() {
+		pages.clear();
+		LOG.info("Page cache invalidated");
+	}
+
+	public int getNumCachedPages() {
+		return pages.size();
+	}
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		return !isEnabled || getCacheKey(request).isEmpty();
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+		FilterChain filterChain) throws ServletException, IOException {
+
+		var cacheKey = getCacheKey(request).orElseThrow();
+		var page = pages.get(cacheKey);
+		if (page == null) {
+			var responseWrapper = new ContentCachingResponseWrapper(response);
+			filterChain.doFilter(request, responseWrapper);
+			if (responseWrapper.getStatus() != HttpServletResponse.SC_OK
+					|| !"GET".equals(request.getMethod())) {
+				responseWrapper.copyBodyToResponse();
+				return;
+			}
+			page = new CachedPage(responseWrapper.getContentType(),
+				responseWrapper.getContentAsByteArray());
+			pages.put(cacheKey, page);
+			LOG.debug("Cached page {} ({} bytes, {} gzipped)", cacheKey, page.body.length,
+				page.gzippedBody.length);
+		}
+		serve(page, request, response);
+	}
+
+	private static void serve(CachedPage page, HttpServletRequest request,
+		HttpServletResponse response) throws IOException {
+		response.setHeader(HttpHeaders.ETAG, page.eTag);
+		response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+		response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), page.eTag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		var acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		var isGzipAccepted = acceptEncoding != null && acceptEncoding.contains("gzip");
+		var body = isGzipAccepted ? page.gzippedBody : page.body;
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(page.contentType);
+		if (isGzipAccepted) {
+			response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+		}
+		response.setContentLength(body.length);
+		if (!"HEAD".equals(request.getMethod())) {
+			response.getOutputStream().write(body);
+		}
+	}
+
+	private static boolean matchesETag(String ifNoneMatch, String eTag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (var candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(eTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The key holds only what FileUploadController uses to build the page, so
+	 * that arbitrary query strings cannot grow the cache.
+	 */
+	static Optional<String> getCacheKey(HttpServletRequest request) {
+		if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+			return Optional.empty();
+		}
+		var path = URL_PATH_HELPER.getPathWithinApplication(request);
+		if (path.equals("/") || path.equals("/fileUpload")) {
+			var notesUploadsOnly = StringUtil.interpretOptReqParam(
+				Optional.ofNullable(request.getParameter("notesUploadsOnly")));
+			return Optional.of(notesUploadsOnly ? "home:notes" : "home");
+		}
+		var m = FORM_PATH.matcher(path);
+		if (!m.matches()) {
+			return Optional.empty();
+		}
+		var eventUri = m.group(1);
+		return Stream.of(Event.values())
+			.filter(event -> event.getUri().equals(eventUri))
+			.findAny()
+			.map(event -> "form:" + event.getUri());
+	}
+}
@@ -0,0 +1,200 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.server.ResponseStatusException;
+import org.virginiaso.file_upload.ResumableUploadSession.UploadedFileSpec;
+import org.virginiaso.file_upload.util.ContentDigest;
+import org.virginiaso.file_upload.util.StringUtil;
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * The HTTP face of ResumableUploadService, used by resumableUpload.js:
+ *
+ * <pre>
+ * POST /resumableUpload/{eventUri}                           start a session
+ * GET  /resumableUpload/sessions/{id}                        staged chunks
+ * PUT  /resumableUpload/sessions/{id}/{label}/{chunkIndex}   stage a chunk
+ * GET  /resumableUpload/sessions/{id}/{label}/{chunkIndex}/url
+ *                                                            where to PUT a chunk
+ *                                                            of a direct upload
+ * POST /resumableUpload/sessions/{id}/finish                 record the submission
+ * GET  /resumableUpload/sessions/{id}/receipt                the receipt page
+ * </pre>
+ *
+ * A session is started with the ordinary form fields plus, for each file, the
+ * parameters fileAName and fileASize (and so on for fileB through fileJ), and
+ * optionally fileASha256, the hex SHA-256 digest of the file's content.
+ */
+@Controller
+public class ResumableUploadController {
+	private static final Logger LOG = LoggerFactory.getLogger(ResumableUploadController.class);
+
+	private final ResumableUploadService resumableUploadService;
+	private final String baseEventUrl;
+	private final String teamNumbersUrl;
+	private final boolean isStateTournament;
+
+	@Autowired
+	public ResumableUploadController(ResumableUploadService resumableUploadService,
+		@Value("${fileUpload.baseEventUrl}") String baseEventUrl,
+		@Value("${fileUpload.teamNumbersUrl}") String teamNumbersUrl,
+		@Value("${fileUpload.isStateTournament:false}") boolean isStateTournament) {
+		this.resumableUploadService = resumableUploadService;
+		this.baseEventUrl = baseEventUrl;
+		this.teamNumbersUrl = teamNumbersUrl;
+		this.isStateTournament = isStateTournament;
+	}
+
+	@PostMapping("/resumableUpload/{eventUri}")
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> createSession(
+		@PathVariable("eventUri") String eventUri,
+		@ModelAttribute UserSubmission userSub,
+		HttpServletRequest request) throws IOException {
+
+		var event = Event.forUri(eventUri);
+		List<UploadedFileSpec> files = new ArrayList<>();
+		for (var fileParamName : FileUploadController.FILE_PARAM_NAMES) {
+			var fileName = StringUtil.safeTrim(request.getParameter(fileParamName + "Name"));
+			if (fileName != null) {
+				var size = parseFileSize(request.getParameter(fileParamName + "Size"));
+				var sha256 = parseSha256(request.getParameter(fileParamName + "Sha256"));
+				files.add(new UploadedFileSpec(FileUploadController.getFileLabel(fileParamName),
+					fileName, size, sha256));
+			}
+		}
+		var session = resumableUploadService.createSession(event, userSub, files);
+		return ResponseEntity.status(HttpStatus.CREATED)
+			.header("Location", "/resumableUpload/sessions/" + session.getId())
+			.body(session.getStatus());
+	}
+
+	@GetMapping("/resumableUpload/sessions/{sessionId}")
+	@ResponseBody
+	public Map<String, Object> getSessionStatus(
+		@PathVariable("sessionId") String sessionId) throws IOException {
+		return resumableUploadService.getStatus(getSession(sessionId));
+	}
+
+	@GetMapping("/resumableUpload/sessions/{sessionId}/{label}/{chunkIndex}/url")
+	@ResponseBody
+	public Map<String, Object> getChunkUploadUrl(
+		@PathVariable("sessionId") String sessionId,
+		@PathVariable("label") String label,
+		@PathVariable("chunkIndex") int chunkIndex) {
+		var uri = resumableUploadService.getChunkUploadUri(getSession(sessionId), label,
+			chunkIndex);
+		return Map.of("url", uri.toString());
+	}
+
+	@PutMapping("/resumableUpload/sessions/{sessionId}/{label}/{chunkIndex}")
+	public ResponseEntity<Void> stageChunk(
+		@PathVariable("sessionId") String sessionId,
+		@PathVariable("label") String label,
+		@PathVariable("chunkIndex") int chunkIndex,
+		HttpServletRequest request) throws IOException {
+
+		var session = getSession(sessionId);
+		try (var is = request.getInputStream()) {
+			resumableUploadService.stageChunk(session, label, chunkIndex, is,
+				request.getContentLengthLong());
+		}
+		return ResponseEntity.noContent().build();
+	}
+
+	@PostMapping("/resumableUpload/sessions/{sessionId}/finish")
+	@ResponseBody
+	public Map<String, Object> finishSession(
+		@PathVariable("sessionId") String sessionId) throws IOException {
+
+		var submission = resumableUploadService.finish(getSession(sessionId));
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("submissionId", submission.getId());
+		result.put("receiptUrl", String.format("/resumableUpload/sessions/%1$s/receipt",
+			sessionId));
+		return result;
+	}
+
+	@GetMapping("/resumableUpload/sessions/{sessionId}/receipt")
+	public String showReceipt(
+		@PathVariable("sessionId") String sessionId,
+		Model model) {
+
+		var submission = getSession(sessionId).getSubmission()
+			.orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+				"This upload has not been submitted"));
+		model.addAttribute("event", submission.getEvent());
+		model.addAttribute("submission", submission);
+		model.addAttribute("errorMessage", null);
+		model.addAttribute("teamNumbersUrl", teamNumbersUrl);
+		model.addAttribute("isStateTournament", isStateTournament);
+		if (submission.getEvent() != Event.HELICOPTER_START) {
+			return "submissionResult";
+		} else {
+			model.addAttribute("submitUrl",
+				baseEventUrl + Event.HELICOPTER_FINISH.getTemplateName());
+			return "helicopterGo";
+		}
+	}
+
+	private static long parseFileSize(String size) {
+		try {
+			return Long.parseLong(StringUtil.safeTrim(size));
+		} catch (NumberFormatException ex) {
+			throw new ValidationException("Ill-formed file size: '%1$s'", size);
+		}
+	}
+
+	private static String parseSha256(String sha256) {
+		var result = ContentDigest.normalize(sha256);
+		if (result != null && !ContentDigest.isSha256(result)) {
+			throw new ValidationException("Ill-formed SHA-256 digest: '%1$s'", sha256);
+		}
+		return result;
+	}
+
+	private ResumableUploadSession getSession(String sessionId) {
+		return resumableUploadService.getSession(sessionId)
+			.orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+				"No such upload, or it has expired"));
+	}
+
+	@ExceptionHandler
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> handleValidationEx(ValidationException ex) {
+		return ResponseEntity.badRequest()
+			.body(Map.of("errorMessage", ex.getMessage()));
+	}
+
+	@ExceptionHandler
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> handleIoEx(IOException ex) {
+		LOG.error("Encountered Exception:", ex);
+		return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+			.body(Map.of("errorMessage", Objects.toString(ex.getMessage(),
+				ex.getClass().getSimpleName())));
+	}
+}
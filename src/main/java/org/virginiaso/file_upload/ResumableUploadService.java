@@ -0,0 +1,495 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.virginiaso.file_upload.DirectUploadStorage.UploadedPart;
+import org.virginiaso.file_upload.ResumableUploadSession.UploadedFile;
+import org.virginiaso.file_upload.ResumableUploadSession.UploadedFileSpec;
+import org.virginiaso.file_upload.util.ContentDigest;
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * Receives large files in independently retried chunks, in the style of the tus
+ * protocol. A client creates a session describing the submission and its files,
+ * sends the chunks in any order and as often as necessary, and then finishes
+ * the session, at which point the staged chunks of each file are joined into
+ * the uploaded file and the submission is recorded as usual. The storage joins
+ * the chunks where they lie, so that finishing does not read them back through
+ * this server where the storage can avoid it.
+ *
+ * When direct uploads are enabled and the storage supports them, the client
+ * instead sends each chunk straight to storage, as one part of a multipart
+ * upload, using a presigned URL that it requests here. The submission's ID and
+ * file names are reserved when the session starts, and finishing the session
+ * checks with the storage that every part has arrived with the right size,
+ * completes the multipart uploads, and checks the size of each stored file
+ * before the submission is recorded. The file content never reaches this
+ * server.
+ *
+ * A file whose declared SHA-256 digest matches content the storage already
+ * holds is not sent at all. Finishing the session stores it by reference to
+ * that content, or, if the content has since gone, asks the client to send it
+ * after all. The declared digest only ever selects content that the server
+ * hashed itself, so a client that lies about it gets nothing it did not upload
+ * to some other file with that digest and size.
+ *
+ * Sessions are kept in memory, so a restart forgets them and their clients
+ * must start over. The chunks of sessions that are never finished are deleted
+ * once the session has been idle for sessionTimeoutMinutes.
+ */
+@Service
+public class ResumableUploadService {
+	private static final Logger LOG = LoggerFactory.getLogger(ResumableUploadService.class);
+	private static final long SWEEP_INTERVAL_MINUTES = 10;
+
+	private final FileUploadService fileUploadService;
+	private final StorageService storageService;
+	private final Optional<DirectUploadStorage> directUploadStorage;
+	private final Duration partUrlLifetime;
+	private final int chunkSize;
+	private final long maxFileSize;
+	private final long sessionTimeoutMillis;
+	private final Map<String, ResumableUploadSession> sessions;
+	private final ScheduledExecutorService sweepExecutor;
+
+	public ResumableUploadService(FileUploadService fileUploadService,
+		@Qualifier("spoolingStorageService") StorageService storageService,
+		@Value("${fileUpload.resumableUpload.chunkSize:8MB}") DataSize chunkSize,
+		@Value("${spring.servlet.multipart.max-file-size:5GB}") DataSize maxFileSize,
+		@Value("${fileUpload.resumableUpload.sessionTimeoutMinutes:360}") long sessionTimeoutMinutes,
+		@Value("${fileUpload.directUpload.enabled:false}") boolean isDirectUploadEnabled,
+		@Value("${fileUpload.directUpload.urlLifetimeMinutes:60}") long urlLifetimeMinutes) {
+		this.fileUploadService = fileUploadService;
+		this.storageService = storageService;
+		directUploadStorage = isDirectUploadEnabled
+			? storageService.getDirectUploadStorage()
+			: Optional.empty();
+		if (isDirectUploadEnabled && directUploadStorage.isEmpty()) {
+			LOG.warn("Direct uploads are enabled, but the storage does not support them");
+		}
+		partUrlLifetime = Duration.ofMinutes(urlLifetimeMinutes);
+		var minChunkSize = directUploadStorage.isPresent()
+			? DirectUploadStorage.MIN_PART_SIZE
+			: 1;
+		this.chunkSize = (int) Math.min(Math.max(chunkSize.toBytes(), minChunkSize),
+			Integer.MAX_VALUE);
+		this.maxFileSize = maxFileSize.toBytes();
+		sessionTimeoutMillis = TimeUnit.MINUTES.toMillis(sessionTimeoutMinutes);
+		sessions = new ConcurrentHashMap<>();
+		sweepExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "resumable-upload-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweepExecutor.scheduleWithFixedDelay(this::expireIdleSessions,
+			SWEEP_INTERVAL_MINUTES, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		sweepExecutor.shutdownNow();
+	}
+
+	/**
+	 * Starts a resumable upload. The form fields are validated now, so that a
+	 * team is not left to discover a mistake after sending a large file.
+	 *
+	 * @param event   The event to which the files are being submitted
+	 * @param userSub The form fields of the submission
+	 * @param files   The files to be sent, in label order
+	 * @return The new session
+	 * @throws IOException if a direct upload cannot be started
+	 * @throws ValidationException if the submission would be rejected
+	 */
+	public ResumableUploadSession createSession(Event event, UserSubmission userSub,
+		List<UploadedFileSpec> files) throws IOException {
+		if (files.isEmpty()) {
+			throw new ValidationException("A resumable upload must include at least one file");
+		}
+		for (var file : files) {
+			if (file.size() <= 0 || file.size() > maxFileSize) {
+				throw new ValidationException(
+					"The file '%1$s' must be between 1 and %2$d bytes long",
+					file.originalFileName(), maxFileSize);
+			}
+			if (directUploadStorage.isPresent()
+					&& file.size() > (long) chunkSize * DirectUploadStorage.MAX_NUM_PARTS) {
+				throw new ValidationException("The file '%1$s' is too large to upload",
+					file.originalFileName());
+			}
+		}
+		fileUploadService.validateSubmission(event, userSub);
+
+		var session = new ResumableUploadSession(event, userSub, files, chunkSize);
+		for (var file : files) {
+			if (ContentDigest.isSha256(file.sha256())
+					&& storageService.hasContent(file.sha256(), file.size())) {
+				session.markReused(file.label());
+			}
+		}
+		if (directUploadStorage.isPresent()) {
+			startDirectUpload(session, directUploadStorage.get());
+		}
+		sessions.put(session.getId(), session);
+		LOG.info("Started {} upload {} of {} files to {}",
+			session.isDirect() ? "direct" : "resumable", session.getId(), files.size(),
+			event.getUri());
+		return session;
+	}
+
+	private void startDirectUpload(ResumableUploadSession session,
+		DirectUploadStorage storage) throws IOException {
+		session.setDirectUpload(fileUploadService.beginStreamingUpload(
+			session.getEvent(), session.getUserSub()));
+		try {
+			for (var file : session.getFiles()) {
+				var location = session.getDirectUpload().reserveFile(file.getLabel(),
+					file.getOriginalFileName());
+				file.setMultipartUpload(location, file.isReused()
+					? null
+					: storage.createMultipartUpload(location.eventDirName(), location.fileName()));
+			}
+		} catch (IOException | RuntimeException ex) {
+			abandonDirectUpload(session);
+			throw ex;
+		}
+	}
+
+	public Optional<ResumableUploadSession> getSession(String sessionId) {
+		var session = Optional.ofNullable(sessions.get(sessionId));
+		session.ifPresent(ResumableUploadSession::touch);
+		return session;
+	}
+
+	/**
+	 * Summarizes the session for the client. The parts of a direct upload are
+	 * sent to storage rather than here, so the storage is first asked which of
+	 * them have arrived, unless the session is being finished, in which case
+	 * the status as of the last check is reported rather than waiting.
+	 *
+	 * @throws IOException if the storage cannot list the parts
+	 */
+	public Map<String, Object> getStatus(ResumableUploadSession session) throws IOException {
+		var stagingLock = session.getFinishLock().readLock();
+		if (session.isDirect() && stagingLock.tryLock()) {
+			try {
+				if (session.getSubmission().isEmpty()) {
+					for (var file : session.getFiles()) {
+						if (!file.isStored() && !file.isReused()) {
+							listReceivedParts(session, file);
+						}
+					}
+				}
+			} finally {
+				stagingLock.unlock();
+			}
+		}
+		return session.getStatus();
+	}
+
+	/**
+	 * @param session    A direct upload session
+	 * @param label      The label of the file to which the chunk belongs
+	 * @param chunkIndex The zero-based position of the chunk within its file
+	 * @return The URL to which the client must PUT the chunk
+	 * @throws ValidationException if the session is not a direct upload or has
+	 *                             no such chunk
+	 */
+	public URI getChunkUploadUri(ResumableUploadSession session, String label,
+		int chunkIndex) {
+		if (session.getSubmission().isPresent()) {
+			throw new ValidationException("This upload has already been submitted");
+		} else if (!session.isDirect()) {
+			throw new ValidationException("The chunks of this upload must be sent to this server");
+		}
+		session.getExpectedChunkSize(label, chunkIndex);
+		var file = session.getFile(label);
+		if (file.isReused()) {
+			throw new ValidationException("The file %1$s is already stored", label);
+		}
+		var location = file.getLocation();
+		return directUploadStorage.orElseThrow().getPartUploadUri(location.eventDirName(),
+			location.fileName(), file.getMultipartUploadId(), chunkIndex + 1,
+			partUrlLifetime);
+	}
+
+	/**
+	 * Stages one chunk. The chunk's length is checked before anything is read,
+	 * and the storage service refuses a chunk that ends early, so a chunk is
+	 * only marked as staged once all of it is stored. Chunks are staged
+	 * concurrently with each other, but not while the session is finishing, so
+	 * that no chunk changes as it is joined into its file.
+	 *
+	 * @param session       The session
+	 * @param label         The label of the file to which the chunk belongs
+	 * @param chunkIndex    The zero-based position of the chunk within its file
+	 * @param is            The chunk content
+	 * @param contentLength The length of the content, as declared by the client
+	 * @throws IOException if the chunk cannot be stored
+	 */
+	public void stageChunk(ResumableUploadSession session, String label, int chunkIndex,
+		InputStream is, long contentLength) throws IOException {
+		if (session.isDirect()) {
+			throw new ValidationException("The chunks of this upload must be sent to storage");
+		}
+		var expectedSize = session.getExpectedChunkSize(label, chunkIndex);
+		if (contentLength != expectedSize) {
+			throw new ValidationException(
+				"Chunk %1$d of file %2$s must be %3$d bytes long, but is %4$d bytes",
+				chunkIndex, label, expectedSize, contentLength);
+		}
+		var stagingLock = session.getFinishLock().readLock();
+		stagingLock.lock();
+		try {
+			if (session.getSubmission().isPresent()) {
+				throw new ValidationException("This upload has already been submitted");
+			}
+			storageService.storeUploadChunk(session.getId(),
+				ResumableUploadSession.getChunkName(label, chunkIndex), is, expectedSize);
+			session.markChunkStaged(label, chunkIndex);
+		} finally {
+			stagingLock.unlock();
+		}
+	}
+
+	/**
+	 * Assembles the staged chunks into the uploaded files and records the
+	 * submission. Finishing a session again returns the same submission, so a
+	 * client whose first request timed out may simply retry.
+	 *
+	 * @param session The session
+	 * @return The recorded submission
+	 * @throws IOException if the files cannot be stored
+	 * @throws ValidationException if chunks are missing or the submission is
+	 *                             rejected
+	 */
+	public Submission finish(ResumableUploadSession session) throws IOException {
+		var finishLock = session.getFinishLock().writeLock();
+		finishLock.lock();
+		try {
+			var existingSubmission = session.getSubmission();
+			if (existingSubmission.isPresent()) {
+				return existingSubmission.get();
+			} else if (session.isDirect()) {
+				var submission = finishDirectUpload(session);
+				session.setSubmission(submission);
+				LOG.info("Finished direct upload {} as submission {}", session.getId(),
+					submission.getId());
+				return submission;
+			}
+			var numMissingChunks = session.getNumMissingChunks();
+			if (numMissingChunks > 0) {
+				throw new ValidationException(
+					"%1$d chunks of this upload have not been received", numMissingChunks);
+			}
+
+			var streamingUpload = fileUploadService.beginStreamingUpload(
+				session.getEvent(), session.getUserSub());
+			Submission submission;
+			try {
+				for (var file : session.getFiles()) {
+					if (!file.isReused()) {
+						streamingUpload.addStagedFile(file.getLabel(), file.getOriginalFileName(),
+							session.getId(), getChunkNames(file), session.getChunkSize(),
+							file.getSize());
+					} else if (!streamingUpload.addExistingFile(file.getLabel(),
+							file.getOriginalFileName(), file.getSha256(), file.getSize())) {
+						session.clearReused(file.getLabel());
+						throw newReusedFileGoneException(file);
+					}
+				}
+				submission = streamingUpload.finish();
+			} catch (IOException | RuntimeException ex) {
+				streamingUpload.abort();
+				throw ex;
+			}
+			session.setSubmission(submission);
+			LOG.info("Finished resumable upload {} as submission {}", session.getId(),
+				submission.getId());
+
+			deleteStagedChunks(session);
+			return submission;
+		} finally {
+			finishLock.unlock();
+		}
+	}
+
+	/*
+	 * Every file is checked before any is completed, so that a client that is
+	 * missing a part can still send it. A multipart upload, once completed, no
+	 * longer accepts parts, so a failure after that point abandons the session.
+	 */
+	private Submission finishDirectUpload(ResumableUploadSession session)
+			throws IOException {
+		var storage = directUploadStorage.orElseThrow();
+		Map<String, List<UploadedPart>> partsByLabel = new HashMap<>();
+		var numMissingChunks = 0;
+		for (var file : session.getFiles()) {
+			if (!file.isStored() && !file.isReused()) {
+				var parts = listReceivedParts(session, file);
+				numMissingChunks += file.getNumChunks() - parts.size();
+				partsByLabel.put(file.getLabel(), parts);
+			}
+		}
+		if (numMissingChunks > 0) {
+			throw new ValidationException(
+				"%1$d chunks of this upload have not been received", numMissingChunks);
+		}
+
+		for (var file : session.getFiles()) {
+			if (!file.isStored() && file.isReused()) {
+				linkReusedFile(session, file, storage);
+			}
+		}
+		for (var file : session.getFiles()) {
+			if (!file.isStored()) {
+				var location = file.getLocation();
+				var size = storage.completeMultipartUpload(location.eventDirName(),
+					location.fileName(), file.getMultipartUploadId(),
+					partsByLabel.get(file.getLabel()));
+				file.markStored();
+				if (size != file.getSize()) {
+					discardDirectUpload(session);
+					throw new ValidationException(
+						"The file '%1$s' should be %2$d bytes long, but %3$d bytes were received",
+						file.getOriginalFileName(), file.getSize(), size);
+				}
+			}
+		}
+		try {
+			return session.getDirectUpload().finish();
+		} catch (IOException | RuntimeException ex) {
+			discardDirectUpload(session);
+			throw ex;
+		}
+	}
+
+	/*
+	 * Stores a reused file of a direct upload under its reserved name. If the
+	 * content has gone, the file is given a multipart upload after all, and the
+	 * failure tells the client to check the status and send the chunks.
+	 */
+	private void linkReusedFile(ResumableUploadSession session, UploadedFile file,
+		DirectUploadStorage storage) throws IOException {
+		var location = file.getLocation();
+		if (storageService.linkUploadedFile(file.getSha256(), file.getSize(),
+				location.eventDirName(), location.fileName())) {
+			file.markStored();
+			return;
+		}
+		file.setMultipartUpload(location, storage.createMultipartUpload(
+			location.eventDirName(), location.fileName()));
+		session.clearReused(file.getLabel());
+		throw newReusedFileGoneException(file);
+	}
+
+	// A server error, so that the client resumes the session and sends the file:
+	private static IOException newReusedFileGoneException(UploadedFile file) {
+		return new IOException(String.format(
+			"The stored copy of file %1$s is gone, so it must be sent after all",
+			file.getLabel()));
+	}
+
+	/*
+	 * Lists the parts of a direct upload that have arrived, and marks their
+	 * chunks as staged. A part of the wrong size is left out, so that the client
+	 * sends it again.
+	 */
+	private List<UploadedPart> listReceivedParts(ResumableUploadSession session,
+		UploadedFile file) throws IOException {
+		var location = file.getLocation();
+		List<UploadedPart> receivedParts = new ArrayList<>();
+		for (var part : directUploadStorage.orElseThrow().listParts(location.eventDirName(),
+				location.fileName(), file.getMultipartUploadId())) {
+			var chunkIndex = part.partNumber() - 1;
+			if (chunkIndex < file.getNumChunks()
+					&& part.size() == session.getExpectedChunkSize(file.getLabel(), chunkIndex)) {
+				session.markChunkStaged(file.getLabel(), chunkIndex);
+				receivedParts.add(part);
+			}
+		}
+		return receivedParts;
+	}
+
+	private void discardDirectUpload(ResumableUploadSession session) {
+		sessions.remove(session.getId());
+		abandonDirectUpload(session);
+	}
+
+	// Aborts the incomplete multipart uploads and deletes the completed files:
+	private void abandonDirectUpload(ResumableUploadSession session) {
+		for (var file : session.getFiles()) {
+			var location = file.getLocation();
+			if (file.getMultipartUploadId() != null && !file.isStored()) {
+				try {
+					directUploadStorage.orElseThrow().abortMultipartUpload(
+						location.eventDirName(), location.fileName(), file.getMultipartUploadId());
+				} catch (IOException | RuntimeException ex) {
+					LOG.warn(String.format("Unable to abort direct upload of %1$s/%2$s:",
+						location.eventDirName(), location.fileName()), ex);
+				}
+			}
+		}
+		session.getDirectUpload().abort();
+	}
+
+	private static List<String> getChunkNames(UploadedFile file) {
+		return IntStream.range(0, file.getNumChunks())
+			.mapToObj(chunkIndex -> ResumableUploadSession.getChunkName(file.getLabel(),
+				chunkIndex))
+			.collect(Collectors.toList());
+	}
+
+	private void expireIdleSessions() {
+		var cutoffMillis = System.currentTimeMillis() - sessionTimeoutMillis;
+		for (var iter = sessions.values().iterator(); iter.hasNext();) {
+			var session = iter.next();
+			if (session.getLastActivityMillis() < cutoffMillis) {
+				iter.remove();
+				if (session.getSubmission().isEmpty()) {
+					LOG.info("Abandoning idle resumable upload {}", session.getId());
+					if (session.isDirect()) {
+						abandonDirectUpload(session);
+					} else {
+						deleteStagedChunks(session);
+					}
+				}
+			}
+		}
+	}
+
+	private void deleteStagedChunks(ResumableUploadSession session) {
+		for (var file : session.getFiles()) {
+			for (var chunkName : getChunkNames(file)) {
+				try {
+					storageService.deleteUploadChunk(session.getId(), chunkName);
+				} catch (IOException | RuntimeException ex) {
+					LOG.warn(String.format("Unable to delete chunk %1$s of upload %2$s:",
+						chunkName, session.getId()), ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package org.virginiaso.file_upload;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.virginiaso.file_upload.StreamingUpload.FileLocation;
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * The state of one resumable upload: the form fields of the submission, the
+ * files it will contain, and which chunks of each file have been staged so far.
+ * Every chunk but the last of a file is exactly chunkSize bytes long.
+ *
+ * In a direct upload, the client sends the chunks to storage rather than to
+ * this server. Each file is then a multipart upload with one part per chunk,
+ * and the submission's ID and file names are fixed when the session starts.
+ *
+ * A client may declare the SHA-256 digest of a file. If the storage already
+ * holds that content, the file is marked as reused: all of its chunks count as
+ * staged, and finishing the session stores it by reference to that content.
+ */
+final class ResumableUploadSession {
+	/**
+	 * The client's description of one file, before any of it is sent. The
+	 * sha256 is the digest the client computed, or null.
+	 */
+	record UploadedFileSpec(String label, String originalFileName, long size,
+		String sha256) {
+	}
+
+	static final class UploadedFile {
+		private final String label;
+		private final String originalFileName;
+		private final long size;
+		private final String sha256;
+		private final int numChunks;
+		private final BitSet stagedChunks;
+		private volatile boolean isReused;
+		// For direct uploads only. The location is set before the session is shared:
+		private FileLocation location;
+		private volatile String multipartUploadId;
+		private volatile boolean isStored;
+
+		private UploadedFile(String label, String originalFileName, long size,
+			String sha256, int chunkSize) {
+			this.label = label;
+			this.originalFileName = originalFileName;
+			this.size = size;
+			this.sha256 = sha256;
+			numChunks = (int) ((size + chunkSize - 1) / chunkSize);
+			stagedChunks = new BitSet(numChunks);
+			isReused = false;
+			location = null;
+			multipartUploadId = null;
+			isStored = false;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public String getOriginalFileName() {
+			return originalFileName;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/** @return The digest declared by the client, or null */
+		public String getSha256() {
+			return sha256;
+		}
+
+		public int getNumChunks() {
+			return numChunks;
+		}
+
+		/** @return Whether the file is to be stored by reference to existing content */
+		public boolean isReused() {
+			return isReused;
+		}
+
+		public FileLocation getLocation() {
+			return location;
+		}
+
+		public String getMultipartUploadId() {
+			return multipartUploadId;
+		}
+
+		public void setMultipartUpload(FileLocation location, String multipartUploadId) {
+			this.location = location;
+			this.multipartUploadId = multipartUploadId;
+		}
+
+		/** @return Whether the multipart upload of a direct upload has been completed */
+		public boolean isStored() {
+			return isStored;
+		}
+
+		public void markStored() {
+			isStored = true;
+		}
+	}
+
+	private final String id;
+	private final Event event;
+	private final UserSubmission userSub;
+	private final int chunkSize;
+	private final Map<String, UploadedFile> files;
+	private final ReentrantReadWriteLock finishLock;
+	private volatile long lastActivityMillis;
+	private StreamingUpload directUpload;
+
+	// The following are guarded by this:
+	private Submission submission;
+
+	/**
+	 * @param event     The event to which the files are being submitted
+	 * @param userSub   The form fields of the submission
+	 * @param files     The label, original file name, and size of each file, in
+	 *                  label order
+	 * @param chunkSize The size of every chunk but the last of each file
+	 */
+	public ResumableUploadSession(Event event, UserSubmission userSub,
+		List<UploadedFileSpec> files, int chunkSize) {
+		id = UUID.randomUUID().toString();
+		this.event = Objects.requireNonNull(event, "event");
+		this.userSub = Objects.requireNonNull(userSub, "userSub");
+		this.chunkSize = chunkSize;
+		this.files = new LinkedHashMap<>();
+		for (var file : files) {
+			this.files.put(file.label(), new UploadedFile(file.label(),
+				file.originalFileName(), file.size(), file.sha256(), chunkSize));
+		}
+		finishLock = new ReentrantReadWriteLock();
+		lastActivityMillis = System.currentTimeMillis();
+		directUpload = null;
+		submission = null;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Event getEvent() {
+		return event;
+	}
+
+	public UserSubmission getUserSub() {
+		return userSub;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public List<UploadedFile> getFiles() {
+		return List.copyOf(files.values());
+	}
+
+	public boolean isDirect() {
+		return directUpload != null;
+	}
+
+	/** @return The submission into which a direct upload's files are stored */
+	public StreamingUpload getDirectUpload() {
+		return directUpload;
+	}
+
+	/** Makes this a direct upload. Call this before the session is shared. */
+	public void setDirectUpload(StreamingUpload directUpload) {
+		this.directUpload = directUpload;
+	}
+
+	/**
+	 * Finishing holds the write lock, so that a session finishes once, and
+	 * staging a chunk holds the read lock, so that no chunk changes while the
+	 * staged chunks are joined. A lock rather than a monitor, because the
+	 * storage is called while it is held.
+	 */
+	public ReentrantReadWriteLock getFinishLock() {
+		return finishLock;
+	}
+
+	public long getLastActivityMillis() {
+		return lastActivityMillis;
+	}
+
+	public void touch() {
+		lastActivityMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks that the given chunk belongs to this session.
+	 *
+	 * @return The length the chunk must have
+	 * @throws ValidationException if there is no such file or chunk
+	 */
+	public long getExpectedChunkSize(String label, int chunkIndex) {
+		var file = getFile(label);
+		if (chunkIndex < 0 || chunkIndex >= file.numChunks) {
+			throw new ValidationException("Chunk %1$d of file %2$s is out of range",
+				chunkIndex, label);
+		}
+		return Math.min(chunkSize, file.size - (long) chunkIndex * chunkSize);
+	}
+
+	public static String getChunkName(String label, int chunkIndex) {
+		return String.format("%1$s-%2$05d", label, chunkIndex);
+	}
+
+	public synchronized void markChunkStaged(String label, int chunkIndex) {
+		getFile(label).stagedChunks.set(chunkIndex);
+		touch();
+	}
+
+	/** Marks a file whose content is already stored, so that none of it is sent. */
+	public synchronized void markReused(String label) {
+		var file = getFile(label);
+		file.stagedChunks.set(0, file.numChunks);
+		file.isReused = true;
+	}
+
+	/** Undoes markReused when the content is gone, so that the client sends the file. */
+	public synchronized void clearReused(String label) {
+		var file = getFile(label);
+		file.stagedChunks.clear();
+		file.isReused = false;
+	}
+
+	public synchronized int getNumMissingChunks() {
+		return files.values().stream()
+			.mapToInt(file -> file.numChunks - file.stagedChunks.cardinality())
+			.sum();
+	}
+
+	public synchronized Optional<Submission> getSubmission() {
+		return Optional.ofNullable(submission);
+	}
+
+	public synchronized void setSubmission(Submission submission) {
+		this.submission = submission;
+	}
+
+	/**
+	 * Summarizes the session for the client. For each file, "offset" is the
+	 * number of bytes staged without gaps from the start of the file, as in tus,
+	 * and "stagedChunks" lists every chunk staged so far, since chunks may arrive
+	 * out of order.
+	 */
+	public synchronized Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("sessionId", id);
+		status.put("chunkSize", chunkSize);
+		status.put("direct", isDirect());
+		status.put("files", files.values().stream()
+			.map(this::getFileStatus)
+			.collect(Collectors.toList()));
+		status.put("complete", submission != null);
+		return status;
+	}
+
+	private Map<String, Object> getFileStatus(UploadedFile file) {
+		var firstGap = file.stagedChunks.nextClearBit(0);
+		Map<String, Object> fileStatus = new LinkedHashMap<>();
+		fileStatus.put("label", file.label);
+		fileStatus.put("size", file.size);
+		fileStatus.put("numChunks", file.numChunks);
+		fileStatus.put("reused", file.isReused);
+		fileStatus.put("offset", Math.min((long) firstGap * chunkSize, file.size));
+		fileStatus.put("stagedChunks", IntStream.range(0, file.numChunks)
+			.filter(file.stagedChunks::get)
+			.boxed()
+			.collect(Collectors.toList()));
+		return fileStatus;
+	}
+
+	/** @throws ValidationException if there is no such file */
+	public UploadedFile getFile(String label) {
+		var file = files.get(label);
+		if (file == null) {
+			throw new ValidationException("This upload has no file %1$s", label);
+		}
+		return file;
+	}
+}
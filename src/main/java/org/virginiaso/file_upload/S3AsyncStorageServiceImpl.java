@@ -0,0 +1,545 @@
+package org.virginiaso.file_upload;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import org.virginiaso.file_upload.util.FileUtil;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * Stores submissions in S3 using the asynchronous client on the Netty
+ * transport, so that a transfer in progress occupies a connection rather than
+ * a thread. The blocking StorageService methods simply wait on the futures
+ * returned by their asynchronous counterparts.
+ */
+@Service("s3StorageService")
+@ConditionalOnProperty(name = "fileUpload.aws-s3.asyncClient", havingValue = "true")
+public class S3AsyncStorageServiceImpl extends AbstractS3StorageService {
+	private static final Logger LOG = LoggerFactory.getLogger(S3AsyncStorageServiceImpl.class);
+
+	private final int maxConcurrency;
+	private S3AsyncClient s3Client;
+
+	public S3AsyncStorageServiceImpl(
+		@Value("${fileUpload.aws-s3.submissionRoot}") String submissionRootUri,
+		@Value("${fileUpload.aws-s3.journalRoot}") String journalRoot,
+		@Value("${fileUpload.aws-s3.endpoint:}") String endpoint,
+		@Value("${fileUpload.aws-s3.maxConcurrency:64}") int maxConcurrency,
+		@Value("${fileUpload.aws-s3.multipartConcurrency:4}") int multipartConcurrency,
+		@Value("${fileUpload.aws-s3.multipartPartAttempts:3}") int multipartPartAttempts,
+		@Value("${fileUpload.aws-s3.multipartBufferLimit:128MB}") DataSize multipartBufferLimit,
+		MeterRegistry meterRegistry) {
+		super(submissionRootUri, journalRoot, endpoint, multipartConcurrency,
+			multipartPartAttempts, multipartBufferLimit.toBytes(), meterRegistry);
+		this.maxConcurrency = Math.max(maxConcurrency, 1);
+	}
+
+	@PostConstruct
+	@Override
+	public void initialize() {
+		s3Client = configureClient(S3AsyncClient.builder())
+			.httpClientBuilder(NettyNioAsyncHttpClient.builder()
+				.maxConcurrency(maxConcurrency))
+			.build();
+
+		var hbRequest = HeadBucketRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.build();
+		try {
+			s3Client.headBucket(hbRequest).join();
+			LOG.info("Bucket '{}' exists", submissionRoot.getBucket());
+		} catch (CompletionException ex) {
+			if (!(ex.getCause() instanceof S3Exception s3Ex) || s3Ex.statusCode() != 404) {
+				throw ex;
+			}
+			var cbRequest = CreateBucketRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.build();
+			s3Client.createBucket(cbRequest).join();
+			LOG.info("Created bucket '{}'", submissionRoot.getBucket());
+		}
+		super.initialize();
+	}
+
+	// A stream's parts are read on the caller's thread and sent from the uploader's pool:
+	@Override
+	protected S3MultipartUploader.S3Requests newMultipartRequests() {
+		return new AsyncS3Requests();
+	}
+
+	@PreDestroy
+	@Override
+	public void cleanup() {
+		super.cleanup();
+		s3Client.close();
+	}
+
+	@Override
+	public InputStream getSubmissionTableAsInputStream(String submissionTableFileName)
+			throws IOException {
+		var request = GetObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getSubmissionTableKey(submissionTableFileName))
+			.build();
+		try {
+			return s3Client.getObject(request, AsyncResponseTransformer.toBytes())
+				.join()
+				.asInputStream();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof NoSuchKeyException) {
+				throw new FileNotFoundException(ex.getCause().getMessage());
+			}
+			throw new IOException("Unable to read submission table from S3:", ex.getCause());
+		}
+	}
+
+	@Override
+	public void transferTempSubmissionTableFile(File tempSubmissionTableFile,
+		String submissionTableFileName) throws IOException {
+		join(transferTempSubmissionTableFileAsync(tempSubmissionTableFile,
+			submissionTableFileName), "Unable to transfer submission table to S3:");
+	}
+
+	@Override
+	public CompletableFuture<Void> transferTempSubmissionTableFileAsync(
+		File tempSubmissionTableFile, String submissionTableFileName) {
+		var poRequest = PutObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getSubmissionTableKey(submissionTableFileName))
+			.build();
+		return s3Client.putObject(poRequest,
+				AsyncRequestBody.fromFile(tempSubmissionTableFile.toPath()))
+			.thenAccept(response -> {
+				checkResponse(response, "submission table");
+				tempSubmissionTableFile.delete();
+			});
+	}
+
+	@Override
+	public void transferUploadedFile(MultipartFile file, String eventDirName,
+		String newFileName) throws IOException {
+		join(transferUploadedFileAsync(file, eventDirName, newFileName),
+			"Unable to transfer uploaded file to S3:");
+	}
+
+	/*
+	 * The request body is sent from a file so that Netty can read it as the
+	 * connection drains. Transferring the multipart file renames the container's
+	 * spooled copy where it can, so this normally costs no extra copy.
+	 */
+	@Override
+	public CompletableFuture<Void> transferUploadedFileAsync(MultipartFile file,
+		String eventDirName, String newFileName) {
+		Path tempPath;
+		try {
+			tempPath = Files.createTempFile("upload-", ".tmp");
+			file.transferTo(tempPath.toFile());
+		} catch (IOException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+		return putUploadedFile(tempPath, eventDirName, newFileName);
+	}
+
+	/*
+	 * S3 needs the length of each request body up front, so a stream of unknown
+	 * length is sent in parts, read into buffers bounded by multipartBufferLimit.
+	 */
+	@Override
+	public void transferUploadedFile(InputStream is, long size, String eventDirName,
+		String newFileName) throws IOException {
+		getMultipartUploader().upload(submissionRoot.getBucket(),
+			getUploadedFileKey(eventDirName, newFileName), is, size);
+	}
+
+	// Uploaded files may be large, so unlike the tables they are not buffered:
+	@Override
+	public InputStream getUploadedFileAsInputStream(String eventDirName, String fileName)
+			throws IOException {
+		var request = GetObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadedFileKey(eventDirName, fileName))
+			.build();
+		try {
+			return s3Client.getObject(request, new InputStreamResponseTransformer<>()).join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof NoSuchKeyException) {
+				throw new FileNotFoundException(ex.getCause().getMessage());
+			}
+			throw new IOException("Unable to read uploaded file from S3:", ex.getCause());
+		}
+	}
+
+	@Override
+	public void deleteUploadedFile(String eventDirName, String fileName) throws IOException {
+		var doRequest = DeleteObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadedFileKey(eventDirName, fileName))
+			.build();
+		join(s3Client.deleteObject(doRequest), "Unable to delete uploaded file from S3:");
+	}
+
+	@Override
+	protected Optional<String> getObjectAsString(String key) throws IOException {
+		var goRequest = GetObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(key)
+			.build();
+		try {
+			return Optional.of(s3Client.getObject(goRequest, AsyncResponseTransformer.toBytes())
+				.join()
+				.asString(FileUtil.CHARSET));
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof NoSuchKeyException) {
+				return Optional.empty();
+			}
+			throw new IOException("Unable to read object from S3:", ex.getCause());
+		}
+	}
+
+	@Override
+	protected OptionalLong getObjectSize(String key) throws IOException {
+		var hoRequest = HeadObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(key)
+			.build();
+		try {
+			return OptionalLong.of(s3Client.headObject(hoRequest).join().contentLength());
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof S3Exception s3Ex && s3Ex.statusCode() == 404) {
+				return OptionalLong.empty();
+			}
+			throw new IOException("Unable to look up object in S3:", ex.getCause());
+		}
+	}
+
+	@Override
+	protected void putObject(String key, String content) throws IOException {
+		var poRequest = PutObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(key)
+			.build();
+		join(s3Client.putObject(poRequest, AsyncRequestBody.fromString(content,
+					FileUtil.CHARSET))
+				.thenAccept(response -> checkResponse(response, "object")),
+			"Unable to write object to S3:");
+	}
+
+	@Override
+	protected void copyObject(String sourceKey, String destinationKey) throws IOException {
+		var coRequest = CopyObjectRequest.builder()
+			.copySource(getCopySource(sourceKey))
+			.destinationBucket(submissionRoot.getBucket())
+			.destinationKey(destinationKey)
+			.build();
+		join(s3Client.copyObject(coRequest), "Unable to copy object in S3:");
+	}
+
+	@Override
+	public String createMultipartUpload(String eventDirName, String fileName)
+			throws IOException {
+		var cmuRequest = CreateMultipartUploadRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadedFileKey(eventDirName, fileName))
+			.build();
+		return join(s3Client.createMultipartUpload(cmuRequest)
+				.thenApply(CreateMultipartUploadResponse::uploadId),
+			"Unable to start direct upload to S3:");
+	}
+
+	@Override
+	public List<UploadedPart> listParts(String eventDirName, String fileName,
+		String uploadId) throws IOException {
+		var lpRequest = ListPartsRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadedFileKey(eventDirName, fileName))
+			.uploadId(uploadId)
+			.build();
+		// The publisher delivers the parts one at a time, in order:
+		List<UploadedPart> parts = new ArrayList<>();
+		join(s3Client.listPartsPaginator(lpRequest).parts().subscribe(part -> parts.add(
+				new UploadedPart(part.partNumber(), part.size(), part.eTag()))),
+			"Unable to list parts of direct upload to S3:");
+		return parts;
+	}
+
+	@Override
+	public long completeMultipartUpload(String eventDirName, String fileName,
+		String uploadId, List<UploadedPart> parts) throws IOException {
+		var key = getUploadedFileKey(eventDirName, fileName);
+		var cmuRequest = CompleteMultipartUploadRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(key)
+			.uploadId(uploadId)
+			.multipartUpload(CompletedMultipartUpload.builder()
+				.parts(parts.stream()
+					.map(part -> CompletedPart.builder()
+						.partNumber(part.partNumber())
+						.eTag(part.eTag())
+						.build())
+					.collect(Collectors.toList()))
+				.build())
+			.build();
+		var hoRequest = HeadObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(key)
+			.build();
+		return join(s3Client.completeMultipartUpload(cmuRequest)
+				.thenCompose(response -> s3Client.headObject(hoRequest))
+				.thenApply(HeadObjectResponse::contentLength),
+			"Unable to complete direct upload to S3:");
+	}
+
+	@Override
+	public void abortMultipartUpload(String eventDirName, String fileName,
+		String uploadId) throws IOException {
+		var amuRequest = AbortMultipartUploadRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadedFileKey(eventDirName, fileName))
+			.uploadId(uploadId)
+			.build();
+		join(s3Client.abortMultipartUpload(amuRequest),
+			"Unable to abort direct upload to S3:");
+	}
+
+	@Override
+	public void storeUploadChunk(String sessionId, String chunkName, InputStream is,
+		long size) throws IOException {
+		var poRequest = PutObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadChunkKey(sessionId, chunkName))
+			.build();
+		// Chunks are small enough to buffer:
+		var content = is.readNBytes((int) Math.min(size, Integer.MAX_VALUE));
+		if (content.length != size) {
+			throw new EOFException(String.format(
+				"Upload chunk %1$s ended after %2$d of %3$d bytes", chunkName, content.length,
+				size));
+		}
+		join(s3Client.putObject(poRequest, AsyncRequestBody.fromBytes(content))
+				.thenAccept(response -> checkResponse(response, "upload chunk")),
+			"Unable to store upload chunk in S3:");
+	}
+
+	@Override
+	public InputStream getUploadChunkAsInputStream(String sessionId, String chunkName)
+			throws IOException {
+		var request = GetObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadChunkKey(sessionId, chunkName))
+			.build();
+		try {
+			return s3Client.getObject(request, AsyncResponseTransformer.toBytes())
+				.join()
+				.asInputStream();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof NoSuchKeyException) {
+				throw new FileNotFoundException(ex.getCause().getMessage());
+			}
+			throw new IOException("Unable to read upload chunk from S3:", ex.getCause());
+		}
+	}
+
+	@Override
+	public void deleteUploadChunk(String sessionId, String chunkName) throws IOException {
+		var doRequest = DeleteObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadChunkKey(sessionId, chunkName))
+			.build();
+		join(s3Client.deleteObject(doRequest), "Unable to delete upload chunk from S3:");
+	}
+
+	private CompletableFuture<Void> putUploadedFile(Path tempPath, String eventDirName,
+		String newFileName) {
+		var poRequest = PutObjectRequest.builder()
+			.bucket(submissionRoot.getBucket())
+			.key(getUploadedFileKey(eventDirName, newFileName))
+			.build();
+		return s3Client.putObject(poRequest, AsyncRequestBody.fromFile(tempPath))
+			.whenComplete((response, ex) -> deleteTempFile(tempPath))
+			.thenAccept(response -> checkResponse(response, "uploaded file"));
+	}
+
+	// The uploader's requests, each of which waits for the asynchronous client:
+	private final class AsyncS3Requests implements S3MultipartUploader.S3Requests {
+		@Override
+		public void putObject(String bucket, String key,
+				S3MultipartUploader.ContentSource content, long length) throws IOException {
+			var poRequest = PutObjectRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.build();
+			joinRequest(s3Client.putObject(poRequest, AsyncRequestBody.fromBytes(
+					readFully(content, length)))
+				.thenAccept(response -> checkResponse(response, "uploaded file")));
+		}
+
+		@Override
+		public String createMultipartUpload(String bucket, String key) throws IOException {
+			var cmuRequest = CreateMultipartUploadRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.build();
+			return joinRequest(s3Client.createMultipartUpload(cmuRequest)
+				.thenApply(CreateMultipartUploadResponse::uploadId));
+		}
+
+		@Override
+		public String uploadPart(String bucket, String key, String uploadId, int partNumber,
+				S3MultipartUploader.ContentSource content, long length) throws IOException {
+			var upRequest = UploadPartRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.partNumber(partNumber)
+				.contentLength(length)
+				.build();
+			return joinRequest(s3Client.uploadPart(upRequest, AsyncRequestBody.fromBytes(
+					readFully(content, length)))
+				.thenApply(UploadPartResponse::eTag));
+		}
+
+		@Override
+		public String uploadPartCopy(String bucket, String key, String uploadId,
+				int partNumber, String copySource) throws IOException {
+			var upcRequest = UploadPartCopyRequest.builder()
+				.copySource(copySource)
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.partNumber(partNumber)
+				.build();
+			return joinRequest(s3Client.uploadPartCopy(upcRequest)
+				.thenApply(response -> response.copyPartResult().eTag()));
+		}
+
+		@Override
+		public void completeMultipartUpload(String bucket, String key, String uploadId,
+				List<CompletedPart> parts) throws IOException {
+			var cmuRequest = CompleteMultipartUploadRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.multipartUpload(CompletedMultipartUpload.builder()
+					.parts(parts)
+					.build())
+				.build();
+			joinRequest(s3Client.completeMultipartUpload(cmuRequest));
+		}
+
+		@Override
+		public void abortMultipartUpload(String bucket, String key, String uploadId)
+				throws IOException {
+			var amuRequest = AbortMultipartUploadRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.build();
+			joinRequest(s3Client.abortMultipartUpload(amuRequest));
+		}
+
+		// A part is at most S3MultipartUploader.MAX_PART_SIZE, so it fits in an array:
+		// The bytes are replayable, so the client's own retries send all of them:
+		private byte[] readFully(S3MultipartUploader.ContentSource source, long length)
+				throws IOException {
+			try (var is = source.open()) {
+				var content = is.readNBytes((int) length);
+				if (content.length != length) {
+					throw new EOFException(String.format(
+						"Uploaded file ended after %1$d of %2$d bytes", content.length, length));
+				}
+				return content;
+			}
+		}
+
+		// Rethrows what S3 reported, so that the uploader can tell what to retry:
+		private <T> T joinRequest(CompletableFuture<T> future) throws IOException {
+			try {
+				return future.join();
+			} catch (CompletionException ex) {
+				if (ex.getCause() instanceof SdkException sdkEx) {
+					throw sdkEx;
+				} else if (ex.getCause() instanceof IOException ioEx) {
+					throw ioEx;
+				}
+				throw ex;
+			}
+		}
+	}
+
+	private static void checkResponse(PutObjectResponse response, String what) {
+		if (!response.sdkHttpResponse().isSuccessful()) {
+			throw new CompletionException(new IOException(String.format(
+				"Unable to transfer %1$s to S3, status code %2$d",
+				what, response.sdkHttpResponse().statusCode())));
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future, String errMsg)
+			throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof IOException ioEx) {
+				throw ioEx;
+			}
+			throw new IOException(errMsg, ex.getCause());
+		}
+	}
+
+	private static void deleteTempFile(Path tempPath) {
+		try {
+			Files.deleteIfExists(tempPath);
+		} catch (IOException ex) {
+			LOG.warn("Unable to delete temporary file '{}'", tempPath);
+		}
+	}
+}
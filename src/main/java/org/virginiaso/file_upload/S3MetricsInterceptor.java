@@ -0,0 +1,63 @@
+package org.virginiaso.file_upload;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+
+/**
+ * Times every call that an S3 client makes, as the timer fileupload.s3.requests
+ * tagged with the operation (such as PutObject) and its outcome (success or
+ * error). Because it is installed on the client, it also covers the calls made
+ * by S3MultipartUploader. A call's time includes the SDK's retries.
+ */
+final class S3MetricsInterceptor implements ExecutionInterceptor {
+	private static final ExecutionAttribute<Long> START_NANOS =
+		new ExecutionAttribute<>("fileupload.s3.startNanos");
+
+	private final MeterRegistry registry;
+
+	public S3MetricsInterceptor(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void beforeExecution(Context.BeforeExecution context,
+		ExecutionAttributes executionAttributes) {
+		executionAttributes.putAttribute(START_NANOS, System.nanoTime());
+	}
+
+	@Override
+	public void afterExecution(Context.AfterExecution context,
+		ExecutionAttributes executionAttributes) {
+		record(executionAttributes, context.httpResponse().isSuccessful()
+			? "success"
+			: "error");
+	}
+
+	@Override
+	public void onExecutionFailure(Context.FailedExecution context,
+		ExecutionAttributes executionAttributes) {
+		record(executionAttributes, "error");
+	}
+
+	private void record(ExecutionAttributes executionAttributes, String outcome) {
+		var startNanos = executionAttributes.getAttribute(START_NANOS);
+		if (startNanos == null) {
+			return;
+		}
+		var operation = executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME);
+		Timer.builder("fileupload.s3.requests")
+			.description("Latency and outcome of S3 calls")
+			.tag("operation", (operation == null) ? "unknown" : operation)
+			.tag("outcome", outcome)
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,606 @@
+package org.virginiaso.file_upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.ContentStreamProvider;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * Sends content to S3 as a multipart upload, with the parts uploaded
+ * concurrently. At most maxPartsInFlight parts of one upload are in flight at
+ * once, a failed part is retried on its own, and if the upload cannot be
+ * completed it is aborted so that S3 does not keep the orphaned parts.
+ *
+ * Content that can be read again, such as a file already spooled to disk, is
+ * sent a part at a time straight from its source. A stream that can be read
+ * only once is read sequentially into part buffers, and all the uploads that
+ * share this uploader together buffer no more than maxBufferedBytes, so that a
+ * few large uploads at once cannot exhaust the heap. Objects already in the
+ * bucket are joined by S3 itself, with each object copied as one part.
+ */
+final class S3MultipartUploader {
+	static final int MIB = 1024 * 1024;
+	static final int MIN_PART_SIZE = 8 * MIB;		// S3's minimum is 5 MiB
+	static final int MAX_PART_SIZE = 64 * MIB;
+	static final int MAX_NUM_PARTS = 10_000;		// S3's limit
+	static final int TARGET_NUM_PARTS = 256;
+
+	private static final Logger LOG = LoggerFactory.getLogger(S3MultipartUploader.class);
+
+	/**
+	 * The S3 requests that an upload makes, so that the uploader can work
+	 * through either the blocking or the asynchronous client. A request that S3
+	 * rejects throws an SdkException. Content is passed as a ContentSource, so
+	 * that a client that retries a request by itself sends all of it again.
+	 */
+	interface S3Requests {
+		void putObject(String bucket, String key, ContentSource content, long length)
+			throws IOException;
+
+		String createMultipartUpload(String bucket, String key) throws IOException;
+
+		/** @return The ETag of the part */
+		String uploadPart(String bucket, String key, String uploadId, int partNumber,
+			ContentSource content, long length) throws IOException;
+
+		/** @return The ETag of the part, which S3 copies from another object */
+		String uploadPartCopy(String bucket, String key, String uploadId, int partNumber,
+			String copySource) throws IOException;
+
+		void completeMultipartUpload(String bucket, String key, String uploadId,
+			List<CompletedPart> parts) throws IOException;
+
+		void abortMultipartUpload(String bucket, String key, String uploadId)
+			throws IOException;
+	}
+
+	/** Content that can be read again from the start, such as a file on disk. */
+	@FunctionalInterface
+	interface ContentSource {
+		InputStream open() throws IOException;
+	}
+
+	// One part, which is opened afresh for each attempt to upload it, or which S3
+	// copies from the object named by copySource:
+	private record Part(long length, ContentSource content, int bufferPermits,
+		String copySource) {
+		Part(long length, ContentSource content, int bufferPermits) {
+			this(length, content, bufferPermits, null);
+		}
+	}
+
+	// Produces the parts of an upload in order, and then null:
+	private interface PartReader {
+		Part next() throws IOException;
+
+		// Gives back anything held for a part that was read but not returned:
+		default void close() {
+		}
+	}
+
+	private final S3Requests s3Requests;
+	private final ExecutorService executor;
+	private final int maxPartsInFlight;
+	private final int maxAttemptsPerPart;
+	// One permit per MiB of part buffers, shared by all uploads:
+	private final int maxBufferPermits;
+	private final Semaphore bufferPermits;
+
+	public S3MultipartUploader(S3Client s3Client, ExecutorService executor,
+		int maxPartsInFlight, int maxAttemptsPerPart, long maxBufferedBytes) {
+		this(new BlockingS3Requests(s3Client), executor, maxPartsInFlight, maxAttemptsPerPart,
+			maxBufferedBytes);
+	}
+
+	public S3MultipartUploader(S3Requests s3Requests, ExecutorService executor,
+		int maxPartsInFlight, int maxAttemptsPerPart, long maxBufferedBytes) {
+		this.s3Requests = Objects.requireNonNull(s3Requests, "s3Requests");
+		this.executor = Objects.requireNonNull(executor, "executor");
+		this.maxPartsInFlight = Math.max(maxPartsInFlight, 1);
+		this.maxAttemptsPerPart = Math.max(maxAttemptsPerPart, 1);
+		maxBufferPermits = (int) Math.min(Math.max(maxBufferedBytes / MIB, 1),
+			Integer.MAX_VALUE);
+		bufferPermits = new Semaphore(maxBufferPermits, true);
+	}
+
+	/**
+	 * Chooses a part size that yields about TARGET_NUM_PARTS parts, rounded up to
+	 * a whole MiB, but no smaller than MIN_PART_SIZE and no larger than
+	 * MAX_PART_SIZE unless needed to stay within S3's limit on the number of parts.
+	 *
+	 * @param size The size of the file, or a negative number if unknown
+	 * @return The part size in bytes
+	 */
+	static int choosePartSize(long size) {
+		if (size < 0) {
+			return MIN_PART_SIZE;
+		}
+		var partSize = Math.min(ceilDiv(size, TARGET_NUM_PARTS), MAX_PART_SIZE);
+		partSize = Math.max(partSize, ceilDiv(size, MAX_NUM_PARTS));
+		partSize = Math.max(partSize, MIN_PART_SIZE);
+		return (int) Math.min(ceilDiv(partSize, MIB) * MIB, Integer.MAX_VALUE);
+	}
+
+	private static long ceilDiv(long dividend, long divisor) {
+		return (dividend + divisor - 1) / divisor;
+	}
+
+	/** @return The part buffer space not in use by any upload */
+	long getAvailableBufferBytes() {
+		return (long) bufferPermits.availablePermits() * MIB;
+	}
+
+	/**
+	 * Uploads a stream to the given key, reading it into part buffers as the
+	 * buffer budget allows. If the stream turns out to fit in a single part, it
+	 * is sent with one ordinary PUT instead.
+	 *
+	 * @param bucket The destination bucket
+	 * @param key    The destination key
+	 * @param is     The content to upload. The caller closes it.
+	 * @param size   The length of the stream, or a negative number if unknown
+	 * @throws IOException if the upload fails
+	 */
+	public void upload(String bucket, String key, InputStream is, long size)
+			throws IOException {
+		var partSize = choosePartSize(size);
+		var firstPart = readPart(is, partSize);
+		if (firstPart.length() < partSize) {
+			try {
+				putSinglePart(bucket, key, firstPart.content(), firstPart.length());
+			} finally {
+				releaseBuffer(firstPart);
+			}
+			return;
+		}
+
+		uploadParts(bucket, key, new PartReader() {
+			private Part nextPart = firstPart;
+			private boolean isAtEnd = false;
+
+			@Override
+			public Part next() throws IOException {
+				if (nextPart == null && !isAtEnd) {
+					nextPart = readPart(is, partSize);
+				}
+				var part = nextPart;
+				nextPart = null;
+				if (part == null) {
+					return null;
+				}
+				isAtEnd = part.length() < partSize;
+				if (part.length() == 0) {
+					releaseBuffer(part);
+					return null;
+				}
+				return part;
+			}
+
+			@Override
+			public void close() {
+				if (nextPart != null) {
+					releaseBuffer(nextPart);
+					nextPart = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Uploads content that can be read again to the given key. Each part is read
+	 * straight from the source as it is sent, so nothing is buffered in memory.
+	 *
+	 * @param bucket The destination bucket
+	 * @param key    The destination key
+	 * @param source The content to upload
+	 * @param size   The length of the content
+	 * @throws IOException if the upload fails
+	 */
+	public void upload(String bucket, String key, ContentSource source, long size)
+			throws IOException {
+		var partSize = choosePartSize(size);
+		if (size <= partSize) {
+			putSinglePart(bucket, key, () -> openSlice(source, 0, size), size);
+			return;
+		}
+
+		uploadParts(bucket, key, new PartReader() {
+			private long offset = 0;
+
+			@Override
+			public Part next() {
+				if (offset >= size) {
+					return null;
+				}
+				var partOffset = offset;
+				var partLength = Math.min(partSize, size - offset);
+				offset += partLength;
+				return new Part(partLength, () -> openSlice(source, partOffset, partLength), 0);
+			}
+		});
+	}
+
+	/**
+	 * Joins objects in the same bucket, in order, into one object at the given
+	 * key. S3 copies each object as one part of a multipart upload, so none of
+	 * the content passes through this server. As with any multipart upload,
+	 * every object but the last must be at least 5 MiB long, and none may be
+	 * longer than 5 GiB.
+	 *
+	 * @param bucket      The destination bucket
+	 * @param key         The destination key
+	 * @param copySources The objects to join, each as the value of a CopySource
+	 * @throws IOException if the copy fails
+	 */
+	public void copy(String bucket, String key, List<String> copySources)
+			throws IOException {
+		var sources = copySources.iterator();
+		uploadParts(bucket, key, () -> sources.hasNext()
+			? new Part(-1, null, 0, sources.next())
+			: null);
+	}
+
+	private Part readPart(InputStream is, int partSize) throws IOException {
+		var permits = (int) Math.min(ceilDiv(partSize, MIB), maxBufferPermits);
+		try {
+			bufferPermits.acquire(permits);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for an upload buffer");
+		}
+		try {
+			var content = is.readNBytes(partSize);
+			return new Part(content.length, () -> new ByteArrayInputStream(content), permits);
+		} catch (IOException | RuntimeException ex) {
+			bufferPermits.release(permits);
+			throw ex;
+		}
+	}
+
+	private void releaseBuffer(Part part) {
+		if (part.bufferPermits() > 0) {
+			bufferPermits.release(part.bufferPermits());
+		}
+	}
+
+	private static InputStream openSlice(ContentSource source, long offset, long length)
+			throws IOException {
+		var is = source.open();
+		try {
+			is.skipNBytes(offset);
+		} catch (IOException | RuntimeException ex) {
+			is.close();
+			throw ex;
+		}
+		return new BoundedInputStream(is, length);
+	}
+
+	private void uploadParts(String bucket, String key, PartReader partReader)
+			throws IOException {
+		String uploadId;
+		try {
+			uploadId = s3Requests.createMultipartUpload(bucket, key);
+		} catch (SdkException ex) {
+			partReader.close();
+			throw new IOException("Unable to start multipart upload to S3:", ex);
+		} catch (IOException | RuntimeException ex) {
+			partReader.close();
+			throw ex;
+		}
+
+		var startTime = System.currentTimeMillis();
+		var permits = new Semaphore(maxPartsInFlight);
+		List<CompletableFuture<CompletedPart>> futures = new ArrayList<>();
+		try {
+			for (var partNumber = 1;; ++partNumber) {
+				permits.acquire();
+				// Stop reading as soon as any part has failed for good:
+				var failure = futures.stream()
+					.filter(CompletableFuture::isCompletedExceptionally)
+					.findFirst();
+				if (failure.isPresent()) {
+					permits.release();
+					failure.get().join();
+				}
+
+				Part part;
+				try {
+					part = partReader.next();
+				} catch (IOException | RuntimeException ex) {
+					permits.release();
+					throw ex;
+				}
+				if (part == null) {
+					permits.release();
+					break;
+				}
+				var currentPartNumber = partNumber;
+				futures.add(CompletableFuture
+					.supplyAsync(() -> uploadPart(bucket, key, uploadId, currentPartNumber,
+						part), executor)
+					.whenComplete((completedPart, ex) -> {
+						releaseBuffer(part);
+						permits.release();
+					}));
+			}
+
+			List<CompletedPart> completedParts = futures.stream()
+				.map(CompletableFuture::join)
+				.collect(Collectors.toList());
+			s3Requests.completeMultipartUpload(bucket, key, uploadId, completedParts);
+			LOG.debug("Uploaded {} in {} parts in {} ms", key, completedParts.size(),
+				System.currentTimeMillis() - startTime);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			abort(bucket, key, uploadId, futures);
+			throw new InterruptedIOException("Interrupted during multipart upload to S3");
+		} catch (CompletionException ex) {
+			abort(bucket, key, uploadId, futures);
+			throw new IOException("Unable to upload part to S3:", ex.getCause());
+		} catch (SdkException ex) {
+			abort(bucket, key, uploadId, futures);
+			throw new IOException("Unable to complete multipart upload to S3:", ex);
+		} catch (IOException | RuntimeException ex) {
+			abort(bucket, key, uploadId, futures);
+			throw ex;
+		} finally {
+			partReader.close();
+		}
+	}
+
+	private void putSinglePart(String bucket, String key, ContentSource content, long length)
+			throws IOException {
+		try {
+			s3Requests.putObject(bucket, key, content, length);
+		} catch (SdkException ex) {
+			throw new IOException("Unable to transfer uploaded file to S3:", ex);
+		}
+	}
+
+	private CompletedPart uploadPart(String bucket, String key, String uploadId,
+			int partNumber, Part part) {
+		for (var attempt = 1;; ++attempt) {
+			try {
+				var eTag = (part.copySource() != null)
+					? s3Requests.uploadPartCopy(bucket, key, uploadId, partNumber,
+						part.copySource())
+					: s3Requests.uploadPart(bucket, key, uploadId, partNumber, part.content(),
+						part.length());
+				return CompletedPart.builder()
+					.partNumber(partNumber)
+					.eTag(eTag)
+					.build();
+			} catch (IOException | SdkException ex) {
+				if (attempt >= maxAttemptsPerPart) {
+					throw (ex instanceof SdkException sdkEx)
+						? sdkEx
+						: SdkClientException.create("Unable to read part " + partNumber, ex);
+				}
+				LOG.warn("Attempt {} to upload part {} of {} failed, retrying: {}",
+					attempt, partNumber, key, ex.getMessage());
+				try {
+					Thread.sleep(500L * attempt);
+				} catch (InterruptedException interruptedEx) {
+					Thread.currentThread().interrupt();
+					throw SdkClientException.create("Interrupted uploading part " + partNumber, ex);
+				}
+			}
+		}
+	}
+
+	private void abort(String bucket, String key, String uploadId,
+			List<CompletableFuture<CompletedPart>> futures) {
+		// Let the parts in flight finish, so that none lands after the abort and each
+		// gives back its buffer:
+		CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+			.handle((result, ex) -> null)
+			.join();
+		try {
+			s3Requests.abortMultipartUpload(bucket, key, uploadId);
+			LOG.info("Aborted multipart upload of {}", key);
+		} catch (IOException | SdkException ex) {
+			LOG.error(String.format("Unable to abort multipart upload %1$s of %2$s:",
+				uploadId, key), ex);
+		}
+	}
+
+	record BlockingS3Requests(S3Client s3Client) implements S3Requests {
+		private static final String CONTENT_TYPE = "application/octet-stream";
+
+		BlockingS3Requests {
+			Objects.requireNonNull(s3Client, "s3Client");
+		}
+
+		@Override
+		public void putObject(String bucket, String key, ContentSource content, long length)
+				throws IOException {
+			var poRequest = PutObjectRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.build();
+			try (var provider = new ReopeningContentProvider(content)) {
+				var response = s3Client.putObject(poRequest, RequestBody.fromContentProvider(
+					provider, length, CONTENT_TYPE));
+				if (!response.sdkHttpResponse().isSuccessful()) {
+					throw new IOException(String.format(
+						"Unable to transfer uploaded file to S3, status code %1$d",
+						response.sdkHttpResponse().statusCode()));
+				}
+			}
+		}
+
+		@Override
+		public String createMultipartUpload(String bucket, String key) {
+			var cmuRequest = CreateMultipartUploadRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.build();
+			return s3Client.createMultipartUpload(cmuRequest).uploadId();
+		}
+
+		@Override
+		public String uploadPart(String bucket, String key, String uploadId, int partNumber,
+				ContentSource content, long length) throws IOException {
+			var upRequest = UploadPartRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.partNumber(partNumber)
+				.contentLength(length)
+				.build();
+			try (var provider = new ReopeningContentProvider(content)) {
+				return s3Client.uploadPart(upRequest, RequestBody.fromContentProvider(
+					provider, length, CONTENT_TYPE)).eTag();
+			}
+		}
+
+		@Override
+		public String uploadPartCopy(String bucket, String key, String uploadId,
+				int partNumber, String copySource) {
+			var upcRequest = UploadPartCopyRequest.builder()
+				.copySource(copySource)
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.partNumber(partNumber)
+				.build();
+			return s3Client.uploadPartCopy(upcRequest).copyPartResult().eTag();
+		}
+
+		@Override
+		public void completeMultipartUpload(String bucket, String key, String uploadId,
+				List<CompletedPart> parts) {
+			var cmuRequest = CompleteMultipartUploadRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.multipartUpload(CompletedMultipartUpload.builder()
+					.parts(parts)
+					.build())
+				.build();
+			s3Client.completeMultipartUpload(cmuRequest);
+		}
+
+		@Override
+		public void abortMultipartUpload(String bucket, String key, String uploadId) {
+			var amuRequest = AbortMultipartUploadRequest.builder()
+				.bucket(bucket)
+				.key(key)
+				.uploadId(uploadId)
+				.build();
+			s3Client.abortMultipartUpload(amuRequest);
+		}
+	}
+
+	/*
+	 * Opens the content afresh each time the client asks for it, as it does for
+	 * each attempt to send a request, and closes every stream it opened.
+	 */
+	private static final class ReopeningContentProvider
+			implements ContentStreamProvider, AutoCloseable {
+		private final ContentSource content;
+		private final List<InputStream> streams;
+
+		ReopeningContentProvider(ContentSource content) {
+			this.content = content;
+			streams = new ArrayList<>();
+		}
+
+		@Override
+		public synchronized InputStream newStream() {
+			try {
+				var is = content.open();
+				streams.add(is);
+				return is;
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			for (var is : streams) {
+				is.close();
+			}
+			streams.clear();
+		}
+	}
+
+	// Reads no more than a given number of bytes from the underlying stream:
+	private static final class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			var b = super.read();
+			if (b >= 0) {
+				--remaining;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			var n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			var skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
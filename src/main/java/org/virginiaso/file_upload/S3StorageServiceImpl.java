@@ -4,53 +4,76 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 import org.virginiaso.file_upload.util.FileUtil;
-import org.virginiaso.file_upload.util.S3Uri;
 
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import io.micrometer.core.instrument.MeterRegistry;
 import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 @Service("s3StorageService")
-public class S3StorageServiceImpl implements StorageService {
+@ConditionalOnProperty(name = "fileUpload.aws-s3.asyncClient", havingValue = "false",
+	matchIfMissing = true)
+public class S3StorageServiceImpl extends AbstractS3StorageService {
 	private static final Logger LOG = LoggerFactory.getLogger(S3StorageServiceImpl.class);
 
-	private final S3Uri submissionRoot;
+	private final long multipartThreshold;
 	private S3Client s3Client;
 
 	public S3StorageServiceImpl(
-		@Value("${fileUpload.aws-s3.submissionRoot}") String submissionRootUri) {
-		submissionRoot = new S3Uri(submissionRootUri);
+		@Value("${fileUpload.aws-s3.submissionRoot}") String submissionRootUri,
+		@Value("${fileUpload.aws-s3.journalRoot}") String journalRoot,
+		@Value("${fileUpload.aws-s3.endpoint:}") String endpoint,
+		@Value("${fileUpload.aws-s3.multipartThreshold:64MB}") DataSize multipartThreshold,
+		@Value("${fileUpload.aws-s3.multipartConcurrency:4}") int multipartConcurrency,
+		@Value("${fileUpload.aws-s3.multipartPartAttempts:3}") int multipartPartAttempts,
+		@Value("${fileUpload.aws-s3.multipartBufferLimit:128MB}") DataSize multipartBufferLimit,
+		MeterRegistry meterRegistry) {
+		super(submissionRootUri, journalRoot, endpoint, multipartConcurrency,
+			multipartPartAttempts, multipartBufferLimit.toBytes(), meterRegistry);
+		this.multipartThreshold = multipartThreshold.toBytes();
 	}
 
 	@PostConstruct
+	@Override
 	public void initialize() {
-		s3Client = S3Client.builder()
-			.credentialsProvider(DefaultCredentialsProvider.create())
-			.region(DefaultAwsRegionProviderChain.builder().build().getRegion())
-			.build();
+		s3Client = configureClient(S3Client.builder()).build();
 
 		HeadBucketRequest hbRequest = HeadBucketRequest.builder()
 			.bucket(submissionRoot.getBucket())
 			.build();
-		if (s3Client.headBucket(hbRequest).sdkHttpResponse().isSuccessful()) {
+		if (bucketExists(hbRequest)) {
 			LOG.info("Bucket '{}' exists", submissionRoot.getBucket());
 		} else {
 			var cbRequest = CreateBucketRequest.builder()
@@ -64,16 +87,36 @@ public class S3StorageServiceImpl implements StorageService {
 			}
 			LOG.info("Created bucket '{}'", submissionRoot.getBucket());
 		}
+		super.initialize();
+	}
+
+	@Override
+	protected S3MultipartUploader.S3Requests newMultipartRequests() {
+		return new S3MultipartUploader.BlockingS3Requests(s3Client);
+	}
+
+	// HeadBucket reports a missing bucket by throwing, at least on S3-compatible servers:
+	private boolean bucketExists(HeadBucketRequest hbRequest) {
+		try {
+			return s3Client.headBucket(hbRequest).sdkHttpResponse().isSuccessful();
+		} catch (S3Exception ex) {
+			if (ex.statusCode() != 404) {
+				throw ex;
+			}
+			return false;
+		}
 	}
 
 	@PreDestroy
+	@Override
 	public void cleanup() {
+		super.cleanup();
 		s3Client.close();
 	}
 
 	@Override
 	public InputStream getSubmissionTableAsInputStream(String submissionTableFileName)
-			throws FileNotFoundException {
+			throws IOException {
 		try {
 			var request = GetObjectRequest.builder()
 				.bucket(submissionRoot.getBucket())
@@ -82,20 +125,11 @@ public class S3StorageServiceImpl implements StorageService {
 			return s3Client.getObject(request);
 		} catch (NoSuchKeyException ex) {
 			throw new FileNotFoundException(ex.getMessage());
+		} catch (SdkException ex) {
+			throw new IOException("Unable to read submission table from S3:", ex);
 		}
 	}
 
-	@Override
-	public File getTempSubmissionTableFile(String submissionTableFileName)
-			throws IOException {
-		var submissionTableFile = new File(submissionTableFileName);
-		Pair<String, String> stemExt = FileUtil.getStemExtPair(
-			submissionTableFile.getName());
-		var tempFile = File.createTempFile(stemExt.getLeft(), "." + stemExt.getRight());
-		LOG.debug("Temporary submission table file: '{}'", tempFile.getPath());
-		return tempFile;
-	}
-
 	@Override
 	public void transferTempSubmissionTableFile(File tempSubmissionTableFile,
 		String submissionTableFileName) throws IOException {
@@ -121,8 +155,14 @@ public class S3StorageServiceImpl implements StorageService {
 	public void transferUploadedFile(MultipartFile file, String eventDirName,
 		String newFileName) throws IOException {
 
-		var newFileKey = String.format("%1$s/%2$s/%3$s",
-			submissionRoot.getKey(), eventDirName, newFileName);
+		var newFileKey = getUploadedFileKey(eventDirName, newFileName);
+		if (file.getSize() >= multipartThreshold) {
+			// Each part is read from the spooled file as it is sent:
+			getMultipartUploader().upload(submissionRoot.getBucket(), newFileKey,
+				file::getInputStream, file.getSize());
+			return;
+		}
+
 		var poRequest = PutObjectRequest.builder()
 			.bucket(submissionRoot.getBucket())
 			.key(newFileKey)
@@ -140,7 +180,224 @@ public class S3StorageServiceImpl implements StorageService {
 		}
 	}
 
-	private String getSubmissionTableKey(String submissionTableFileName) {
-		return String.format("%1$s/%2$s", submissionRoot.getKey(), submissionTableFileName);
+	@Override
+	public void transferUploadedFile(InputStream is, long size, String eventDirName,
+		String newFileName) throws IOException {
+
+		// The multipart uploader falls back to a single PUT for small content:
+		getMultipartUploader().upload(submissionRoot.getBucket(),
+			getUploadedFileKey(eventDirName, newFileName), is, size);
+	}
+
+	@Override
+	public InputStream getUploadedFileAsInputStream(String eventDirName, String fileName)
+			throws IOException {
+		try {
+			var request = GetObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadedFileKey(eventDirName, fileName))
+				.build();
+			return s3Client.getObject(request);
+		} catch (NoSuchKeyException ex) {
+			throw new FileNotFoundException(ex.getMessage());
+		} catch (SdkException ex) {
+			throw new IOException("Unable to read uploaded file from S3:", ex);
+		}
+	}
+
+	@Override
+	public void deleteUploadedFile(String eventDirName, String fileName) throws IOException {
+		try {
+			var doRequest = DeleteObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadedFileKey(eventDirName, fileName))
+				.build();
+			s3Client.deleteObject(doRequest);
+		} catch (SdkException ex) {
+			throw new IOException("Unable to delete uploaded file from S3:", ex);
+		}
+	}
+
+	@Override
+	protected Optional<String> getObjectAsString(String key) throws IOException {
+		try {
+			var goRequest = GetObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(key)
+				.build();
+			return Optional.of(s3Client.getObjectAsBytes(goRequest).asString(FileUtil.CHARSET));
+		} catch (NoSuchKeyException ex) {
+			return Optional.empty();
+		} catch (SdkException ex) {
+			throw new IOException("Unable to read object from S3:", ex);
+		}
+	}
+
+	@Override
+	protected OptionalLong getObjectSize(String key) throws IOException {
+		try {
+			var hoRequest = HeadObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(key)
+				.build();
+			return OptionalLong.of(s3Client.headObject(hoRequest).contentLength());
+		} catch (S3Exception ex) {
+			if (ex.statusCode() != 404) {
+				throw new IOException("Unable to look up object in S3:", ex);
+			}
+			return OptionalLong.empty();
+		} catch (SdkException ex) {
+			throw new IOException("Unable to look up object in S3:", ex);
+		}
+	}
+
+	@Override
+	protected void putObject(String key, String content) throws IOException {
+		try {
+			var poRequest = PutObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(key)
+				.build();
+			s3Client.putObject(poRequest, RequestBody.fromString(content, FileUtil.CHARSET));
+		} catch (SdkException ex) {
+			throw new IOException("Unable to write object to S3:", ex);
+		}
+	}
+
+	@Override
+	protected void copyObject(String sourceKey, String destinationKey) throws IOException {
+		try {
+			var coRequest = CopyObjectRequest.builder()
+				.copySource(getCopySource(sourceKey))
+				.destinationBucket(submissionRoot.getBucket())
+				.destinationKey(destinationKey)
+				.build();
+			s3Client.copyObject(coRequest);
+		} catch (SdkException ex) {
+			throw new IOException("Unable to copy object in S3:", ex);
+		}
+	}
+
+	@Override
+	public String createMultipartUpload(String eventDirName, String fileName)
+			throws IOException {
+		try {
+			var cmuRequest = CreateMultipartUploadRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadedFileKey(eventDirName, fileName))
+				.build();
+			return s3Client.createMultipartUpload(cmuRequest).uploadId();
+		} catch (SdkException ex) {
+			throw new IOException("Unable to start direct upload to S3:", ex);
+		}
+	}
+
+	@Override
+	public List<UploadedPart> listParts(String eventDirName, String fileName,
+		String uploadId) throws IOException {
+		try {
+			var lpRequest = ListPartsRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadedFileKey(eventDirName, fileName))
+				.uploadId(uploadId)
+				.build();
+			return s3Client.listPartsPaginator(lpRequest).parts().stream()
+				.map(part -> new UploadedPart(part.partNumber(), part.size(), part.eTag()))
+				.collect(Collectors.toList());
+		} catch (SdkException ex) {
+			throw new IOException("Unable to list parts of direct upload to S3:", ex);
+		}
+	}
+
+	@Override
+	public long completeMultipartUpload(String eventDirName, String fileName,
+		String uploadId, List<UploadedPart> parts) throws IOException {
+		var key = getUploadedFileKey(eventDirName, fileName);
+		try {
+			var cmuRequest = CompleteMultipartUploadRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(key)
+				.uploadId(uploadId)
+				.multipartUpload(CompletedMultipartUpload.builder()
+					.parts(parts.stream()
+						.map(part -> CompletedPart.builder()
+							.partNumber(part.partNumber())
+							.eTag(part.eTag())
+							.build())
+						.collect(Collectors.toList()))
+					.build())
+				.build();
+			s3Client.completeMultipartUpload(cmuRequest);
+			var hoRequest = HeadObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(key)
+				.build();
+			return s3Client.headObject(hoRequest).contentLength();
+		} catch (SdkException ex) {
+			throw new IOException("Unable to complete direct upload to S3:", ex);
+		}
+	}
+
+	@Override
+	public void abortMultipartUpload(String eventDirName, String fileName,
+		String uploadId) throws IOException {
+		try {
+			var amuRequest = AbortMultipartUploadRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadedFileKey(eventDirName, fileName))
+				.uploadId(uploadId)
+				.build();
+			s3Client.abortMultipartUpload(amuRequest);
+		} catch (SdkException ex) {
+			throw new IOException("Unable to abort direct upload to S3:", ex);
+		}
+	}
+
+	@Override
+	public void storeUploadChunk(String sessionId, String chunkName, InputStream is,
+		long size) throws IOException {
+		try {
+			var poRequest = PutObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadChunkKey(sessionId, chunkName))
+				.build();
+			var response = s3Client.putObject(poRequest, RequestBody.fromInputStream(is, size));
+			if (!response.sdkHttpResponse().isSuccessful()) {
+				throw new IOException(String.format(
+					"Unable to store upload chunk in S3, status code %1$d",
+					response.sdkHttpResponse().statusCode()));
+			}
+		} catch (SdkException ex) {
+			throw new IOException("Unable to store upload chunk in S3:", ex);
+		}
+	}
+
+	@Override
+	public InputStream getUploadChunkAsInputStream(String sessionId, String chunkName)
+			throws IOException {
+		try {
+			var request = GetObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadChunkKey(sessionId, chunkName))
+				.build();
+			return s3Client.getObject(request);
+		} catch (NoSuchKeyException ex) {
+			throw new FileNotFoundException(ex.getMessage());
+		} catch (SdkException ex) {
+			throw new IOException("Unable to read upload chunk from S3:", ex);
+		}
+	}
+
+	@Override
+	public void deleteUploadChunk(String sessionId, String chunkName) throws IOException {
+		try {
+			var doRequest = DeleteObjectRequest.builder()
+				.bucket(submissionRoot.getBucket())
+				.key(getUploadChunkKey(sessionId, chunkName))
+				.build();
+			s3Client.deleteObject(doRequest);
+		} catch (SdkException ex) {
+			throw new IOException("Unable to delete upload chunk from S3:", ex);
+		}
 	}
 }
@@ -0,0 +1,96 @@
+package org.virginiaso.file_upload;
+
+import java.net.URI;
+import java.time.Duration;
+
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.UploadPartPresignRequest;
+
+/**
+ * Signs S3 URLs that grant their bearer one operation on one object until they
+ * expire, so that clients transfer objects to and from S3 directly instead of
+ * through this server. Signing is a local computation; it makes no request.
+ */
+final class S3UrlPresigner implements AutoCloseable {
+	// The longest lifetime that S3 accepts for a signature:
+	static final Duration MAX_LIFETIME = Duration.ofDays(7);
+
+	private final String bucket;
+	private final S3Presigner presigner;
+
+	/**
+	 * @param bucket   The bucket holding the objects
+	 * @param endpoint An S3-compatible server other than AWS, or null
+	 */
+	public S3UrlPresigner(String bucket, String endpoint) {
+		this.bucket = bucket;
+		var builder = S3Presigner.builder()
+			.credentialsProvider(DefaultCredentialsProvider.create())
+			.region(DefaultAwsRegionProviderChain.builder().build().getRegion());
+		if (endpoint != null) {
+			builder
+				.endpointOverride(URI.create(endpoint))
+				.serviceConfiguration(S3Configuration.builder()
+					.pathStyleAccessEnabled(true)
+					.build());
+		}
+		presigner = builder.build();
+	}
+
+	/**
+	 * @param key      The object to download
+	 * @param fileName The name under which the browser saves the download
+	 * @param lifetime How long the URL is valid, at most seven days
+	 * @return A URL from which the object can be fetched without credentials
+	 */
+	public URI presignGet(String key, String fileName, Duration lifetime) {
+		var request = GetObjectRequest.builder()
+			.bucket(bucket)
+			.key(key)
+			.responseContentDisposition(String.format("attachment; filename=\"%1$s\"",
+				fileName))
+			.build();
+		var presignRequest = GetObjectPresignRequest.builder()
+			.signatureDuration(clampLifetime(lifetime))
+			.getObjectRequest(request)
+			.build();
+		return URI.create(presigner.presignGetObject(presignRequest).url().toString());
+	}
+
+	/**
+	 * @param key        The object being uploaded
+	 * @param uploadId   The multipart upload to which the part belongs
+	 * @param partNumber The one-based number of the part
+	 * @param lifetime   How long the URL is valid, at most seven days
+	 * @return A URL to which the part can be PUT without credentials
+	 */
+	public URI presignUploadPart(String key, String uploadId, int partNumber,
+		Duration lifetime) {
+		var request = UploadPartRequest.builder()
+			.bucket(bucket)
+			.key(key)
+			.uploadId(uploadId)
+			.partNumber(partNumber)
+			.build();
+		var presignRequest = UploadPartPresignRequest.builder()
+			.signatureDuration(clampLifetime(lifetime))
+			.uploadPartRequest(request)
+			.build();
+		return URI.create(presigner.presignUploadPart(presignRequest).url().toString());
+	}
+
+	@Override
+	public void close() {
+		presigner.close();
+	}
+
+	static Duration clampLifetime(Duration lifetime) {
+		return (lifetime.compareTo(MAX_LIFETIME) > 0) ? MAX_LIFETIME : lifetime;
+	}
+}
@@ -0,0 +1,630 @@
+package org.virginiaso.file_upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import org.virginiaso.file_upload.util.FileUtil;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Puts a durable spool on the local disk in front of the remote storage
+ * service. Uploaded files and submission tables are committed to the spool
+ * (and forced to disk) inside the request, and a pool of replicator threads
+ * then copies them to the remote storage service, retrying with backoff until
+ * each copy succeeds. Replicated files are removed from the spool; submission
+ * tables stay in it, because it holds their newest version.
+ *
+ * Whatever is in the spool at start-up is replicated again, so nothing is lost
+ * across a restart. When the spooled files would exceed maxBytes, new files
+ * bypass the spool and are written straight through to the remote service.
+ *
+ * When the spool is disabled, every call goes straight to the remote service.
+ */
+@Service("spoolingStorageService")
+public class SpoolingStorageServiceImpl implements StorageService, MeterBinder {
+	private static final Logger LOG = LoggerFactory.getLogger(SpoolingStorageServiceImpl.class);
+	private static final String TEMP_FILE_SUFFIX = ".spooltmp";
+	private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long PROGRESS_LOG_INTERVAL_SECONDS = 60;
+
+	@FunctionalInterface
+	private interface Replication {
+		void replicate() throws IOException;
+	}
+
+	@FunctionalInterface
+	private interface SpoolWriter {
+		void writeTo(File tempFile) throws IOException;
+	}
+
+	private static final class PendingItem {
+		private final String key;
+		private final long size;
+		private final long spooledAtMillis;
+		private final Replication replication;
+
+		// The following are guarded by the pending map:
+		private long generation;
+		private boolean isRunning;
+		private boolean isCancelled;
+		private int numFailures;
+
+		public PendingItem(String key, long size, Replication replication) {
+			this.key = key;
+			this.size = size;
+			spooledAtMillis = System.currentTimeMillis();
+			this.replication = replication;
+			generation = 0;
+			isRunning = false;
+			isCancelled = false;
+			numFailures = 0;
+		}
+	}
+
+	private final StorageService remoteStorageService;
+	private final boolean isEnabled;
+	private final File filesDir;
+	private final File tablesDir;
+	private final long maxSpooledBytes;
+	private final int numReplicationThreads;
+	private final AtomicLong spooledBytes;
+	private final AtomicLong numReplicated;
+	private final Map<String, PendingItem> pending;
+	private ScheduledExecutorService replicationExecutor;
+
+	/**
+	 * @param remoteStorageServiceName The bean name of the storage service to
+	 *                                 which the spool replicates, e.g.,
+	 *                                 s3StorageService (with either S3 client)
+	 *                                 or fileSystemStorageService
+	 */
+	@Autowired
+	public SpoolingStorageServiceImpl(BeanFactory beanFactory,
+		@Value("${fileUpload.spool.remoteStorageService:s3StorageService}")
+			String remoteStorageServiceName,
+		@Value("${fileUpload.spool.enabled:false}") boolean isEnabled,
+		@Value("${fileUpload.spool.dir:./upload-spool}") String spoolDir,
+		@Value("${fileUpload.spool.maxBytes:20GB}") DataSize maxSpooledBytes,
+		@Value("${fileUpload.spool.replicationThreads:4}") int numReplicationThreads) {
+		this(beanFactory.getBean(remoteStorageServiceName, StorageService.class), isEnabled,
+			spoolDir, maxSpooledBytes, numReplicationThreads);
+	}
+
+	public SpoolingStorageServiceImpl(StorageService remoteStorageService, boolean isEnabled,
+		String spoolDir, DataSize maxSpooledBytes, int numReplicationThreads) {
+		this.remoteStorageService = remoteStorageService;
+		this.isEnabled = isEnabled;
+		filesDir = new File(spoolDir, "files");
+		tablesDir = new File(spoolDir, "tables");
+		this.maxSpooledBytes = maxSpooledBytes.toBytes();
+		this.numReplicationThreads = Math.max(numReplicationThreads, 1);
+		spooledBytes = new AtomicLong(0);
+		numReplicated = new AtomicLong(0);
+		pending = new HashMap<>();
+		replicationExecutor = null;
+	}
+
+	@PostConstruct
+	public void initialize() throws IOException {
+		if (!isEnabled) {
+			return;
+		}
+		filesDir.mkdirs();
+		tablesDir.mkdirs();
+		replicationExecutor = Executors.newScheduledThreadPool(numReplicationThreads,
+			runnable -> {
+				var thread = new Thread(runnable, "spool-replicator");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+		// Resume the replication of whatever an earlier run left behind:
+		var numFiles = 0;
+		try (var eventDirs = Files.list(filesDir.toPath())) {
+			for (var eventDir : eventDirs.collect(Collectors.toList())) {
+				try (var files = Files.list(eventDir)) {
+					for (var file : files.collect(Collectors.toList())) {
+						if (!isTempFile(file)) {
+							var size = Files.size(file);
+							spooledBytes.addAndGet(size);
+							enqueueUploadedFile(eventDir.getFileName().toString(),
+								file.getFileName().toString(), size);
+							++numFiles;
+						}
+					}
+				}
+			}
+		}
+		var numTables = 0;
+		try (var tables = Files.walk(tablesDir.toPath())) {
+			for (var table : tables.collect(Collectors.toList())) {
+				if (Files.isRegularFile(table) && !isTempFile(table)) {
+					enqueueTable(tablesDir.toPath().relativize(table).toString()
+						.replace(File.separatorChar, '/'));
+					++numTables;
+				}
+			}
+		}
+		LOG.info("Resuming replication of {} files ({} bytes) and {} submission tables "
+			+ "found in the spool", numFiles, spooledBytes.get(), numTables);
+
+		replicationExecutor.scheduleWithFixedDelay(this::logProgress,
+			PROGRESS_LOG_INTERVAL_SECONDS, PROGRESS_LOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		if (replicationExecutor != null) {
+			replicationExecutor.shutdownNow();
+			LOG.info("Left {} items ({} bytes of files) in the spool for the next run",
+				getNumPendingReplications(), spooledBytes.get());
+		}
+	}
+
+	public boolean isEnabled() {
+		return isEnabled;
+	}
+
+	public int getNumPendingReplications() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/** @return How long the oldest unreplicated item has been waiting, or zero. */
+	public long getReplicationLagMillis() {
+		synchronized (pending) {
+			return pending.values().stream()
+				.mapToLong(item -> System.currentTimeMillis() - item.spooledAtMillis)
+				.max()
+				.orElse(0);
+		}
+	}
+
+	public long getSpooledBytes() {
+		return spooledBytes.get();
+	}
+
+	public long getNumReplicated() {
+		return numReplicated.get();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("fileupload.spool.pending", this,
+				SpoolingStorageServiceImpl::getNumPendingReplications)
+			.description("Items in the spool awaiting replication")
+			.register(registry);
+		Gauge.builder("fileupload.spool.lag", this,
+				SpoolingStorageServiceImpl::getReplicationLagMillis)
+			.description("How long the oldest unreplicated item has been waiting")
+			.baseUnit("milliseconds")
+			.register(registry);
+		Gauge.builder("fileupload.spool.size", this, SpoolingStorageServiceImpl::getSpooledBytes)
+			.description("Bytes of files in the spool")
+			.baseUnit("bytes")
+			.register(registry);
+		FunctionCounter.builder("fileupload.spool.replicated", this,
+				SpoolingStorageServiceImpl::getNumReplicated)
+			.description("Items replicated to the remote storage service")
+			.register(registry);
+	}
+
+	@Override
+	public InputStream getSubmissionTableAsInputStream(String submissionTableFileName)
+			throws IOException {
+		var spooledTable = getSpooledTableFile(submissionTableFileName);
+		return (isEnabled && spooledTable.isFile())
+			? new FileInputStream(spooledTable)
+			: remoteStorageService.getSubmissionTableAsInputStream(submissionTableFileName);
+	}
+
+	@Override
+	public File getTempSubmissionTableFile(String submissionTableFileName)
+			throws IOException {
+		if (!isEnabled) {
+			return remoteStorageService.getTempSubmissionTableFile(submissionTableFileName);
+		}
+		var spooledTable = getSpooledTableFile(submissionTableFileName);
+		spooledTable.getParentFile().mkdirs();
+		Pair<String, String> stemExt = FileUtil.getStemExtPair(spooledTable.getName());
+		return File.createTempFile(stemExt.getLeft(), TEMP_FILE_SUFFIX,
+			spooledTable.getParentFile());
+	}
+
+	@Override
+	public void transferTempSubmissionTableFile(File tempSubmissionTableFile,
+		String submissionTableFileName) throws IOException {
+		if (!isEnabled) {
+			remoteStorageService.transferTempSubmissionTableFile(tempSubmissionTableFile,
+				submissionTableFileName);
+			return;
+		}
+		FileUtil.forceToDisk(tempSubmissionTableFile);
+		Files.move(tempSubmissionTableFile.toPath(),
+			getSpooledTableFile(submissionTableFileName).toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		enqueueTable(submissionTableFileName);
+	}
+
+	@Override
+	public CompletableFuture<Void> transferTempSubmissionTableFileAsync(
+		File tempSubmissionTableFile, String submissionTableFileName) {
+		return isEnabled
+			? StorageService.super.transferTempSubmissionTableFileAsync(
+				tempSubmissionTableFile, submissionTableFileName)
+			: remoteStorageService.transferTempSubmissionTableFileAsync(
+				tempSubmissionTableFile, submissionTableFileName);
+	}
+
+	// The journals are already local and durable, so they are not spooled:
+	@Override
+	public InputStream getSubmissionJournalAsInputStream(String submissionJournalFileName)
+			throws FileNotFoundException {
+		return remoteStorageService.getSubmissionJournalAsInputStream(
+			submissionJournalFileName);
+	}
+
+	@Override
+	public void appendToSubmissionJournal(String submissionJournalFileName, String records)
+			throws IOException {
+		remoteStorageService.appendToSubmissionJournal(submissionJournalFileName, records);
+	}
+
+	@Override
+	public void deleteSubmissionJournal(String submissionJournalFileName) throws IOException {
+		remoteStorageService.deleteSubmissionJournal(submissionJournalFileName);
+	}
+
+	@Override
+	public void transferUploadedFile(MultipartFile file, String eventDirName,
+		String newFileName) throws IOException {
+		if (!isEnabled || !reserveSpool(file.getSize())) {
+			remoteStorageService.transferUploadedFile(file, eventDirName, newFileName);
+			return;
+		}
+		spoolUploadedFile(eventDirName, newFileName, file.getSize(), file::transferTo);
+	}
+
+	@Override
+	public CompletableFuture<Void> transferUploadedFileAsync(MultipartFile file,
+		String eventDirName, String newFileName) {
+		return isEnabled
+			? StorageService.super.transferUploadedFileAsync(file, eventDirName, newFileName)
+			: remoteStorageService.transferUploadedFileAsync(file, eventDirName, newFileName);
+	}
+
+	@Override
+	public void transferUploadedFile(InputStream is, long size, String eventDirName,
+		String newFileName) throws IOException {
+		if (!isEnabled) {
+			remoteStorageService.transferUploadedFile(is, size, eventDirName, newFileName);
+			return;
+		} else if (size >= 0) {
+			if (reserveSpool(size)) {
+				spoolUploadedFile(eventDirName, newFileName, size, tempFile -> Files.copy(is,
+					tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING));
+			} else {
+				remoteStorageService.transferUploadedFile(is, size, eventDirName, newFileName);
+			}
+			return;
+		}
+
+		// The length is unknown until the stream has been read, so it is read into a
+		// temporary file first, and then either spooled or sent on from there:
+		var stagedFile = createTempUploadedFile(eventDirName, newFileName);
+		try {
+			var length = Files.copy(is, stagedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if (reserveSpool(length)) {
+				spoolUploadedFile(eventDirName, newFileName, length, tempFile -> Files.move(
+					stagedFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING));
+			} else {
+				try (var stagedIs = new FileInputStream(stagedFile)) {
+					remoteStorageService.transferUploadedFile(stagedIs, length, eventDirName,
+						newFileName);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(stagedFile.toPath());
+		}
+	}
+
+	// A file not yet replicated is read from the spool, and any other from storage:
+	@Override
+	public InputStream getUploadedFileAsInputStream(String eventDirName, String fileName)
+			throws IOException {
+		var spooledFile = getSpooledFile(eventDirName, fileName);
+		if (isEnabled && spooledFile.isFile()) {
+			try {
+				return new FileInputStream(spooledFile);
+			} catch (FileNotFoundException ex) {
+				// Replicated and deleted from the spool since the check above
+			}
+		}
+		return remoteStorageService.getUploadedFileAsInputStream(eventDirName, fileName);
+	}
+
+	/*
+	 * The link points at remote storage even while the file is still in the
+	 * spool. Replication usually lags by seconds, far less than a link's
+	 * lifetime, so the link works by the time it is followed.
+	 */
+	@Override
+	public URI getUploadedFileDownloadUri(String eventDirName, String fileName,
+		Duration lifetime) throws IOException {
+		return remoteStorageService.getUploadedFileDownloadUri(eventDirName, fileName,
+			lifetime);
+	}
+
+	@Override
+	public void deleteUploadedFile(String eventDirName, String fileName) throws IOException {
+		if (isEnabled) {
+			synchronized (pending) {
+				var item = pending.remove(getUploadedFileKey(eventDirName, fileName));
+				if (item != null) {
+					item.isCancelled = true;
+				}
+			}
+			deleteSpooledFile(getSpooledFile(eventDirName, fileName));
+		}
+		remoteStorageService.deleteUploadedFile(eventDirName, fileName);
+	}
+
+	/*
+	 * The content index lives in the remote storage. A file indexed while still
+	 * in the spool is not found there until it has been replicated, so until
+	 * then an upload of the same content is simply transferred again.
+	 */
+	@Override
+	public void indexUploadedFile(String sha256, String eventDirName, String fileName)
+			throws IOException {
+		remoteStorageService.indexUploadedFile(sha256, eventDirName, fileName);
+	}
+
+	@Override
+	public boolean hasContent(String sha256, long size) throws IOException {
+		return remoteStorageService.hasContent(sha256, size);
+	}
+
+	@Override
+	public boolean linkUploadedFile(String sha256, long size, String eventDirName,
+		String newFileName) throws IOException {
+		return remoteStorageService.linkUploadedFile(sha256, size, eventDirName, newFileName);
+	}
+
+	// Browsers send direct uploads to the remote storage, so there is nothing to spool:
+	@Override
+	public Optional<DirectUploadStorage> getDirectUploadStorage() {
+		return remoteStorageService.getDirectUploadStorage();
+	}
+
+	// Upload chunks are short-lived staging, so they go straight to the remote service:
+	@Override
+	public void storeUploadChunk(String sessionId, String chunkName, InputStream is,
+		long size) throws IOException {
+		remoteStorageService.storeUploadChunk(sessionId, chunkName, is, size);
+	}
+
+	@Override
+	public InputStream getUploadChunkAsInputStream(String sessionId, String chunkName)
+			throws IOException {
+		return remoteStorageService.getUploadChunkAsInputStream(sessionId, chunkName);
+	}
+
+	@Override
+	public void deleteUploadChunk(String sessionId, String chunkName) throws IOException {
+		remoteStorageService.deleteUploadChunk(sessionId, chunkName);
+	}
+
+	// The chunks are in the remote storage, so the file is joined there and not spooled:
+	@Override
+	public Optional<String> assembleUploadChunks(String sessionId, List<String> chunkNames,
+		long chunkSize, String eventDirName, String newFileName) throws IOException {
+		return remoteStorageService.assembleUploadChunks(sessionId, chunkNames, chunkSize,
+			eventDirName, newFileName);
+	}
+
+	/*
+	 * Claims room in the spool for a file before it is written, so that
+	 * concurrent uploads cannot together overrun maxBytes. The room is added in
+	 * one atomic update only if it fits, so that a claim that fails never makes
+	 * a concurrent one fail too. Whoever claims the room gives it back if the
+	 * file does not reach the spool.
+	 */
+	private boolean reserveSpool(long size) {
+		var numSpooledBytes = spooledBytes.getAndUpdate(
+			n -> (n + size <= maxSpooledBytes) ? n + size : n);
+		if (numSpooledBytes + size <= maxSpooledBytes) {
+			return true;
+		}
+		LOG.warn("Spool holds {} bytes, so writing through to remote storage",
+			numSpooledBytes);
+		return false;
+	}
+
+	private File createTempUploadedFile(String eventDirName, String newFileName)
+			throws IOException {
+		var eventDir = new File(filesDir, eventDirName);
+		eventDir.mkdirs();
+		return File.createTempFile(newFileName, TEMP_FILE_SUFFIX, eventDir);
+	}
+
+	// Commits a file to the spool in the room reserved for it, and gives the room
+	// back if the file does not get there:
+	private void spoolUploadedFile(String eventDirName, String newFileName,
+		long reservedBytes, SpoolWriter writer) throws IOException {
+		long size;
+		try {
+			var tempFile = createTempUploadedFile(eventDirName, newFileName);
+			try {
+				writer.writeTo(tempFile);
+				FileUtil.forceToDisk(tempFile);
+				size = tempFile.length();
+				Files.move(tempFile.toPath(), getSpooledFile(eventDirName, newFileName).toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tempFile.toPath());
+			}
+		} catch (IOException | RuntimeException ex) {
+			spooledBytes.addAndGet(-reservedBytes);
+			throw ex;
+		}
+		spooledBytes.addAndGet(size - reservedBytes);
+		enqueueUploadedFile(eventDirName, newFileName, size);
+	}
+
+	private void enqueueUploadedFile(String eventDirName, String fileName, long size) {
+		var spooledFile = getSpooledFile(eventDirName, fileName);
+		enqueue(getUploadedFileKey(eventDirName, fileName), size, () -> {
+			try (var is = new FileInputStream(spooledFile)) {
+				remoteStorageService.transferUploadedFile(is, size, eventDirName, fileName);
+			}
+			deleteSpooledFile(spooledFile);
+		});
+	}
+
+	private void enqueueTable(String submissionTableFileName) {
+		enqueue("tables/" + submissionTableFileName, 0, () -> {
+			var remoteTempFile = remoteStorageService.getTempSubmissionTableFile(
+				submissionTableFileName);
+			Files.copy(getSpooledTableFile(submissionTableFileName).toPath(),
+				remoteTempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			remoteStorageService.transferTempSubmissionTableFile(remoteTempFile,
+				submissionTableFileName);
+		});
+	}
+
+	/*
+	 * A table that changes again while it is being replicated keeps its pending
+	 * item, and is replicated once more when the current copy finishes, so that
+	 * the newest version always reaches the remote service.
+	 */
+	private void enqueue(String key, long size, Replication replication) {
+		synchronized (pending) {
+			var item = pending.computeIfAbsent(key, k -> new PendingItem(k, size, replication));
+			++item.generation;
+			if (!item.isRunning) {
+				item.isRunning = true;
+				replicationExecutor.execute(() -> replicate(item));
+			}
+		}
+	}
+
+	private void replicate(PendingItem item) {
+		long generation;
+		synchronized (pending) {
+			if (item.isCancelled) {
+				return;
+			}
+			generation = item.generation;
+		}
+		try {
+			item.replication.replicate();
+		} catch (IOException | RuntimeException ex) {
+			synchronized (pending) {
+				if (item.isCancelled) {
+					return;
+				}
+				++item.numFailures;
+				var delayMillis = Math.min(1000L << Math.min(item.numFailures - 1, 20),
+					MAX_RETRY_DELAY_MILLIS);
+				LOG.warn("Replication of {} failed {} times, retrying in {} ms: {}",
+					item.key, item.numFailures, delayMillis, ex.getMessage());
+				replicationExecutor.schedule(() -> replicate(item), delayMillis,
+					TimeUnit.MILLISECONDS);
+			}
+			return;
+		}
+
+		synchronized (pending) {
+			if (item.isCancelled) {
+				// Deleted while the copy was in flight, so delete the copy as well:
+				replicationExecutor.execute(() -> deleteRemoteCopy(item));
+			} else if (item.generation != generation) {
+				replicationExecutor.execute(() -> replicate(item));
+			} else {
+				item.isRunning = false;
+				pending.remove(item.key);
+				numReplicated.incrementAndGet();
+			}
+		}
+	}
+
+	private void deleteRemoteCopy(PendingItem item) {
+		var slashIndex = item.key.indexOf('/', "files/".length());
+		try {
+			remoteStorageService.deleteUploadedFile(
+				item.key.substring("files/".length(), slashIndex),
+				item.key.substring(slashIndex + 1));
+		} catch (IOException | RuntimeException ex) {
+			LOG.warn(String.format("Unable to delete replicated copy of %1$s:", item.key), ex);
+		}
+	}
+
+	private void deleteSpooledFile(File spooledFile) throws IOException {
+		var size = spooledFile.length();
+		if (Files.deleteIfExists(spooledFile.toPath())) {
+			spooledBytes.addAndGet(-size);
+		}
+	}
+
+	private void logProgress() {
+		var numPending = getNumPendingReplications();
+		if (numPending > 0) {
+			LOG.info("Replication backlog: {} items, {} bytes of files, lag {} s; {} replicated",
+				numPending, spooledBytes.get(),
+				TimeUnit.MILLISECONDS.toSeconds(getReplicationLagMillis()),
+				numReplicated.get());
+		}
+	}
+
+	private static boolean isTempFile(Path file) {
+		return file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX);
+	}
+
+	private static String getUploadedFileKey(String eventDirName, String fileName) {
+		return String.format("files/%1$s/%2$s", eventDirName, fileName);
+	}
+
+	private File getSpooledFile(String eventDirName, String fileName) {
+		return new File(new File(filesDir, eventDirName), fileName);
+	}
+
+	private File getSpooledTableFile(String submissionTableFileName) {
+		return new File(tablesDir, submissionTableFileName);
+	}
+}
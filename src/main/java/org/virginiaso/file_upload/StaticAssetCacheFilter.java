@@ -0,0 +1,62 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+/**
+ * Marks static assets requested by their fingerprinted names (such as
+ * VasoFileUploadStylesheet-0123456789abcdef0123456789abcdef.css) as cacheable
+ * for a year and immutable, so that browsers never revalidate them. The
+ * fingerprint is a hash of the content, so a changed asset has a new name.
+ * The templates link to the fingerprinted names through @{...} link
+ * expressions, which Spring's resource chain rewrites (see
+ * spring.web.resources.chain in application.yml).
+ *
+ * Requests by plain name, such as a browser's own request for /favicon.ico,
+ * are left to revalidate as usual, and so are errors.
+ */
+@Component
+public class StaticAssetCacheFilter extends OncePerRequestFilter {
+	static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+	private static final Pattern FINGERPRINTED_PATH = Pattern.compile(
+		".+-[0-9a-f]{32}\\.[^/.]+");
+	private static final UrlPathHelper URL_PATH_HELPER = new UrlPathHelper();
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		return !("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod()))
+			|| !FINGERPRINTED_PATH.matcher(
+				URL_PATH_HELPER.getPathWithinApplication(request)).matches();
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+		FilterChain filterChain) throws ServletException, IOException {
+
+		response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE_CACHE_CONTROL);
+		filterChain.doFilter(request, new HttpServletResponseWrapper(response) {
+			@Override
+			public void sendError(int sc) throws IOException {
+				setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+				super.sendError(sc);
+			}
+
+			@Override
+			public void sendError(int sc, String msg) throws IOException {
+				setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+				super.sendError(sc, msg);
+			}
+		});
+	}
+}
@@ -4,12 +4,26 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.security.DigestInputStream;
+import java.time.Duration;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.web.multipart.MultipartFile;
+import org.virginiaso.file_upload.util.ContentDigest;
 
 public interface StorageService {
+	/**
+	 * @throws FileNotFoundException if there is no such table
+	 * @throws IOException           if the storage fails
+	 */
 	InputStream getSubmissionTableAsInputStream(String submissionTableFileName)
-			throws FileNotFoundException;
+			throws IOException;
 
 	File getTempSubmissionTableFile(String submissionTableFileName)
 			throws IOException;
@@ -17,6 +31,193 @@ public interface StorageService {
 	void transferTempSubmissionTableFile(File tempSubmissionTableFile,
 		String submissionTableFileName) throws IOException;
 
+	/**
+	 * Like transferTempSubmissionTableFile, but returns as soon as the transfer
+	 * has started. Implementations built on a non-blocking client override this;
+	 * the default transfers the file on the calling thread.
+	 */
+	default CompletableFuture<Void> transferTempSubmissionTableFileAsync(
+		File tempSubmissionTableFile, String submissionTableFileName) {
+		try {
+			transferTempSubmissionTableFile(tempSubmissionTableFile, submissionTableFileName);
+			return CompletableFuture.completedFuture(null);
+		} catch (IOException | RuntimeException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+	}
+
+	InputStream getSubmissionJournalAsInputStream(String submissionJournalFileName)
+			throws FileNotFoundException;
+
+	void appendToSubmissionJournal(String submissionJournalFileName, String records)
+			throws IOException;
+
+	void deleteSubmissionJournal(String submissionJournalFileName) throws IOException;
+
 	void transferUploadedFile(MultipartFile file, String eventDirName,
 		String newFileName) throws IOException;
+
+	/**
+	 * Like transferUploadedFile, but returns as soon as the transfer has started.
+	 * Implementations built on a non-blocking client override this; the default
+	 * transfers the file on the calling thread.
+	 */
+	default CompletableFuture<Void> transferUploadedFileAsync(MultipartFile file,
+		String eventDirName, String newFileName) {
+		try {
+			transferUploadedFile(file, eventDirName, newFileName);
+			return CompletableFuture.completedFuture(null);
+		} catch (IOException | RuntimeException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+	}
+
+	/**
+	 * Stores an uploaded file that is read directly from the request stream.
+	 *
+	 * @param is           The file content. The caller closes it.
+	 * @param size         The length of the content, or a negative number if
+	 *                     unknown
+	 * @param eventDirName The directory in which to store the file
+	 * @param newFileName  The name under which to store the file
+	 * @throws IOException if the file cannot be stored
+	 */
+	void transferUploadedFile(InputStream is, long size, String eventDirName,
+		String newFileName) throws IOException;
+
+	/**
+	 * Opens an uploaded file for reading. The content is streamed from storage as
+	 * it is read, rather than fetched in full first.
+	 *
+	 * @throws FileNotFoundException if there is no such file
+	 * @throws IOException if the file cannot be opened
+	 */
+	InputStream getUploadedFileAsInputStream(String eventDirName, String fileName)
+		throws IOException;
+
+	/**
+	 * Creates a link from which an uploaded file can be downloaded, without
+	 * credentials, until it expires. Where possible, the link points at the
+	 * storage itself, so that the download does not pass through this server.
+	 *
+	 * @param lifetime How long the link is valid
+	 * @return The link, either absolute or relative to this application's root
+	 * @throws IOException if the link cannot be created
+	 */
+	URI getUploadedFileDownloadUri(String eventDirName, String fileName, Duration lifetime)
+		throws IOException;
+
+	void deleteUploadedFile(String eventDirName, String fileName) throws IOException;
+
+	/**
+	 * Records the content digest of a stored file, so that later uploads of the
+	 * same content can be stored by reference to it (see linkUploadedFile).
+	 * Where files can share content, a file whose content is already stored is
+	 * also made to share it. The default records nothing.
+	 *
+	 * @param sha256 The SHA-256 digest of the file, as computed by this server
+	 *               while the file was stored. A digest reported by a client
+	 *               must never be indexed, since the content may not match it.
+	 * @throws IOException if the digest cannot be recorded
+	 */
+	default void indexUploadedFile(String sha256, String eventDirName, String fileName)
+			throws IOException {
+	}
+
+	/**
+	 * @param sha256 A SHA-256 digest, already checked with ContentDigest.isSha256
+	 * @param size   The expected size of the content
+	 * @return Whether content with this digest and size has been indexed and is
+	 *         still stored
+	 * @throws IOException if the storage cannot be queried
+	 */
+	default boolean hasContent(String sha256, long size) throws IOException {
+		return false;
+	}
+
+	/**
+	 * Stores an uploaded file by reference to indexed content with the given
+	 * digest and size, without the content being sent again.
+	 *
+	 * @param sha256 A SHA-256 digest, already checked with ContentDigest.isSha256
+	 * @param size   The expected size of the content
+	 * @return Whether the file was stored. If no such content is stored, nothing
+	 *         is, and the caller must transfer the file as usual.
+	 * @throws IOException if the storage fails
+	 */
+	default boolean linkUploadedFile(String sha256, long size, String eventDirName,
+		String newFileName) throws IOException {
+		return false;
+	}
+
+	/**
+	 * @return The means by which browsers store uploaded files directly, if this
+	 *         storage supports that
+	 */
+	default Optional<DirectUploadStorage> getDirectUploadStorage() {
+		return Optional.empty();
+	}
+
+	/**
+	 * Stages one chunk of a resumable upload until the whole file has arrived.
+	 * Storing a chunk that is already present replaces it, so that clients may
+	 * safely retry.
+	 *
+	 * @param sessionId The resumable upload session
+	 * @param chunkName The name of the chunk, unique within the session
+	 * @param is        The chunk content. The caller closes it.
+	 * @param size      The length of the chunk
+	 * @throws IOException if the chunk cannot be stored
+	 */
+	void storeUploadChunk(String sessionId, String chunkName, InputStream is, long size)
+		throws IOException;
+
+	InputStream getUploadChunkAsInputStream(String sessionId, String chunkName)
+		throws IOException;
+
+	void deleteUploadChunk(String sessionId, String chunkName) throws IOException;
+
+	/**
+	 * Joins the staged chunks of a resumable upload, in order, into an uploaded
+	 * file. The default reads the chunks back and transfers them as one stream.
+	 * Services that can join the chunks where they are stored override this, so
+	 * that the content does not pass through this server again.
+	 *
+	 * @param sessionId   The resumable upload session
+	 * @param chunkNames  The names of the chunks, in order
+	 * @param chunkSize   The size of every chunk but the last
+	 * @return The SHA-256 digest of the file, if it was computed along the way.
+	 *         Only such a digest may be passed to indexUploadedFile.
+	 * @throws IOException if a chunk is missing or the file cannot be stored
+	 */
+	default Optional<String> assembleUploadChunks(String sessionId, List<String> chunkNames,
+		long chunkSize, String eventDirName, String newFileName) throws IOException {
+		try (var is = new DigestInputStream(openUploadChunks(sessionId, chunkNames),
+				ContentDigest.newSha256())) {
+			transferUploadedFile(is, -1, eventDirName, newFileName);
+			return Optional.of(ContentDigest.toHex(is));
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	// Opens each chunk only when the previous one has been read:
+	private InputStream openUploadChunks(String sessionId, List<String> chunkNames) {
+		var chunks = chunkNames.iterator();
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			@Override
+			public boolean hasMoreElements() {
+				return chunks.hasNext();
+			}
+
+			@Override
+			public InputStream nextElement() {
+				try {
+					return getUploadChunkAsInputStream(sessionId, chunks.next());
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}
+		});
+	}
 }
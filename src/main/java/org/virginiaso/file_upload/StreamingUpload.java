@@ -0,0 +1,91 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A submission whose files are stored one by one as they are read from the
+ * request stream, rather than after the whole request has been spooled to
+ * disk. The form fields that precede a file in the request must already be
+ * set in the UserSubmission when that file is added.
+ */
+public interface StreamingUpload {
+	/** Where a file of the submission is stored. */
+	record FileLocation(String eventDirName, String fileName) {
+	}
+
+	/**
+	 * Stores one file of the submission. The first call validates the form
+	 * fields received so far, so that an invalid submission is rejected before
+	 * its files are transferred.
+	 *
+	 * @param label            The label that distinguishes this file from the
+	 *                         others in the submission, e.g., "a" for fileA
+	 * @param originalFileName The file name supplied by the browser
+	 * @param is               The file content, which is consumed but not closed
+	 * @throws IOException if the file cannot be stored
+	 */
+	void addFile(String label, String originalFileName, InputStream is)
+		throws IOException;
+
+	/**
+	 * Stores one file of the submission by reference to identical content
+	 * already in storage, so that the client need not send it. Like addFile,
+	 * the first call validates the form fields received so far.
+	 *
+	 * @param label            The label that distinguishes this file from the
+	 *                         others in the submission
+	 * @param originalFileName The file name supplied by the browser
+	 * @param sha256           The SHA-256 digest of the content, checked with
+	 *                         ContentDigest.isSha256
+	 * @param size             The size of the content
+	 * @return Whether the file was stored. If not, no such content is stored,
+	 *         and the client must send the file after all.
+	 * @throws IOException if no submission ID can be allocated
+	 */
+	boolean addExistingFile(String label, String originalFileName, String sha256, long size)
+		throws IOException;
+
+	/**
+	 * Stores one file of the submission by joining the chunks of it that a
+	 * resumable upload has staged, where the storage allows without reading them
+	 * back. Like addFile, the first call validates the form fields received so far.
+	 *
+	 * @param label            The label that distinguishes this file from the
+	 *                         others in the submission
+	 * @param originalFileName The file name supplied by the browser
+	 * @param sessionId        The resumable upload session
+	 * @param chunkNames       The names of the chunks, in order
+	 * @param chunkSize        The size of every chunk but the last
+	 * @param size             The size of the file
+	 * @throws IOException if the file cannot be stored
+	 */
+	void addStagedFile(String label, String originalFileName, String sessionId,
+		List<String> chunkNames, long chunkSize, long size) throws IOException;
+
+	/**
+	 * Names one file of the submission without storing it, for a file that the
+	 * client sends straight to storage. The file must be stored under the
+	 * returned name before finish is called. Like addFile, the first call
+	 * validates the form fields received so far.
+	 *
+	 * @param label            The label that distinguishes this file from the
+	 *                         others in the submission
+	 * @param originalFileName The file name supplied by the browser
+	 * @return Where the file must be stored
+	 * @throws IOException if no submission ID can be allocated
+	 */
+	FileLocation reserveFile(String label, String originalFileName) throws IOException;
+
+	/**
+	 * Validates and records the submission once the whole request has been read.
+	 *
+	 * @return The recorded submission
+	 * @throws IOException if the submission cannot be recorded
+	 */
+	Submission finish() throws IOException;
+
+	/** Deletes any files already stored for this submission. */
+	void abort();
+}
@@ -2,6 +2,7 @@ package org.virginiaso.file_upload;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -25,6 +26,8 @@ import org.virginiaso.file_upload.util.ValidationException;
 public final class Submission {
 	private static final Logger LOG = LoggerFactory.getLogger(Submission.class);
 
+	// How long a Helicopter team has from its start to its final submission:
+	static final Duration HELICOPTER_TIME_LIMIT = Duration.ofHours(1);
 	private static final DateTimeFormatter UTC = DateTimeFormatter.ISO_INSTANT;
 	private static final DateTimeFormatter ZONED_DATE_TIME = new DateTimeFormatterBuilder()
 		.parseStrict()
@@ -123,6 +126,28 @@ public final class Submission {
 		validateFields();
 	}
 
+	// Rebuilds a submission held in a SubmissionStore, which was validated when stored:
+	Submission(Event event, int id, Division division, int teamNumber, String schoolName,
+		String teamName, String studentNames, NotesUploadMode notesUploadMode,
+		HelicopterMode helicopterMode, String flightDuration, String passCode,
+		int loadEstimate, String notes, List<String> fileNames, Instant timeStamp) {
+		this.event = event;
+		this.id = id;
+		this.division = division;
+		this.teamNumber = teamNumber;
+		this.schoolName = schoolName;
+		this.teamName = teamName;
+		this.studentNames = studentNames;
+		this.notesUploadMode = notesUploadMode;
+		this.helicopterMode = helicopterMode;
+		this.flightDuration = (flightDuration == null) ? null : new BigDecimal(flightDuration);
+		this.passCode = passCode;
+		this.loadEstimate = loadEstimate;
+		this.notes = notes;
+		this.fileNames = new ArrayList<>(fileNames);
+		this.timeStamp = timeStamp;
+	}
+
 	/**
 	 * Generates a random five-to-seven letter string of capital letters A-Z to be
 	 * used as the pass code in the Helicopter event.
@@ -187,7 +212,7 @@ public final class Submission {
 	// Only used for helicopter:
 	public String getFinishTime() {
 		var zonedTimeStamp = getZonedTimeStamp();
-		var zonedFinishTime = zonedTimeStamp.plusHours(1);
+		var zonedFinishTime = zonedTimeStamp.plus(HELICOPTER_TIME_LIMIT);
 		return ZONED_DATE_TIME.format(zonedFinishTime);
 	}
 
@@ -315,45 +340,26 @@ public final class Submission {
 	 * is valid in the given division and that the submission is within the time
 	 * limits for the declared event and division.
 	 *
+	 * This compiles a ValidationIndex on every call, so callers that validate
+	 * repeatedly should build the index once and use the other overload.
+	 *
 	 * @param tournaments The list of tournaments against which to check
 	 * @throws ValidationException if the submission is invalid. The exception
 	 *                             message will contain an explanation of why.
 	 */
 	public void validateTeamAndTime(List<Tournament> tournaments) {
-		// Check whether the given event and division are a thing:
-		List<Tournament> tournamentsWithEventAndDiv = tournaments.stream()
-			.filter(t -> t.events().containsKey(getEvent()))
-			.filter(t -> t.events().get(getEvent()).containsKey(getDivision()))
-			.collect(Collectors.toList());
-		if (tournamentsWithEventAndDiv.isEmpty()) {
-			throw new ValidationException("%1$s is not an event in division %2$s.",
-				getEvent().getLabel(), getDivision());
-		}
-
-		// Find the tournaments that are open for submissions in this
-		// submission's event and division and at this submission's time:
-		List<Tournament> tournamentsAtTime = tournamentsWithEventAndDiv.stream()
-			.filter(t -> t.events().get(getEvent()).get(getDivision()).contains(
-				getUtcTimeStamp()))
-			.collect(Collectors.toList());
-		if (tournamentsAtTime.isEmpty()) {
-			throw new ValidationException(
-				"%1$s-%2$s is not accepting submissions at this time.",
-				getEvent().getLabel(), getDivision());
-		}
+		validateTeamAndTime(new ValidationIndex(tournaments));
+	}
 
-		// Now winnow the list to those that have this submission's team:
-		List<Tournament> tournamentsWithTeam = tournamentsAtTime.stream()
-			.filter(t -> t.teams().containsKey(getDivision()))
-			.filter(t -> t.teams().get(getDivision()).contains(getTeamNumber()))
-			.collect(Collectors.toList());
-		if (tournamentsWithTeam.isEmpty()) {
-			String tournamentNameList = tournamentsAtTime.stream()
-				.map(t -> t.name())
-				.collect(Collectors.joining(", "));
-			throw new ValidationException("Team %1$s%2$d is not competing at any of "
-				+ "the tournaments that are accepting %3$s-%1$s submissions (%4$s).",
-				getDivision(), teamNumber, getEvent().getLabel(), tournamentNameList);
-		}
+	/**
+	 * Checks that this submission is valid according to the given compiled
+	 * tournament configuration. See validateTeamAndTime(List).
+	 *
+	 * @param validationIndex The compiled tournaments against which to check
+	 * @throws ValidationException if the submission is invalid. The exception
+	 *                             message will contain an explanation of why.
+	 */
+	public void validateTeamAndTime(ValidationIndex validationIndex) {
+		validationIndex.validate(this);
 	}
 }
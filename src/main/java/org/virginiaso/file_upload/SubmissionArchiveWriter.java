@@ -0,0 +1,126 @@
+package org.virginiaso.file_upload;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.virginiaso.file_upload.util.FileUtil;
+
+/**
+ * Writes a ZIP archive of the uploaded files of one event and division, with
+ * the submission table that lists them, to an output stream. Each file is
+ * copied from storage into the archive as it is read, so the archive is never
+ * staged on disk or held in memory, and the first bytes reach the supervisor
+ * while the rest are still being fetched.
+ *
+ * Files that are already compressed (videos, images, office documents, and so
+ * on) are not compressed again. ZipOutputStream can only store an entry whose
+ * size and CRC are known before it is written, which would mean reading each
+ * file from storage twice, so these entries are instead deflated at level 0:
+ * the data is copied into uncompressed blocks, at the cost of a few bytes per
+ * 64 KiB and no compression work.
+ */
+final class SubmissionArchiveWriter {
+	private static final Logger LOG = LoggerFactory.getLogger(SubmissionArchiveWriter.class);
+	private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+		"7z", "aac", "avi", "docx", "gif", "gz", "heic", "jpeg", "jpg", "key", "m4a",
+		"m4v", "mkv", "mov", "mp3", "mp4", "numbers", "odp", "ods", "odt", "ogg", "pages",
+		"png", "pptx", "rar", "webm", "webp", "wmv", "xlsx", "zip");
+	static final String MISSING_FILES_ENTRY_NAME = "missing-files.txt";
+
+	private final StorageService storageService;
+
+	public SubmissionArchiveWriter(StorageService storageService) {
+		this.storageService = storageService;
+	}
+
+	/**
+	 * @param eventDirName The directory holding the files, which is also the
+	 *                     directory in the archive in which they are placed
+	 * @param submissions  The submissions whose files to include, in the order in
+	 *                     which to list them in the archived submission table
+	 * @param os           The destination, which is not closed
+	 * @return The number of files written. Files that are missing from storage
+	 *         are listed in an entry named missing-files.txt instead.
+	 * @throws IOException if storage or the destination fails
+	 */
+	public int write(String eventDirName, List<Submission> submissions, OutputStream os)
+			throws IOException {
+		var zipStream = new ZipOutputStream(os, FileUtil.CHARSET);
+		zipStream.putNextEntry(newEntry(eventDirName,
+			String.format("%1$s-submissions.csv", eventDirName), null));
+		var writer = new OutputStreamWriter(zipStream, FileUtil.CHARSET);
+		var printer = new CSVPrinter(writer, EventUploader.CSV_FORMAT_OUT);
+		for (var submission : submissions) {
+			submission.print(printer);
+		}
+		printer.flush();
+		zipStream.closeEntry();
+
+		var numFiles = 0;
+		List<String> missingFiles = new ArrayList<>();
+		for (var submission : submissions) {
+			for (var fileName : submission.getFileNames()) {
+				if (writeFile(zipStream, eventDirName, fileName, submission)) {
+					++numFiles;
+				} else {
+					missingFiles.add(fileName);
+				}
+			}
+		}
+
+		if (!missingFiles.isEmpty()) {
+			zipStream.setLevel(Deflater.DEFAULT_COMPRESSION);
+			zipStream.putNextEntry(newEntry(eventDirName, MISSING_FILES_ENTRY_NAME, null));
+			zipStream.write(String.join(System.lineSeparator(), missingFiles)
+				.getBytes(FileUtil.CHARSET));
+			zipStream.closeEntry();
+		}
+		zipStream.finish();
+		zipStream.flush();
+		return numFiles;
+	}
+
+	private boolean writeFile(ZipOutputStream zipStream, String eventDirName,
+		String fileName, Submission submission) throws IOException {
+		// Open the file first, so that a missing file leaves no empty entry behind:
+		try (var is = storageService.getUploadedFileAsInputStream(eventDirName, fileName)) {
+			zipStream.setLevel(isCompressed(fileName)
+				? Deflater.NO_COMPRESSION
+				: Deflater.DEFAULT_COMPRESSION);
+			zipStream.putNextEntry(newEntry(eventDirName, fileName, submission));
+			is.transferTo(zipStream);
+			zipStream.closeEntry();
+			return true;
+		} catch (FileNotFoundException ex) {
+			LOG.warn("Uploaded file {}/{} of submission {} is missing from storage",
+				eventDirName, fileName, submission.getId());
+			return false;
+		}
+	}
+
+	private static ZipEntry newEntry(String eventDirName, String fileName,
+		Submission submission) {
+		var entry = new ZipEntry(String.format("%1$s/%2$s", eventDirName, fileName));
+		entry.setTime((submission == null)
+			? System.currentTimeMillis()
+			: submission.getUtcTimeStamp().toEpochMilli());
+		return entry;
+	}
+
+	static boolean isCompressed(String fileName) {
+		var ext = FileUtil.getStemExtPair(fileName).getRight();
+		return COMPRESSED_EXTENSIONS.contains(ext.toLowerCase(Locale.US));
+	}
+}
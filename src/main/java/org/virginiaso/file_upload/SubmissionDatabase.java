@@ -0,0 +1,258 @@
+package org.virginiaso.file_upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.csv.CSVFormat;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Stores every submission, of every event and division, in a single-file
+ * embedded database (an H2 MVStore). When it is enabled, it is the durable
+ * record of the submissions, and the CSV submission tables in storage are
+ * exports of it, written by each EventUploader's write-behind flusher.
+ *
+ * Submissions are kept in a B-tree keyed by submission ID, holding each one as
+ * a row of the submission table's CSV format. Three more B-trees index them by
+ * table (event, division, ID), by team (division, team number, event, ID), and
+ * by time stamp, so an insert costs O(log n) and reading a table or a team's
+ * submissions costs a range scan. An insert updates all four and commits them
+ * together, so after a crash the file holds either all of them or none.
+ *
+ * The database is authoritative for a table once it holds any of that table's
+ * submissions. A table that it does not yet hold is imported from the CSV
+ * table (and journal) in storage the first time it is loaded.
+ */
+@Service
+public class SubmissionDatabase {
+	private static final Logger LOG = LoggerFactory.getLogger(SubmissionDatabase.class);
+	private static final CSVFormat ROW_FORMAT_OUT = EventUploader.CSV_FORMAT_OUT
+		.withSkipHeaderRecord();
+	private static final CSVFormat ROW_FORMAT_IN = CSVFormat.DEFAULT
+		.withHeader(Column.class)
+		.withTrim();
+
+	private final MVStore store;
+	private final MVMap<Integer, String> submissions;
+	private final MVMap<String, Integer> byTable;
+	private final MVMap<String, Integer> byTeam;
+	private final MVMap<String, Integer> byTime;
+	private final MVMap<String, Integer> exportedMaxIds;
+	// Makes each insert and its commit atomic with respect to other inserts:
+	private final ReentrantLock writeLock;
+
+	public SubmissionDatabase(
+		@Value("${fileUpload.submissionDatabase.enabled:false}") boolean isEnabled,
+		@Value("${fileUpload.submissionDatabase.file:./submissions.mv.db}") String fileName) {
+		if (!isEnabled) {
+			store = null;
+			submissions = null;
+			byTable = null;
+			byTeam = null;
+			byTime = null;
+			exportedMaxIds = null;
+		} else {
+			var file = new File(fileName).getAbsoluteFile();
+			file.getParentFile().mkdirs();
+			store = new MVStore.Builder()
+				.fileName(file.getPath())
+				.autoCommitDisabled()
+				.open();
+			submissions = store.openMap("submissions");
+			byTable = store.openMap("byTable");
+			byTeam = store.openMap("byTeam");
+			byTime = store.openMap("byTime");
+			exportedMaxIds = store.openMap("exportedMaxIds");
+			LOG.info("Opened submission database {} holding {} submissions", file,
+				submissions.size());
+		}
+		writeLock = new ReentrantLock();
+	}
+
+	@PreDestroy
+	public void close() {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	public boolean isEnabled() {
+		return store != null;
+	}
+
+	/**
+	 * Stores a submission durably. A submission with the same ID is replaced.
+	 *
+	 * @throws IOException if the database cannot be written
+	 */
+	public void insert(Submission submission) throws IOException {
+		insertAll(List.of(submission));
+	}
+
+	/**
+	 * Stores several submissions durably, in a single commit.
+	 *
+	 * @throws IOException if the database cannot be written
+	 */
+	public void insertAll(List<Submission> newSubmissions) throws IOException {
+		requireEnabled();
+		writeLock.lock();
+		try {
+			for (var submission : newSubmissions) {
+				var id = submission.getId();
+				submissions.put(id, toRow(submission));
+				byTable.put(tableKey(submission.getEvent(), submission.getDivision(), id), id);
+				byTeam.put(teamKey(submission.getDivision(), submission.getTeamNumber(),
+					submission.getEvent(), id), id);
+				byTime.put(timeKey(submission.getUtcTimeStamp(), id), id);
+			}
+			store.commit();
+		} catch (RuntimeException ex) {
+			// Discard the uncommitted part of the insert:
+			store.rollback();
+			throw new IOException("Unable to store submission in the database:", ex);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Records that the submission table in storage holds the submissions of
+	 * its event and division up to and including maxId.
+	 *
+	 * @throws IOException if the database cannot be written
+	 */
+	public void recordExport(Event event, Division division, int maxId) throws IOException {
+		requireEnabled();
+		writeLock.lock();
+		try {
+			exportedMaxIds.put(tableKey(event, division), maxId);
+			store.commit();
+		} catch (RuntimeException ex) {
+			store.rollback();
+			throw new IOException("Unable to record export in the database:", ex);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/** @return The highest ID in the exported submission table, or -1 */
+	public int getExportedMaxId(Event event, Division division) {
+		requireEnabled();
+		var maxId = exportedMaxIds.get(tableKey(event, division));
+		return (maxId == null) ? -1 : maxId;
+	}
+
+	public Optional<Submission> getSubmission(int id) {
+		requireEnabled();
+		return Optional.ofNullable(submissions.get(id))
+			.map(SubmissionDatabase::fromRow);
+	}
+
+	public int getMaxSubmissionId() {
+		requireEnabled();
+		var maxId = submissions.lastKey();
+		return (maxId == null) ? -1 : maxId;
+	}
+
+	/** @return The submissions of one submission table, in order of ID */
+	public List<Submission> getTable(Event event, Division division) {
+		requireEnabled();
+		return scan(byTable, tableKey(event, division) + "/");
+	}
+
+	/** @return The submissions of one team, across all events, in order of time */
+	public List<Submission> getTeamSubmissions(Division division, int teamNumber) {
+		requireEnabled();
+		var result = scan(byTeam, String.format("%1$s/%2$05d/", division, teamNumber));
+		result.sort(Comparator.comparing(Submission::getUtcTimeStamp));
+		return result;
+	}
+
+	/** @return The submissions received in [from, to), in order of time */
+	public List<Submission> getSubmissionsBetween(Instant from, Instant to) {
+		requireEnabled();
+		List<Submission> result = new ArrayList<>();
+		var endKey = timeKey(to, 0);
+		var iter = byTime.keyIterator(timeKey(from, 0));
+		while (iter.hasNext()) {
+			var key = iter.next();
+			if (key.compareTo(endKey) >= 0) {
+				break;
+			}
+			result.add(fromRow(submissions.get(byTime.get(key))));
+		}
+		return result;
+	}
+
+	private List<Submission> scan(MVMap<String, Integer> index, String prefix) {
+		List<Submission> result = new ArrayList<>();
+		var iter = index.keyIterator(prefix);
+		while (iter.hasNext()) {
+			var key = iter.next();
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			result.add(fromRow(submissions.get(index.get(key))));
+		}
+		return result;
+	}
+
+	private void requireEnabled() {
+		if (store == null) {
+			throw new IllegalStateException("The submission database is not enabled");
+		}
+	}
+
+	private static String tableKey(Event event, Division division) {
+		return String.format("%1$s/%2$s", event.getUri(), division);
+	}
+
+	// The numbers are zero-padded so that the keys sort in numeric order:
+	private static String tableKey(Event event, Division division, int id) {
+		return String.format("%1$s/%2$010d", tableKey(event, division), id);
+	}
+
+	private static String teamKey(Division division, int teamNumber, Event event, int id) {
+		return String.format("%1$s/%2$05d/%3$s/%4$010d", division, teamNumber,
+			event.getUri(), id);
+	}
+
+	private static String timeKey(Instant timeStamp, int id) {
+		return String.format("%1$012d%2$09d/%3$010d", timeStamp.getEpochSecond(),
+			timeStamp.getNano(), id);
+	}
+
+	private static String toRow(Submission submission) {
+		var buffer = new StringBuilder();
+		try (var printer = ROW_FORMAT_OUT.print(buffer)) {
+			submission.print(printer);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return buffer.toString();
+	}
+
+	private static Submission fromRow(String row) {
+		try (var parser = ROW_FORMAT_IN.parse(new StringReader(row))) {
+			return new Submission(parser.iterator().next());
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.virginiaso.file_upload;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.virginiaso.file_upload.util.FileUtil;
+
+/**
+ * Hands out submission IDs without needing every submission table to be
+ * loaded. IDs are reserved from storage in blocks: the highest reserved ID
+ * (the high-water mark) is persisted before any ID in its block is issued, so
+ * after a restart allocation resumes above every ID ever issued. The IDs left
+ * unused in the last block before a restart are skipped.
+ */
+final class SubmissionIdAllocator {
+	static final String HIGH_WATER_MARK_FILE_NAME = "submission-id-high-water-mark.txt";
+	private static final Logger LOG = LoggerFactory.getLogger(SubmissionIdAllocator.class);
+
+	private final StorageService storageService;
+	private final int blockSize;
+	// A lock rather than a monitor, because a new block is reserved in storage
+	// while it is held:
+	private final ReentrantLock lock;
+
+	// The following are guarded by lock:
+	private int previousId;
+	private int reservedThroughId;
+
+	public SubmissionIdAllocator(StorageService storageService, int blockSize) {
+		this.storageService = Objects.requireNonNull(storageService, "storageService");
+		this.blockSize = Math.max(blockSize, 1);
+		lock = new ReentrantLock();
+		previousId = -1;
+		reservedThroughId = -1;
+	}
+
+	/**
+	 * Reads the persisted high-water mark.
+	 *
+	 * @return The high-water mark, or empty if none has been persisted yet (i.e.,
+	 *         the submission tables predate this allocator)
+	 */
+	public OptionalInt readHighWaterMark() {
+		try (var is = storageService.getSubmissionTableAsInputStream(
+			HIGH_WATER_MARK_FILE_NAME)) {
+			var content = new String(is.readAllBytes(), FileUtil.CHARSET).trim();
+			return OptionalInt.of(Integer.parseInt(content));
+		} catch (FileNotFoundException ex) {
+			return OptionalInt.empty();
+		} catch (NumberFormatException ex) {
+			LOG.warn("Ignoring malformed submission ID high-water mark: {}", ex.getMessage());
+			return OptionalInt.empty();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Sets the ID most recently issued. Allocation continues with the next one.
+	 *
+	 * @param lastIssuedId The ID most recently issued, or -1 if none
+	 */
+	public void initialize(int lastIssuedId) {
+		lock.lock();
+		try {
+			previousId = lastIssuedId;
+			reservedThroughId = lastIssuedId;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int next() throws IOException {
+		lock.lock();
+		try {
+			if (previousId >= reservedThroughId) {
+				var newReservedThroughId = previousId + blockSize;
+				writeHighWaterMark(newReservedThroughId);
+				reservedThroughId = newReservedThroughId;
+			}
+			return ++previousId;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void writeHighWaterMark(int highWaterMark) throws IOException {
+		var tempFile = storageService.getTempSubmissionTableFile(HIGH_WATER_MARK_FILE_NAME);
+		Files.writeString(tempFile.toPath(), Integer.toString(highWaterMark),
+			FileUtil.CHARSET);
+		storageService.transferTempSubmissionTableFile(tempFile, HIGH_WATER_MARK_FILE_NAME);
+		LOG.debug("Reserved submission IDs through {}", highWaterMark);
+	}
+}
@@ -0,0 +1,221 @@
+package org.virginiaso.file_upload;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the submissions of one submission table in columns of primitives
+ * rather than as a list of Submission objects, which matters when a season's
+ * worth of tables is in memory on a small instance:
+ *
+ * <ul>
+ * <li>Enumerated values are stored as byte ordinals, and the time stamp as
+ * epoch seconds plus nanoseconds.</li>
+ * <li>School and team names are interned in a pool belonging to the store, so
+ * that a school submitting many times is held once per table. The pool goes
+ * away with the store. Student names and notes are nearly always unique, so
+ * pooling them would only add overhead.</li>
+ * <li>The file names of each submission are an array of exactly the right
+ * length instead of an ArrayList.</li>
+ * </ul>
+ *
+ * Submissions can only be appended, and get() rebuilds a Submission on demand.
+ * This class is not thread safe, but because stored rows never change, a
+ * snapshot taken under the owner's lock may be read while more rows are
+ * appended.
+ */
+final class SubmissionStore {
+	private static final int INITIAL_CAPACITY = 16;
+	private static final byte NULL_ORDINAL = -1;
+	private static final String[] NO_FILE_NAMES = new String[0];
+	private static final Event[] EVENTS = Event.values();
+	private static final Division[] DIVISIONS = Division.values();
+	private static final NotesUploadMode[] NOTES_UPLOAD_MODES = NotesUploadMode.values();
+	private static final HelicopterMode[] HELICOPTER_MODES = HelicopterMode.values();
+
+	private final Map<String, String> stringPool;
+	private int size;
+	private byte[] events;
+	private int[] ids;
+	private byte[] divisions;
+	private int[] teamNumbers;
+	private String[] schoolNames;
+	private String[] teamNames;
+	private String[] studentNames;
+	private byte[] notesUploadModes;
+	private byte[] helicopterModes;
+	private String[] flightDurations;
+	private String[] passCodes;
+	private int[] loadEstimates;
+	private String[] notes;
+	private String[][] fileNames;
+	private long[] epochSeconds;
+	private int[] nanos;
+
+	public SubmissionStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	private SubmissionStore(int capacity) {
+		stringPool = new HashMap<>();
+		size = 0;
+		events = new byte[capacity];
+		ids = new int[capacity];
+		divisions = new byte[capacity];
+		teamNumbers = new int[capacity];
+		schoolNames = new String[capacity];
+		teamNames = new String[capacity];
+		studentNames = new String[capacity];
+		notesUploadModes = new byte[capacity];
+		helicopterModes = new byte[capacity];
+		flightDurations = new String[capacity];
+		passCodes = new String[capacity];
+		loadEstimates = new int[capacity];
+		notes = new String[capacity];
+		fileNames = new String[capacity][];
+		epochSeconds = new long[capacity];
+		nanos = new int[capacity];
+	}
+
+	public static SubmissionStore of(List<Submission> submissions) {
+		var result = new SubmissionStore(Math.max(submissions.size(), INITIAL_CAPACITY));
+		submissions.forEach(result::add);
+		return result;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** @return The number of submissions the columns hold before they must grow */
+	int capacity() {
+		return ids.length;
+	}
+
+	public int getId(int index) {
+		checkIndex(index);
+		return ids[index];
+	}
+
+	public void add(Submission submission) {
+		if (size == ids.length) {
+			grow();
+		}
+		var i = size;
+		events[i] = (byte) submission.getEvent().ordinal();
+		ids[i] = submission.getId();
+		divisions[i] = (byte) submission.getDivision().ordinal();
+		teamNumbers[i] = submission.getTeamNumber();
+		schoolNames[i] = intern(submission.getSchoolName());
+		teamNames[i] = intern(submission.getTeamName());
+		studentNames[i] = submission.getStudentNames();
+		notesUploadModes[i] = toOrdinal(submission.getNotesUploadMode());
+		helicopterModes[i] = toOrdinal(submission.getHelicopterMode());
+		flightDurations[i] = submission.getFlightDuration();
+		passCodes[i] = submission.getPassCode();
+		loadEstimates[i] = submission.getLoadEstimate();
+		notes[i] = submission.getNotes();
+		fileNames[i] = submission.getFileNames().isEmpty()
+			? NO_FILE_NAMES
+			: submission.getFileNames().toArray(String[]::new);
+		epochSeconds[i] = submission.getUtcTimeStamp().getEpochSecond();
+		nanos[i] = submission.getUtcTimeStamp().getNano();
+		++size;
+	}
+
+	public Submission get(int index) {
+		checkIndex(index);
+		return new Submission(
+			EVENTS[events[index]],
+			ids[index],
+			DIVISIONS[divisions[index]],
+			teamNumbers[index],
+			schoolNames[index],
+			teamNames[index],
+			studentNames[index],
+			fromOrdinal(NOTES_UPLOAD_MODES, notesUploadModes[index]),
+			fromOrdinal(HELICOPTER_MODES, helicopterModes[index]),
+			flightDurations[index],
+			passCodes[index],
+			loadEstimates[index],
+			notes[index],
+			Arrays.asList(fileNames[index]),
+			Instant.ofEpochSecond(epochSeconds[index], nanos[index]));
+	}
+
+	/**
+	 * Returns a view of the submissions stored so far. The view shares this
+	 * store's columns, which later appends write only beyond the end of the
+	 * view, and a later growth of this store replaces them without touching
+	 * the view's.
+	 *
+	 * @return A read-only view of the current submissions
+	 */
+	public SubmissionStore snapshot() {
+		var result = new SubmissionStore(0);
+		result.size = size;
+		result.events = events;
+		result.ids = ids;
+		result.divisions = divisions;
+		result.teamNumbers = teamNumbers;
+		result.schoolNames = schoolNames;
+		result.teamNames = teamNames;
+		result.studentNames = studentNames;
+		result.notesUploadModes = notesUploadModes;
+		result.helicopterModes = helicopterModes;
+		result.flightDurations = flightDurations;
+		result.passCodes = passCodes;
+		result.loadEstimates = loadEstimates;
+		result.notes = notes;
+		result.fileNames = fileNames;
+		result.epochSeconds = epochSeconds;
+		result.nanos = nanos;
+		return result;
+	}
+
+	private void grow() {
+		var capacity = Math.max(ids.length + (ids.length >> 1), INITIAL_CAPACITY);
+		events = Arrays.copyOf(events, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		divisions = Arrays.copyOf(divisions, capacity);
+		teamNumbers = Arrays.copyOf(teamNumbers, capacity);
+		schoolNames = Arrays.copyOf(schoolNames, capacity);
+		teamNames = Arrays.copyOf(teamNames, capacity);
+		studentNames = Arrays.copyOf(studentNames, capacity);
+		notesUploadModes = Arrays.copyOf(notesUploadModes, capacity);
+		helicopterModes = Arrays.copyOf(helicopterModes, capacity);
+		flightDurations = Arrays.copyOf(flightDurations, capacity);
+		passCodes = Arrays.copyOf(passCodes, capacity);
+		loadEstimates = Arrays.copyOf(loadEstimates, capacity);
+		notes = Arrays.copyOf(notes, capacity);
+		fileNames = Arrays.copyOf(fileNames, capacity);
+		epochSeconds = Arrays.copyOf(epochSeconds, capacity);
+		nanos = Arrays.copyOf(nanos, capacity);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(String.format(
+				"Index %1$d is out of bounds for %2$d submissions", index, size));
+		}
+	}
+
+	private String intern(String value) {
+		return (value == null) ? null : stringPool.computeIfAbsent(value, key -> key);
+	}
+
+	private static byte toOrdinal(Enum<?> value) {
+		return (value == null) ? NULL_ORDINAL : (byte) value.ordinal();
+	}
+
+	private static <T extends Enum<T>> T fromOrdinal(T[] values, byte ordinal) {
+		return (ordinal == NULL_ORDINAL) ? null : values[ordinal];
+	}
+}
@@ -0,0 +1,208 @@
+package org.virginiaso.file_upload;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a submission table to storage in the background, after the
+ * submission has already been accepted in memory. Each change to the table
+ * bumps its version number. At most one write is in flight at a time, and a
+ * write always stores the newest version, so that all of the versions created
+ * while a write is in flight are coalesced into the next one.
+ *
+ * A flush is scheduled no later than maxStalenessMillis after the table first
+ * becomes dirty, so the stored table lags the in-memory one by at most that
+ * window plus the duration of one write.
+ *
+ * The writer returns a future, so a write in flight does not hold one of the
+ * executor's threads while storage completes it.
+ */
+final class SubmissionTableFlusher {
+	@FunctionalInterface
+	interface TableWriter {
+		/**
+		 * Starts writing the newest version of the table to storage.
+		 *
+		 * @return A future that completes with the version that was written, or
+		 *         exceptionally if the write fails
+		 */
+		CompletableFuture<Long> writeNewestVersion();
+	}
+
+	private static final Logger LOG = LoggerFactory.getLogger(SubmissionTableFlusher.class);
+
+	private final String tableName;
+	private final TableWriter tableWriter;
+	private final ScheduledExecutorService executor;
+	private final long maxStalenessMillis;
+	private final AtomicLong numCoalescedVersions;
+
+	// The following are guarded by this:
+	private long latestVersion;
+	private long flushedVersion;
+	private long dirtySinceNanos;
+	private ScheduledFuture<?> scheduledFlush;
+	private boolean isFlushing;
+	private boolean isClosed;
+
+	public SubmissionTableFlusher(String tableName, long initialVersion,
+		TableWriter tableWriter, ScheduledExecutorService executor,
+		long maxStalenessMillis) {
+		this.tableName = Objects.requireNonNull(tableName, "tableName");
+		this.tableWriter = Objects.requireNonNull(tableWriter, "tableWriter");
+		this.executor = Objects.requireNonNull(executor, "executor");
+		this.maxStalenessMillis = Math.max(maxStalenessMillis, 0);
+		numCoalescedVersions = new AtomicLong(0);
+		latestVersion = initialVersion;
+		flushedVersion = initialVersion;
+		dirtySinceNanos = 0;
+		scheduledFlush = null;
+		isFlushing = false;
+		isClosed = false;
+	}
+
+	/**
+	 * Records that the table has changed and schedules a flush if one is not
+	 * already pending.
+	 *
+	 * @param version The table's new version number
+	 */
+	public synchronized void markDirty(long version) {
+		if (flushedVersion >= latestVersion) {
+			dirtySinceNanos = System.nanoTime();
+		}
+		latestVersion = Math.max(latestVersion, version);
+		if (isClosed) {
+			LOG.warn("Table {} changed after its flusher was closed", tableName);
+		} else if (scheduledFlush == null && !isFlushing) {
+			schedule(maxStalenessMillis);
+		}
+	}
+
+	/**
+	 * Writes any unflushed version and stops scheduling further flushes. Waits
+	 * for an in-flight flush, if any, to finish first.
+	 *
+	 * @throws IOException if the final flush fails
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws IOException, InterruptedException {
+		synchronized (this) {
+			isClosed = true;
+			if (scheduledFlush != null) {
+				scheduledFlush.cancel(false);
+				scheduledFlush = null;
+			}
+			while (isFlushing) {
+				wait();
+			}
+			if (flushedVersion >= latestVersion) {
+				return;
+			}
+			isFlushing = true;
+		}
+		try {
+			flush().join();
+		} catch (CompletionException ex) {
+			throw toIOException(ex.getCause());
+		} finally {
+			synchronized (this) {
+				isFlushing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	public long getNumCoalescedVersions() {
+		return numCoalescedVersions.get();
+	}
+
+	/** @return How long the oldest unflushed change has been waiting, or zero. */
+	public synchronized long getStalenessMillis() {
+		return (flushedVersion >= latestVersion)
+			? 0
+			: TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dirtySinceNanos);
+	}
+
+	private void schedule(long delayMillis) {
+		scheduledFlush = executor.schedule(this::runScheduledFlush, delayMillis,
+			TimeUnit.MILLISECONDS);
+	}
+
+	private void runScheduledFlush() {
+		synchronized (this) {
+			scheduledFlush = null;
+			if (isFlushing || isClosed) {
+				return;
+			}
+			isFlushing = true;
+		}
+		flush().whenComplete((result, ex) -> {
+			if (ex != null) {
+				LOG.warn(String.format("Unable to flush submission table %1$s, will retry:",
+					tableName), unwrap(ex));
+			}
+			synchronized (this) {
+				isFlushing = false;
+				notifyAll();
+				// Versions that arrived during the write go out together right
+				// away; after a failure, back off for one staleness window:
+				if (!isClosed && flushedVersion < latestVersion && scheduledFlush == null) {
+					schedule((ex == null) ? 0 : maxStalenessMillis);
+				}
+			}
+		});
+	}
+
+	private CompletableFuture<Void> flush() {
+		var startNanos = System.nanoTime();
+		CompletableFuture<Long> write;
+		try {
+			write = tableWriter.writeNewestVersion();
+		} catch (RuntimeException ex) {
+			write = CompletableFuture.failedFuture(ex);
+		}
+		return write.thenAccept(writtenVersion -> {
+			synchronized (this) {
+				if (writtenVersion > flushedVersion) {
+					numCoalescedVersions.addAndGet(writtenVersion - flushedVersion - 1);
+					flushedVersion = writtenVersion;
+				}
+				if (flushedVersion < latestVersion) {
+					// Changes made during the write are at most this old:
+					dirtySinceNanos = startNanos;
+				}
+			}
+			LOG.debug("Flushed version {} of submission table {} in {} ms", writtenVersion,
+				tableName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+		});
+	}
+
+	private IOException toIOException(Throwable cause) {
+		cause = unwrap(cause);
+		if (cause instanceof IOException ioEx) {
+			return ioEx;
+		} else if (cause instanceof UncheckedIOException uncheckedEx) {
+			return uncheckedEx.getCause();
+		} else {
+			return new IOException(String.format("Unable to flush submission table %1$s:",
+				tableName), cause);
+		}
+	}
+
+	private static Throwable unwrap(Throwable ex) {
+		return (ex instanceof CompletionException && ex.getCause() != null)
+			? ex.getCause()
+			: ex;
+	}
+}
@@ -0,0 +1,179 @@
+package org.virginiaso.file_upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.virginiaso.file_upload.util.FileUtil;
+import org.virginiaso.file_upload.util.StringUtil;
+
+/**
+ * Holds the tournament configuration, compiled into a ValidationIndex, and
+ * replaces it while the server runs. A new configuration is parsed and
+ * compiled completely before it is swapped in with a single reference write,
+ * so a request sees either the old configuration or the new one, never a mix,
+ * and a configuration that fails to parse leaves the old one in place.
+ * Callers that validate more than once per request should call getCurrent()
+ * once and keep the result.
+ *
+ * The configuration comes from tournamentConfigFile if that is set, or else
+ * from the tournamentConfigRsrc class path resource. The file is watched and
+ * reloaded whenever it changes, and either source can be reloaded on demand
+ * through AdminController.
+ */
+@Service
+public class TournamentConfigurationService {
+	private static final Logger LOG = LoggerFactory.getLogger(TournamentConfigurationService.class);
+	private static final long SETTLE_MILLIS = 500;
+
+	private final String tournamentConfigRsrc;
+	private final File tournamentConfigFile;
+	private final PageCacheFilter pageCacheFilter;
+	private final AtomicReference<ValidationIndex> current;
+	private final List<Consumer<ValidationIndex>> listeners;
+	private WatchService watchService;
+	private Thread watchThread;
+
+	public TournamentConfigurationService(
+		@Value("${fileUpload.timeZone}") String timeZoneStr,
+		@Value("${fileUpload.tournamentConfigRsrc}") String tournamentConfigRsrc,
+		@Value("${fileUpload.tournamentConfigFile:}") String tournamentConfigFile,
+		PageCacheFilter pageCacheFilter) throws IOException {
+		Configuration.setTimeZone(timeZoneStr);
+		this.tournamentConfigRsrc = tournamentConfigRsrc;
+		this.tournamentConfigFile = StringUtil.isBlank(tournamentConfigFile)
+			? null
+			: new File(tournamentConfigFile.trim());
+		this.pageCacheFilter = pageCacheFilter;
+		current = new AtomicReference<>(new ValidationIndex(load()));
+		listeners = new CopyOnWriteArrayList<>();
+		watchService = null;
+		watchThread = null;
+	}
+
+	@PostConstruct
+	public void initialize() throws IOException {
+		if (tournamentConfigFile == null) {
+			return;
+		}
+		var dir = tournamentConfigFile.getAbsoluteFile().getParentFile().toPath();
+		watchService = FileSystems.getDefault().newWatchService();
+		dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_MODIFY);
+		watchThread = new Thread(this::watch, "tournament-config-watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+		LOG.info("Watching {} for configuration changes", tournamentConfigFile);
+	}
+
+	@PreDestroy
+	public void cleanup() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+	}
+
+	/** @return The configuration in force, which a caller may keep for the rest of its request */
+	public ValidationIndex getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Registers a callback that is invoked, on the reloading thread, after each
+	 * new configuration is swapped in.
+	 *
+	 * @param listener The callback, which receives the new configuration
+	 */
+	public void addListener(Consumer<ValidationIndex> listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Reads, checks, and compiles the configuration again, and swaps it in.
+	 *
+	 * @return The new configuration
+	 * @throws IOException if the configuration cannot be read
+	 * @throws IllegalArgumentException if the configuration is invalid, in
+	 *                                  which case the old one stays in force
+	 */
+	public ValidationIndex reload() throws IOException {
+		var start = System.currentTimeMillis();
+		var newIndex = new ValidationIndex(load());
+		current.set(newIndex);
+		pageCacheFilter.invalidate();
+		for (var listener : listeners) {
+			try {
+				listener.accept(newIndex);
+			} catch (RuntimeException ex) {
+				LOG.error("Configuration change listener failed:", ex);
+			}
+		}
+		LOG.info("Reloaded {} tournaments from {} in {} ms", newIndex.getTournaments().size(),
+			getSourceName(), System.currentTimeMillis() - start);
+		return newIndex;
+	}
+
+	public String getSourceName() {
+		return (tournamentConfigFile == null)
+			? "resource " + tournamentConfigRsrc
+			: tournamentConfigFile.getPath();
+	}
+
+	private List<Tournament> load() throws IOException {
+		if (tournamentConfigFile == null) {
+			return Configuration.parse(tournamentConfigRsrc);
+		}
+		try (var rdr = Files.newBufferedReader(tournamentConfigFile.toPath(), FileUtil.CHARSET)) {
+			return Configuration.parse(rdr);
+		}
+	}
+
+	/*
+	 * Editors often save a file in several steps, so each burst of events is
+	 * allowed to settle before the file is read.
+	 */
+	private void watch() {
+		var fileName = tournamentConfigFile.toPath().getFileName();
+		try {
+			for (;;) {
+				var key = watchService.take();
+				var isChanged = false;
+				do {
+					isChanged |= key.pollEvents().stream()
+						.anyMatch(event -> fileName.equals(event.context()));
+					key.reset();
+					key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				} while (key != null);
+				if (isChanged) {
+					try {
+						reload();
+					} catch (IOException | RuntimeException ex) {
+						LOG.error(String.format(
+							"Keeping the previous configuration, because %1$s is invalid:",
+							tournamentConfigFile), ex);
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException ex) {
+			// Shutting down
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
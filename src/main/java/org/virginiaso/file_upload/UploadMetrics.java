@@ -0,0 +1,81 @@
+package org.virginiaso.file_upload;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * The meters of the upload pipeline, tagged by event and division. Both tags
+ * come from the Event and Division enums, so the number of series is bounded.
+ *
+ * <pre>
+ * fileupload.submission       time per phase (validation, transfer, table)
+ * fileupload.uploaded.bytes   bytes of uploaded files
+ * fileupload.deduplicated.bytes
+ *                             bytes of uploaded files stored by reference to
+ *                             identical content instead of being transferred
+ * fileupload.table.lock.wait  time spent waiting for the submission table lock
+ * </pre>
+ *
+ * The S3 meters are recorded by S3MetricsInterceptor, and in-flight multipart
+ * requests by MultipartRequestMetricsFilter.
+ */
+@Component
+public class UploadMetrics {
+	public enum Phase { VALIDATION, TRANSFER, TABLE }
+
+	/** Meters that record nothing, for uploaders created outside of Spring */
+	public static final UploadMetrics NONE = new UploadMetrics(new CompositeMeterRegistry());
+
+	private final MeterRegistry registry;
+
+	public UploadMetrics(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	public void recordPhase(Event event, Division division, Phase phase, long nanos) {
+		Timer.builder("fileupload.submission")
+			.description("Time taken by each phase of recording a submission")
+			.tag("event", event.getUri())
+			.tag("division", division.toString())
+			.tag("phase", phase.name().toLowerCase())
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordUploadedBytes(Event event, Division division, long numBytes) {
+		Counter.builder("fileupload.uploaded.bytes")
+			.description("Bytes of uploaded files")
+			.baseUnit("bytes")
+			.tag("event", event.getUri())
+			.tag("division", division.toString())
+			.register(registry)
+			.increment(numBytes);
+	}
+
+	public void recordDeduplicatedBytes(Event event, Division division, long numBytes) {
+		Counter.builder("fileupload.deduplicated.bytes")
+			.description("Bytes of uploaded files stored by reference to identical content")
+			.baseUnit("bytes")
+			.tag("event", event.getUri())
+			.tag("division", division.toString())
+			.register(registry)
+			.increment(numBytes);
+	}
+
+	public void recordTableLockWait(Event event, Division division, long nanos) {
+		Timer.builder("fileupload.table.lock.wait")
+			.description("Time spent waiting for a submission table lock")
+			.tag("event", event.getUri())
+			.tag("division", division.toString())
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+}
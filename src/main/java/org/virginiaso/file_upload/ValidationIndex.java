@@ -0,0 +1,173 @@
+package org.virginiaso.file_upload;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.virginiaso.file_upload.util.ValidationException;
+
+/**
+ * The tournament configuration compiled for validating submissions. It is
+ * built once, when the configuration is loaded, so that checking a submission
+ * neither allocates nor scans every tournament:
+ *
+ * <ul>
+ * <li>For each event and division, the time intervals of the tournaments that
+ * offer it are sorted by start time, alongside a running maximum of their end
+ * times. The intervals containing a given time are found by a binary search
+ * followed by a backward walk that stops as soon as no earlier interval can
+ * reach that time.</li>
+ * <li>The team numbers of each tournament and division are held in a BitSet.</li>
+ * </ul>
+ *
+ * Only a rejected submission pays for building its explanation, which is
+ * worded exactly as before the index existed.
+ */
+final class ValidationIndex {
+	private static final class Windows {
+		private final Instant[] from;
+		private final Instant[] to;
+		private final Instant[] maxToSoFar;
+		private final int[] tournamentIndex;
+		private final BitSet[] teams;
+
+		public Windows(List<Integer> tournamentIndexes, List<TimeInterval> intervals,
+			List<BitSet> teams) {
+			var order = IntStream.range(0, intervals.size())
+				.boxed()
+				.sorted(Comparator.comparing(i -> intervals.get(i).getFrom()))
+				.mapToInt(Integer::intValue)
+				.toArray();
+			from = new Instant[order.length];
+			to = new Instant[order.length];
+			maxToSoFar = new Instant[order.length];
+			tournamentIndex = new int[order.length];
+			this.teams = new BitSet[order.length];
+			for (var i = 0; i < order.length; ++i) {
+				from[i] = intervals.get(order[i]).getFrom();
+				to[i] = intervals.get(order[i]).getTo();
+				maxToSoFar[i] = (i == 0 || to[i].isAfter(maxToSoFar[i - 1]))
+					? to[i]
+					: maxToSoFar[i - 1];
+				tournamentIndex[i] = tournamentIndexes.get(order[i]);
+				this.teams[i] = teams.get(order[i]);
+			}
+		}
+
+		// The number of windows that start no later than time:
+		private int countStartedBy(Instant time) {
+			var low = 0;
+			var high = from.length;
+			while (low < high) {
+				var mid = (low + high) >>> 1;
+				if (from[mid].isAfter(time)) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			return low;
+		}
+
+		private boolean isOpen(int i, Instant time) {
+			return !to[i].isBefore(time);
+		}
+	}
+
+	private final List<Tournament> tournaments;
+	private final EnumMap<Event, EnumMap<Division, Windows>> windows;
+
+	public ValidationIndex(List<Tournament> tournaments) {
+		this.tournaments = List.copyOf(tournaments);
+		windows = new EnumMap<>(Event.class);
+		for (var event : Event.values()) {
+			for (var division : Division.values()) {
+				List<Integer> tournamentIndexes = new ArrayList<>();
+				List<TimeInterval> intervals = new ArrayList<>();
+				List<BitSet> teams = new ArrayList<>();
+				for (var i = 0; i < this.tournaments.size(); ++i) {
+					var tournament = this.tournaments.get(i);
+					var divisionIntervals = tournament.events().get(event);
+					var interval = (divisionIntervals == null) ? null : divisionIntervals.get(division);
+					if (interval != null) {
+						tournamentIndexes.add(i);
+						intervals.add(interval);
+						teams.add(toBitSet(tournament, division));
+					}
+				}
+				if (!intervals.isEmpty()) {
+					windows.computeIfAbsent(event, key -> new EnumMap<>(Division.class))
+						.put(division, new Windows(tournamentIndexes, intervals, teams));
+				}
+			}
+		}
+	}
+
+	private static BitSet toBitSet(Tournament tournament, Division division) {
+		var result = new BitSet();
+		var teamNumbers = tournament.teams().get(division);
+		if (teamNumbers != null) {
+			teamNumbers.stream()
+				.filter(teamNumber -> teamNumber >= 0)
+				.forEach(result::set);
+		}
+		return result;
+	}
+
+	public List<Tournament> getTournaments() {
+		return tournaments;
+	}
+
+	/**
+	 * Checks that the team number of a submission is valid in its division and
+	 * that the submission is within the time limits of its event and division.
+	 *
+	 * @param submission The submission to check
+	 * @throws ValidationException if the submission is invalid. The exception
+	 *                             message will contain an explanation of why.
+	 */
+	public void validate(Submission submission) {
+		var event = submission.getEvent();
+		var division = submission.getDivision();
+		var divisionWindows = windows.get(event);
+		var eventWindows = (divisionWindows == null) ? null : divisionWindows.get(division);
+		if (eventWindows == null) {
+			throw new ValidationException("%1$s is not an event in division %2$s.",
+				event.getLabel(), division);
+		}
+
+		var time = submission.getUtcTimeStamp();
+		var teamNumber = submission.getTeamNumber();
+		var isAnyOpen = false;
+		for (var i = eventWindows.countStartedBy(time) - 1;
+				i >= 0 && !eventWindows.maxToSoFar[i].isBefore(time); --i) {
+			if (eventWindows.isOpen(i, time)) {
+				isAnyOpen = true;
+				if (teamNumber >= 0 && eventWindows.teams[i].get(teamNumber)) {
+					return;
+				}
+			}
+		}
+
+		if (!isAnyOpen) {
+			throw new ValidationException(
+				"%1$s-%2$s is not accepting submissions at this time.",
+				event.getLabel(), division);
+		}
+		var numStarted = eventWindows.countStartedBy(time);
+		var tournamentNameList = IntStream.range(0, numStarted)
+			.filter(i -> eventWindows.isOpen(i, time))
+			.map(i -> eventWindows.tournamentIndex[i])
+			.sorted()
+			.mapToObj(i -> tournaments.get(i).name())
+			.collect(Collectors.joining(", "));
+		throw new ValidationException("Team %1$s%2$d is not competing at any of "
+			+ "the tournaments that are accepting %3$s-%1$s submissions (%4$s).",
+			division, teamNumber, event.getLabel(), tournamentNameList);
+	}
+}
@@ -0,0 +1,39 @@
+package org.virginiaso.file_upload;
+
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.virginiaso.file_upload.util.VirtualThreads;
+
+/**
+ * When fileUpload.virtualThreads.enabled is true, Tomcat runs each request on
+ * its own virtual thread instead of on its bounded worker pool. Everything on
+ * the upload path blocks (request parsing, S3 calls, writing the submission
+ * table), so with platform threads the pool size caps the number of uploads
+ * in progress, while a blocked virtual thread costs little more than its
+ * stack on the heap.
+ *
+ * On a JVM without virtual threads, this logs a warning and leaves Tomcat's
+ * pool alone.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "fileUpload.virtualThreads.enabled", havingValue = "true")
+public class VirtualThreadConfiguration {
+	private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadConfiguration.class);
+
+	@Bean
+	public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadRequestExecutor() {
+		return protocolHandler -> VirtualThreads.newThreadPerTaskExecutor("http-request-")
+			.ifPresentOrElse(
+				executor -> {
+					protocolHandler.setExecutor(executor);
+					LOG.info("Running requests on virtual threads");
+				},
+				() -> LOG.warn("Virtual threads are enabled, but this JVM (version {}) "
+					+ "does not support them", Runtime.version()));
+	}
+}
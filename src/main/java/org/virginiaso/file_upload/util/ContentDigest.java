@@ -0,0 +1,57 @@
+package org.virginiaso.file_upload.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * SHA-256 digests of uploaded file content, written as 64 lowercase hex
+ * digits. Storage uses them as content addresses, so a digest that comes from
+ * a client is checked with isSha256 before it goes anywhere near a path.
+ */
+public final class ContentDigest {
+	private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
+
+	private ContentDigest() {}	// prevent instantiation
+
+	public static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 is unavailable:", ex);
+		}
+	}
+
+	/** @return The digest of everything read so far through the stream */
+	public static String toHex(DigestInputStream is) {
+		return toHex(is.getMessageDigest());
+	}
+
+	/** @return The digest of everything passed to the given MessageDigest so far */
+	public static String toHex(MessageDigest digest) {
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/** Reads the rest of a stream, without closing it, and returns its digest. */
+	public static String of(InputStream is) throws IOException {
+		var digestStream = new DigestInputStream(is, newSha256());
+		digestStream.transferTo(OutputStream.nullOutputStream());
+		return toHex(digestStream);
+	}
+
+	/** @return The digest in lowercase, or null if it is blank */
+	public static String normalize(String sha256) {
+		var trimmed = StringUtil.safeTrim(sha256);
+		return (trimmed == null) ? null : trimmed.toLowerCase(Locale.US);
+	}
+
+	public static boolean isSha256(String sha256) {
+		return sha256 != null && SHA256_HEX.matcher(sha256).matches();
+	}
+}
@@ -0,0 +1,49 @@
+package org.virginiaso.file_upload.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** An input stream that counts the bytes read through it. */
+public final class CountingInputStream extends FilterInputStream {
+	private long count;
+
+	public CountingInputStream(InputStream in) {
+		super(in);
+		count = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		var b = super.read();
+		if (b >= 0) {
+			++count;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		var numRead = super.read(b, off, len);
+		if (numRead > 0) {
+			count += numRead;
+		}
+		return numRead;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		var numSkipped = super.skip(n);
+		count += numSkipped;
+		return numSkipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
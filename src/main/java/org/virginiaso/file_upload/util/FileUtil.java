@@ -5,10 +5,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.MissingResourceException;
 
 import org.apache.commons.lang3.tuple.Pair;
@@ -44,6 +46,44 @@ public final class FileUtil {
 			.toFile();
 	}
 
+	/**
+	 * Appends the given text to the end of a file, creating the file (and its
+	 * parent directory) if necessary. The method does not return until the new
+	 * content has been forced to the storage device, so that the append survives a
+	 * crash of the process or the machine.
+	 *
+	 * @param file The file to which to append
+	 * @param text The text to append
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void appendDurably(File file, String text) throws IOException {
+		var dir = file.getParentFile();
+		if (dir != null && !dir.isDirectory()) {
+			dir.mkdirs();
+		}
+		try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			var buffer = CHARSET.encode(text);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Forces the content of a file that has already been written to the storage
+	 * device, so that it survives a crash of the process or the machine.
+	 *
+	 * @param file The file to force
+	 * @throws IOException if the file cannot be forced
+	 */
+	public static void forceToDisk(File file) throws IOException {
+		try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
 	public static InputStream getResourceAsInputStream(String rsrcName) {
 		var cl = Thread.currentThread().getContextClassLoader();
 		var result = cl.getResourceAsStream(rsrcName);
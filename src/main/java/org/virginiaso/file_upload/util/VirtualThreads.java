@@ -0,0 +1,57 @@
+package org.virginiaso.file_upload.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates executors that run each task on its own virtual thread. The project
+ * is compiled for Java 17, which has no virtual threads, so the Java 21 API is
+ * reached reflectively and is simply reported as unavailable on older JVMs.
+ */
+public final class VirtualThreads {
+	private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private VirtualThreads() {}	// prevent instantiation
+
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for each task.
+	 *
+	 * @param namePrefix The threads are named namePrefix0, namePrefix1, ...
+	 * @return The executor, or empty if this JVM does not support virtual threads
+	 */
+	public static Optional<ExecutorService> newThreadPerTaskExecutor(String namePrefix) {
+		if (!isSupported()) {
+			return Optional.empty();
+		}
+		try {
+			var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			var builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, namePrefix, 0L);
+			var factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			var executor = (ExecutorService) Executors.class
+				.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+				.invoke(null, factory);
+			return Optional.of(executor);
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+				| InvocationTargetException ex) {
+			LOG.warn("Unable to create a virtual thread executor:", ex);
+			return Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,388 @@
+/*
+ * Sends the files of an upload form through the resumable upload API (see
+ * ResumableUploadController) instead of as one large POST.  Each file is sent
+ * in chunks, a few at a time, and a chunk that fails is retried on its own, so
+ * a dropped connection costs at most a few chunks rather than the whole upload.
+ * If the retries run out, pressing Submit again resumes the same upload, even
+ * after the page has been reloaded.
+ *
+ * When the server enables direct uploads, each chunk is instead PUT straight to
+ * storage at a short-lived URL that the server provides, so the file content
+ * does not pass through the server at all.
+ *
+ * Before a new upload starts, each file is hashed with SHA-256, and the server
+ * is told the digests.  A file the server already holds (say, a video that was
+ * submitted once already) is then marked as reused, and none of it is sent.
+ *
+ * Browsers without the necessary APIs simply post the form as before.
+ */
+(function () {
+	'use strict';
+
+	const PARALLEL_CHUNKS = 3;
+	const MAX_ATTEMPTS_PER_CHUNK = 6;
+	const FILE_PARAM_REGEX = /^file([A-J])$/;
+	const HASH_SLICE_SIZE = 4 * 1024 * 1024;
+	const SHA256_K = Uint32Array.of(
+		0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1,
+		0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+		0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+		0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+		0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147,
+		0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+		0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+		0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+		0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a,
+		0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+		0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2);
+
+	function findUploadForm() {
+		return document.querySelector(
+			'form[enctype="multipart/form-data"][action^="/fileUpload/"]');
+	}
+
+	function isSupported() {
+		return window.fetch && window.FormData && window.URLSearchParams
+			&& window.sessionStorage && Blob.prototype.slice;
+	}
+
+	function sleep(millis) {
+		return new Promise((resolve) => setTimeout(resolve, millis));
+	}
+
+	class UploadError extends Error {
+		constructor(message, isFinal) {
+			super(message);
+			this.isFinal = isFinal;
+		}
+	}
+
+	async function readError(response) {
+		try {
+			const body = await response.json();
+			return body.errorMessage || response.statusText;
+		} catch (ex) {
+			return response.statusText;
+		}
+	}
+
+	async function checkResponse(response) {
+		if (!response.ok) {
+			// A 4xx will fail the same way if retried:
+			const isFinal = response.status >= 400 && response.status < 500;
+			throw new UploadError(await readError(response), isFinal);
+		}
+		return response;
+	}
+
+	/*
+	 * SHA-256, fed a slice at a time.  The browser's own crypto.subtle.digest
+	 * wants the whole file in memory at once, which a video may not fit.
+	 */
+	class Sha256 {
+		constructor() {
+			this.state = Uint32Array.of(0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+				0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19);
+			this.schedule = new Uint32Array(64);
+			this.buffer = new Uint8Array(64);
+			this.bufferLength = 0;
+			this.length = 0;
+		}
+
+		update(bytes) {
+			let pos = 0;
+			this.length += bytes.length;
+			if (this.bufferLength > 0) {
+				pos = Math.min(64 - this.bufferLength, bytes.length);
+				this.buffer.set(bytes.subarray(0, pos), this.bufferLength);
+				this.bufferLength += pos;
+				if (this.bufferLength < 64) {
+					return;
+				}
+				this.compress(this.buffer, 0);
+				this.bufferLength = 0;
+			}
+			for (; pos + 64 <= bytes.length; pos += 64) {
+				this.compress(bytes, pos);
+			}
+			this.buffer.set(bytes.subarray(pos), 0);
+			this.bufferLength = bytes.length - pos;
+		}
+
+		digestHex() {
+			const bitLength = this.length * 8;
+			const padLength = (this.bufferLength < 56 ? 56 : 120) - this.bufferLength;
+			const padding = new Uint8Array(padLength + 8);
+			padding[0] = 0x80;
+			const view = new DataView(padding.buffer);
+			view.setUint32(padLength, Math.floor(bitLength / 0x100000000));
+			view.setUint32(padLength + 4, bitLength >>> 0);
+			this.update(padding);
+			return Array.from(this.state)
+				.map((word) => word.toString(16).padStart(8, '0'))
+				.join('');
+		}
+
+		compress(bytes, offset) {
+			const rotr = (x, n) => (x >>> n) | (x << (32 - n));
+			const w = this.schedule;
+			for (let i = 0; i < 16; ++i) {
+				const j = offset + 4 * i;
+				w[i] = (bytes[j] << 24) | (bytes[j + 1] << 16) | (bytes[j + 2] << 8) | bytes[j + 3];
+			}
+			for (let i = 16; i < 64; ++i) {
+				const s0 = rotr(w[i - 15], 7) ^ rotr(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+				const s1 = rotr(w[i - 2], 17) ^ rotr(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+				w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+			}
+			let [a, b, c, d, e, f, g, h] = this.state;
+			for (let i = 0; i < 64; ++i) {
+				const t1 = (h + (rotr(e, 6) ^ rotr(e, 11) ^ rotr(e, 25))
+					+ ((e & f) ^ (~e & g)) + SHA256_K[i] + w[i]) | 0;
+				const t2 = ((rotr(a, 2) ^ rotr(a, 13) ^ rotr(a, 22))
+					+ ((a & b) ^ (a & c) ^ (b & c))) | 0;
+				h = g;
+				g = f;
+				f = e;
+				e = (d + t1) | 0;
+				d = c;
+				c = b;
+				b = a;
+				a = (t1 + t2) | 0;
+			}
+			const state = this.state;
+			state[0] += a;
+			state[1] += b;
+			state[2] += c;
+			state[3] += d;
+			state[4] += e;
+			state[5] += f;
+			state[6] += g;
+			state[7] += h;
+		}
+	}
+
+	class ResumableUpload {
+		constructor(form) {
+			this.form = form;
+			this.eventUri = form.getAttribute('action').replace(/^\/fileUpload\//, '');
+			this.files = new Map();
+			this.params = new URLSearchParams();
+			for (const [name, value] of new FormData(form)) {
+				const match = FILE_PARAM_REGEX.exec(name);
+				if (!match) {
+					this.params.append(name, value);
+				} else if (value instanceof File && value.size > 0) {
+					this.files.set(match[1].toLowerCase(), value);
+					this.params.append(name + 'Name', value.name);
+					this.params.append(name + 'Size', value.size);
+				}
+			}
+			this.totalBytes = Array.from(this.files.values())
+				.reduce((sum, file) => sum + file.size, 0);
+			this.sentBytes = 0;
+			this.storageKey = 'resumableUpload:' + this.eventUri + ':'
+				+ Array.from(this.files.values())
+					.map((file) => [file.name, file.size, file.lastModified].join('/'))
+					.join('|');
+		}
+
+		async run(onProgress, onHashProgress) {
+			let status = await this.resumeSession();
+			if (!status) {
+				await this.hashFiles(onHashProgress);
+				status = await this.createSession();
+			}
+			sessionStorage.setItem(this.storageKey, status.sessionId);
+
+			const queue = [];
+			for (const fileStatus of status.files) {
+				const staged = new Set(fileStatus.stagedChunks);
+				for (let index = 0; index < fileStatus.numChunks; ++index) {
+					const size = Math.min(status.chunkSize,
+						fileStatus.size - index * status.chunkSize);
+					if (staged.has(index)) {
+						this.sentBytes += size;
+					} else {
+						queue.push({ label: fileStatus.label, index: index, size: size });
+					}
+				}
+			}
+			onProgress(this.sentBytes, this.totalBytes);
+
+			const sendNext = async () => {
+				for (let chunk = queue.shift(); chunk; chunk = queue.shift()) {
+					await this.sendChunk(status, chunk);
+					this.sentBytes += chunk.size;
+					onProgress(this.sentBytes, this.totalBytes);
+				}
+			};
+			const workers = [];
+			for (let i = 0; i < PARALLEL_CHUNKS; ++i) {
+				workers.push(sendNext());
+			}
+			await Promise.all(workers);
+
+			const response = await fetch(
+				'/resumableUpload/sessions/' + status.sessionId + '/finish', { method: 'POST' });
+			const result = await (await checkResponse(response)).json();
+			sessionStorage.removeItem(this.storageKey);
+			return result.receiptUrl;
+		}
+
+		async resumeSession() {
+			const sessionId = sessionStorage.getItem(this.storageKey);
+			if (!sessionId) {
+				return null;
+			}
+			const response = await fetch('/resumableUpload/sessions/' + sessionId);
+			if (!response.ok) {
+				// Most likely expired or forgotten by a server restart:
+				sessionStorage.removeItem(this.storageKey);
+				return null;
+			}
+			return response.json();
+		}
+
+		// Adds a fileXSha256 parameter for each file, where the browser can read files:
+		async hashFiles(onHashProgress) {
+			if (!Blob.prototype.arrayBuffer) {
+				return;
+			}
+			let hashedBytes = 0;
+			onHashProgress(hashedBytes, this.totalBytes);
+			for (const [label, file] of this.files) {
+				const sha256 = new Sha256();
+				for (let start = 0; start < file.size; start += HASH_SLICE_SIZE) {
+					const slice = file.slice(start, start + HASH_SLICE_SIZE);
+					sha256.update(new Uint8Array(await slice.arrayBuffer()));
+					hashedBytes += slice.size;
+					onHashProgress(hashedBytes, this.totalBytes);
+				}
+				this.params.append('file' + label.toUpperCase() + 'Sha256', sha256.digestHex());
+			}
+		}
+
+		async createSession() {
+			const response = await fetch('/resumableUpload/' + this.eventUri, {
+				method: 'POST',
+				body: this.params
+			});
+			return (await checkResponse(response)).json();
+		}
+
+		async sendChunk(status, chunk) {
+			const file = this.files.get(chunk.label);
+			const start = chunk.index * status.chunkSize;
+			const url = '/resumableUpload/sessions/' + status.sessionId + '/'
+				+ chunk.label + '/' + chunk.index;
+			for (let attempt = 1; ; ++attempt) {
+				try {
+					const body = file.slice(start, start + chunk.size);
+					if (status.direct) {
+						await this.sendChunkToStorage(url, body);
+					} else {
+						const response = await fetch(url, {
+							method: 'PUT',
+							headers: { 'Content-Type': 'application/octet-stream' },
+							body: body
+						});
+						await checkResponse(response);
+					}
+					return;
+				} catch (ex) {
+					if ((ex instanceof UploadError && ex.isFinal)
+							|| attempt >= MAX_ATTEMPTS_PER_CHUNK) {
+						throw ex;
+					}
+					await sleep(Math.min(1000 * Math.pow(2, attempt - 1), 15000));
+				}
+			}
+		}
+
+		async sendChunkToStorage(url, body) {
+			// A fresh URL for every attempt, in case the previous one has expired:
+			const urlResponse = await checkResponse(await fetch(url + '/url'));
+			const storageUrl = (await urlResponse.json()).url;
+			const response = await fetch(storageUrl, { method: 'PUT', body: body });
+			if (!response.ok) {
+				// The server checks the parts, so any refusal is worth a retry:
+				throw new UploadError('storage refused a chunk (' + response.status + ')', false);
+			}
+		}
+	}
+
+	function showStatus(form, message, errorMessage) {
+		let panel = form.querySelector('.resumable-upload-status');
+		if (!panel) {
+			panel = document.createElement('div');
+			panel.className = 'resumable-upload-status';
+			form.querySelector('.button-panel').before(panel);
+		}
+		panel.replaceChildren();
+		if (errorMessage) {
+			const errorDiv = document.createElement('div');
+			errorDiv.className = 'error-message';
+			errorDiv.append(message);
+			const quote = document.createElement('blockquote');
+			errorMessage.split(/<br\s*\/?>\s*/).forEach((line, i) => {
+				if (i > 0) {
+					quote.append(document.createElement('br'));
+				}
+				quote.append(line);
+			});
+			errorDiv.append(quote);
+			panel.append(errorDiv);
+		} else {
+			panel.append(message);
+		}
+		return panel;
+	}
+
+	function showProgress(form, message, sentBytes, totalBytes) {
+		const panel = showStatus(form, message);
+		const progress = document.createElement('progress');
+		progress.max = totalBytes;
+		progress.value = sentBytes;
+		panel.append(progress, ' ' + Math.floor(100 * sentBytes / totalBytes) + '%');
+	}
+
+	document.addEventListener('DOMContentLoaded', () => {
+		const form = findUploadForm();
+		if (!form || !isSupported()) {
+			return;
+		}
+		let isUploading = false;
+		form.addEventListener('submit', async (event) => {
+			const upload = new ResumableUpload(form);
+			if (upload.files.size === 0) {
+				// Nothing large to send, so the ordinary form post will do:
+				return;
+			}
+			event.preventDefault();
+			if (isUploading) {
+				return;
+			}
+			isUploading = true;
+			try {
+				const receiptUrl = await upload.run(
+					(sentBytes, totalBytes) => showProgress(form, 'Uploading: ', sentBytes,
+						totalBytes),
+					(hashedBytes, totalBytes) => showProgress(form, 'Checking files: ',
+						hashedBytes, totalBytes));
+				window.location.assign(receiptUrl);
+			} catch (ex) {
+				if (ex instanceof UploadError && ex.isFinal) {
+					showStatus(form,
+						'We are not able to accept your submission for the following reasons:',
+						ex.message);
+				} else {
+					showStatus(form, 'The upload was interrupted ('
+						+ (ex.message || ex) + ').  Press Submit to resume where it left off.');
+				}
+			} finally {
+				isUploading = false;
+			}
+		});
+	});
+})();
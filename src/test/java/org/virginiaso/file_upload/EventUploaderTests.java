@@ -0,0 +1,322 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EventUploaderTests {
+	@TempDir
+	File tempDir;
+
+	private ExecutorService transferExecutor;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	@BeforeEach
+	public void beforeEach() {
+		transferExecutor = Executors.newFixedThreadPool(4);
+	}
+
+	@AfterEach
+	public void afterEach() {
+		transferExecutor.shutdownNow();
+	}
+
+	@Test
+	public void filesAreTransferredConcurrentlyTest() throws IOException {
+		// Each transfer waits until both have started, so this only passes if
+		// the two files are in flight at the same time:
+		var bothStarted = new CountDownLatch(2);
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath()) {
+			@Override
+			public void transferUploadedFile(MultipartFile file, String eventDirName,
+				String newFileName) throws IOException {
+				bothStarted.countDown();
+				try {
+					assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException ex) {
+					throw new IOException(ex);
+				}
+				super.transferUploadedFile(file, eventDirName, newFileName);
+			}
+		};
+		var uploader = createUploader(storageService);
+
+		var submission = uploader.receiveFileUpload(createSubmission(),
+			new MultipartFile[] { createFile("log.txt"), null, createFile("code.py") });
+
+		assertEquals(List.of("B12-log-139a.txt", "B12-code-139c.py"),
+			submission.getFileNames());
+		assertTrue(new File(tempDir, "wici-B/B12-log-139a.txt").isFile());
+		assertTrue(new File(tempDir, "wici-B/B12-code-139c.py").isFile());
+	}
+
+	@Test
+	public void failedTransferRemovesSiblingsTest() throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath()) {
+			@Override
+			public void transferUploadedFile(MultipartFile file, String eventDirName,
+				String newFileName) throws IOException {
+				if (newFileName.contains("139b")) {
+					throw new IOException("Simulated storage failure");
+				}
+				super.transferUploadedFile(file, eventDirName, newFileName);
+			}
+		};
+		var uploader = createUploader(storageService);
+
+		assertThrows(IOException.class, () -> uploader.receiveFileUpload(createSubmission(),
+			new MultipartFile[] { createFile("log.txt"), createFile("video.mp4") }));
+
+		var eventDirContents = new File(tempDir, "wici-B").list();
+		assertTrue(eventDirContents == null || eventDirContents.length == 0);
+		assertEquals(-1, uploader.getMaxSubmissionId());
+	}
+
+	@Test
+	public void uploadIsMeteredTest() throws IOException {
+		var registry = new SimpleMeterRegistry();
+		var uploader = new EventUploader(Event.WICI, Division.B,
+			new FileSystemStorageServiceImpl(tempDir.getPath()),
+			new EventUploaderOptions(0, null, 0, transferExecutor, new UploadMetrics(registry),
+				null));
+
+		uploader.receiveFileUpload(createSubmission(),
+			new MultipartFile[] { createFile("log.txt"), createFile("code.py") });
+
+		for (var phase : List.of("transfer", "table")) {
+			assertEquals(1, registry.get("fileupload.submission")
+				.tags("event", "wici", "division", "B", "phase", phase)
+				.timer().count());
+		}
+		assertEquals("log.txt".length() + "code.py".length(),
+			registry.get("fileupload.uploaded.bytes").counter().count());
+		assertEquals(1, registry.get("fileupload.table.lock.wait").timer().count());
+	}
+
+	@Test
+	public void repeatedFileSharesStoredContentTest() throws IOException {
+		var uploader = createUploader(new FileSystemStorageServiceImpl(tempDir.getPath()));
+
+		uploader.receiveFileUpload(createSubmission(139),
+			new MultipartFile[] { createFile("log.txt") });
+		var submission = uploader.receiveFileUpload(createSubmission(140),
+			new MultipartFile[] { createFile("log.txt") });
+
+		// The digest computed on the transfer thread finds the first copy:
+		assertEquals(List.of("B12-log-140a.txt"), submission.getFileNames());
+		assertTrue(Files.isSameFile(new File(tempDir, "wici-B/B12-log-139a.txt").toPath(),
+			new File(tempDir, "wici-B/B12-log-140a.txt").toPath()));
+	}
+
+	@Test
+	public void tornJournalIsRepairedTest() throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath());
+		var options = new EventUploaderOptions(10, null, 0, null);
+		var uploader = new EventUploader(Event.WICI, Division.B, storageService, options);
+		uploader.receiveFileUpload(createSubmission(139), new MultipartFile[0]);
+		uploader.receiveFileUpload(createSubmission(140), new MultipartFile[0]);
+
+		// Tear the second record part way through a quoted field:
+		var journal = new File(tempDir, "wici-B/wici-B-journal.csv").toPath();
+		var text = Files.readString(journal);
+		var secondRecord = text.lastIndexOf("WICI,140,");
+		Files.writeString(journal, text.substring(0, secondRecord + 20) + ",\"Kim &");
+
+		var restarted = new EventUploader(Event.WICI, Division.B, storageService, options);
+		assertEquals(139, restarted.getMaxSubmissionId());
+		restarted.receiveFileUpload(createSubmission(141), new MultipartFile[0]);
+
+		var restartedAgain = new EventUploader(Event.WICI, Division.B, storageService, options);
+		assertEquals(List.of(139, 141), restartedAgain.getSubmissions().stream()
+			.map(Submission::getId)
+			.collect(Collectors.toList()));
+	}
+
+	@Test
+	public void tableWriteTruncatesJournalDespiteNewSubmissionsTest() throws IOException {
+		var submissionDuringWrite = new AtomicReference<Runnable>();
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath()) {
+			@Override
+			public void transferTempSubmissionTableFile(File tempSubmissionTableFile,
+				String submissionTableFileName) throws IOException {
+				var submission = submissionDuringWrite.getAndSet(null);
+				if (submission != null) {
+					submission.run();
+				}
+				super.transferTempSubmissionTableFile(tempSubmissionTableFile,
+					submissionTableFileName);
+			}
+		};
+		// The flusher is left idle, so that only the explicit export writes:
+		var flushExecutor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			var options = new EventUploaderOptions(10, flushExecutor,
+				TimeUnit.HOURS.toMillis(1), null);
+			var uploader = new EventUploader(Event.WICI, Division.B, storageService, options);
+			uploader.receiveFileUpload(createSubmission(139), new MultipartFile[0]);
+			uploader.receiveFileUpload(createSubmission(140), new MultipartFile[0]);
+			submissionDuringWrite.set(() -> {
+				try {
+					uploader.receiveFileUpload(createSubmission(141), new MultipartFile[0]);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			});
+			uploader.exportSubmissionTable();
+
+			// The segment sealed by the snapshot is gone, and only the
+			// submission that arrived during the write is still journaled:
+			assertFalse(new File(tempDir, "wici-B/wici-B-journal.csv").exists());
+			var journal = Files.readString(
+				new File(tempDir, "wici-B/wici-B-journal-1.csv").toPath());
+			assertFalse(journal.contains("WICI,140,"));
+			assertTrue(journal.contains("WICI,141,"));
+
+			var restarted = new EventUploader(Event.WICI, Division.B, storageService, options);
+			assertEquals(List.of(139, 140, 141), restarted.getSubmissions().stream()
+				.map(Submission::getId)
+				.collect(Collectors.toList()));
+		} finally {
+			flushExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void tableWritesAreChainedInSnapshotOrderTest() throws Exception {
+		var firstWriteStarted = new CountDownLatch(1);
+		var firstWriteGate = new CompletableFuture<Void>();
+		var numWrites = new AtomicInteger(0);
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath()) {
+			@Override
+			public CompletableFuture<Void> transferTempSubmissionTableFileAsync(
+				File tempSubmissionTableFile, String submissionTableFileName) {
+				var gate = (numWrites.incrementAndGet() == 1)
+					? firstWriteGate
+					: CompletableFuture.<Void>completedFuture(null);
+				firstWriteStarted.countDown();
+				return gate.thenRun(() -> {
+					try {
+						transferTempSubmissionTableFile(tempSubmissionTableFile,
+							submissionTableFileName);
+					} catch (IOException ex) {
+						throw new UncheckedIOException(ex);
+					}
+				});
+			}
+		};
+		// Without a journal, each submission writes the table:
+		var uploader = createUploader(storageService);
+
+		var first = CompletableFuture.supplyAsync(() -> receive(uploader, 139),
+			transferExecutor);
+		assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+		var second = CompletableFuture.supplyAsync(() -> receive(uploader, 140),
+			transferExecutor);
+		var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (uploader.getMaxSubmissionId() < 140 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		// The second snapshot is taken, but waits for the first write to land:
+		assertEquals(140, uploader.getMaxSubmissionId());
+		assertEquals(1, numWrites.get());
+		assertFalse(second.isDone());
+
+		firstWriteGate.complete(null);
+		first.join();
+		second.join();
+		assertEquals(2, numWrites.get());
+		var restarted = createUploader(new FileSystemStorageServiceImpl(tempDir.getPath()));
+		assertEquals(List.of(139, 140), restarted.getSubmissions().stream()
+			.map(Submission::getId)
+			.collect(Collectors.toList()));
+	}
+
+	@Test
+	public void databaseHoldsSubmissionsTest() throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath());
+		var tableFile = new File(tempDir, "wici-B/wici-B-submissions.csv");
+		var database = new SubmissionDatabase(true, new File(tempDir, "db.mv.db").getPath());
+		try {
+			var options = new EventUploaderOptions(0, null, 0, transferExecutor,
+				UploadMetrics.NONE, database);
+			new EventUploader(Event.WICI, Division.B, storageService, options)
+				.receiveFileUpload(createSubmission(), new MultipartFile[0]);
+
+			// Without a flusher, the table is exported as each submission arrives:
+			assertTrue(tableFile.isFile());
+			assertEquals(139, database.getExportedMaxId(Event.WICI, Division.B));
+
+			// Once the database holds the table, the export is not read back:
+			assertTrue(tableFile.delete());
+			var reloaded = new EventUploader(Event.WICI, Division.B, storageService, options);
+			assertEquals(139, reloaded.getMaxSubmissionId());
+			assertEquals(1, database.getTeamSubmissions(Division.B, 12).size());
+		} finally {
+			database.close();
+		}
+	}
+
+	private EventUploader createUploader(StorageService storageService) {
+		return new EventUploader(Event.WICI, Division.B, storageService,
+			new EventUploaderOptions(0, null, 0, transferExecutor));
+	}
+
+	private static Submission receive(EventUploader uploader, int id) {
+		try {
+			return uploader.receiveFileUpload(createSubmission(id), new MultipartFile[0]);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private static Submission createSubmission() {
+		return createSubmission(139);
+	}
+
+	private static Submission createSubmission(int id) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber("12");
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setTeamName("Red");
+		userSub.setStudentNames("Kim & Joe");
+		return new Submission(userSub, Event.WICI, id, Instant.now());
+	}
+
+	private static MultipartFile createFile(String fileName) {
+		return new MockMultipartFile("file", fileName, "application/octet-stream",
+			fileName.getBytes(StandardCharsets.UTF_8));
+	}
+}
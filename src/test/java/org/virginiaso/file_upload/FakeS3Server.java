@@ -0,0 +1,444 @@
+package org.virginiaso.file_upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal in-process stand-in for S3, reached with path-style addressing.
+ * It supports just the bucket, object, and multipart upload operations that
+ * the storage services use, keeps everything in memory, and ignores request
+ * signatures.
+ *
+ * So that load tests can push gigabytes through it, objects (and parts)
+ * larger than maxRetainedSize are received and counted but their content is
+ * discarded; reading such an object fails with NotImplemented.
+ */
+final class FakeS3Server implements AutoCloseable {
+	private static final Pattern PART_NUMBER = Pattern.compile(
+		"<PartNumber>(\\d+)</PartNumber>");
+
+	private record StoredObject(byte[] content, long size, String eTag) {}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long maxRetainedSize;
+	private final Set<String> buckets;
+	private final Map<String, StoredObject> objects;
+	private final Map<String, Map<Integer, StoredObject>> multipartUploads;
+	private final AtomicLong numBytesReceived;
+	private final AtomicInteger numPartUploadsToFail;
+	private final AtomicInteger numAbortedMultipartUploads;
+	private volatile long latencyMillis;
+
+	public FakeS3Server() throws IOException {
+		this(Long.MAX_VALUE);
+	}
+
+	public FakeS3Server(long maxRetainedSize) throws IOException {
+		this.maxRetainedSize = maxRetainedSize;
+		buckets = ConcurrentHashMap.newKeySet();
+		objects = new ConcurrentHashMap<>();
+		multipartUploads = new ConcurrentHashMap<>();
+		numBytesReceived = new AtomicLong(0);
+		numPartUploadsToFail = new AtomicInteger(0);
+		numAbortedMultipartUploads = new AtomicInteger(0);
+		latencyMillis = 0;
+		executor = Executors.newCachedThreadPool();
+		server = HttpServer.create(
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getEndpoint() {
+		return String.format("http://%1$s:%2$d",
+			server.getAddress().getHostString(), server.getAddress().getPort());
+	}
+
+	public boolean hasBucket(String bucket) {
+		return buckets.contains(bucket);
+	}
+
+	public byte[] getObject(String bucket, String key) {
+		var object = objects.get(bucket + "/" + key);
+		return (object == null) ? null : object.content();
+	}
+
+	public int getNumObjects() {
+		return objects.size();
+	}
+
+	/** @return The payload bytes received by object and part uploads */
+	public long getNumBytesReceived() {
+		return numBytesReceived.get();
+	}
+
+	/** Makes the next numFailures part uploads fail with a server error. */
+	public void failPartUploads(int numFailures) {
+		numPartUploadsToFail.set(numFailures);
+	}
+
+	/** Delays every request by the given time, as the round trip to S3 would. */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public int getNumIncompleteMultipartUploads() {
+		return multipartUploads.size();
+	}
+
+	/** @return The number of AbortMultipartUpload requests for known uploads */
+	public int getNumAbortedMultipartUploads() {
+		return numAbortedMultipartUploads.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (latencyMillis > 0) {
+				try {
+					Thread.sleep(latencyMillis);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			var path = exchange.getRequestURI().getPath().substring(1);
+			var slashIndex = path.indexOf('/');
+			var bucket = (slashIndex < 0) ? path : path.substring(0, slashIndex);
+			var key = (slashIndex < 0) ? "" : path.substring(slashIndex + 1);
+			var query = parseQuery(exchange.getRequestURI().getRawQuery());
+			var method = exchange.getRequestMethod();
+
+			if (key.isEmpty()) {
+				if ("HEAD".equals(method)) {
+					sendEmpty(exchange, buckets.contains(bucket) ? 200 : 404);
+				} else if ("PUT".equals(method)) {
+					buckets.add(bucket);
+					sendEmpty(exchange, 200);
+				} else {
+					sendEmpty(exchange, 501);
+				}
+			} else if (!buckets.contains(bucket)) {
+				sendError(exchange, 404, "NoSuchBucket");
+			} else if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+				handleMultipart(exchange, method, bucket, key, query);
+			} else if ("PUT".equals(method)
+					&& exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+				var object = getCopySource(exchange);
+				if (object == null) {
+					sendError(exchange, 404, "NoSuchKey");
+				} else {
+					objects.put(bucket + "/" + key, object);
+					sendXml(exchange, String.format("<CopyObjectResult>"
+						+ "<LastModified>%1$s</LastModified><ETag>%2$s</ETag>"
+						+ "</CopyObjectResult>", Instant.now(),
+						object.eTag().replace("\"", "&quot;")));
+				}
+			} else if ("PUT".equals(method)) {
+				var object = receive(exchange);
+				objects.put(bucket + "/" + key, object);
+				exchange.getResponseHeaders().add("ETag", object.eTag());
+				sendEmpty(exchange, 200);
+			} else if ("GET".equals(method)) {
+				var object = objects.get(bucket + "/" + key);
+				if (object == null) {
+					sendError(exchange, 404, "NoSuchKey");
+				} else if (object.content() == null) {
+					sendError(exchange, 501, "NotImplemented");
+				} else {
+					exchange.getResponseHeaders().add("ETag", object.eTag());
+					exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+					finishRequestBody(exchange);
+					exchange.sendResponseHeaders(200, object.content().length);
+					exchange.getResponseBody().write(object.content());
+				}
+			} else if ("HEAD".equals(method)) {
+				var object = objects.get(bucket + "/" + key);
+				if (object == null) {
+					sendEmpty(exchange, 404);
+				} else {
+					exchange.getResponseHeaders().add("ETag", object.eTag());
+					exchange.getResponseHeaders().add("Content-Length",
+						Long.toString(object.size()));
+					sendEmpty(exchange, 200);
+				}
+			} else if ("DELETE".equals(method)) {
+				objects.remove(bucket + "/" + key);
+				sendEmpty(exchange, 204);
+			} else {
+				sendEmpty(exchange, 501);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleMultipart(HttpExchange exchange, String method, String bucket,
+		String key, Map<String, String> query) throws IOException {
+
+		var uploadId = query.get("uploadId");
+		if ("POST".equals(method) && uploadId == null) {
+			uploadId = UUID.randomUUID().toString();
+			multipartUploads.put(uploadId, new ConcurrentSkipListMap<>());
+			sendXml(exchange, String.format("<InitiateMultipartUploadResult>"
+				+ "<Bucket>%1$s</Bucket><Key>%2$s</Key><UploadId>%3$s</UploadId>"
+				+ "</InitiateMultipartUploadResult>", bucket, key, uploadId));
+			return;
+		}
+
+		var parts = multipartUploads.get(uploadId);
+		if (parts == null) {
+			sendError(exchange, 404, "NoSuchUpload");
+		} else if ("PUT".equals(method)
+				&& exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+			// UploadPartCopy, which copies a whole object:
+			var part = getCopySource(exchange);
+			if (part == null) {
+				sendError(exchange, 404, "NoSuchKey");
+				return;
+			}
+			parts.put(Integer.parseInt(query.get("partNumber")), part);
+			sendXml(exchange, String.format("<CopyPartResult>"
+				+ "<LastModified>%1$s</LastModified><ETag>%2$s</ETag>"
+				+ "</CopyPartResult>", Instant.now(), part.eTag().replace("\"", "&quot;")));
+		} else if ("PUT".equals(method)) {
+			var part = receive(exchange);
+			if (numPartUploadsToFail.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+				sendError(exchange, 500, "InternalError");
+				return;
+			}
+			parts.put(Integer.parseInt(query.get("partNumber")), part);
+			exchange.getResponseHeaders().add("ETag", part.eTag());
+			sendEmpty(exchange, 200);
+		} else if ("POST".equals(method)) {
+			// Assemble the parts named in the request, in the order given:
+			var request = new String(exchange.getRequestBody().readAllBytes(),
+				StandardCharsets.UTF_8);
+			var content = new ByteArrayOutputStream();
+			var size = 0L;
+			var isRetained = true;
+			var m = PART_NUMBER.matcher(request);
+			while (m.find()) {
+				var part = parts.get(Integer.parseInt(m.group(1)));
+				if (part == null) {
+					sendError(exchange, 400, "InvalidPart");
+					return;
+				}
+				size += part.size();
+				if (part.content() == null || size > maxRetainedSize) {
+					isRetained = false;
+				} else if (isRetained) {
+					content.write(part.content());
+				}
+			}
+			multipartUploads.remove(uploadId);
+			var eTag = String.format("\"%1$s-%2$d\"", UUID.randomUUID(), parts.size());
+			objects.put(bucket + "/" + key, new StoredObject(
+				isRetained ? content.toByteArray() : null, size, eTag));
+			sendXml(exchange, String.format("<CompleteMultipartUploadResult>"
+				+ "<Bucket>%1$s</Bucket><Key>%2$s</Key><ETag>%3$s</ETag>"
+				+ "</CompleteMultipartUploadResult>", bucket, key, eTag.replace("\"", "&quot;")));
+		} else if ("GET".equals(method)) {
+			// ListParts, always in a single page:
+			var xml = new StringBuilder(String.format("<ListPartsResult>"
+				+ "<Bucket>%1$s</Bucket><Key>%2$s</Key><UploadId>%3$s</UploadId>"
+				+ "<IsTruncated>false</IsTruncated>", bucket, key, uploadId));
+			parts.forEach((partNumber, part) -> xml.append(String.format(
+				"<Part><PartNumber>%1$d</PartNumber><ETag>%2$s</ETag><Size>%3$d</Size></Part>",
+				partNumber, part.eTag().replace("\"", "&quot;"), part.size())));
+			sendXml(exchange, xml.append("</ListPartsResult>").toString());
+		} else if ("DELETE".equals(method)) {
+			multipartUploads.remove(uploadId);
+			numAbortedMultipartUploads.incrementAndGet();
+			sendEmpty(exchange, 204);
+		} else {
+			sendEmpty(exchange, 501);
+		}
+	}
+
+	// The object named by the request's CopySource, or null if there is none:
+	private StoredObject getCopySource(HttpExchange exchange) {
+		var source = URLDecoder.decode(
+			exchange.getRequestHeaders().getFirst("x-amz-copy-source"), StandardCharsets.UTF_8);
+		return objects.get(source.startsWith("/") ? source.substring(1) : source);
+	}
+
+	/*
+	 * Reads a payload without buffering more than maxRetainedSize of it, and
+	 * computes the MD5 ETag that the SDK checks.
+	 */
+	private StoredObject receive(HttpExchange exchange) throws IOException {
+		var digest = newMd5();
+		var retained = new ByteArrayOutputStream();
+		var counter = new CountingOutputStream(retained, maxRetainedSize);
+		try (var os = new DigestOutputStream(counter, digest)) {
+			var contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+			if (contentSha256 != null && contentSha256.startsWith("STREAMING-")) {
+				decodeAwsChunked(exchange.getRequestBody(), os);
+			} else {
+				exchange.getRequestBody().transferTo(os);
+			}
+		}
+		numBytesReceived.addAndGet(counter.count);
+		var hex = new StringBuilder();
+		for (var b : digest.digest()) {
+			hex.append(String.format("%1$02x", b));
+		}
+		return new StoredObject(counter.isOverflowed ? null : retained.toByteArray(),
+			counter.count, "\"" + hex + "\"");
+	}
+
+	// Passes bytes on until there are more than limit of them, and counts them all:
+	private static final class CountingOutputStream extends OutputStream {
+		private final ByteArrayOutputStream out;
+		private final long limit;
+		private long count;
+		private boolean isOverflowed;
+
+		public CountingOutputStream(ByteArrayOutputStream out, long limit) {
+			this.out = out;
+			this.limit = limit;
+			count = 0;
+			isOverflowed = false;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+			if (!isOverflowed && count > limit) {
+				isOverflowed = true;
+				out.reset();
+			}
+			if (!isOverflowed) {
+				out.write(b, off, len);
+			}
+		}
+	}
+
+	/*
+	 * The server recycles a connection as soon as the last byte of the response
+	 * is written, so whatever the handler left of the request body would be read
+	 * as the start of the next request on it. Every response therefore reads the
+	 * request body to its end first, including the CRLF that follows the last
+	 * chunk of an aws-chunked payload.
+	 */
+	private static void finishRequestBody(HttpExchange exchange) throws IOException {
+		exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+	}
+
+	private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+		finishRequestBody(exchange);
+		exchange.sendResponseHeaders(status, -1);
+	}
+
+	private static void sendXml(HttpExchange exchange, String body) throws IOException {
+		var xml = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body)
+			.getBytes(StandardCharsets.UTF_8);
+		finishRequestBody(exchange);
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(200, xml.length);
+		exchange.getResponseBody().write(xml);
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String code)
+			throws IOException {
+		var xml = String.format(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n"
+				+ "<Error><Code>%1$s</Code><Message>%1$s</Message></Error>",
+			code).getBytes(StandardCharsets.UTF_8);
+		finishRequestBody(exchange);
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(status, xml.length);
+		exchange.getResponseBody().write(xml);
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> result = new HashMap<>();
+		if (rawQuery != null) {
+			for (var param : rawQuery.split("&")) {
+				var equalsIndex = param.indexOf('=');
+				var name = (equalsIndex < 0) ? param : param.substring(0, equalsIndex);
+				var value = (equalsIndex < 0) ? "" : param.substring(equalsIndex + 1);
+				result.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+					URLDecoder.decode(value, StandardCharsets.UTF_8));
+			}
+		}
+		return result;
+	}
+
+	// Strips the chunk headers that the SDK adds when it signs a streaming payload:
+	private static void decodeAwsChunked(InputStream is, OutputStream os) throws IOException {
+		for (;;) {
+			var header = readLine(is);
+			var semicolonIndex = header.indexOf(';');
+			var chunkSize = Integer.parseInt(
+				(semicolonIndex < 0) ? header : header.substring(0, semicolonIndex), 16);
+			if (chunkSize == 0) {
+				return;
+			}
+			var chunk = is.readNBytes(chunkSize);
+			if (chunk.length < chunkSize) {
+				throw new EOFException("Truncated aws-chunked payload");
+			}
+			os.write(chunk);
+			readLine(is);
+		}
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		var line = new StringBuilder();
+		for (var b = is.read(); b != '\n'; b = is.read()) {
+			if (b < 0) {
+				throw new EOFException("Truncated aws-chunked payload");
+			} else if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
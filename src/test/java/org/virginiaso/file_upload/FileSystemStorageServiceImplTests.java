@@ -0,0 +1,98 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.virginiaso.file_upload.util.ContentDigest;
+
+public class FileSystemStorageServiceImplTests {
+	@TempDir
+	File tempDir;
+
+	@Test
+	public void signedDownloadLinkTest() throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath(), "test-key");
+		storageService.transferUploadedFile(new ByteArrayInputStream(new byte[10]), 10,
+			"wici-B", "B12-notes-139a.pdf");
+
+		var uri = storageService.getUploadedFileDownloadUri("wici-B", "B12-notes-139a.pdf",
+			Duration.ofMinutes(15));
+		assertEquals("download/wici-B/B12-notes-139a.pdf", uri.getPath());
+		var params = UriComponentsBuilder.fromUri(uri).build().getQueryParams();
+		var expires = Long.parseLong(params.getFirst("expires"));
+		var signature = params.getFirst("signature");
+
+		var file = storageService.getSignedDownloadFile("wici-B", "B12-notes-139a.pdf",
+			expires, signature);
+		assertEquals(new File(tempDir, "wici-B/B12-notes-139a.pdf"), file.orElseThrow());
+
+		// Any change to the link invalidates it:
+		assertFalse(storageService.getSignedDownloadFile("wici-B", "B7-notes-140a.pdf",
+			expires, signature).isPresent());
+		assertFalse(storageService.getSignedDownloadFile("wici-B", "B12-notes-139a.pdf",
+			expires + 3600, signature).isPresent());
+		// As does a server with another key:
+		assertFalse(new FileSystemStorageServiceImpl(tempDir.getPath())
+			.getSignedDownloadFile("wici-B", "B12-notes-139a.pdf", expires, signature)
+			.isPresent());
+	}
+
+	@Test
+	public void expiredDownloadLinkTest() throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath(), "test-key");
+		storageService.transferUploadedFile(new ByteArrayInputStream(new byte[10]), 10,
+			"wici-B", "B12-notes-139a.pdf");
+
+		var uri = storageService.getUploadedFileDownloadUri("wici-B", "B12-notes-139a.pdf",
+			Duration.ofMinutes(-1));
+		var params = UriComponentsBuilder.fromUri(uri).build().getQueryParams();
+
+		assertFalse(storageService.getSignedDownloadFile("wici-B", "B12-notes-139a.pdf",
+			Long.parseLong(params.getFirst("expires")), params.getFirst("signature"))
+			.isPresent());
+	}
+
+	@Test
+	public void repeatedContentIsSharedTest() throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath(), "test-key");
+		var content = "design log".getBytes(StandardCharsets.UTF_8);
+		var sha256 = ContentDigest.of(new ByteArrayInputStream(content));
+		assertFalse(storageService.linkUploadedFile(sha256, content.length, "wici-B",
+			"B12-log-139a.txt"));
+
+		storageService.transferUploadedFile(new ByteArrayInputStream(content),
+			content.length, "wici-B", "B12-log-139a.txt");
+		storageService.indexUploadedFile(sha256, "wici-B", "B12-log-139a.txt");
+		var first = new File(tempDir, "wici-B/B12-log-139a.txt").toPath();
+
+		// A second copy that was sent anyway is re-pointed at the stored content:
+		storageService.transferUploadedFile(new ByteArrayInputStream(content),
+			content.length, "wici-B", "B12-log-140a.txt");
+		storageService.indexUploadedFile(sha256, "wici-B", "B12-log-140a.txt");
+		assertTrue(Files.isSameFile(first,
+			new File(tempDir, "wici-B/B12-log-140a.txt").toPath()));
+
+		// A file that was not sent at all is linked to it:
+		assertTrue(storageService.hasContent(sha256, content.length));
+		assertTrue(storageService.linkUploadedFile(sha256, content.length, "wici-C",
+			"C3-log-141a.txt"));
+		var linked = new File(tempDir, "wici-C/C3-log-141a.txt").toPath();
+		assertTrue(Files.isSameFile(first, linked));
+		assertEquals("design log", Files.readString(linked));
+
+		// The size must match as well as the digest:
+		assertFalse(storageService.linkUploadedFile(sha256, content.length + 1, "wici-C",
+			"C3-log-142a.txt"));
+	}
+}
@@ -0,0 +1,207 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.ui.ExtendedModelMap;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import org.virginiaso.file_upload.util.ValidationException;
+
+public class FileUploadControllerTests {
+	private static final String BOUNDARY = "----FormBoundary7MA4YWxkTrZu0gW";
+
+	private RecordingFileUploadService fileUploadService;
+	private FileUploadController controller;
+	// What the streaming upload saw, in order:
+	private List<String> events;
+	private String failingLabel;
+	private RuntimeException failure;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	@BeforeEach
+	public void beforeEach() {
+		events = new ArrayList<>();
+		failingLabel = null;
+		failure = null;
+		fileUploadService = new RecordingFileUploadService();
+		controller = new FileUploadController(fileUploadService, null,
+			"https://example.org/", "https://example.org/teams", "https://example.org/faq",
+			false, DataSize.ofMegabytes(1), DataSize.ofMegabytes(2));
+	}
+
+	@Test
+	public void filesAreStreamedInRequestOrderTest() throws IOException {
+		var view = controller.fileUploadSubmit("wici", createRequest(), new ExtendedModelMap());
+
+		assertEquals("submissionResult", view);
+		// Fields before a file are set when it arrives, the blank fileB and
+		// the empty fileD are skipped, and the notes after the files are set
+		// by the finish:
+		assertEquals(List.of(
+			"addFile a log.txt team=B12 content=log line",
+			"addFile c code.py team=B12 content=print('hi')",
+			"finish notes=Last minute"), events);
+	}
+
+	@Test
+	public void failedFileAbortsUploadTest() {
+		failingLabel = "c";
+		failure = new IllegalStateException("Simulated storage failure");
+
+		assertThrows(IllegalStateException.class, () -> controller.fileUploadSubmit("wici",
+			createRequest(), new ExtendedModelMap()));
+		assertEquals("abort", events.get(events.size() - 1));
+		assertFalse(events.stream().anyMatch(event -> event.startsWith("finish")));
+	}
+
+	@Test
+	public void invalidSubmissionAbortsUploadAndShowsFormTest() throws IOException {
+		failingLabel = "a";
+		failure = new ValidationException("Team %1$s is not competing", "B12");
+		var model = new ExtendedModelMap();
+
+		var view = controller.fileUploadSubmit("wici", createRequest(), model);
+
+		assertEquals(Event.WICI.getTemplateName(), view);
+		assertEquals("Team B12 is not competing", model.get("errorMessage"));
+		assertEquals(List.of("abort"), events);
+	}
+
+	@Test
+	public void oversizedFileAbortsUploadTest() {
+		controller = new FileUploadController(fileUploadService, null,
+			"https://example.org/", "https://example.org/teams", "https://example.org/faq",
+			false, DataSize.ofBytes(5), DataSize.ofMegabytes(2));
+
+		assertThrows(IOException.class, () -> controller.fileUploadSubmit("wici",
+			createRequest(), new ExtendedModelMap()));
+		assertEquals("abort", events.get(events.size() - 1));
+	}
+
+	private static MockHttpServletRequest createRequest() {
+		var body = new StringBuilder();
+		appendField(body, "division", "B");
+		appendField(body, "teamNumber", "12");
+		appendField(body, "schoolName", "Wandering Minds Academy");
+		appendField(body, "studentNames", "Kim & Joe");
+		appendFile(body, "fileA", "log.txt", "log line");
+		appendFile(body, "fileB", "", "");
+		appendFile(body, "fileC", "code.py", "print('hi')");
+		appendFile(body, "fileD", "empty.txt", "");
+		appendField(body, "notes", "Last minute");
+		body.append("--").append(BOUNDARY).append("--\r\n");
+
+		var request = new MockHttpServletRequest("POST", "/fileUpload/wici");
+		request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+		request.setContent(body.toString().getBytes(StandardCharsets.UTF_8));
+		return request;
+	}
+
+	private static void appendField(StringBuilder body, String name, String value) {
+		body.append(String.format("--%1$s\r\n"
+			+ "Content-Disposition: form-data; name=\"%2$s\"\r\n\r\n"
+			+ "%3$s\r\n", BOUNDARY, name, value));
+	}
+
+	private static void appendFile(StringBuilder body, String name, String fileName,
+			String content) {
+		body.append(String.format("--%1$s\r\n"
+			+ "Content-Disposition: form-data; name=\"%2$s\"; filename=\"%3$s\"\r\n"
+			+ "Content-Type: application/octet-stream\r\n\r\n"
+			+ "%4$s\r\n", BOUNDARY, name, fileName, content));
+	}
+
+	// Records what the controller hands to the streaming upload:
+	private final class RecordingFileUploadService implements FileUploadService {
+		@Override
+		public Submission receiveFileUpload(Event event, UserSubmission userSub,
+			MultipartFile... files) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public StreamingUpload beginStreamingUpload(Event event, UserSubmission userSub) {
+			return new StreamingUpload() {
+				@Override
+				public void addFile(String label, String originalFileName, InputStream is)
+						throws IOException {
+					if (label.equals(failingLabel)) {
+						throw failure;
+					}
+					events.add(String.format("addFile %1$s %2$s team=%3$s%4$s content=%5$s",
+						label, originalFileName, userSub.getDivision(), userSub.getTeamNumber(),
+						new String(is.readAllBytes(), StandardCharsets.UTF_8)));
+				}
+
+				@Override
+				public void addStagedFile(String label, String originalFileName,
+					String sessionId, List<String> chunkNames, long chunkSize, long size) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public boolean addExistingFile(String label, String originalFileName,
+					String sha256, long size) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public FileLocation reserveFile(String label, String originalFileName) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public Submission finish() {
+					events.add("finish notes=" + userSub.getNotes());
+					return new Submission(userSub, event, 1, Instant.now());
+				}
+
+				@Override
+				public void abort() {
+					events.add("abort");
+				}
+			};
+		}
+
+		@Override
+		public void validateSubmission(Event event, UserSubmission userSub) {
+		}
+
+		@Override
+		public int exportSubmissionTables() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int writeSubmissionArchive(Event event, Division division,
+			Predicate<Submission> filter, OutputStream os) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<DownloadLink> getDownloadLinks(Event event, Division division,
+			Predicate<Submission> filter, Duration lifetime) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.virginiaso.file_upload.util.ValidationException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileUploadServiceImplTests {
+	// WICI is open all day on the tournament date, 2021-02-06:
+	private static final Instant OPEN_TIME = Instant.parse("2021-02-06T15:00:00Z");
+	private static final Instant CLOSED_TIME = Instant.parse("2021-02-07T15:00:00Z");
+
+	@TempDir
+	File tempDir;
+
+	private FileUploadServiceImpl service;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		service = startService(new FileSystemStorageServiceImpl(tempDir.getPath()));
+	}
+
+	// Loads the tables on two threads:
+	private FileUploadServiceImpl startService(StorageService storageService)
+			throws IOException {
+		var tournamentConfigService = new TournamentConfigurationService("America/New_York",
+			"testTournamentConfig.yaml", "", new PageCacheFilter(true));
+		var newService = new FileUploadServiceImpl(tournamentConfigService,
+			new UploadMetrics(new SimpleMeterRegistry()),
+			new SubmissionDatabase(false, new File(tempDir, "unused.mv.db").getPath()),
+			false, 100, false, 1000, 1, 60, 2, 15, 100, 0, false);
+		ReflectionTestUtils.setField(newService, "storageService", storageService);
+		newService.setClock(Clock.fixed(OPEN_TIME, ZoneOffset.UTC));
+		newService.initialize();
+		return newService;
+	}
+
+	@AfterEach
+	public void afterEach() {
+		service.cleanup();
+	}
+
+	@Test
+	public void streamedSubmissionIsRecordedTest() throws IOException {
+		var userSub = createUserSubmission("31");
+		var upload = service.beginStreamingUpload(Event.WICI, userSub);
+		upload.addFile("a", "log.txt", toStream("log line"));
+		upload.addFile("c", "code.py", toStream("print('hi')"));
+		userSub.setNotes("Last minute");
+		var submission = upload.finish();
+
+		assertEquals(2, submission.getFileNames().size());
+		assertEquals("Last minute", submission.getNotes());
+		for (var fileName : submission.getFileNames()) {
+			assertTrue(new File(tempDir, "wici-B/" + fileName).isFile());
+		}
+	}
+
+	@Test
+	public void invalidSubmissionIsRejectedAtFirstFileTest() {
+		var upload = service.beginStreamingUpload(Event.WICI, createUserSubmission("32"));
+
+		var ex = assertThrows(ValidationException.class,
+			() -> upload.addFile("a", "log.txt", toStream("log line")));
+		assertEquals("Team B32 is not competing at any of the tournaments that are "
+			+ "accepting Write It/CAD It (WICI)-B submissions (Test Regional).",
+			ex.getMessage());
+		upload.abort();
+		assertEquals(0, countUploadedFiles());
+	}
+
+	@Test
+	public void submissionOutsideWindowIsRejectedAtFirstFileTest() {
+		service.setClock(Clock.fixed(CLOSED_TIME, ZoneOffset.UTC));
+		var upload = service.beginStreamingUpload(Event.WICI, createUserSubmission("31"));
+
+		var ex = assertThrows(ValidationException.class,
+			() -> upload.addFile("a", "log.txt", toStream("log line")));
+		assertEquals("Write It/CAD It (WICI)-B is not accepting submissions at this time.",
+			ex.getMessage());
+		upload.abort();
+		assertEquals(0, countUploadedFiles());
+	}
+
+	@Test
+	public void fieldsAfterFilesAreValidatedAtFinishTest() throws IOException {
+		var userSub = createUserSubmission("31");
+		var upload = service.beginStreamingUpload(Event.WICI, userSub);
+		upload.addFile("a", "log.txt", toStream("log line"));
+		assertEquals(1, countUploadedFiles());
+
+		// A later field that makes the submission invalid:
+		userSub.setTeamNumber("32");
+		var ex = assertThrows(ValidationException.class, upload::finish);
+		assertTrue(ex.getMessage().startsWith("Team B32 is not competing"));
+		upload.abort();
+		assertEquals(0, countUploadedFiles());
+	}
+
+	@Test
+	public void startUpLoadsTablesInParallelBeforeAllocatingIdsTest() throws IOException {
+		service.beginStreamingUpload(Event.WICI, createUserSubmission("31")).finish();
+		var userSub = createUserSubmission("31");
+		userSub.setDivision("C");
+		var maxId = service.beginStreamingUpload(Event.WICI, userSub).finish().getId();
+		service.cleanup();
+
+		// Without a high-water mark, the restarted service must load every
+		// table to find the maximum ID.  The table holding it loads last:
+		assertTrue(new File(tempDir, SubmissionIdAllocator.HIGH_WATER_MARK_FILE_NAME).delete());
+		var numLoading = new AtomicInteger();
+		var maxNumLoading = new AtomicInteger();
+		service = startService(new FileSystemStorageServiceImpl(tempDir.getPath()) {
+			@Override
+			public InputStream getSubmissionTableAsInputStream(String submissionTableFileName)
+					throws FileNotFoundException {
+				if (!submissionTableFileName.endsWith("-submissions.csv")) {
+					return super.getSubmissionTableAsInputStream(submissionTableFileName);
+				}
+				maxNumLoading.accumulateAndGet(numLoading.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(submissionTableFileName.startsWith("wici-C/") ? 200 : 20);
+					return super.getSubmissionTableAsInputStream(submissionTableFileName);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(ex);
+				} finally {
+					numLoading.decrementAndGet();
+				}
+			}
+		});
+
+		assertEquals(2, maxNumLoading.get());
+		var submission = service.beginStreamingUpload(Event.WICI, createUserSubmission("33"))
+			.finish();
+		assertEquals(maxId + 1, submission.getId());
+	}
+
+	private int countUploadedFiles() {
+		var fileNames = new File(tempDir, "wici-B").list(
+			(dir, name) -> !name.endsWith(".csv"));
+		return (fileNames == null) ? 0 : fileNames.length;
+	}
+
+	private static ByteArrayInputStream toStream(String content) {
+		return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static UserSubmission createUserSubmission(String teamNumber) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber(teamNumber);
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setTeamName("Red");
+		userSub.setStudentNames("Kim & Joe");
+		return userSub;
+	}
+}
@@ -0,0 +1,94 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.virginiaso.file_upload.util.FileUtil;
+import org.virginiaso.file_upload.util.ValidationException;
+
+public class HelicopterFlightIndexTests {
+	private static final Instant START_TIME = Instant.parse("2021-03-06T14:00:00Z");
+
+	@TempDir
+	File tempDir;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	@Test
+	public void finishIsJoinedToItsStartTest() throws IOException {
+		var index = new HelicopterFlightIndex(new FileSystemStorageServiceImpl(tempDir.getPath()),
+			null, 0);
+		var start = createStart(1, 12);
+		index.addStarts(List.of(start, createStart(2, 7)));
+
+		// Students may type the unique word in lower case:
+		var finish = createFinish(3, 12, start.getPassCode().toLowerCase(), 75);
+		assertEquals(1, index.requireStart(finish).getId());
+		index.recordFinish(finish);
+
+		var lines = Files.readAllLines(
+			new File(tempDir, "helicopterFinish-B/helicopterFinish-B-flights.csv").toPath(),
+			FileUtil.CHARSET);
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(0).startsWith("DIVISION,TEAM_NUMBER,PASS_CODE,START_ID"));
+		assertTrue(lines.get(1).startsWith(String.format("B,12,%1$s,1,", start.getPassCode())));
+		assertTrue(lines.get(1).contains(",3,"));
+		assertTrue(lines.get(1).contains(",75.0,yes,"));
+		assertTrue(lines.get(2).startsWith("B,7,"));
+	}
+
+	@Test
+	public void unknownPassCodeIsRejectedTest() {
+		var index = new HelicopterFlightIndex(new FileSystemStorageServiceImpl(tempDir.getPath()),
+			null, 0);
+		var start = createStart(1, 12);
+		index.addStarts(List.of(start));
+
+		// The right word, but another team's:
+		assertThrows(ValidationException.class,
+			() -> index.requireStart(createFinish(2, 7, start.getPassCode(), 30)));
+		assertThrows(ValidationException.class,
+			() -> index.requireStart(createFinish(2, 12, "NOTAWORD", 30)));
+		assertTrue(index.isPassCodeTaken(start));
+		assertFalse(index.isPassCodeTaken(createStart(3, 7)));
+	}
+
+	private static Submission createStart(int id, int teamNumber) {
+		return new Submission(createUserSub(teamNumber), Event.HELICOPTER_START, id,
+			START_TIME.plusSeconds(id));
+	}
+
+	private static Submission createFinish(int id, int teamNumber, String passCode,
+			long minutesAfterStart) {
+		var userSub = createUserSub(teamNumber);
+		userSub.setHelicopterMode(HelicopterMode.ONE_HELICOPTER_ONE_STUDENT_TWO_VIDEOS.name());
+		userSub.setFlightDuration("37.12");
+		userSub.setPassCode(passCode);
+		return new Submission(userSub, Event.HELICOPTER_FINISH, id,
+			START_TIME.plusSeconds(1).plusSeconds(60 * minutesAfterStart));
+	}
+
+	private static UserSubmission createUserSub(int teamNumber) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber(Integer.toString(teamNumber));
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setTeamName("Red");
+		userSub.setStudentNames("Kim & Joe");
+		return userSub;
+	}
+}
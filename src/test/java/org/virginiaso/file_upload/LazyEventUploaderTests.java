@@ -0,0 +1,114 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LazyEventUploaderTests {
+	private static final int NUM_THREADS = 8;
+
+	@TempDir
+	File tempDir;
+
+	private ExecutorService executor;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	@BeforeEach
+	public void beforeEach() {
+		executor = Executors.newFixedThreadPool(NUM_THREADS);
+	}
+
+	@AfterEach
+	public void afterEach() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentFirstUseLoadsOnceTest()
+			throws InterruptedException, ExecutionException {
+		var numLoads = new AtomicInteger(0);
+		var loadStarted = new CountDownLatch(1);
+		var finishLoad = new CountDownLatch(1);
+		var lazyUploader = new LazyEventUploader(Event.WICI, Division.B, () -> {
+			numLoads.incrementAndGet();
+			loadStarted.countDown();
+			try {
+				// Hold the load open, so that the other threads arrive during it:
+				assertTrue(finishLoad.await(5, TimeUnit.SECONDS));
+			} catch (InterruptedException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return createUploader();
+		});
+
+		var barrier = new CyclicBarrier(NUM_THREADS);
+		List<Future<EventUploader>> results = new ArrayList<>();
+		for (var i = 0; i < NUM_THREADS; ++i) {
+			results.add(executor.submit(() -> {
+				barrier.await();
+				return lazyUploader.get();
+			}));
+		}
+		assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+		assertFalse(lazyUploader.getIfActive().isPresent());
+		finishLoad.countDown();
+
+		var first = results.get(0).get();
+		for (var result : results) {
+			assertSame(first, result.get());
+		}
+		assertEquals(1, numLoads.get());
+		assertSame(first, lazyUploader.getIfActive().orElseThrow());
+	}
+
+	@Test
+	public void failedLoadIsRetriedTest() {
+		var numLoads = new AtomicInteger(0);
+		var lazyUploader = new LazyEventUploader(Event.WICI, Division.B, () -> {
+			if (numLoads.incrementAndGet() == 1) {
+				throw new UncheckedIOException(new IOException("Simulated storage failure"));
+			}
+			return createUploader();
+		});
+
+		assertThrows(UncheckedIOException.class, lazyUploader::get);
+		assertFalse(lazyUploader.getIfActive().isPresent());
+
+		var uploader = lazyUploader.get();
+		assertSame(uploader, lazyUploader.get());
+		assertSame(uploader, lazyUploader.getIfActive().orElseThrow());
+		assertEquals(2, numLoads.get());
+	}
+
+	private EventUploader createUploader() {
+		return new EventUploader(Event.WICI, Division.B,
+			new FileSystemStorageServiceImpl(tempDir.getPath()),
+			new EventUploaderOptions(0, null, 0, null));
+	}
+}
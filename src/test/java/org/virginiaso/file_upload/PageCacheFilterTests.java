@@ -0,0 +1,106 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class PageCacheFilterTests {
+	private static final String PAGE = "<html><body>Submit Your Entry</body></html>";
+
+	private PageCacheFilter filter;
+	private AtomicInteger numRenders;
+	private FilterChain renderer;
+
+	@BeforeEach
+	public void beforeEach() {
+		filter = new PageCacheFilter(true);
+		numRenders = new AtomicInteger(0);
+		renderer = (request, response) -> {
+			numRenders.incrementAndGet();
+			response.setContentType("text/html;charset=UTF-8");
+			response.getOutputStream().write(PAGE.getBytes(StandardCharsets.UTF_8));
+		};
+	}
+
+	@Test
+	public void pageIsRenderedOnceTest() throws IOException, ServletException {
+		var first = get("/fileUpload/wici", null, null);
+		var second = get("/fileUpload/wici", null, null);
+
+		assertEquals(1, numRenders.get());
+		assertEquals(PAGE, first.getContentAsString());
+		assertEquals(PAGE, second.getContentAsString());
+		assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+	}
+
+	@Test
+	public void matchingETagGets304Test() throws IOException, ServletException {
+		var eTag = get("/", null, null).getHeader("ETag");
+		assertNotNull(eTag);
+
+		var response = get("/", eTag, null);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		assertEquals(0, response.getContentAsByteArray().length);
+	}
+
+	@Test
+	public void gzipIsServedWhenAcceptedTest() throws IOException, ServletException {
+		get("/fileUpload", null, null);
+		var response = get("/fileUpload", null, "gzip, deflate, br");
+
+		assertEquals("gzip", response.getHeader("Content-Encoding"));
+		try (var is = new GZIPInputStream(
+			new ByteArrayInputStream(response.getContentAsByteArray()))) {
+			assertArrayEquals(PAGE.getBytes(StandardCharsets.UTF_8), is.readAllBytes());
+		}
+	}
+
+	@Test
+	public void unknownPagesAndFailuresAreNotCachedTest() throws IOException, ServletException {
+		get("/fileUpload/noSuchEvent", null, null);
+		get("/fileUpload/noSuchEvent", null, null);
+		assertEquals(2, numRenders.get());
+
+		renderer = (request, response) -> {
+			numRenders.incrementAndGet();
+			var httpResponse = (HttpServletResponse) response;
+			httpResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		};
+		get("/fileUpload/barge", null, null);
+		get("/fileUpload/barge", null, null);
+		assertEquals(4, numRenders.get());
+		assertEquals(0, filter.getNumCachedPages());
+		assertNull(PageCacheFilter.getCacheKey(new MockHttpServletRequest("POST", "/"))
+			.orElse(null));
+	}
+
+	private MockHttpServletResponse get(String path, String ifNoneMatch,
+		String acceptEncoding) throws IOException, ServletException {
+		var request = new MockHttpServletRequest("GET", path);
+		if (ifNoneMatch != null) {
+			request.addHeader("If-None-Match", ifNoneMatch);
+		}
+		if (acceptEncoding != null) {
+			request.addHeader("Accept-Encoding", acceptEncoding);
+		}
+		var response = new MockHttpServletResponse();
+		filter.doFilter(request, response, renderer);
+		return response;
+	}
+}
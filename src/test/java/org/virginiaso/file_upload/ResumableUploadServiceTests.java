@@ -0,0 +1,333 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import org.virginiaso.file_upload.ResumableUploadSession.UploadedFileSpec;
+import org.virginiaso.file_upload.StreamingUpload.FileLocation;
+import org.virginiaso.file_upload.util.ContentDigest;
+import org.virginiaso.file_upload.util.ValidationException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ResumableUploadServiceTests {
+	private static final String LOG_CONTENT = "flight log!";
+	private static final String VIDEO_CONTENT = "helicopter video";
+
+	@TempDir
+	File tempDir;
+
+	private Map<String, String> receivedFiles;
+	private Runnable duringAssembly;
+	private FileSystemStorageServiceImpl storageService;
+	private ResumableUploadService service;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+		// Picked up by the SDK's default credential and region provider chains:
+		System.setProperty("aws.accessKeyId", "test-access-key");
+		System.setProperty("aws.secretAccessKey", "test-secret-key");
+		System.setProperty("aws.region", "us-east-1");
+	}
+
+	@BeforeEach
+	public void beforeEach() {
+		receivedFiles = new LinkedHashMap<>();
+		duringAssembly = () -> {};
+		storageService = new FileSystemStorageServiceImpl(tempDir.getPath());
+		service = new ResumableUploadService(new RecordingFileUploadService(),
+			storageService, DataSize.ofBytes(4),
+			DataSize.ofGigabytes(5), 60, false, 60);
+	}
+
+	@AfterEach
+	public void afterEach() {
+		service.cleanup();
+	}
+
+	@Test
+	public void chunksOutOfOrderAreAssembledTest() throws IOException {
+		var session = service.createSession(Event.WICI, createUserSubmission(), List.of(
+			new UploadedFileSpec("a", "log.txt", LOG_CONTENT.length(), null),
+			new UploadedFileSpec("b", "video.mp4", VIDEO_CONTENT.length(), null)));
+
+		// Send the chunks backwards, and one of them twice, as a retry would:
+		stageChunks(session, "b", VIDEO_CONTENT);
+		stageChunk(session, "a", 2, LOG_CONTENT);
+		stageChunk(session, "a", 1, LOG_CONTENT);
+		assertThrows(ValidationException.class, () -> service.finish(session));
+		assertEquals(0L, getFileStatus(session.getStatus(), 0).get("offset"));
+
+		stageChunk(session, "a", 0, LOG_CONTENT);
+		stageChunk(session, "a", 0, LOG_CONTENT);
+		assertEquals((long) LOG_CONTENT.length(),
+			getFileStatus(session.getStatus(), 0).get("offset"));
+
+		var submission = service.finish(session);
+		assertEquals(Map.of("a", LOG_CONTENT, "b", VIDEO_CONTENT), receivedFiles);
+
+		// A retried finish must not record the submission twice:
+		assertSame(submission, service.finish(session));
+		assertEquals(2, receivedFiles.size());
+	}
+
+	@Test
+	public void chunkIsNotStagedWhileSessionFinishesTest() throws IOException {
+		var session = service.createSession(Event.WICI, createUserSubmission(), List.of(
+			new UploadedFileSpec("a", "log.txt", LOG_CONTENT.length(), null)));
+		stageChunks(session, "a", LOG_CONTENT);
+
+		var executor = Executors.newSingleThreadExecutor();
+		try {
+			List<Future<?>> lateChunks = new ArrayList<>();
+			duringAssembly = () -> {
+				lateChunks.add(executor.submit(() -> {
+					stageChunk(session, "a", 0, "XXXX");
+					return null;
+				}));
+				// The chunk waits until the file has been joined:
+				assertThrows(TimeoutException.class,
+					() -> lateChunks.get(0).get(200, TimeUnit.MILLISECONDS));
+			};
+			service.finish(session);
+
+			var ex = assertThrows(ExecutionException.class,
+				() -> lateChunks.get(0).get(5, TimeUnit.SECONDS));
+			assertTrue(ex.getCause() instanceof ValidationException);
+			assertEquals(Map.of("a", LOG_CONTENT), receivedFiles);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void wrongChunkLengthIsRejectedTest() throws IOException {
+		var session = service.createSession(Event.WICI, createUserSubmission(), List.of(
+			new UploadedFileSpec("a", "log.txt", LOG_CONTENT.length(), null)));
+		var content = "abc".getBytes(StandardCharsets.UTF_8);
+		assertThrows(ValidationException.class, () -> service.stageChunk(session, "a", 0,
+			new ByteArrayInputStream(content), content.length));
+		assertThrows(ValidationException.class, () -> service.stageChunk(session, "a", 3,
+			new ByteArrayInputStream(content), content.length));
+	}
+
+	@Test
+	public void storedContentIsNotSentAgainTest() throws IOException {
+		var video = VIDEO_CONTENT.getBytes(StandardCharsets.UTF_8);
+		var videoSha256 = ContentDigest.of(new ByteArrayInputStream(video));
+		storageService.transferUploadedFile(new ByteArrayInputStream(video), video.length,
+			"wici-B", "B07-video-003a.mp4");
+		storageService.indexUploadedFile(videoSha256, "wici-B", "B07-video-003a.mp4");
+
+		// Only the file whose content is stored is skipped:
+		var logSha256 = ContentDigest.of(new ByteArrayInputStream(
+			LOG_CONTENT.getBytes(StandardCharsets.UTF_8)));
+		var session = service.createSession(Event.WICI, createUserSubmission(), List.of(
+			new UploadedFileSpec("a", "log.txt", LOG_CONTENT.length(), logSha256),
+			new UploadedFileSpec("b", "video.mp4", VIDEO_CONTENT.length(), videoSha256)));
+		assertEquals(false, getFileStatus(session.getStatus(), 0).get("reused"));
+		assertEquals(true, getFileStatus(session.getStatus(), 1).get("reused"));
+		assertEquals((LOG_CONTENT.length() + 3) / 4, session.getNumMissingChunks());
+
+		stageChunks(session, "a", LOG_CONTENT);
+		service.finish(session);
+		assertEquals(Map.of("a", LOG_CONTENT, "b", "reused:" + videoSha256), receivedFiles);
+	}
+
+	@Test
+	public void directUploadIsCheckedBeforeItIsRecordedTest()
+			throws IOException, InterruptedException {
+		try (var fakeS3 = new FakeS3Server()) {
+			var s3StorageService = new S3StorageServiceImpl("s3://test-bucket/root",
+				tempDir.getPath(), fakeS3.getEndpoint(), DataSize.ofMegabytes(8), 2, 3,
+				DataSize.ofMegabytes(64), new SimpleMeterRegistry());
+			s3StorageService.initialize();
+			var directService = new ResumableUploadService(new RecordingFileUploadService(),
+				s3StorageService, DataSize.ofBytes(4), DataSize.ofGigabytes(5), 60, true, 60);
+			try {
+				var content = new byte[(int) DirectUploadStorage.MIN_PART_SIZE + 1000];
+				new Random(42).nextBytes(content);
+				var session = directService.createSession(Event.WICI, createUserSubmission(),
+					List.of(new UploadedFileSpec("a", "video.mp4", content.length, null)));
+				assertEquals(true, session.getStatus().get("direct"));
+				// Raised to S3's minimum part size:
+				var chunkSize = session.getChunkSize();
+				assertEquals(DirectUploadStorage.MIN_PART_SIZE, chunkSize);
+
+				// A truncated part is not counted as received:
+				putChunk(directService, session, 1,
+					Arrays.copyOfRange(content, chunkSize, content.length));
+				putChunk(directService, session, 0, Arrays.copyOf(content, 100));
+				assertThrows(ValidationException.class, () -> directService.finish(session));
+				assertEquals(List.of(1),
+					getFileStatus(directService.getStatus(session), 0).get("stagedChunks"));
+
+				putChunk(directService, session, 0, Arrays.copyOf(content, chunkSize));
+				directService.finish(session);
+				assertArrayEquals(content,
+					fakeS3.getObject("test-bucket", "root/wici-B/a-video.mp4"));
+				assertEquals(0, fakeS3.getNumIncompleteMultipartUploads());
+				assertEquals(0, receivedFiles.size());
+			} finally {
+				directService.cleanup();
+				s3StorageService.cleanup();
+			}
+		}
+	}
+
+	// Sends a chunk as the browser would, straight to the presigned URL:
+	private static void putChunk(ResumableUploadService directService,
+		ResumableUploadSession session, int chunkIndex, byte[] chunk)
+			throws IOException, InterruptedException {
+		var request = HttpRequest.newBuilder(directService.getChunkUploadUri(session, "a",
+				chunkIndex))
+			.PUT(HttpRequest.BodyPublishers.ofByteArray(chunk))
+			.build();
+		var response = HttpClient.newHttpClient().send(request,
+			HttpResponse.BodyHandlers.discarding());
+		assertEquals(200, response.statusCode());
+	}
+
+	private void stageChunks(ResumableUploadSession session, String label, String content)
+			throws IOException {
+		for (var chunkIndex = (content.length() - 1) / 4; chunkIndex >= 0; --chunkIndex) {
+			stageChunk(session, label, chunkIndex, content);
+		}
+	}
+
+	private void stageChunk(ResumableUploadSession session, String label, int chunkIndex,
+		String content) throws IOException {
+		var start = 4 * chunkIndex;
+		var chunk = content.substring(start, Math.min(start + 4, content.length()))
+			.getBytes(StandardCharsets.UTF_8);
+		service.stageChunk(session, label, chunkIndex, new ByteArrayInputStream(chunk),
+			chunk.length);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getFileStatus(Map<String, Object> status,
+		int fileIndex) {
+		return ((List<Map<String, Object>>) status.get("files")).get(fileIndex);
+	}
+
+	private static UserSubmission createUserSubmission() {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber("12");
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setStudentNames("Kim & Joe");
+		return userSub;
+	}
+
+	// Records the assembled files instead of storing them:
+	private final class RecordingFileUploadService implements FileUploadService {
+		@Override
+		public Submission receiveFileUpload(Event event, UserSubmission userSub,
+			MultipartFile... files) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public StreamingUpload beginStreamingUpload(Event event, UserSubmission userSub) {
+			return new StreamingUpload() {
+				@Override
+				public void addFile(String label, String originalFileName, InputStream is)
+						throws IOException {
+					receivedFiles.put(label, new String(is.readAllBytes(), StandardCharsets.UTF_8));
+				}
+
+				// Joins the chunks as the storage would for a real submission:
+				@Override
+				public void addStagedFile(String label, String originalFileName,
+					String sessionId, List<String> chunkNames, long chunkSize, long size)
+						throws IOException {
+					duringAssembly.run();
+					storageService.assembleUploadChunks(sessionId, chunkNames, chunkSize,
+						"assembled", label);
+					try (var is = storageService.getUploadedFileAsInputStream("assembled", label)) {
+						receivedFiles.put(label, new String(is.readAllBytes(),
+							StandardCharsets.UTF_8));
+					}
+				}
+
+				@Override
+				public boolean addExistingFile(String label, String originalFileName,
+					String sha256, long size) {
+					receivedFiles.put(label, "reused:" + sha256);
+					return true;
+				}
+
+				@Override
+				public FileLocation reserveFile(String label, String originalFileName) {
+					return new FileLocation(event.getUri() + "-" + userSub.getDivision(),
+						label + "-" + originalFileName);
+				}
+
+				@Override
+				public Submission finish() {
+					return new Submission(userSub, event, 1, Instant.now());
+				}
+
+				@Override
+				public void abort() {
+				}
+			};
+		}
+
+		@Override
+		public void validateSubmission(Event event, UserSubmission userSub) {
+		}
+
+		@Override
+		public int exportSubmissionTables() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int writeSubmissionArchive(Event event, Division division,
+			Predicate<Submission> filter, OutputStream os) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<DownloadLink> getDownloadLinks(Event event, Division division,
+			Predicate<Submission> filter, Duration lifetime) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class S3AsyncStorageServiceImplTests {
+	private static final String BUCKET = "test-bucket";
+
+	@TempDir
+	File journalDir;
+
+	private FakeS3Server fakeS3;
+	private SimpleMeterRegistry meterRegistry;
+	private S3AsyncStorageServiceImpl storageService;
+
+	@BeforeAll
+	public static void beforeAll() {
+		// Picked up by the SDK's default credential and region provider chains:
+		System.setProperty("aws.accessKeyId", "test-access-key");
+		System.setProperty("aws.secretAccessKey", "test-secret-key");
+		System.setProperty("aws.region", "us-east-1");
+	}
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		fakeS3 = new FakeS3Server();
+		meterRegistry = new SimpleMeterRegistry();
+		storageService = new S3AsyncStorageServiceImpl("s3://" + BUCKET + "/root",
+			journalDir.getPath(), fakeS3.getEndpoint(), 8, 2, 3, DataSize.ofMegabytes(64),
+			meterRegistry);
+		storageService.initialize();
+	}
+
+	@AfterEach
+	public void afterEach() {
+		storageService.cleanup();
+		fakeS3.close();
+	}
+
+	@Test
+	public void bucketIsCreatedTest() {
+		assertTrue(fakeS3.hasBucket(BUCKET));
+	}
+
+	@Test
+	public void submissionTableRoundTripTest() throws IOException {
+		var tableContent = "ID,EVENT\n1,Helicopter\n";
+		var tempFile = storageService.getTempSubmissionTableFile("helicopter.csv");
+		Files.writeString(tempFile.toPath(), tableContent);
+		storageService.transferTempSubmissionTableFile(tempFile, "helicopter.csv");
+
+		assertFalse(tempFile.exists());
+		try (var is = storageService.getSubmissionTableAsInputStream("helicopter.csv")) {
+			assertEquals(tableContent, new String(is.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		assertThrows(FileNotFoundException.class,
+			() -> storageService.getSubmissionTableAsInputStream("no-such-table.csv"));
+	}
+
+	@Test
+	public void failedTableReadIsReportedAsIOExceptionTest() throws IOException {
+		// This server discards content, so reading the table back fails:
+		try (var discardingS3 = new FakeS3Server(0)) {
+			var discardingService = new S3AsyncStorageServiceImpl("s3://" + BUCKET + "/root",
+				journalDir.getPath(), discardingS3.getEndpoint(), 8, 2, 3,
+				DataSize.ofMegabytes(64), meterRegistry);
+			discardingService.initialize();
+			try {
+				var tempFile = discardingService.getTempSubmissionTableFile("helicopter.csv");
+				Files.writeString(tempFile.toPath(), "ID\n");
+				discardingService.transferTempSubmissionTableFile(tempFile, "helicopter.csv");
+
+				var ex = assertThrows(IOException.class,
+					() -> discardingService.getSubmissionTableAsInputStream("helicopter.csv"));
+				assertFalse(ex instanceof FileNotFoundException);
+			} finally {
+				discardingService.cleanup();
+			}
+		}
+	}
+
+	@Test
+	public void concurrentUploadsTest() throws IOException {
+		var files = IntStream.range(0, 20)
+			.mapToObj(i -> new MockMultipartFile("file", "file" + i + ".txt",
+				"text/plain", ("content of file " + i).getBytes(StandardCharsets.UTF_8)))
+			.toArray(MockMultipartFile[]::new);
+
+		var futures = IntStream.range(0, files.length)
+			.mapToObj(i -> storageService.transferUploadedFileAsync(files[i], "event",
+				files[i].getOriginalFilename()))
+			.toArray(CompletableFuture<?>[]::new);
+		CompletableFuture.allOf(futures).join();
+
+		for (var file : files) {
+			assertArrayEquals(file.getBytes(),
+				fakeS3.getObject(BUCKET, "root/event/" + file.getOriginalFilename()));
+		}
+
+		storageService.deleteUploadedFile("event", files[0].getOriginalFilename());
+		assertNull(fakeS3.getObject(BUCKET, "root/event/" + files[0].getOriginalFilename()));
+	}
+
+	@Test
+	public void uploadedFileIsStreamedBackTest() throws IOException {
+		// Several of the client's buffers long, with a pattern that shows reordering:
+		var content = new byte[3 * 1024 * 1024 + 17];
+		for (var i = 0; i < content.length; ++i) {
+			content[i] = (byte) (i % 251);
+		}
+		storageService.transferUploadedFile(new MockMultipartFile("file", "video.mp4",
+			"video/mp4", content), "event", "video.mp4");
+
+		try (var is = storageService.getUploadedFileAsInputStream("event", "video.mp4")) {
+			assertArrayEquals(content, is.readAllBytes());
+		}
+		// Closing a stream before the end abandons the rest of the download:
+		try (var is = storageService.getUploadedFileAsInputStream("event", "video.mp4")) {
+			assertEquals(0, is.read());
+			assertEquals(1, is.read());
+		}
+		assertThrows(FileNotFoundException.class,
+			() -> storageService.getUploadedFileAsInputStream("event", "no-such-file.mp4"));
+	}
+
+	@Test
+	public void streamOfUnknownLengthIsSentInPartsTest() throws IOException {
+		// Two full parts and a short one:
+		var content = new byte[2 * S3MultipartUploader.MIN_PART_SIZE + 1000];
+		for (var i = 0; i < content.length; ++i) {
+			content[i] = (byte) (i % 251);
+		}
+		storageService.transferUploadedFile(new ByteArrayInputStream(content), -1, "event",
+			"video.mp4");
+
+		assertArrayEquals(content, fakeS3.getObject(BUCKET, "root/event/video.mp4"));
+		assertEquals(content.length, fakeS3.getNumBytesReceived());
+		assertEquals(0, fakeS3.getNumIncompleteMultipartUploads());
+	}
+
+	@Test
+	public void s3CallsAreTimedTest() throws IOException {
+		var tempFile = storageService.getTempSubmissionTableFile("helicopter.csv");
+		Files.writeString(tempFile.toPath(), "ID\n");
+		storageService.transferTempSubmissionTableFile(tempFile, "helicopter.csv");
+		assertThrows(FileNotFoundException.class,
+			() -> storageService.getSubmissionTableAsInputStream("no-such-table.csv"));
+
+		assertEquals(1, meterRegistry.get("fileupload.s3.requests")
+			.tag("operation", "PutObject")
+			.tag("outcome", "success")
+			.timer().count());
+		assertEquals(1, meterRegistry.get("fileupload.s3.requests")
+			.tag("operation", "GetObject")
+			.tag("outcome", "error")
+			.timer().count());
+	}
+}
@@ -0,0 +1,168 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+public class S3MultipartUploaderTests {
+	private static final long MIB = S3MultipartUploader.MIB;
+	private static final long GIB = 1024 * MIB;
+	private static final String BUCKET = "test-bucket";
+	private static final String KEY = "uploads/file.bin";
+
+	private static byte[] content;
+
+	private FakeS3Server fakeS3;
+	private S3Client s3Client;
+	private ExecutorService executor;
+
+	@BeforeAll
+	public static void beforeAll() {
+		// Three parts of 8 MiB, the last of them short:
+		content = new byte[(int) (20 * MIB)];
+		new Random(42).nextBytes(content);
+	}
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		fakeS3 = new FakeS3Server();
+		// The uploader's own retries are under test, so the client does not retry:
+		s3Client = newS3Client(RetryPolicy.none());
+		s3Client.createBucket(request -> request.bucket(BUCKET));
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@AfterEach
+	public void afterEach() {
+		executor.shutdownNow();
+		s3Client.close();
+		fakeS3.close();
+	}
+
+	private S3Client newS3Client(RetryPolicy retryPolicy) {
+		return S3Client.builder()
+			.credentialsProvider(StaticCredentialsProvider.create(
+				AwsBasicCredentials.create("test-access-key", "test-secret-key")))
+			.region(Region.US_EAST_1)
+			.endpointOverride(URI.create(fakeS3.getEndpoint()))
+			.serviceConfiguration(S3Configuration.builder()
+				.pathStyleAccessEnabled(true)
+				.build())
+			.overrideConfiguration(ClientOverrideConfiguration.builder()
+				.retryPolicy(retryPolicy)
+				.build())
+			.build();
+	}
+
+	@ParameterizedTest
+	@MethodSource
+	public void choosePartSizeTest(long fileSize, long expectedPartSize) {
+		var partSize = S3MultipartUploader.choosePartSize(fileSize);
+		assertEquals(expectedPartSize, partSize);
+		assertEquals(0, partSize % MIB);
+		if (fileSize >= 0) {
+			assertTrue((fileSize + partSize - 1) / partSize <= S3MultipartUploader.MAX_NUM_PARTS);
+		}
+	}
+
+	private static Stream<Arguments> choosePartSizeTest() {
+		return Stream.of(
+			Arguments.of(-1L, 8 * MIB),
+			Arguments.of(0L, 8 * MIB),
+			Arguments.of(64 * MIB, 8 * MIB),
+			Arguments.of(500 * MIB, 8 * MIB),
+			Arguments.of(2 * GIB, 8 * MIB),
+			Arguments.of(3 * GIB, 12 * MIB),
+			Arguments.of(5 * GIB, 20 * MIB),
+			Arguments.of(1024 * GIB, 105 * MIB));
+	}
+
+	@Test
+	public void failedPartIsRetriedTest() throws IOException {
+		var uploader = new S3MultipartUploader(s3Client, executor, 2, 3, 64 * MIB);
+		fakeS3.failPartUploads(2);
+		uploader.upload(BUCKET, KEY, () -> new ByteArrayInputStream(content), content.length);
+
+		assertArrayEquals(content, fakeS3.getObject(BUCKET, KEY));
+		assertEquals(0, fakeS3.getNumIncompleteMultipartUploads());
+	}
+
+	@Test
+	public void partRetriedByClientIsSentWholeTest() throws IOException {
+		// Here the client retries the failed part by itself, before the uploader sees it:
+		try (var retryingClient = newS3Client(RetryPolicy.defaultRetryPolicy())) {
+			var uploader = new S3MultipartUploader(retryingClient, executor, 2, 1, 64 * MIB);
+			fakeS3.failPartUploads(1);
+			uploader.upload(BUCKET, KEY, () -> new ByteArrayInputStream(content),
+				content.length);
+		}
+
+		assertArrayEquals(content, fakeS3.getObject(BUCKET, KEY));
+	}
+
+	@Test
+	public void persistentPartFailureAbortsUploadTest() {
+		var uploader = new S3MultipartUploader(s3Client, executor, 2, 2, 64 * MIB);
+		fakeS3.failPartUploads(Integer.MAX_VALUE);
+		var ex = assertThrows(IOException.class, () -> uploader.upload(BUCKET, KEY,
+			new ByteArrayInputStream(content), content.length));
+
+		// The upload got as far as the parts, which S3 refused:
+		assertEquals("Unable to upload part to S3:", ex.getMessage());
+		assertTrue(ex.getCause() instanceof S3Exception);
+		assertEquals(500, ((S3Exception) ex.getCause()).statusCode());
+		assertNull(fakeS3.getObject(BUCKET, KEY));
+		assertEquals(1, fakeS3.getNumAbortedMultipartUploads());
+		assertEquals(0, fakeS3.getNumIncompleteMultipartUploads());
+		assertEquals(64 * MIB, uploader.getAvailableBufferBytes());
+	}
+
+	@Test
+	public void streamIsUploadedWithinBufferBudgetTest() throws IOException {
+		// The budget holds one part, though two parts may be in flight:
+		var uploader = new S3MultipartUploader(s3Client, executor, 2, 3, 8 * MIB);
+		uploader.upload(BUCKET, KEY, new ByteArrayInputStream(content), -1);
+
+		assertArrayEquals(content, fakeS3.getObject(BUCKET, KEY));
+		assertEquals(0, fakeS3.getNumIncompleteMultipartUploads());
+		assertEquals(8 * MIB, uploader.getAvailableBufferBytes());
+	}
+
+	@Test
+	public void smallContentIsSentInOnePutTest() throws IOException {
+		var uploader = new S3MultipartUploader(s3Client, executor, 2, 3, 8 * MIB);
+		var smallContent = new byte[1000];
+		new Random(7).nextBytes(smallContent);
+		uploader.upload(BUCKET, KEY, new ByteArrayInputStream(smallContent), -1);
+
+		assertArrayEquals(smallContent, fakeS3.getObject(BUCKET, KEY));
+		assertEquals(8 * MIB, uploader.getAvailableBufferBytes());
+	}
+}
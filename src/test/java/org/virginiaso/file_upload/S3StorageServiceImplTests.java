@@ -0,0 +1,150 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+import org.virginiaso.file_upload.util.ContentDigest;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class S3StorageServiceImplTests {
+	private static final String BUCKET = "test-bucket";
+
+	@TempDir
+	File journalDir;
+
+	private FakeS3Server fakeS3;
+	private S3StorageServiceImpl storageService;
+
+	@BeforeAll
+	public static void beforeAll() {
+		// Picked up by the SDK's default credential and region provider chains:
+		System.setProperty("aws.accessKeyId", "test-access-key");
+		System.setProperty("aws.secretAccessKey", "test-secret-key");
+		System.setProperty("aws.region", "us-east-1");
+	}
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		fakeS3 = new FakeS3Server();
+		storageService = new S3StorageServiceImpl("s3://" + BUCKET + "/root",
+			journalDir.getPath(), fakeS3.getEndpoint(), DataSize.ofMegabytes(8), 2, 3,
+			DataSize.ofMegabytes(64), new SimpleMeterRegistry());
+		storageService.initialize();
+	}
+
+	@AfterEach
+	public void afterEach() {
+		storageService.cleanup();
+		fakeS3.close();
+	}
+
+	@Test
+	public void bucketIsCreatedTest() {
+		assertTrue(fakeS3.hasBucket(BUCKET));
+	}
+
+	@Test
+	public void largeFileIsSentInPartsTest() throws IOException {
+		var content = new byte[20 * S3MultipartUploader.MIB + 12345];
+		new Random(42).nextBytes(content);
+		var file = new MockMultipartFile("fileA", "flight.mp4", "video/mp4", content);
+
+		storageService.transferUploadedFile(file, "helicopterFinish-B", "B12-flight-139a.mp4");
+
+		assertArrayEquals(content,
+			fakeS3.getObject(BUCKET, "root/helicopterFinish-B/B12-flight-139a.mp4"));
+		assertEquals(0, fakeS3.getNumIncompleteMultipartUploads());
+	}
+
+	@Test
+	public void presignedLinkDownloadsFromS3Test() throws IOException, InterruptedException {
+		var content = "flight log".getBytes(StandardCharsets.UTF_8);
+		storageService.transferUploadedFile(new MockMultipartFile("fileA", "log.txt",
+			"text/plain", content), "helicopterFinish-B", "B12-log-139a.txt");
+
+		var uri = storageService.getUploadedFileDownloadUri("helicopterFinish-B",
+			"B12-log-139a.txt", Duration.ofMinutes(15));
+
+		assertTrue(uri.getPath().endsWith("/test-bucket/root/helicopterFinish-B/B12-log-139a.txt"));
+		assertTrue(uri.getQuery().contains("X-Amz-Signature="));
+		assertTrue(uri.getQuery().contains("X-Amz-Expires=900"));
+		var response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(uri).build(),
+			HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, response.statusCode());
+		assertArrayEquals(content, response.body());
+	}
+
+	@Test
+	public void repeatedContentIsCopiedTest() throws IOException {
+		var content = "flight log".getBytes(StandardCharsets.UTF_8);
+		var sha256 = ContentDigest.of(new ByteArrayInputStream(content));
+		assertFalse(storageService.hasContent(sha256, content.length));
+
+		storageService.transferUploadedFile(new ByteArrayInputStream(content),
+			content.length, "helicopterFinish-B", "B12-log-139a.txt");
+		storageService.indexUploadedFile(sha256, "helicopterFinish-B", "B12-log-139a.txt");
+		var numBytesReceived = fakeS3.getNumBytesReceived();
+
+		assertTrue(storageService.linkUploadedFile(sha256, content.length,
+			"helicopterFinish-C", "C3-log-140a.txt"));
+		assertArrayEquals(content,
+			fakeS3.getObject(BUCKET, "root/helicopterFinish-C/C3-log-140a.txt"));
+		// The copy is made within S3, so no content is sent:
+		assertEquals(numBytesReceived, fakeS3.getNumBytesReceived());
+
+		// Nor is anything copied once the indexed file is gone:
+		storageService.deleteUploadedFile("helicopterFinish-B", "B12-log-139a.txt");
+		assertFalse(storageService.linkUploadedFile(sha256, content.length,
+			"helicopterFinish-C", "C3-log-141a.txt"));
+	}
+
+	@Test
+	public void stagedChunksAreJoinedInS3Test() throws IOException {
+		var chunkSize = (int) DirectUploadStorage.MIN_PART_SIZE;
+		var content = new byte[2 * chunkSize + 1000];
+		new Random(42).nextBytes(content);
+		List<String> chunkNames = new ArrayList<>();
+		for (var start = 0; start < content.length; start += chunkSize) {
+			var chunk = Arrays.copyOfRange(content, start,
+				Math.min(start + chunkSize, content.length));
+			var chunkName = ResumableUploadSession.getChunkName("a", chunkNames.size());
+			storageService.storeUploadChunk("session", chunkName,
+				new ByteArrayInputStream(chunk), chunk.length);
+			chunkNames.add(chunkName);
+		}
+		var numBytesReceived = fakeS3.getNumBytesReceived();
+
+		var sha256 = storageService.assembleUploadChunks("session", chunkNames, chunkSize,
+			"helicopterFinish-B", "B12-flight-139a.mp4");
+
+		assertArrayEquals(content,
+			fakeS3.getObject(BUCKET, "root/helicopterFinish-B/B12-flight-139a.mp4"));
+		// S3 copies the chunks, so no content is sent again, nor hashed here:
+		assertEquals(numBytesReceived, fakeS3.getNumBytesReceived());
+		assertTrue(sha256.isEmpty());
+		assertEquals(0, fakeS3.getNumIncompleteMultipartUploads());
+	}
+}
@@ -0,0 +1,187 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+public class SpoolingStorageServiceImplTests {
+	private static final String EVENT_DIR = "helicopter";
+	private static final String FILE_NAME = "B12-WanderingMinds.mp4";
+	private static final String CONTENT = "rotor wash";
+
+	@TempDir
+	File tempDir;
+
+	private SpoolingStorageServiceImpl spool;
+
+	@AfterEach
+	public void afterEach() {
+		if (spool != null) {
+			spool.cleanup();
+		}
+	}
+
+	@Test
+	public void uploadedFileIsReplicatedThenUnspooledTest() throws IOException, InterruptedException {
+		spool = createSpool(DataSize.ofGigabytes(1));
+		var bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+		spool.transferUploadedFile(new ByteArrayInputStream(bytes), bytes.length, EVENT_DIR,
+			FILE_NAME);
+
+		awaitReplication();
+		assertEquals(CONTENT, readRemoteFile());
+		assertFalse(new File(tempDir, "spool/files/" + EVENT_DIR + "/" + FILE_NAME).exists());
+		assertEquals(0, spool.getSpooledBytes());
+	}
+
+	@Test
+	public void submissionTableIsReadFromSpoolTest() throws IOException, InterruptedException {
+		spool = createSpool(DataSize.ofGigabytes(1));
+		var tempFile = spool.getTempSubmissionTableFile("helicopter-b.csv");
+		Files.writeString(tempFile.toPath(), CONTENT, StandardCharsets.UTF_8);
+		spool.transferTempSubmissionTableFile(tempFile, "helicopter-b.csv");
+		try (var is = spool.getSubmissionTableAsInputStream("helicopter-b.csv")) {
+			assertEquals(CONTENT, new String(is.readAllBytes(), StandardCharsets.UTF_8));
+		}
+
+		awaitReplication();
+		assertEquals(CONTENT, Files.readString(new File(tempDir, "remote/helicopter-b.csv").toPath(),
+			StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void spoolLeftByEarlierRunIsReplicatedTest() throws IOException, InterruptedException {
+		var eventDir = new File(tempDir, "spool/files/" + EVENT_DIR);
+		eventDir.mkdirs();
+		Files.writeString(new File(eventDir, FILE_NAME).toPath(), CONTENT, StandardCharsets.UTF_8);
+		Files.writeString(new File(eventDir, "partial.spooltmp").toPath(), "x",
+			StandardCharsets.UTF_8);
+
+		spool = createSpool(DataSize.ofGigabytes(1));
+		awaitReplication();
+		assertEquals(CONTENT, readRemoteFile());
+		assertFalse(new File(tempDir, "remote/" + EVENT_DIR + "/partial.spooltmp").exists());
+	}
+
+	@Test
+	public void fullSpoolWritesThroughTest() throws IOException {
+		spool = createSpool(DataSize.ofBytes(4));
+		var bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+		spool.transferUploadedFile(new ByteArrayInputStream(bytes), bytes.length, EVENT_DIR,
+			FILE_NAME);
+
+		assertEquals(0, spool.getNumPendingReplications());
+		assertEquals(CONTENT, readRemoteFile());
+	}
+
+	@Test
+	public void concurrentUploadsStayWithinSpoolLimitTest() throws Exception {
+		// Hold replication back, so that nothing leaves the spool during the uploads:
+		var replicationGate = new CountDownLatch(1);
+		var remote = new FileSystemStorageServiceImpl(new File(tempDir, "remote").getPath()) {
+			@Override
+			public void transferUploadedFile(InputStream is, long size, String eventDirName,
+				String newFileName) throws IOException {
+				if (Thread.currentThread().getName().equals("spool-replicator")) {
+					try {
+						replicationGate.await();
+					} catch (InterruptedException ex) {
+						throw new InterruptedIOException();
+					}
+				}
+				super.transferUploadedFile(is, size, eventDirName, newFileName);
+			}
+		};
+		var bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+		spool = createSpool(remote, DataSize.ofBytes(4L * bytes.length));
+
+		var numUploads = 16;
+		var barrier = new CyclicBarrier(numUploads);
+		var executor = Executors.newFixedThreadPool(numUploads);
+		try {
+			List<Future<?>> uploads = new ArrayList<>();
+			for (var i = 0; i < numUploads; ++i) {
+				var fileName = String.format("B%1$d-video.mp4", i);
+				uploads.add(executor.submit(() -> {
+					barrier.await();
+					spool.transferUploadedFile(new ByteArrayInputStream(bytes), bytes.length,
+						EVENT_DIR, fileName);
+					return null;
+				}));
+			}
+			for (var upload : uploads) {
+				upload.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// Exactly as many files as fit were spooled, and the rest written through:
+		assertEquals(4L * bytes.length, spool.getSpooledBytes());
+		assertEquals(4, spool.getNumPendingReplications());
+		replicationGate.countDown();
+		awaitReplication();
+		assertEquals(0, spool.getSpooledBytes());
+		assertEquals(numUploads, new File(tempDir, "remote/" + EVENT_DIR).list().length);
+	}
+
+	@Test
+	public void failedSpoolWriteGivesBackItsRoomTest() throws IOException {
+		spool = createSpool(DataSize.ofGigabytes(1));
+		var failingStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Simulated client disconnect");
+			}
+		};
+		assertThrows(IOException.class, () -> spool.transferUploadedFile(failingStream,
+			1000, EVENT_DIR, FILE_NAME));
+		assertEquals(0, spool.getSpooledBytes());
+	}
+
+	private SpoolingStorageServiceImpl createSpool(DataSize maxBytes) throws IOException {
+		return createSpool(new FileSystemStorageServiceImpl(
+			new File(tempDir, "remote").getPath()), maxBytes);
+	}
+
+	private SpoolingStorageServiceImpl createSpool(StorageService remote, DataSize maxBytes)
+			throws IOException {
+		var result = new SpoolingStorageServiceImpl(remote, true,
+			new File(tempDir, "spool").getPath(), maxBytes, 2);
+		result.initialize();
+		return result;
+	}
+
+	private void awaitReplication() throws InterruptedException {
+		for (var i = 0; i < 500 && spool.getNumPendingReplications() > 0; ++i) {
+			Thread.sleep(10);
+		}
+		assertTrue(spool.getNumPendingReplications() == 0, "Replication did not finish");
+	}
+
+	private String readRemoteFile() throws IOException {
+		return Files.readString(new File(tempDir, "remote/" + EVENT_DIR + "/" + FILE_NAME).toPath(),
+			StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,44 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class StaticAssetCacheFilterTests {
+	private static final String FINGERPRINTED_CSS =
+		"/VasoFileUploadStylesheet-0123456789abcdef0123456789abcdef.css";
+
+	private final StaticAssetCacheFilter filter = new StaticAssetCacheFilter();
+
+	@Test
+	public void fingerprintedAssetIsImmutableTest() throws IOException, ServletException {
+		var response = get(FINGERPRINTED_CSS, (request, resp) -> {});
+		assertEquals(StaticAssetCacheFilter.IMMUTABLE_CACHE_CONTROL,
+			response.getHeader("Cache-Control"));
+	}
+
+	@Test
+	public void plainAssetAndErrorsAreNotImmutableTest() throws IOException, ServletException {
+		assertNull(get("/favicon.ico", (request, resp) -> {}).getHeader("Cache-Control"));
+
+		var response = get(FINGERPRINTED_CSS, (request, resp) ->
+			((HttpServletResponse) resp).sendError(HttpServletResponse.SC_NOT_FOUND));
+		assertEquals("no-store", response.getHeader("Cache-Control"));
+	}
+
+	private MockHttpServletResponse get(String path, FilterChain chain)
+			throws IOException, ServletException {
+		var response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", path), response, chain);
+		return response;
+	}
+}
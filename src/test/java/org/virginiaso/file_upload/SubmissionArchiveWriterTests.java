@@ -0,0 +1,104 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.virginiaso.file_upload.util.FileUtil;
+
+public class SubmissionArchiveWriterTests {
+	private static final Instant START_TIME = Instant.parse("2021-03-06T14:00:00Z");
+
+	@TempDir
+	File tempDir;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	@Test
+	public void archiveHoldsTableAndFilesTest() throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath());
+		var notes = "Kim's notes\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+		var video = new byte[256 * 1024];
+		new Random(42).nextBytes(video);
+		storageService.transferUploadedFile(new ByteArrayInputStream(notes), notes.length,
+			"wici-B", "B12-notes-1.txt");
+		storageService.transferUploadedFile(new ByteArrayInputStream(video), video.length,
+			"wici-B", "B7-video-2.MP4");
+		var first = createSubmission(1, 12, "B12-notes-1.txt");
+		var second = createSubmission(2, 7, "B7-video-2.MP4", "B7-log-2.txt");
+
+		var buffer = new ByteArrayOutputStream();
+		var numFiles = new SubmissionArchiveWriter(storageService)
+			.write("wici-B", List.of(first, second), buffer);
+
+		assertEquals(2, numFiles);
+		var entries = readEntries(buffer.toByteArray());
+		assertEquals(List.of("wici-B/wici-B-submissions.csv", "wici-B/B12-notes-1.txt",
+			"wici-B/B7-video-2.MP4", "wici-B/" + SubmissionArchiveWriter.MISSING_FILES_ENTRY_NAME),
+			List.copyOf(entries.keySet()));
+		var table = new String(entries.get("wici-B/wici-B-submissions.csv"), FileUtil.CHARSET);
+		var header = Stream.of(Column.values())
+			.map(Column::name)
+			.collect(Collectors.joining(","));
+		assertEquals(header, table.lines().findFirst().orElseThrow());
+		assertEquals(3, table.lines().count());
+		assertArrayEquals(notes, entries.get("wici-B/B12-notes-1.txt"));
+		assertArrayEquals(video, entries.get("wici-B/B7-video-2.MP4"));
+		assertEquals("B7-log-2.txt", new String(
+			entries.get("wici-B/" + SubmissionArchiveWriter.MISSING_FILES_ENTRY_NAME),
+			FileUtil.CHARSET));
+	}
+
+	@Test
+	public void compressedFilesAreNotRecompressedTest() {
+		assertTrue(SubmissionArchiveWriter.isCompressed("B7-video-2.MP4"));
+		assertTrue(SubmissionArchiveWriter.isCompressed("B7-photo-2.jpeg"));
+		assertFalse(SubmissionArchiveWriter.isCompressed("B12-notes-1.txt"));
+		assertFalse(SubmissionArchiveWriter.isCompressed("B12-notes"));
+	}
+
+	private static Map<String, byte[]> readEntries(byte[] archive) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		try (var zis = new ZipInputStream(new ByteArrayInputStream(archive), FileUtil.CHARSET)) {
+			for (var entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+				entries.put(entry.getName(), zis.readAllBytes());
+			}
+		}
+		return entries;
+	}
+
+	private static Submission createSubmission(int id, int teamNumber, String... fileNames) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber(Integer.toString(teamNumber));
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setTeamName("Red");
+		userSub.setStudentNames("Kim & Joe");
+		var submission = new Submission(userSub, Event.WICI, id, START_TIME.plusSeconds(id));
+		for (var fileName : fileNames) {
+			submission.addFileName(fileName);
+		}
+		return submission;
+	}
+}
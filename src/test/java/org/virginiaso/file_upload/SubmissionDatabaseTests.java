@@ -0,0 +1,98 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SubmissionDatabaseTests {
+	private static final Instant START = Instant.parse("2021-03-06T14:00:00Z");
+
+	@TempDir
+	File tempDir;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	@Test
+	public void submissionsSurviveReopeningTest() throws IOException {
+		var original = createSubmission(Event.WICI, 139, 12, 0);
+		original.addFileName("B12-log-139a.txt");
+		var database = openDatabase();
+		database.insert(original);
+		database.close();
+
+		database = openDatabase();
+		try {
+			var reloaded = database.getSubmission(139).orElseThrow();
+			assertEquals(original.getSchoolName(), reloaded.getSchoolName());
+			assertEquals(original.getFileNames(), reloaded.getFileNames());
+			assertEquals(original.getUtcTimeStamp(), reloaded.getUtcTimeStamp());
+			assertEquals(139, database.getMaxSubmissionId());
+		} finally {
+			database.close();
+		}
+	}
+
+	@Test
+	public void indexesAreQueriedByRangeTest() throws IOException {
+		var database = openDatabase();
+		try {
+			database.insertAll(List.of(
+				createSubmission(Event.WICI, 3, 12, 30),
+				createSubmission(Event.VEHICLE_DESIGN, 1, 12, 10),
+				createSubmission(Event.WICI, 2, 7, 20),
+				createSubmission(Event.WICI, 10, 12, 40)));
+
+			assertEquals(List.of(2, 3, 10), getIds(database.getTable(Event.WICI, Division.B)));
+			assertEquals(List.of(1, 3, 10), getIds(database.getTeamSubmissions(Division.B, 12)));
+			assertEquals(List.of(2, 3), getIds(database.getSubmissionsBetween(
+				START.plusSeconds(20), START.plusSeconds(40))));
+			assertTrue(database.getTable(Event.WICI, Division.C).isEmpty());
+		} finally {
+			database.close();
+		}
+	}
+
+	@Test
+	public void disabledDatabaseRefusesUseTest() {
+		var database = new SubmissionDatabase(false, new File(tempDir, "unused.mv.db").getPath());
+
+		assertFalse(database.isEnabled());
+		assertThrows(IllegalStateException.class, () -> database.getMaxSubmissionId());
+		assertFalse(new File(tempDir, "unused.mv.db").exists());
+	}
+
+	private SubmissionDatabase openDatabase() {
+		return new SubmissionDatabase(true, new File(tempDir, "submissions.mv.db").getPath());
+	}
+
+	private static List<Integer> getIds(List<Submission> submissions) {
+		return submissions.stream()
+			.map(Submission::getId)
+			.collect(Collectors.toList());
+	}
+
+	private static Submission createSubmission(Event event, int id, int teamNumber,
+			long secondsAfterStart) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber(Integer.toString(teamNumber));
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setTeamName("Red");
+		userSub.setStudentNames("Kim & Joe");
+		return new Submission(userSub, event, id, START.plusSeconds(secondsAfterStart));
+	}
+}
@@ -0,0 +1,33 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.OptionalInt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SubmissionIdAllocatorTests {
+	@Test
+	public void allocationResumesAboveHighWaterMarkTest(@TempDir File tempDir)
+			throws IOException {
+		var storageService = new FileSystemStorageServiceImpl(tempDir.getPath());
+
+		var allocator = new SubmissionIdAllocator(storageService, 10);
+		assertTrue(allocator.readHighWaterMark().isEmpty());
+		allocator.initialize(41);
+		assertEquals(42, allocator.next());
+		assertEquals(43, allocator.next());
+		assertEquals(OptionalInt.of(51), allocator.readHighWaterMark());
+
+		// Simulate a restart:
+		var restartedAllocator = new SubmissionIdAllocator(storageService, 10);
+		var highWaterMark = restartedAllocator.readHighWaterMark();
+		assertEquals(OptionalInt.of(51), highWaterMark);
+		restartedAllocator.initialize(highWaterMark.getAsInt());
+		assertEquals(52, restartedAllocator.next());
+	}
+}
@@ -0,0 +1,103 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class SubmissionStoreTests {
+	private static final int NUM_SUBMISSIONS = 1_000;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+	}
+
+	@Test
+	public void storedSubmissionsPrintIdenticallyTest() throws IOException {
+		var original = createSubmission(139, "Wandering Minds Academy");
+		original.addFileName("B12-log-139a.txt");
+		original.addFileName("B12-code-139b.py");
+		var store = new SubmissionStore();
+		store.add(original);
+
+		assertEquals(toCsv(original), toCsv(store.get(0)));
+		assertEquals(original.getFileNames(), store.get(0).getFileNames());
+		assertEquals(original.getUtcTimeStamp(), store.get(0).getUtcTimeStamp());
+	}
+
+	@Test
+	public void snapshotIgnoresLaterAppendsTest() {
+		var store = new SubmissionStore();
+		store.add(createSubmission(1, "Wandering Minds Academy"));
+		var snapshot = store.snapshot();
+		for (var id = 2; id <= 100; ++id) {
+			store.add(createSubmission(id, "Wandering Minds Academy"));
+		}
+
+		assertEquals(1, snapshot.size());
+		assertEquals(1, snapshot.get(0).getId());
+		assertEquals(100, store.size());
+		assertEquals(100, store.getId(99));
+	}
+
+	@Test
+	public void namesArePooledWithinEachStoreTest() {
+		List<Submission> submissions = new ArrayList<>();
+		for (var id = 0; id < NUM_SUBMISSIONS; ++id) {
+			// A new String per submission, as parsing a table yields:
+			submissions.add(createSubmission(id, new String("Wandering Minds Academy")));
+		}
+		var store = SubmissionStore.of(submissions);
+		var otherStore = SubmissionStore.of(List.of(
+			createSubmission(1, new String("Wandering Minds Academy"))));
+
+		var schoolName = store.get(0).getSchoolName();
+		for (var i = 1; i < NUM_SUBMISSIONS; ++i) {
+			assertSame(schoolName, store.get(i).getSchoolName());
+		}
+		assertEquals(schoolName, otherStore.get(0).getSchoolName());
+		assertNotSame(schoolName, otherStore.get(0).getSchoolName());
+	}
+
+	@Test
+	public void columnsAreSizedToTheSubmissionsTest() {
+		List<Submission> submissions = new ArrayList<>();
+		for (var id = 0; id < NUM_SUBMISSIONS; ++id) {
+			submissions.add(createSubmission(id, "Wandering Minds Academy"));
+		}
+		var store = SubmissionStore.of(submissions);
+		assertEquals(NUM_SUBMISSIONS, store.size());
+		assertEquals(NUM_SUBMISSIONS, store.capacity());
+
+		store.add(createSubmission(NUM_SUBMISSIONS, "Wandering Minds Academy"));
+		assertEquals(NUM_SUBMISSIONS + NUM_SUBMISSIONS / 2, store.capacity());
+		assertEquals(store.capacity(), store.snapshot().capacity());
+		assertEquals(16, new SubmissionStore().capacity());
+	}
+
+	private static String toCsv(Submission submission) throws IOException {
+		var buffer = new StringBuilder();
+		try (var printer = EventUploader.CSV_FORMAT_OUT.withSkipHeaderRecord().print(buffer)) {
+			submission.print(printer);
+		}
+		return buffer.toString();
+	}
+
+	private static Submission createSubmission(int id, String schoolName) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber(Integer.toString(id % 99 + 1));
+		userSub.setSchoolName(schoolName);
+		userSub.setTeamName("Red");
+		userSub.setStudentNames("Kim & Joe " + id);
+		return new Submission(userSub, Event.WICI, id, Instant.now());
+	}
+}
@@ -0,0 +1,110 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SubmissionTableFlusherTests {
+	private ScheduledExecutorService executor;
+
+	@BeforeEach
+	public void beforeEach() {
+		executor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@AfterEach
+	public void afterEach() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void burstIsCoalescedTest() throws Exception {
+		var currentVersion = new AtomicLong(0);
+		List<Long> writtenVersions = new CopyOnWriteArrayList<>();
+		var written = new CountDownLatch(1);
+		var flusher = new SubmissionTableFlusher("test", 0, () -> {
+			writtenVersions.add(currentVersion.get());
+			written.countDown();
+			return CompletableFuture.completedFuture(currentVersion.get());
+		}, executor, 200);
+
+		for (long version = 1; version <= 10; ++version) {
+			currentVersion.set(version);
+			flusher.markDirty(version);
+		}
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+		flusher.close();
+
+		assertEquals(List.of(10L), writtenVersions);
+		assertEquals(9, flusher.getNumCoalescedVersions());
+		assertEquals(0, flusher.getStalenessMillis());
+	}
+
+	@Test
+	public void closeFlushesPendingVersionTest() throws Exception {
+		List<Long> writtenVersions = new CopyOnWriteArrayList<>();
+		var flusher = new SubmissionTableFlusher("test", 0, () -> {
+			writtenVersions.add(3L);
+			return CompletableFuture.completedFuture(3L);
+		}, executor, TimeUnit.HOURS.toMillis(1));
+
+		flusher.markDirty(3);
+		assertEquals(List.of(), writtenVersions);
+		flusher.close();
+		assertEquals(List.of(3L), writtenVersions);
+	}
+
+	@Test
+	public void failedFlushIsRetriedTest() throws Exception {
+		var attempts = new AtomicLong(0);
+		var written = new CountDownLatch(1);
+		var flusher = new SubmissionTableFlusher("test", 0, () -> {
+			if (attempts.incrementAndGet() == 1) {
+				return CompletableFuture.failedFuture(
+					new IOException("Simulated storage failure"));
+			}
+			written.countDown();
+			return CompletableFuture.completedFuture(1L);
+		}, executor, 50);
+
+		flusher.markDirty(1);
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+		flusher.close();
+		assertEquals(2, attempts.get());
+	}
+
+	@Test
+	public void writeInFlightDoesNotHoldExecutorTest() throws Exception {
+		var slowWrite = new CompletableFuture<Long>();
+		var slowFlusher = new SubmissionTableFlusher("slow", 0, () -> slowWrite,
+			executor, 0);
+		var written = new CountDownLatch(1);
+		var fastFlusher = new SubmissionTableFlusher("fast", 0, () -> {
+			written.countDown();
+			return CompletableFuture.completedFuture(1L);
+		}, executor, 0);
+
+		// The executor has one thread, which the slow write must not occupy:
+		slowFlusher.markDirty(1);
+		fastFlusher.markDirty(1);
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+
+		slowWrite.complete(1L);
+		slowFlusher.close();
+		fastFlusher.close();
+		assertEquals(0, slowFlusher.getStalenessMillis());
+	}
+}
@@ -0,0 +1,78 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.virginiaso.file_upload.util.FileUtil;
+
+public class TournamentConfigurationServiceTests {
+	private static final String ONE_TOURNAMENT = """
+		tournaments:
+		  - name: "Newton Regional"
+		    date: "2021-01-30"
+		    teams:
+		      B: "1-30"
+		    events:
+		      - name: "WICI"
+		        B: { from: "", to: "" }
+		""";
+	private static final String TWO_TOURNAMENTS = ONE_TOURNAMENT + """
+		  - name: "Marshall Regional"
+		    date: "2021-02-06"
+		    teams:
+		      B: "1-40"
+		    events:
+		      - name: "WICI"
+		        B: { from: "", to: "" }
+		""";
+
+	@TempDir
+	Path tempDir;
+
+	private Path configFile;
+	private TournamentConfigurationService service;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		configFile = tempDir.resolve("tournamentConfig.yaml");
+		Files.writeString(configFile, ONE_TOURNAMENT, FileUtil.CHARSET);
+		service = new TournamentConfigurationService("America/New_York",
+			"testTournamentConfig.yaml", configFile.toString(), new PageCacheFilter(true));
+	}
+
+	@Test
+	public void reloadSwapsConfigurationTest() throws IOException {
+		var before = service.getCurrent();
+		AtomicReference<ValidationIndex> notified = new AtomicReference<>();
+		service.addListener(notified::set);
+
+		Files.writeString(configFile, TWO_TOURNAMENTS, FileUtil.CHARSET);
+		var after = service.reload();
+
+		assertEquals(1, before.getTournaments().size());
+		assertEquals(2, after.getTournaments().size());
+		assertSame(after, service.getCurrent());
+		assertSame(after, notified.get());
+	}
+
+	@Test
+	public void invalidConfigurationIsRejectedTest() throws IOException {
+		var before = service.getCurrent();
+
+		Files.writeString(configFile, "tournaments:\n  - name: [", FileUtil.CHARSET);
+		assertThrows(RuntimeException.class, service::reload);
+		Files.writeString(configFile, "", FileUtil.CHARSET);
+		assertThrows(IllegalArgumentException.class, service::reload);
+
+		assertSame(before, service.getCurrent());
+	}
+}
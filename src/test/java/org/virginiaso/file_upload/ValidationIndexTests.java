@@ -0,0 +1,83 @@
+package org.virginiaso.file_upload;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.virginiaso.file_upload.util.ValidationException;
+
+public class ValidationIndexTests {
+	private static ValidationIndex index;
+
+	@BeforeAll
+	public static void beforeAll() {
+		Configuration.setTimeZone("America/New_York");
+
+		// Overlapping windows, with the longest one starting first, so that an
+		// open window lies behind one that has already closed:
+		index = new ValidationIndex(List.of(
+			createTournament("Early", "09:00", "17:00", Set.of(1, 2, 3)),
+			createTournament("Long", "08:00", "20:00", Set.of(20)),
+			createTournament("Lunch", "12:00", "13:00", Set.of(30))));
+	}
+
+	@Test
+	public void openWindowBehindClosedOneIsFoundTest() {
+		assertDoesNotThrow(() -> index.validate(createSubmission(20, "16:00")));
+		assertDoesNotThrow(() -> index.validate(createSubmission(20, "20:00")));
+		assertDoesNotThrow(() -> index.validate(createSubmission(30, "13:00")));
+	}
+
+	@Test
+	public void rejectionListsOpenTournamentsInConfigurationOrderTest() {
+		var ex = assertThrows(ValidationException.class,
+			() -> index.validate(createSubmission(30, "16:00")));
+		assertEquals("Team B30 is not competing at any of the tournaments that are "
+			+ "accepting Write It/CAD It (WICI)-B submissions (Early, Long).", ex.getMessage());
+
+		ex = assertThrows(ValidationException.class,
+			() -> index.validate(createSubmission(1, "18:00")));
+		assertEquals("Team B1 is not competing at any of the tournaments that are "
+			+ "accepting Write It/CAD It (WICI)-B submissions (Long).", ex.getMessage());
+	}
+
+	@Test
+	public void closedEventIsRejectedTest() {
+		var ex = assertThrows(ValidationException.class,
+			() -> index.validate(createSubmission(20, "07:59")));
+		assertEquals("Write It/CAD It (WICI)-B is not accepting submissions at this time.",
+			ex.getMessage());
+	}
+
+	private static Tournament createTournament(String name, String from, String to,
+		Set<Integer> teams) {
+		var date = "2021-02-06T";
+		EnumMap<Division, TimeInterval> intervals = new EnumMap<>(Division.class);
+		intervals.put(Division.B, new TimeInterval(date + from, date + to));
+		EnumMap<Event, EnumMap<Division, TimeInterval>> events = new EnumMap<>(Event.class);
+		events.put(Event.WICI, intervals);
+		EnumMap<Division, Set<Integer>> teamMap = new EnumMap<>(Division.class);
+		teamMap.put(Division.B, teams);
+		return new Tournament(name, LocalDate.parse("2021-02-06"), teamMap, events);
+	}
+
+	private static Submission createSubmission(int teamNumber, String time) {
+		var userSub = new UserSubmission();
+		userSub.setDivision("B");
+		userSub.setTeamNumber(Integer.toString(teamNumber));
+		userSub.setSchoolName("Wandering Minds Academy");
+		userSub.setStudentNames("Kim & Joe");
+		var timeStamp = ZonedDateTime.of(LocalDateTime.parse("2021-02-06T" + time),
+			Configuration.getTimeZone()).toInstant();
+		return new Submission(userSub, Event.WICI, 139, timeStamp);
+	}
+}
@@ -3,8 +3,11 @@ package org.virginiaso.file_upload.util;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class FileUtilTests {
 	@Test
@@ -20,4 +23,12 @@ public class FileUtilTests {
 		File fileWithSuffix = FileUtil.appendToFileStem(originalFile, "-temp");
 		assertEquals("/foo.bar/baz-temp", fileWithSuffix.getPath());
 	}
+
+	@Test
+	void testAppendDurably(@TempDir File tempDir) throws IOException {
+		File file = new File(new File(tempDir, "subdir"), "journal.csv");
+		FileUtil.appendDurably(file, "first\n");
+		FileUtil.appendDurably(file, "second\n");
+		assertEquals("first\nsecond\n", Files.readString(file.toPath(), FileUtil.CHARSET));
+	}
 }